@@ -255,6 +255,7 @@ public class NodeSetDTM extends NodeVector implements DTMIterator, Cloneable {
       // is somewhat tough because the sequence test involves
       // two nodes.
       final int size = size();
+      final DTM dtm = support.getDTM(node);
       int i;
       for (i = size - 1; i >= 0; i--) {
         final int child = elementAt(i);
@@ -265,7 +266,6 @@ public class NodeSetDTM extends NodeVector implements DTMIterator, Cloneable {
           break;
         }
 
-        final DTM dtm = support.getDTM(node);
         if (!dtm.isNodeAfter(node, child)) {
           break;
         }
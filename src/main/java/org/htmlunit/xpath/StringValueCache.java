@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.htmlunit.xpath.objects.XString;
+import org.htmlunit.xpath.xml.dtm.DTM;
+
+/**
+ * Remembers the string-values of element and document nodes while an XPath is evaluated. Building
+ * such a string-value means collecting the text of the whole subtree, and the same nodes are
+ * often converted again and again, e.g. by comparisons in nested predicates. The cache only
+ * works between {@link #startEvaluation()} and the matching {@link #endEvaluation()}, which
+ * clears it, so changes made to a DOM between evaluations are always seen. The least recently
+ * used values are dropped when the cached strings exceed a number of characters.
+ *
+ * <p>The {@link XPathContext} gives every evaluation its own values, so that a node-set result
+ * that finds its nodes after {@link XPath#execute(XPathContext, int,
+ * org.htmlunit.xpath.xml.utils.PrefixResolver)} has returned keeps using the values of the
+ * evaluation that created it.
+ */
+public class StringValueCache {
+
+  /** The default limit of the number of characters held. */
+  public static final int DEFAULT_MAX_CHARS = 1 << 20;
+
+  /** The string-values of one evaluation. */
+  static final class Values {
+    /** The string-values by node handle, least recently used first. */
+    final LinkedHashMap<Integer, XString> m_map = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** The number of characters held. */
+    long m_chars;
+  }
+
+  /** The string-values of the evaluation in progress. */
+  private Values m_values = new Values();
+
+  /** The limit of the number of characters held. */
+  private int m_maxChars = DEFAULT_MAX_CHARS;
+
+  /** The number of evaluations in progress; nothing is cached if none is. */
+  private int m_depth;
+
+  /** The number of string-values found in the cache. */
+  private long m_hits;
+
+  /** The number of string-values built. */
+  private long m_misses;
+
+  /**
+   * Get the string-value of a node, from the cache if an evaluation is in progress.
+   *
+   * @param dtm The DTM of the node.
+   * @param nodeHandle The node handle.
+   * @return the string-value of the node.
+   */
+  public XString getStringValue(final DTM dtm, final int nodeHandle) {
+    if (0 == m_depth) {
+      return dtm.getStringValue(nodeHandle);
+    }
+
+    // Other nodes have their value at hand.
+    final int type = dtm.getNodeType(nodeHandle);
+    if (DTM.ELEMENT_NODE != type
+        && DTM.DOCUMENT_NODE != type
+        && DTM.DOCUMENT_FRAGMENT_NODE != type) {
+      return dtm.getStringValue(nodeHandle);
+    }
+
+    final Integer key = Integer.valueOf(nodeHandle);
+    XString value = m_values.m_map.get(key);
+    if (null != value) {
+      m_hits++;
+      return value;
+    }
+
+    m_misses++;
+    value = dtm.getStringValue(nodeHandle);
+    if (value.length() <= m_maxChars) {
+      m_values.m_map.put(key, value);
+      m_values.m_chars += value.length();
+      evict();
+    }
+    return value;
+  }
+
+  /** Start an evaluation; evaluations may nest. */
+  public void startEvaluation() {
+    m_depth++;
+  }
+
+  /** End an evaluation, and clear the cache when the outermost one ends. */
+  public void endEvaluation() {
+    if (m_depth > 0 && 0 == --m_depth) {
+      clear();
+    }
+  }
+
+  /** Drop all cached string-values. */
+  public void clear() {
+    m_values.m_map.clear();
+    m_values.m_chars = 0;
+  }
+
+  /**
+   * Switch to the string-values of another evaluation.
+   *
+   * @param values the values to use from now on.
+   * @return the values used so far.
+   */
+  Values swapValues(final Values values) {
+    final Values previous = m_values;
+    m_values = values;
+    evict();
+    return previous;
+  }
+
+  /** @return the number of string-values cached. */
+  public int getSize() {
+    return m_values.m_map.size();
+  }
+
+  /** @return the limit of the number of characters held. */
+  public int getMaxChars() {
+    return m_maxChars;
+  }
+
+  /**
+   * Set the limit of the number of characters held, 0 to cache nothing.
+   *
+   * @param maxChars the limit.
+   */
+  public void setMaxChars(final int maxChars) {
+    m_maxChars = maxChars;
+    evict();
+  }
+
+  /** Drop the least recently used string-values until the limit is kept. */
+  private void evict() {
+    final Iterator<Map.Entry<Integer, XString>> eldest = m_values.m_map.entrySet().iterator();
+    while (m_values.m_chars > m_maxChars) {
+      m_values.m_chars -= eldest.next().getValue().length();
+      eldest.remove();
+    }
+  }
+
+  /** @return the number of string-values found in the cache so far. */
+  public long getHitCount() {
+    return m_hits;
+  }
+
+  /** @return the number of string-values built while evaluating so far. */
+  public long getMissCount() {
+    return m_misses;
+  }
+}
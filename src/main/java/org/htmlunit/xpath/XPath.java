@@ -20,6 +20,9 @@ package org.htmlunit.xpath;
 import javax.xml.transform.ErrorListener;
 import javax.xml.transform.SourceLocator;
 import javax.xml.transform.TransformerException;
+import org.htmlunit.xpath.axes.FusedPath;
+import org.htmlunit.xpath.axes.NodeSequence;
+import org.htmlunit.xpath.axes.WalkerFactory;
 import org.htmlunit.xpath.compiler.Compiler;
 import org.htmlunit.xpath.compiler.FunctionTable;
 import org.htmlunit.xpath.compiler.XPathParser;
@@ -31,6 +34,10 @@ import org.htmlunit.xpath.xml.utils.PrefixResolver;
 /**
  * The XPath class wraps an expression object and provides general services for execution of that
  * expression.
+ *
+ * <p>The compiled expression is not modified by an execution; the running state is kept in
+ * iterators cloned from it and recycled through the {@link XPathContext}. One XPath may therefore
+ * be executed by many threads at once, as long as each of them uses its own context.
  */
 public class XPath {
 
@@ -41,6 +48,18 @@ public class XPath {
    */
   private final Expression m_mainExp;
 
+  /** true if the expression never leaves the subtree of its context node. */
+  private final boolean m_walksContextSubtreeOnly;
+
+  /** The fused plan of the expression, or null if it has none. */
+  private final Expression m_fusedExp;
+
+  /** true if the fused plan is used instead of the interpreted expression. */
+  private volatile boolean m_useFusedPlan;
+
+  /** The number of expression nodes folded when the expression was compiled. */
+  private final int m_foldedNodeCount;
+
   /** The function table for xpath build-in functions */
   private transient FunctionTable m_funcTable = null;
 
@@ -104,6 +123,10 @@ public class XPath {
     }
 
     m_mainExp = compiler.compile(0);
+    m_walksContextSubtreeOnly =
+        SELECT == type && WalkerFactory.walksContextSubtreeOnly(compiler, 0);
+    m_fusedExp = (SELECT == type) ? FusedPath.create(compiler, 0, m_mainExp) : null;
+    m_foldedNodeCount = compiler.getFoldedNodeCount();
   }
 
   /**
@@ -148,6 +171,10 @@ public class XPath {
     }
 
     m_mainExp = compiler.compile(0);
+    m_walksContextSubtreeOnly =
+        SELECT == type && WalkerFactory.walksContextSubtreeOnly(compiler, 0);
+    m_fusedExp = (SELECT == type) ? FusedPath.create(compiler, 0, m_mainExp) : null;
+    m_foldedNodeCount = compiler.getFoldedNodeCount();
   }
 
   /**
@@ -173,6 +200,9 @@ public class XPath {
    */
   public XPath(final Expression expr) {
     m_mainExp = expr;
+    m_walksContextSubtreeOnly = false;
+    m_fusedExp = null;
+    m_foldedNodeCount = 0;
     initFunctionTable();
   }
 
@@ -192,7 +222,46 @@ public class XPath {
       final org.w3c.dom.Node contextNode,
       final PrefixResolver namespaceContext)
       throws javax.xml.transform.TransformerException {
-    return execute(xctxt, xctxt.getDTMHandleFromNode(contextNode), namespaceContext);
+    final int contextHandle =
+        (m_walksContextSubtreeOnly && xctxt.isSubtreeScoped())
+            ? xctxt.getDTMHandleFromSubtree(contextNode)
+            : xctxt.getDTMHandleFromNode(contextNode);
+    return execute(xctxt, contextHandle, namespaceContext);
+  }
+
+  /**
+   * @return true if this expression never leaves the subtree of its context node.
+   * @see WalkerFactory#walksContextSubtreeOnly(Compiler, int)
+   */
+  public boolean walksContextSubtreeOnly() {
+    return m_walksContextSubtreeOnly;
+  }
+
+  /**
+   * Return the number of sub expressions that were evaluated or simplified when this expression was
+   * compiled, e.g. 1 for <code>//p[1 + 1]</code> and 2 for <code>//p[not(true())]</code>. This is
+   * meant for diagnostics.
+   *
+   * @return the number of folded expression nodes.
+   */
+  public int getFoldedNodeCount() {
+    return m_foldedNodeCount;
+  }
+
+  /**
+   * Evaluate this expression with its fused plan from now on, see {@link FusedPath}. Expressions
+   * the plan does not support keep being interpreted.
+   *
+   * @return true if the expression has a fused plan.
+   */
+  public boolean useFusedPlan() {
+    m_useFusedPlan = null != m_fusedExp;
+    return m_useFusedPlan;
+  }
+
+  /** @return true if this expression is evaluated with its fused plan. */
+  public boolean isUsingFusedPlan() {
+    return m_useFusedPlan;
   }
 
   /**
@@ -213,11 +282,12 @@ public class XPath {
     xctxt.pushNamespaceContext(namespaceContext);
 
     xctxt.pushCurrentNodeAndExpression(contextNode);
+    xctxt.startEvaluation();
 
     XObject xobj = null;
 
     try {
-      xobj = m_mainExp.execute(xctxt);
+      xobj = (m_useFusedPlan ? m_fusedExp : m_mainExp).execute(xctxt);
     }
     catch (final TransformerException te) {
       te.setLocator(this.getLocator());
@@ -249,6 +319,11 @@ public class XPath {
       }
     }
     finally {
+      // a node-set may find its nodes when it is iterated, after this evaluation has ended
+      if (xobj instanceof NodeSequence) {
+        ((NodeSequence) xobj).setEvaluation(xctxt.getEvaluation());
+      }
+      xctxt.endEvaluation();
       xctxt.popNamespaceContext();
 
       xctxt.popCurrentNodeAndExpression();
@@ -17,8 +17,11 @@
  */
 package org.htmlunit.xpath;
 
+import java.util.ArrayList;
+import java.util.List;
 import javax.xml.transform.TransformerException;
 import org.htmlunit.xpath.objects.XObject;
+import org.htmlunit.xpath.xml.dtm.ref.DTMCache;
 import org.htmlunit.xpath.xml.utils.PrefixResolver;
 import org.htmlunit.xpath.xml.utils.PrefixResolverDefault;
 import org.w3c.dom.Document;
@@ -35,13 +38,43 @@ import org.w3c.dom.traversal.NodeIterator;
  * <p>NOTE: In particular, each call to this method will create a new XPathContext, a new
  * DTMManager... and thus a new DTM. That's very safe, since it guarantees that you're always
  * processing against a fully up-to-date view of your document. But it's also portentially very
- * expensive, since you're rebuilding the DTM every time. You should consider using an instance of
- * CachedXPathAPI rather than these static methods.
+ * expensive, since you're rebuilding the DTM every time. The variants taking a document version
+ * keep the DTMs in a shared {@link DTMCache} instead and only rebuild them when the version
+ * changes. Concurrent callers never share DTMs, each one borrows a manager of its own from the
+ * cache.
+ *
+ * <p>The compiled expressions are kept in a shared {@link XPathCache}, so repeated queries only pay
+ * for evaluation.
  *
  * @see <a href="http://www.w3.org/TR/xpath">XPath Specification</a>
  */
 public class XPathAPI {
 
+  /** The DTMs shared by the methods taking a document version. */
+  private static final DTMCache DTM_CACHE = new DTMCache();
+
+  /**
+   * Return the cache used by the methods taking a document version, for invalidation and
+   * statistics.
+   *
+   * @return the shared DTM cache.
+   */
+  public static DTMCache getDTMCache() {
+    return DTM_CACHE;
+  }
+
+  /** The compiled expressions shared by all methods. */
+  private static final XPathCache XPATH_CACHE = new XPathCache();
+
+  /**
+   * Return the cache of compiled expressions used by all methods, for sizing and statistics.
+   *
+   * @return the shared XPath cache.
+   */
+  public static XPathCache getXPathCache() {
+    return XPATH_CACHE;
+  }
+
   /**
    * Use an XPath string to select a single node. XPath namespace prefixes are resolved from the
    * context node, which may not be what you want (see the next method).
@@ -147,6 +180,47 @@ public class XPathAPI {
     return list.nodelist();
   }
 
+  /**
+   * Use an XPath string to select a nodelist, reusing the DTMs of the shared {@link DTMCache} as
+   * long as the document version does not change. XPath namespace prefixes are resolved from the
+   * contextNode.
+   *
+   * @param contextNode The node to start searching from.
+   * @param str A valid XPath string.
+   * @param documentVersion The caller's version stamp for the current state of the document.
+   * @return A NodeIterator, should never be null.
+   * @throws TransformerException in case of error
+   */
+  public static NodeList selectNodeList(
+      final Node contextNode, final String str, final long documentVersion)
+      throws TransformerException {
+    final Document doc = getDocument(contextNode);
+    if (null == doc) {
+      return selectNodeList(contextNode, str);
+    }
+
+    final DTMCache.Lease lease = DTM_CACHE.acquire(doc, documentVersion);
+    try {
+      final NodeList nodes =
+          eval(
+                  new XPathContext(lease.getDTMManager()),
+                  contextNode,
+                  str,
+                  createPrefixResolver(contextNode))
+              .nodelist();
+
+      // copy the nodes, the DTMs may be used by another caller once the manager is back
+      final List<Node> copy = new ArrayList<>(nodes.getLength());
+      for (int i = 0; i < nodes.getLength(); i++) {
+        copy.add(nodes.item(i));
+      }
+      return new NodeSet(copy);
+    }
+    finally {
+      DTM_CACHE.release(lease);
+    }
+  }
+
   /**
    * Evaluate XPath string to an XObject. Using this method, XPath namespace prefixes will be
    * resolved from the namespaceNode.
@@ -194,24 +268,30 @@ public class XPathAPI {
     // variable resolution scopes. Sufficient for simple XPath 1.0 expressions.
     final XPathContext xpathSupport = new XPathContext(false);
 
-    // Create an object to resolve namespace prefixes.
-    // XPath namespaces are resolved from the input context node's document element
-    // if it is a root node, or else the current context node (for lack of a better
-    // resolution space, given the simplicity of this sample code).
-    final PrefixResolverDefault prefixResolver =
-        new PrefixResolverDefault(
-            (namespaceNode.getNodeType() == Node.DOCUMENT_NODE)
-                ? ((Document) namespaceNode).getDocumentElement()
-                : namespaceNode);
-
-    // Create the XPath object.
-    final XPath xpath = new XPath(str, prefixResolver, XPath.SELECT, null);
-
-    // Execute the XPath, and have it return the result
-    // return xpath.execute(xpathSupport, contextNode, prefixResolver);
-    final int ctxtNode = xpathSupport.getDTMHandleFromNode(contextNode);
+    return eval(xpathSupport, contextNode, str, createPrefixResolver(namespaceNode));
+  }
 
-    return xpath.execute(xpathSupport, ctxtNode, prefixResolver);
+  /**
+   * Evaluate XPath string to an XObject, reusing the DTMs of the shared {@link DTMCache} as long
+   * as the document version does not change. XPath namespace prefixes are resolved from the
+   * namespaceNode.
+   *
+   * @param contextNode The node to start searching from.
+   * @param str A valid XPath string.
+   * @param namespaceNode The node from which prefixes in the XPath will be resolved to namespaces.
+   * @param documentVersion The caller's version stamp for the current state of the document; pass
+   *     a different value whenever the document was modified.
+   * @return An XObject, which can be used to obtain a string, number, nodelist, etc, should never
+   *     be null. A node-set keeps the DTMs it was found in to itself, they are not reused.
+   * @throws TransformerException in case of error
+   */
+  public static XObject eval(
+      final Node contextNode,
+      final String str,
+      final Node namespaceNode,
+      final long documentVersion)
+      throws TransformerException {
+    return eval(contextNode, str, createPrefixResolver(namespaceNode), documentVersion);
   }
 
   /**
@@ -241,16 +321,103 @@ public class XPathAPI {
     // (Changed from: XPathContext xpathSupport = new XPathContext();
     // because XPathContext is weak in a number of areas... perhaps
     // XPathContext should be done away with.)
-    // Create the XPath object.
-    final XPath xpath = new XPath(str, prefixResolver, XPath.SELECT, null);
-
     // Create an XPathContext that doesn't support pushing and popping of
     // variable resolution scopes. Sufficient for simple XPath 1.0 expressions.
     final XPathContext xpathSupport = new XPathContext(false);
 
+    return eval(xpathSupport, contextNode, str, prefixResolver);
+  }
+
+  /**
+   * Evaluate XPath string to an XObject, reusing the DTMs of the shared {@link DTMCache} as long
+   * as the document version does not change.
+   *
+   * @param contextNode The node to start searching from.
+   * @param str A valid XPath string.
+   * @param prefixResolver Will be called if the parser encounters namespace prefixes, to resolve
+   *     the prefixes to URLs.
+   * @param documentVersion The caller's version stamp for the current state of the document; pass
+   *     a different value whenever the document was modified.
+   * @return An XObject, which can be used to obtain a string, number, nodelist, etc, should never
+   *     be null. A node-set keeps the DTMs it was found in to itself, they are not reused.
+   * @throws TransformerException in case of error
+   */
+  public static XObject eval(
+      final Node contextNode,
+      final String str,
+      final PrefixResolver prefixResolver,
+      final long documentVersion)
+      throws TransformerException {
+    final Document doc = getDocument(contextNode);
+    if (null == doc) {
+      return eval(contextNode, str, prefixResolver);
+    }
+
+    final DTMCache.Lease lease = DTM_CACHE.acquire(doc, documentVersion);
+    boolean release = true;
+    try {
+      final XObject result =
+          eval(new XPathContext(lease.getDTMManager()), contextNode, str, prefixResolver);
+      // a node-set goes on reading the DTMs, so the manager must not be lent to anybody else
+      release = XObject.CLASS_NODESET != result.getType();
+      return result;
+    }
+    finally {
+      if (release) {
+        DTM_CACHE.release(lease);
+      }
+    }
+  }
+
+  /**
+   * Execute the XPath string in the given context, compiling it unless the shared {@link
+   * XPathCache} already holds it.
+   *
+   * @param xpathSupport The XPath runtime context.
+   * @param contextNode The node to start searching from.
+   * @param str A valid XPath string.
+   * @param prefixResolver The prefix resolver for the namespace prefixes in the XPath.
+   * @return An XObject, should never be null.
+   * @throws TransformerException in case of error
+   */
+  private static XObject eval(
+      final XPathContext xpathSupport,
+      final Node contextNode,
+      final String str,
+      final PrefixResolver prefixResolver)
+      throws TransformerException {
+
+    // Get the XPath object, compiling it unless it is cached.
+    final XPath xpath = XPATH_CACHE.getXPath(str, prefixResolver);
+
     // Execute the XPath, and have it return the result
     final int ctxtNode = xpathSupport.getDTMHandleFromNode(contextNode);
 
     return xpath.execute(xpathSupport, ctxtNode, prefixResolver);
   }
+
+  /**
+   * Create an object to resolve namespace prefixes. XPath namespaces are resolved from the input
+   * context node's document element if it is a root node, or else the current context node (for
+   * lack of a better resolution space, given the simplicity of this sample code).
+   *
+   * @param namespaceNode The node from which prefixes in the XPath will be resolved to namespaces.
+   * @return the prefix resolver.
+   */
+  private static PrefixResolver createPrefixResolver(final Node namespaceNode) {
+    return new PrefixResolverDefault(
+        (namespaceNode.getNodeType() == Node.DOCUMENT_NODE)
+            ? ((Document) namespaceNode).getDocumentElement()
+            : namespaceNode);
+  }
+
+  /**
+   * @param contextNode a node.
+   * @return the document of the node, or null if it has none.
+   */
+  private static Document getDocument(final Node contextNode) {
+    return (contextNode.getNodeType() == Node.DOCUMENT_NODE)
+        ? (Document) contextNode
+        : contextNode.getOwnerDocument();
+  }
 }
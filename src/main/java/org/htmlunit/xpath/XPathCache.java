@@ -0,0 +1,378 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.xml.transform.TransformerException;
+import org.htmlunit.xpath.xml.utils.PrefixResolver;
+
+/**
+ * A bounded least recently used cache of compiled select expressions, so that repeated queries do
+ * not pay for lexing, parsing and compiling the same XPath string again.
+ *
+ * <p>Namespace prefixes are resolved when an expression is compiled, so the same string may
+ * compile differently under different prefix resolvers. Entries are therefore keyed by the
+ * expression together with the namespace URIs its prefixes resolve to in the caller's context.
+ * The prefixes an expression uses are learned from its first compilation.
+ *
+ * <p>Cached expressions are compiled against a snapshot of the bindings they used rather than the
+ * caller's resolver, which keeps them from holding on to the caller's DOM. A compiled XPath does
+ * not change while it is executed, so the instances handed out may be shared between threads.
+ *
+ * <p>Lookups do not lock: the entries live in concurrent maps and each one records when it was
+ * last used. A miss that grows the cache beyond its maximum size drops the least recently used
+ * eighth of the entries at once, so that the cost of finding them is shared by the following
+ * misses. Misses that find another thread dropping entries do not wait for it.
+ */
+public class XPathCache {
+
+  /** The default maximum number of compiled expressions kept. */
+  public static final int DEFAULT_MAX_SIZE = 1000;
+
+  /** Separates the parts of a key; it cannot occur in an XPath string. */
+  private static final char SEPARATOR = '\u0000';
+
+  /** log2 of the share of the maximum size dropped at once when the cache is full. */
+  private static final int EVICTION_SHIFT = 3;
+
+  /** The prefixes of an expression that does not resolve any. */
+  private static final String[] NO_PREFIXES = new String[0];
+
+  /**
+   * Answers the prefixes queried while compiling from the bindings recorded at that time. It
+   * forwards to the caller's resolver only until the compilation has finished.
+   */
+  private static final class BindingsResolver implements PrefixResolver {
+    private PrefixResolver m_resolver;
+    private final boolean m_handlesNullPrefixes;
+    private final Map<String, String> m_bindings = new LinkedHashMap<>();
+
+    BindingsResolver(final PrefixResolver resolver) {
+      m_resolver = resolver;
+      m_handlesNullPrefixes = resolver.handlesNullPrefixes();
+    }
+
+    /** Stop forwarding to the caller's resolver. */
+    void detach() {
+      m_resolver = null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getNamespaceForPrefix(final String prefix) {
+      if (null == m_resolver) {
+        return m_bindings.get(prefix);
+      }
+      final String uri = m_resolver.getNamespaceForPrefix(prefix);
+      m_bindings.put(prefix, uri);
+      return uri;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getNamespaceForPrefix(final String prefix, final org.w3c.dom.Node context) {
+      return getNamespaceForPrefix(prefix);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean handlesNullPrefixes() {
+      return m_handlesNullPrefixes;
+    }
+  }
+
+  /** A cached expression, the number of lookups it served and the time it was last used. */
+  private static final class Entry {
+    private final XPath m_xpath;
+    private final String m_expr;
+    private final AtomicInteger m_uses = new AtomicInteger(1);
+    private volatile long m_lastUse;
+
+    Entry(final XPath xpath, final String expr, final long lastUse) {
+      m_xpath = xpath;
+      m_expr = expr;
+      m_lastUse = lastUse;
+    }
+  }
+
+  /** The compiled expressions by expression and bindings. */
+  private final ConcurrentHashMap<String, Entry> m_xpaths = new ConcurrentHashMap<>();
+
+  /** The prefixes each expression resolves, by expression and resolver kind. */
+  private final ConcurrentHashMap<String, String[]> m_prefixes = new ConcurrentHashMap<>();
+
+  /** Hands out the times of use; only advanced when the order of the entries changes. */
+  private final AtomicLong m_clock = new AtomicLong();
+
+  /** Serializes the eviction of entries. */
+  private final ReentrantLock m_evictionLock = new ReentrantLock();
+
+  /** The maximum number of compiled expressions kept. */
+  private volatile int m_maxSize = DEFAULT_MAX_SIZE;
+
+  /** The number of lookups answered from the cache. */
+  private final LongAdder m_hits = new LongAdder();
+
+  /** The number of lookups that had to compile the expression. */
+  private final LongAdder m_misses = new LongAdder();
+
+  /** The number of compiled expressions dropped to stay within the maximum size. */
+  private final LongAdder m_evictions = new LongAdder();
+
+  /** The number of lookups after which an expression switches to its fused plan, 0 for never. */
+  private volatile int m_fusedPlanThreshold;
+
+  /**
+   * Return the compiled select expression for the given string, compiling it if it is not cached
+   * for the namespace bindings the resolver currently provides. Expressions that fail to compile
+   * are not cached.
+   *
+   * @param str A valid XPath string.
+   * @param prefixResolver The prefix resolver for the namespace prefixes in the XPath, may be null.
+   * @return the compiled XPath, never null.
+   * @throws TransformerException if the expression can not be compiled.
+   */
+  public XPath getXPath(final String str, final PrefixResolver prefixResolver)
+      throws TransformerException {
+    final String expr = getExpressionKey(str, prefixResolver);
+
+    final String[] known = m_prefixes.get(expr);
+    if (null != known) {
+      final Entry entry = m_xpaths.get(getKey(expr, known, prefixResolver));
+      if (null != entry) {
+        m_hits.increment();
+        touch(entry);
+        final int threshold = m_fusedPlanThreshold;
+        if (threshold > 0
+            && entry.m_uses.get() < threshold
+            && entry.m_uses.incrementAndGet() == threshold) {
+          entry.m_xpath.useFusedPlan();
+        }
+        return entry.m_xpath;
+      }
+    }
+    m_misses.increment();
+
+    // a concurrent miss for the same key just compiles twice
+    final XPath xpath;
+    final String[] prefixes;
+    if (null == prefixResolver) {
+      xpath = new XPath(str, null, XPath.SELECT, null);
+      prefixes = NO_PREFIXES;
+    }
+    else {
+      final BindingsResolver resolver = new BindingsResolver(prefixResolver);
+      xpath = new XPath(str, resolver, XPath.SELECT, null);
+      resolver.detach();
+      prefixes = resolver.m_bindings.keySet().toArray(NO_PREFIXES);
+    }
+    final String key = getKey(expr, prefixes, prefixResolver);
+
+    m_prefixes.put(expr, prefixes);
+    // keep the instance of a concurrent miss, so that callers share one
+    final Entry cached =
+        m_xpaths.putIfAbsent(key, new Entry(xpath, expr, m_clock.incrementAndGet()));
+    if (null == cached && 1 == m_fusedPlanThreshold) {
+      xpath.useFusedPlan();
+    }
+    if (m_xpaths.size() > m_maxSize && m_evictionLock.tryLock()) {
+      try {
+        evict();
+      }
+      finally {
+        m_evictionLock.unlock();
+      }
+    }
+    return null == cached ? xpath : cached.m_xpath;
+  }
+
+  /**
+   * Record the use of an entry. The clock only advances if the entry was not the last one used,
+   * so that a loop over the same expression does not write to memory shared by all threads.
+   *
+   * @param entry the entry.
+   */
+  private void touch(final Entry entry) {
+    if (entry.m_lastUse != m_clock.get()) {
+      entry.m_lastUse = m_clock.incrementAndGet();
+    }
+  }
+
+  /**
+   * Return the part of the key that does not depend on the namespace bindings.
+   *
+   * @param str the XPath string.
+   * @param prefixResolver the caller's prefix resolver, may be null.
+   * @return the expression key.
+   */
+  private static String getExpressionKey(final String str, final PrefixResolver prefixResolver) {
+    final char kind;
+    if (null == prefixResolver) {
+      kind = '0';
+    }
+    else {
+      kind = prefixResolver.handlesNullPrefixes() ? '2' : '1';
+    }
+    return kind + str;
+  }
+
+  /**
+   * Return the key of a compiled expression, made of the expression key and the current bindings
+   * of the prefixes the expression uses.
+   *
+   * @param expr the expression key.
+   * @param prefixes the prefixes the expression resolves.
+   * @param prefixResolver the caller's prefix resolver, may be null.
+   * @return the key.
+   */
+  private static String getKey(
+      final String expr, final String[] prefixes, final PrefixResolver prefixResolver) {
+    if (0 == prefixes.length) {
+      return expr;
+    }
+
+    final StringBuilder key = new StringBuilder(expr);
+    for (final String prefix : prefixes) {
+      final String uri = prefixResolver.getNamespaceForPrefix(prefix);
+      key.append(SEPARATOR).append(prefix).append(SEPARATOR);
+      // tell an undeclared prefix from one bound to the empty string
+      key.append(null == uri ? "-" : "+" + uri);
+    }
+    return key.toString();
+  }
+
+  /**
+   * Drop the least recently used expressions if the maximum size is exceeded: as many as needed to
+   * get an eighth of the maximum size below it. The caller holds the eviction lock.
+   *
+   * @return false if nothing had to be dropped or nothing could be.
+   */
+  private boolean evict() {
+    final int maxSize = m_maxSize;
+    final int size = m_xpaths.size();
+    if (size <= maxSize) {
+      return false;
+    }
+
+    // the times of use are unique, the one of the last entry to drop separates them
+    final long[] lastUses = new long[size];
+    int count = 0;
+    for (final Entry entry : m_xpaths.values()) {
+      if (count == size) {
+        break;
+      }
+      lastUses[count++] = entry.m_lastUse;
+    }
+    final int drop = count - (maxSize - (maxSize >> EVICTION_SHIFT));
+    if (drop <= 0) {
+      return false;
+    }
+    Arrays.sort(lastUses, 0, count);
+    final long lastDropped = lastUses[drop - 1];
+
+    boolean dropped = false;
+    for (final Map.Entry<String, Entry> candidate : m_xpaths.entrySet()) {
+      final Entry entry = candidate.getValue();
+      // entries used since are kept
+      if (entry.m_lastUse <= lastDropped && m_xpaths.remove(candidate.getKey(), entry)) {
+        // the prefixes are learned again by the next miss
+        m_prefixes.remove(entry.m_expr);
+        m_evictions.increment();
+        dropped = true;
+      }
+    }
+    return dropped;
+  }
+
+  /** Drop all compiled expressions. The counters are not reset. */
+  public void clear() {
+    m_xpaths.clear();
+    m_prefixes.clear();
+  }
+
+  /** @return the number of compiled expressions currently cached. */
+  public int size() {
+    return m_xpaths.size();
+  }
+
+  /** @return the maximum number of compiled expressions kept. */
+  public int getMaxSize() {
+    return m_maxSize;
+  }
+
+  /**
+   * Set the maximum number of compiled expressions kept; 0 disables caching.
+   *
+   * @param maxSize the new maximum size, not negative.
+   */
+  public void setMaxSize(final int maxSize) {
+    if (maxSize < 0) {
+      throw new IllegalArgumentException("maxSize must not be negative: " + maxSize);
+    }
+    m_maxSize = maxSize;
+    m_evictionLock.lock();
+    try {
+      while (evict()) {
+        // until entries used meanwhile are dropped as well
+      }
+    }
+    finally {
+      m_evictionLock.unlock();
+    }
+  }
+
+  /** @return the number of lookups after which an expression uses its fused plan, 0 for never. */
+  public int getFusedPlanThreshold() {
+    return m_fusedPlanThreshold;
+  }
+
+  /**
+   * Let cached expressions switch to their fused plan, see {@link XPath#useFusedPlan()}, once
+   * they have been looked up the given number of times. By default they never do.
+   *
+   * @param threshold the number of lookups, 0 for never.
+   */
+  public void setFusedPlanThreshold(final int threshold) {
+    if (threshold < 0) {
+      throw new IllegalArgumentException("threshold must not be negative: " + threshold);
+    }
+    m_fusedPlanThreshold = threshold;
+  }
+
+  /** @return the number of lookups answered from the cache. */
+  public long getHitCount() {
+    return m_hits.sum();
+  }
+
+  /** @return the number of lookups that had to compile the expression. */
+  public long getMissCount() {
+    return m_misses.sum();
+  }
+
+  /** @return the number of compiled expressions dropped to stay within the maximum size. */
+  public long getEvictionCount() {
+    return m_evictions.sum();
+  }
+}
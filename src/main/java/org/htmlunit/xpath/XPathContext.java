@@ -17,13 +17,21 @@
  */
 package org.htmlunit.xpath;
 
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Stack;
 import javax.xml.transform.ErrorListener;
 import javax.xml.transform.URIResolver;
+import org.htmlunit.xpath.axes.IteratorPool;
 import org.htmlunit.xpath.axes.SubContextList;
+import org.htmlunit.xpath.objects.XObject;
+import org.htmlunit.xpath.objects.XString;
 import org.htmlunit.xpath.res.XPATHErrorResources;
 import org.htmlunit.xpath.res.XPATHMessages;
 import org.htmlunit.xpath.xml.dtm.DTM;
+import org.htmlunit.xpath.xml.dtm.DTMIterator;
 import org.htmlunit.xpath.xml.dtm.DTMManager;
 import org.htmlunit.xpath.xml.utils.PrefixResolver;
 
@@ -37,7 +45,7 @@ public class XPathContext extends DTMManager {
    * Though XPathContext context extends the DTMManager, it really is a proxy for this object, which
    * is the real DTMManager.
    */
-  protected DTMManager m_dtmManager = DTMManager.newInstance();
+  protected DTMManager m_dtmManager;
 
   /**
    * Return the DTMManager object. Though XPathContext context extends the DTMManager, it really is
@@ -64,12 +72,239 @@ public class XPathContext extends DTMManager {
     return m_dtmManager.getDTM(nodeHandle);
   }
 
+  /** {@inheritDoc} */
+  @Override
+  public boolean release(final DTM dtm) {
+    return m_dtmManager.release(dtm);
+  }
+
   /** {@inheritDoc} */
   @Override
   public int getDTMHandleFromNode(final org.w3c.dom.Node node) {
     return m_dtmManager.getDTMHandleFromNode(node);
   }
 
+  /** {@inheritDoc} */
+  @Override
+  public int getDTMHandleFromSubtree(final org.w3c.dom.Node node) {
+    return m_dtmManager.getDTMHandleFromSubtree(node);
+  }
+
+  /**
+   * true if expressions that never leave the subtree of their context node are evaluated against a
+   * DTM built for that subtree only.
+   */
+  private boolean m_subtreeScoped;
+
+  /** The string-values remembered while an XPath is evaluated, or its result is iterated. */
+  private final StringValueCache m_stringValueCache = new StringValueCache();
+
+  /**
+   * @return the cache of the string-values of nodes, which {@link XPath#execute(XPathContext, int,
+   *     PrefixResolver)} uses while it evaluates and while a node-set it returned is iterated.
+   */
+  public StringValueCache getStringValueCache() {
+    return m_stringValueCache;
+  }
+
+  /** The maximum number of free iterators kept for one pool. */
+  private static final int MAX_FREE_ITERATORS = 8;
+
+  /** The maximum number of pools free iterators are kept for. */
+  private static final int MAX_FREE_POOLS = 16;
+
+  /**
+   * The iterators free for reuse by the evaluations of this context, by their pool, least
+   * recently used pool first. They are kept for a limited number of pools only, so that a
+   * long-lived context does not keep all the compiled expressions it has run reachable.
+   */
+  private final Map<IteratorPool, ArrayList<DTMIterator>> m_freeIterators =
+      new LinkedHashMap<IteratorPool, ArrayList<DTMIterator>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+            final Map.Entry<IteratorPool, ArrayList<DTMIterator>> eldest) {
+          return size() > MAX_FREE_POOLS;
+        }
+      };
+
+  /**
+   * The state kept for an evaluation, see {@link XPath#execute(XPathContext, int, PrefixResolver)}.
+   * A node-set result takes it along, so that the nodes it finds after the evaluation has ended
+   * are found the same way as those found before.
+   */
+  public static final class Evaluation {
+    /** The context of the evaluation. */
+    private final XPathContext m_xctxt;
+
+    /** The values of the context independent expressions computed so far. */
+    private final Map<Expression, XObject> m_invariantValues = new IdentityHashMap<>();
+
+    /** The string-values cached so far. */
+    private final StringValueCache.Values m_stringValues = new StringValueCache.Values();
+
+    /** The string-values the cache used before, restored when the evaluation ends. */
+    private StringValueCache.Values m_previousStringValues;
+
+    /** The number of times the evaluation has been started or resumed and not yet ended. */
+    private int m_depth;
+
+    /** The evaluation in progress when this one was resumed, restored when it ends. */
+    private Evaluation m_resumedFrom;
+
+    Evaluation(final XPathContext xctxt) {
+      m_xctxt = xctxt;
+    }
+
+    /** @return the context of the evaluation. */
+    public XPathContext getContext() {
+      return m_xctxt;
+    }
+  }
+
+  /** The evaluation in progress, null if there is none. */
+  private Evaluation m_evaluation;
+
+  /**
+   * Start an evaluation, see {@link XPath#execute(XPathContext, int, PrefixResolver)}.
+   * Evaluations may nest; the state kept for them is dropped when the outermost one ends.
+   */
+  public void startEvaluation() {
+    if (null == m_evaluation) {
+      m_evaluation = new Evaluation(this);
+      m_evaluation.m_previousStringValues =
+          m_stringValueCache.swapValues(m_evaluation.m_stringValues);
+    }
+    m_evaluation.m_depth++;
+    m_stringValueCache.startEvaluation();
+  }
+
+  /**
+   * Continue an evaluation that has ended, while a node-set it returned finds more nodes. Like
+   * {@link #startEvaluation()}, this has to be paired with {@link #endEvaluation()}.
+   *
+   * @param evaluation the evaluation, as returned by {@link #getEvaluation()} while it was in
+   *     progress.
+   */
+  public void resumeEvaluation(final Evaluation evaluation) {
+    if (evaluation != m_evaluation) {
+      evaluation.m_resumedFrom = m_evaluation;
+      evaluation.m_previousStringValues =
+          m_stringValueCache.swapValues(evaluation.m_stringValues);
+      m_evaluation = evaluation;
+    }
+    evaluation.m_depth++;
+    m_stringValueCache.startEvaluation();
+  }
+
+  /**
+   * End an evaluation. When the outermost one ends, its state is dropped unless a node-set result
+   * has taken it along.
+   */
+  public void endEvaluation() {
+    final Evaluation evaluation = m_evaluation;
+    if (null != evaluation && 0 == --evaluation.m_depth) {
+      m_evaluation = evaluation.m_resumedFrom;
+      evaluation.m_resumedFrom = null;
+      m_stringValueCache.swapValues(evaluation.m_previousStringValues);
+      evaluation.m_previousStringValues = null;
+    }
+    m_stringValueCache.endEvaluation();
+  }
+
+  /** @return the evaluation in progress, null if there is none. */
+  public Evaluation getEvaluation() {
+    return m_evaluation;
+  }
+
+  /**
+   * Take an iterator of the given pool that an evaluation of this context has freed. Keeping them
+   * here rather than in the pool lets many threads evaluate the same compiled XPath, each with its
+   * own context, without contending for the pool.
+   *
+   * @param pool the pool of a compiled location path.
+   * @return a free iterator, or null if there is none.
+   */
+  public DTMIterator getFreeIterator(final IteratorPool pool) {
+    final ArrayList<DTMIterator> freeList = m_freeIterators.get(pool);
+    if (null == freeList || freeList.isEmpty()) {
+      return null;
+    }
+    return freeList.remove(freeList.size() - 1);
+  }
+
+  /**
+   * Keep an iterator of the given pool for reuse by the evaluations of this context, also if it is
+   * freed after the evaluation that used it has ended, e.g. by detaching a node-set result.
+   * Nothing is kept if enough iterators of the pool are kept already.
+   *
+   * @param pool the pool of a compiled location path.
+   * @param iter the iterator, no longer used.
+   */
+  public void addFreeIterator(final IteratorPool pool, final DTMIterator iter) {
+    final ArrayList<DTMIterator> freeList =
+        m_freeIterators.computeIfAbsent(pool, p -> new ArrayList<>());
+    if (freeList.size() < MAX_FREE_ITERATORS) {
+      freeList.add(iter);
+    }
+  }
+
+  /**
+   * Get the value an expression that does not depend on the context had in the current
+   * evaluation.
+   *
+   * @param expr the expression.
+   * @return the value, or null if it has not been computed yet.
+   */
+  public XObject getInvariantValue(final Expression expr) {
+    return (null == m_evaluation) ? null : m_evaluation.m_invariantValues.get(expr);
+  }
+
+  /**
+   * Remember the value of an expression that does not depend on the context for the rest of the
+   * current evaluation, which lasts as long as a node-set result that has taken it along still
+   * finds nodes. Nothing is remembered if no evaluation is in progress.
+   *
+   * @param expr the expression.
+   * @param value its value.
+   */
+  public void setInvariantValue(final Expression expr, final XObject value) {
+    if (null != m_evaluation) {
+      m_evaluation.m_invariantValues.put(expr, value);
+    }
+  }
+
+  /**
+   * Get the string-value of a node, from the cache of the current evaluation if it has been
+   * built before.
+   *
+   * @param nodeHandle The node handle.
+   * @return the string-value of the node.
+   */
+  public XString getStringValue(final int nodeHandle) {
+    return m_stringValueCache.getStringValue(getDTM(nodeHandle), nodeHandle);
+  }
+
+  /**
+   * @return true if expressions that never leave the subtree of their context node are evaluated
+   *     against a DTM built for that subtree only.
+   */
+  public boolean isSubtreeScoped() {
+    return m_subtreeScoped;
+  }
+
+  /**
+   * Set whether expressions that provably never leave the subtree of their context node (like
+   * "./td[2]") are evaluated against a DTM built for that subtree only, instead of a DTM for the
+   * whole document. This avoids building the DTM for a large document just to look at a small part
+   * of it, but may end up with several DTMs for the same document.
+   *
+   * @param subtreeScoped true to enable subtree scoped DTMs, false (the default) to always build
+   *     the DTM for the whole document.
+   */
+  public void setSubtreeScoped(final boolean subtreeScoped) {
+    m_subtreeScoped = subtreeScoped;
+  }
+
   /**
    * Create an XPathContext instance. This is equivalent to calling the {@link
    * #XPathContext(boolean)} constructor with the value <code>true</code>.
@@ -85,6 +320,18 @@ public class XPathContext extends DTMManager {
    *     needs to support pushing of scopes for variable resolution
    */
   public XPathContext(final boolean recursiveVarContext) {
+    this(DTMManager.newInstance());
+  }
+
+  /**
+   * Create an XPathContext instance that works on an existing DTMManager, for instance one kept by
+   * a {@link org.htmlunit.xpath.xml.dtm.ref.DTMCache}, so that DTMs already built by that manager
+   * are reused.
+   *
+   * @param dtmManager the DTMManager to delegate to.
+   */
+  public XPathContext(final DTMManager dtmManager) {
+    m_dtmManager = dtmManager;
     m_prefixResolvers.push(null);
     m_currentNodes.push(DTM.NULL);
   }
@@ -92,6 +339,9 @@ public class XPathContext extends DTMManager {
   /** Reset for new run. */
   public void reset() {
     m_dtmManager = DTMManager.newInstance();
+    m_stringValueCache.clear();
+    m_freeIterators.clear();
+    m_evaluation = null;
 
     m_axesIteratorStack.removeAllElements();
     m_currentNodes.removeAllElements();
@@ -120,4 +120,8 @@ public class XPathVisitor {
   /** Visit a number literal. */
   public void visitNumberLiteral() {
   }
+
+  /** Visit a boolean literal. */
+  public void visitBooleanLiteral() {
+  }
 }
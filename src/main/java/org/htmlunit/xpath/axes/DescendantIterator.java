@@ -22,6 +22,7 @@ import org.htmlunit.xpath.XPathContext;
 import org.htmlunit.xpath.compiler.Compiler;
 import org.htmlunit.xpath.compiler.OpCodes;
 import org.htmlunit.xpath.compiler.OpMap;
+import org.htmlunit.xpath.functions.FuncHasClass;
 import org.htmlunit.xpath.patterns.NodeTest;
 import org.htmlunit.xpath.xml.dtm.Axis;
 import org.htmlunit.xpath.xml.dtm.DTM;
@@ -122,6 +123,28 @@ public class DescendantIterator extends LocPathIterator {
           whatToShow, compiler.getStepNS(firstStepPos), compiler.getStepLocalName(firstStepPos));
     }
     initPredicateInfo(compiler, firstStepPos);
+
+    String[] predicate = WalkerFactory.getAttributeValuePredicate(compiler, firstStepPos);
+    boolean byToken = false;
+    if (null == predicate) {
+      predicate = WalkerFactory.getAttributeTokenPredicate(compiler, firstStepPos);
+      byToken = null != predicate;
+    }
+    if (null == predicate && getPredicateCount() > 0 && getPredicate(0) instanceof FuncHasClass) {
+      final String className = ((FuncHasClass) getPredicate(0)).getClassName();
+      if (null != className) {
+        predicate = new String[] {null, FuncHasClass.CLASS_ATTRIBUTE, className};
+        byToken = true;
+      }
+    }
+    m_attributeValuePredicate = predicate;
+    m_attributeTokenPredicate = byToken;
+
+    // only elements are looked up by their text
+    m_containsTextPredicate =
+        (null == predicate && DTMFilter.SHOW_ELEMENT == whatToShow)
+            ? WalkerFactory.getContainsTextPredicate(compiler, firstStepPos)
+            : null;
   }
 
   /** {@inheritDoc} */
@@ -145,13 +168,17 @@ public class DescendantIterator extends LocPathIterator {
 
     if (DTM.NULL == m_lastFetched) {
       resetProximityPositions();
+      m_indexedPos = 0;
     }
 
     int next;
 
     try {
       do {
-        if (0 == m_extendedTypeID) {
+        if (null != m_indexedElements) {
+          next = m_lastFetched = nextIndexedElement();
+        }
+        else if (0 == m_extendedTypeID) {
           next =
               m_lastFetched =
                   (DTM.NULL == m_lastFetched)
@@ -189,12 +216,60 @@ public class DescendantIterator extends LocPathIterator {
     }
   }
 
+  /**
+   * @return the next element of m_indexedElements on the axis, or DTM.NULL if there are no more.
+   *     The predicate they have been looked up for is tested again by acceptNode(), like all the
+   *     others; that is cheap compared to testing every element.
+   */
+  private int nextIndexedElement() {
+    while (m_indexedPos < m_indexedElements.length) {
+      final int element = m_indexedElements[m_indexedPos++];
+      if (isOnAxis(element)) {
+        return element;
+      }
+    }
+    return DTM.NULL;
+  }
+
+  /**
+   * @param node a node of the DTM of the context node.
+   * @return true if the axis from the context node contains the node.
+   */
+  private boolean isOnAxis(final int node) {
+    switch (m_axis) {
+      case Axis.DESCENDANTSORSELFFROMROOT:
+        return true;
+      case Axis.DESCENDANTSFROMROOT:
+        return node != m_cdtm.getDocumentRoot(m_context);
+      case Axis.DESCENDANTORSELF:
+        return node == m_context || m_cdtm.isDescendant(m_context, node);
+      default:
+        return m_cdtm.isDescendant(m_context, node);
+    }
+  }
+
   /** {@inheritDoc} */
   @Override
   public void setRoot(final int context, final Object environment) {
     super.setRoot(context, environment);
     m_traverser = m_cdtm.getAxisTraverser(m_axis);
 
+    final String[] predicate = m_attributeValuePredicate;
+    if (null != m_containsTextPredicate) {
+      m_indexedElements = m_cdtm.getElementsContainingText(m_containsTextPredicate);
+    }
+    else if (null == predicate) {
+      m_indexedElements = null;
+    }
+    else if (m_attributeTokenPredicate) {
+      m_indexedElements =
+          m_cdtm.getElementsByAttributeToken(predicate[0], predicate[1], predicate[2]);
+    }
+    else {
+      m_indexedElements =
+          m_cdtm.getElementsByAttributeValue(predicate[0], predicate[1], predicate[2]);
+    }
+
     final String localName = getLocalName();
     final String namespace = getNamespace();
     final int what = m_whatToShow;
@@ -237,6 +312,7 @@ public class DescendantIterator extends LocPathIterator {
   public void detach() {
     m_traverser = null;
     m_extendedTypeID = 0;
+    m_indexedElements = null;
 
     // Always call the superclass detach last!
     super.detach();
@@ -257,6 +333,36 @@ public class DescendantIterator extends LocPathIterator {
   /** The extended type ID, not set until setRoot. */
   protected int m_extendedTypeID;
 
+  /**
+   * The namespace URI, local name and value of the attribute the first predicate compares with a
+   * literal, or the token it looks for in the value; null if the first predicate is of another
+   * form.
+   */
+  private final String[] m_attributeValuePredicate;
+
+  /**
+   * true if the first predicate rather tests for a whitespace separated token of the attribute
+   * value, like <code>[contains(concat(' ', @class, ' '), ' item ')]</code> or <code>
+   * [has-class('item')]</code> do.
+   */
+  private final boolean m_attributeTokenPredicate;
+
+  /**
+   * The string the first predicate looks for in the string-value of the element, like <code>
+   * [contains(., 'Price')]</code> does; null if the first predicate is of another form.
+   */
+  private final String m_containsTextPredicate;
+
+  /**
+   * The elements of the DTM that satisfy m_attributeValuePredicate or m_containsTextPredicate, in
+   * document order, or null if the DTM has no index for it and the axis is walked instead. Not set
+   * until setRoot.
+   */
+  private transient int[] m_indexedElements;
+
+  /** The position of the next element of m_indexedElements to look at. */
+  private transient int m_indexedPos;
+
   /** {@inheritDoc} */
   @Override
   public boolean deepEquals(final Expression expr) {
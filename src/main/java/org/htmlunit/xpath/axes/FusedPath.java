@@ -0,0 +1,790 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath.axes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.StringTokenizer;
+import org.htmlunit.xpath.Expression;
+import org.htmlunit.xpath.XPathContext;
+import org.htmlunit.xpath.XPathVisitor;
+import org.htmlunit.xpath.compiler.Compiler;
+import org.htmlunit.xpath.compiler.FunctionTable;
+import org.htmlunit.xpath.compiler.OpCodes;
+import org.htmlunit.xpath.compiler.OpMap;
+import org.htmlunit.xpath.objects.XBoolean;
+import org.htmlunit.xpath.objects.XNodeSet;
+import org.htmlunit.xpath.objects.XNumber;
+import org.htmlunit.xpath.objects.XObject;
+import org.htmlunit.xpath.patterns.NodeTest;
+import org.htmlunit.xpath.xml.dtm.Axis;
+import org.htmlunit.xpath.xml.dtm.DTM;
+import org.htmlunit.xpath.xml.dtm.DTMAxisTraverser;
+import org.htmlunit.xpath.xml.dtm.ref.DTMDefaultBase;
+import org.htmlunit.xpath.xml.utils.NodeVector;
+
+/**
+ * An alternative plan for simple location paths, and for count(), boolean() and not() of them,
+ * that runs each step as one loop over the DTM instead of a chain of iterators and walkers.
+ *
+ * <p>Named node tests become compares of expanded type IDs, which are looked up once per
+ * evaluation, and predicates testing attributes of the candidate node (existence, equality with a
+ * literal, the HTML class idiom, combined with and, or and not()) are checked inside that loop. A
+ * <code>descendant-or-self::node()/child::</code> pair, i.e. <code>//</code>, is walked as one
+ * typed descendant traversal. count() and boolean() results are computed as primitives, the latter
+ * stopping at the first node found.
+ *
+ * <p>Everything else, e.g. positional predicates or other axes, is left to the interpreted
+ * expression, which this plan also falls back to for DTMs it can not sort.
+ */
+public class FusedPath extends Expression {
+
+  /** The result is the node-set. */
+  private static final int RESULT_NODESET = 0;
+
+  /** The result is the count of the node-set. */
+  private static final int RESULT_COUNT = 1;
+
+  /** The result tells if the node-set is not empty. */
+  private static final int RESULT_BOOLEAN = 2;
+
+  /** The result tells if the node-set is empty. */
+  private static final int RESULT_NOT = 3;
+
+  /** The node test matches a name, by expanded type ID. */
+  private static final int TEST_NAME = 0;
+
+  /** The node test matches any node of the principal type of the axis. */
+  private static final int TEST_PRINCIPAL = 1;
+
+  /** The node test matches any node. */
+  private static final int TEST_NODE = 2;
+
+  /** The node test matches text nodes. */
+  private static final int TEST_TEXT = 3;
+
+  /** The node test matches comments. */
+  private static final int TEST_COMMENT = 4;
+
+  /** A name whose expanded type ID is looked up when the plan is evaluated. */
+  private static final class Name {
+    private final String m_namespace;
+    private final String m_localName;
+    private final int m_type;
+
+    Name(final String namespace, final String localName, final int type) {
+      m_namespace = namespace;
+      m_localName = localName;
+      m_type = type;
+    }
+  }
+
+  /** A predicate of a step. */
+  private abstract static class Test {
+
+    /**
+     * @param dtm the DTM of the node.
+     * @param node the node to test.
+     * @param types the expanded type IDs of the names of the plan.
+     * @return true if the node passes.
+     */
+    abstract boolean matches(DTM dtm, int node, int[] types);
+  }
+
+  /** Tests an attribute of the node. */
+  private static final class AttributeTest extends Test {
+    private final int m_name;
+    private final String m_value;
+    private final String m_token;
+    private final boolean m_normalize;
+
+    /**
+     * @param name the index of the attribute name.
+     * @param value the value to compare with, null to test for existence.
+     * @param token the class token to look for, null if value is used.
+     * @param normalize true if the token test applies normalize-space() to the value.
+     */
+    AttributeTest(
+        final int name, final String value, final String token, final boolean normalize) {
+      m_name = name;
+      m_value = value;
+      m_token = token;
+      m_normalize = normalize;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    boolean matches(final DTM dtm, final int node, final int[] types) {
+      final int type = types[m_name];
+      int attr = dtm.getFirstAttribute(node);
+      while (DTM.NULL != attr && dtm.getExpandedTypeID(attr) != type) {
+        attr = dtm.getNextAttribute(attr);
+      }
+      if (DTM.NULL == attr) {
+        return false;
+      }
+
+      if (null != m_value) {
+        return m_value.equals(dtm.getNodeValue(attr));
+      }
+      if (null != m_token) {
+        return hasToken(dtm.getNodeValue(attr));
+      }
+      return true;
+    }
+
+    /**
+     * @param value the attribute value.
+     * @return true if <code>contains(concat(' ', value, ' '), ' token ')</code>, with value
+     *     normalized if so requested.
+     */
+    private boolean hasToken(final String value) {
+      // the token contains no whitespace, see WalkerFactory.getAttributeTokenTest()
+      final StringTokenizer tokens = new StringTokenizer(value, m_normalize ? " \t\n\r" : " ");
+      while (tokens.hasMoreTokens()) {
+        if (m_token.equals(tokens.nextToken())) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /** Combines two tests with and or or. */
+  private static final class BinaryTest extends Test {
+    private final Test m_left;
+    private final Test m_right;
+    private final boolean m_and;
+
+    BinaryTest(final Test left, final Test right, final boolean and) {
+      m_left = left;
+      m_right = right;
+      m_and = and;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    boolean matches(final DTM dtm, final int node, final int[] types) {
+      return m_and
+          ? m_left.matches(dtm, node, types) && m_right.matches(dtm, node, types)
+          : m_left.matches(dtm, node, types) || m_right.matches(dtm, node, types);
+    }
+  }
+
+  /** Negates a test. */
+  private static final class NotTest extends Test {
+    private final Test m_test;
+
+    NotTest(final Test test) {
+      m_test = test;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    boolean matches(final DTM dtm, final int node, final int[] types) {
+      return !m_test.matches(dtm, node, types);
+    }
+  }
+
+  /** One location step. */
+  private static final class Step {
+    private int m_axis;
+    private final int m_test;
+    private final int m_name;
+    private final Test[] m_predicates;
+
+    Step(final int axis, final int test, final int name, final Test[] predicates) {
+      m_axis = axis;
+      m_test = test;
+      m_name = name;
+      m_predicates = predicates;
+    }
+  }
+
+  /** Receives the nodes a step selects. */
+  private interface Sink {
+    /**
+     * @param node a selected node.
+     * @return true to stop the selection.
+     */
+    boolean add(int node);
+  }
+
+  /** The interpreted expression. */
+  private final Expression m_expr;
+
+  /** The kind of result, one of the RESULT_ constants. */
+  private final int m_result;
+
+  /** The steps of the location path. */
+  private final Step[] m_steps;
+
+  /** The names used by the node tests and predicates. */
+  private final Name[] m_names;
+
+  /**
+   * @param expr the interpreted expression.
+   * @param result the kind of result.
+   * @param steps the steps.
+   * @param names the names.
+   */
+  private FusedPath(
+      final Expression expr, final int result, final Step[] steps, final Name[] names) {
+    m_expr = expr;
+    m_result = result;
+    m_steps = steps;
+    m_names = names;
+  }
+
+  /**
+   * Create the fused plan of an expression if it has the supported form.
+   *
+   * @param compiler non-null reference to compiler object that has processed the XPath operations
+   *     into an opcode map.
+   * @param opPos The opcode position of the expression.
+   * @param expr The interpreted expression compiled from that position.
+   * @return the plan, or null if the expression is not supported.
+   * @throws javax.xml.transform.TransformerException if any
+   */
+  public static FusedPath create(final Compiler compiler, int opPos, final Expression expr)
+      throws javax.xml.transform.TransformerException {
+
+    if (OpCodes.OP_XPATH == compiler.getOp(opPos)) {
+      opPos = OpMap.getFirstChildPos(opPos);
+    }
+
+    int result = RESULT_NODESET;
+    if (OpCodes.OP_FUNCTION == compiler.getOp(opPos)) {
+      final int[] funcs = {
+        FunctionTable.FUNC_COUNT, FunctionTable.FUNC_BOOLEAN, FunctionTable.FUNC_NOT
+      };
+      final int[] results = {RESULT_COUNT, RESULT_BOOLEAN, RESULT_NOT};
+      int argPos = -1;
+      for (int i = 0; i < funcs.length && argPos < 0; i++) {
+        final int[] args = WalkerFactory.getFunctionArgs(compiler, opPos, funcs[i], 1);
+        if (null != args) {
+          argPos = args[0];
+          result = results[i];
+        }
+      }
+      if (argPos < 0) {
+        return null;
+      }
+      opPos = argPos;
+    }
+    if (OpCodes.OP_LOCATIONPATH != compiler.getOp(opPos)) {
+      return null;
+    }
+
+    final List<Name> names = new ArrayList<>();
+    final List<Step> steps = new ArrayList<>();
+    int stepPos = OpMap.getFirstChildPos(opPos);
+    int stepType;
+    while (OpCodes.ENDOP != (stepType = compiler.getOp(stepPos))) {
+      final Step step = createStep(compiler, stepPos, stepType, names);
+      if (null == step
+          || (Axis.ROOT == step.m_axis && !steps.isEmpty())
+          || (!steps.isEmpty() && Axis.ATTRIBUTE == steps.get(steps.size() - 1).m_axis)) {
+        return null;
+      }
+
+      // descendant-or-self::node()/child::x selects the same nodes as descendant::x as long as
+      // no predicate depends on the position
+      final Step prev = steps.isEmpty() ? null : steps.get(steps.size() - 1);
+      if (null != prev
+          && Axis.DESCENDANTORSELF == prev.m_axis
+          && TEST_NODE == prev.m_test
+          && 0 == prev.m_predicates.length
+          && Axis.CHILD == step.m_axis) {
+        step.m_axis = Axis.DESCENDANT;
+        steps.set(steps.size() - 1, step);
+      }
+      else {
+        steps.add(step);
+      }
+
+      stepPos = compiler.getNextStepPos(stepPos);
+      if (stepPos < 0) {
+          break;
+      }
+    }
+    if (steps.isEmpty()) {
+      return null;
+    }
+
+    return new FusedPath(
+        expr, result, steps.toArray(new Step[0]), names.toArray(new Name[0]));
+  }
+
+  /**
+   * @param compiler the compiler.
+   * @param stepPos the opcode position of the step.
+   * @param stepType the step type.
+   * @param names the names used so far.
+   * @return the step, or null if it is not supported.
+   * @throws javax.xml.transform.TransformerException if any
+   */
+  private static Step createStep(
+      final Compiler compiler, final int stepPos, final int stepType, final List<Name> names)
+      throws javax.xml.transform.TransformerException {
+
+    final int axis;
+    switch (stepType) {
+      case OpCodes.FROM_ROOT:
+        axis = Axis.ROOT;
+        break;
+      case OpCodes.FROM_CHILDREN:
+        axis = Axis.CHILD;
+        break;
+      case OpCodes.FROM_DESCENDANTS:
+        axis = Axis.DESCENDANT;
+        break;
+      case OpCodes.FROM_DESCENDANTS_OR_SELF:
+        axis = Axis.DESCENDANTORSELF;
+        break;
+      case OpCodes.FROM_SELF:
+        axis = Axis.SELF;
+        break;
+      case OpCodes.FROM_ATTRIBUTES:
+        axis = Axis.ATTRIBUTE;
+        break;
+      default:
+        return null;
+    }
+
+    int name = -1;
+    final int test;
+    switch (compiler.getStepTestType(stepPos)) {
+      case OpCodes.NODENAME: {
+          final String namespace = compiler.getStepNS(stepPos);
+          final String localName = compiler.getStepLocalName(stepPos);
+          if (NodeTest.WILD.equals(localName)) {
+            if (null != namespace && !NodeTest.WILD.equals(namespace)) {
+              return null;
+            }
+            test = TEST_PRINCIPAL;
+          }
+          else {
+            if (NodeTest.WILD.equals(namespace)) {
+              return null;
+            }
+            test = TEST_NAME;
+            name = addName(names, namespace, localName,
+                Axis.ATTRIBUTE == axis ? DTM.ATTRIBUTE_NODE : DTM.ELEMENT_NODE);
+          }
+          break;
+        }
+      case OpCodes.NODETYPE_ROOT:
+      case OpCodes.NODETYPE_NODE:
+        test = TEST_NODE;
+        break;
+      case OpCodes.NODETYPE_TEXT:
+        test = TEST_TEXT;
+        break;
+      case OpCodes.NODETYPE_COMMENT:
+        test = TEST_COMMENT;
+        break;
+      default:
+        return null;
+    }
+    if (Axis.ATTRIBUTE == axis && TEST_NAME != test && TEST_PRINCIPAL != test) {
+      return null;
+    }
+
+    final List<Test> predicates = new ArrayList<>();
+    for (int predPos = compiler.getFirstPredicateOpPos(stepPos);
+        OpCodes.OP_PREDICATE == compiler.getOp(predPos);
+        predPos = compiler.getNextOpPos(predPos)) {
+      // see Compiler.predicate()
+      final Test predicate = createTest(compiler, predPos + 2, names);
+      if (null == predicate) {
+        return null;
+      }
+      predicates.add(predicate);
+    }
+    return new Step(axis, test, name, predicates.toArray(new Test[0]));
+  }
+
+  /**
+   * @param compiler the compiler.
+   * @param exprPos the opcode position of the predicate expression.
+   * @param names the names used so far.
+   * @return the test, or null if the expression is not supported.
+   * @throws javax.xml.transform.TransformerException if any
+   */
+  private static Test createTest(final Compiler compiler, final int exprPos, final List<Name> names)
+      throws javax.xml.transform.TransformerException {
+
+    final int op = compiler.getOp(exprPos);
+    if (OpCodes.OP_AND == op || OpCodes.OP_OR == op) {
+      final int leftPos = OpMap.getFirstChildPos(exprPos);
+      final Test left = createTest(compiler, leftPos, names);
+      final Test right = createTest(compiler, compiler.getNextOpPos(leftPos), names);
+      return (null == left || null == right)
+          ? null
+          : new BinaryTest(left, right, OpCodes.OP_AND == op);
+    }
+
+    final int[] not = WalkerFactory.getFunctionArgs(compiler, exprPos, FunctionTable.FUNC_NOT, 1);
+    if (null != not) {
+      final Test test = createTest(compiler, not[0], names);
+      return (null == test) ? null : new NotTest(test);
+    }
+
+    String[] attribute = WalkerFactory.getAttribute(compiler, exprPos);
+    if (null != attribute) {
+      return new AttributeTest(
+          addName(names, attribute[0], attribute[1], DTM.ATTRIBUTE_NODE), null, null, false);
+    }
+
+    attribute = WalkerFactory.getAttributeValueTest(compiler, exprPos);
+    if (null != attribute) {
+      return new AttributeTest(
+          addName(names, attribute[0], attribute[1], DTM.ATTRIBUTE_NODE),
+          attribute[2],
+          null,
+          false);
+    }
+
+    attribute = WalkerFactory.getAttributeTokenTest(compiler, exprPos);
+    if (null != attribute) {
+      // see WalkerFactory.getAttributeTokenTest()
+      final int[] contains =
+          WalkerFactory.getFunctionArgs(compiler, exprPos, FunctionTable.FUNC_CONTAINS, 2);
+      final int[] concat =
+          WalkerFactory.getFunctionArgs(compiler, contains[0], FunctionTable.FUNC_CONCAT, 3);
+      final boolean normalize =
+          null
+              != WalkerFactory.getFunctionArgs(
+                  compiler, concat[1], FunctionTable.FUNC_NORMALIZE_SPACE, 1);
+      return new AttributeTest(
+          addName(names, attribute[0], attribute[1], DTM.ATTRIBUTE_NODE),
+          null,
+          attribute[2],
+          normalize);
+    }
+    return null;
+  }
+
+  /**
+   * @param names the names used so far.
+   * @param namespace the namespace URI, null for none.
+   * @param localName the local name.
+   * @param type the node type.
+   * @return the index of the name.
+   */
+  private static int addName(
+      final List<Name> names, final String namespace, final String localName, final int type) {
+    names.add(new Name(namespace, localName, type));
+    return names.size() - 1;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public XObject execute(final XPathContext xctxt) throws javax.xml.transform.TransformerException {
+    final int context = xctxt.getCurrentNode();
+    final DTM dtm = xctxt.getDTM(context);
+    if (!(dtm instanceof DTMDefaultBase)) {
+      return m_expr.execute(xctxt);
+    }
+
+    switch (m_result) {
+      case RESULT_COUNT:
+        return new XNumber(select(dtm, context, Integer.MAX_VALUE).size());
+      case RESULT_BOOLEAN:
+        return exists(dtm, context) ? XBoolean.S_TRUE : XBoolean.S_FALSE;
+      case RESULT_NOT:
+        return exists(dtm, context) ? XBoolean.S_FALSE : XBoolean.S_TRUE;
+      default:
+        final XNodeSet nodes = new XNodeSet(xctxt.getDTMManager());
+        final NodeVector selected = select(dtm, context, Integer.MAX_VALUE);
+        for (int i = 0; i < selected.size(); i++) {
+          nodes.mutableNodeset().addNode(selected.elementAt(i));
+        }
+        return nodes;
+    }
+  }
+
+  /**
+   * Select the nodes of the location path in document order.
+   *
+   * @param dtm the DTM of the context node.
+   * @param context the context node.
+   * @param limit the number of nodes after which the selection may stop.
+   * @return the nodes.
+   */
+  private NodeVector select(final DTM dtm, final int context, final int limit) {
+    final int[] types = getTypes(dtm);
+
+    NodeVector nodes = new NodeVector();
+    nodes.addElement(context);
+    for (int s = 0; s < m_steps.length; s++) {
+      final Step step = m_steps[s];
+      final boolean last = s == m_steps.length - 1;
+      final NodeVector selected = new NodeVector();
+      final Sink sink =
+          node -> {
+            selected.addElement(node);
+            return last && selected.size() >= limit;
+          };
+      for (int i = 0; i < nodes.size(); i++) {
+        if (selectStep(dtm, step, nodes.elementAt(i), types, sink)) {
+          return selected;
+        }
+      }
+      if (nodes.size() > 1 && Axis.SELF != step.m_axis && Axis.ATTRIBUTE != step.m_axis) {
+        // nested context nodes give duplicates and break the document order
+        nodes = sortAndUnique((DTMDefaultBase) dtm, selected);
+      }
+      else {
+        nodes = selected;
+      }
+    }
+    return nodes;
+  }
+
+  /**
+   * Tell if the location path selects any node. The steps are followed depth first, so that the
+   * search stops at the first node found instead of selecting all nodes of the inner steps.
+   *
+   * @param dtm the DTM of the context node.
+   * @param context the context node.
+   * @return true if the node-set is not empty.
+   */
+  private boolean exists(final DTM dtm, final int context) {
+    return exists(dtm, 0, context, getTypes(dtm));
+  }
+
+  /**
+   * @param dtm the DTM of the context node.
+   * @param s the index of the step to follow.
+   * @param context the context node of the step.
+   * @param types the expanded type IDs of the names.
+   * @return true if the step and the ones after it select any node.
+   */
+  private boolean exists(final DTM dtm, final int s, final int context, final int[] types) {
+    final boolean last = s == m_steps.length - 1;
+    return selectStep(
+        dtm, m_steps[s], context, types, node -> last || exists(dtm, s + 1, node, types));
+  }
+
+  /**
+   * @param dtm a DTM.
+   * @return the expanded type IDs of the names in the DTM.
+   */
+  private int[] getTypes(final DTM dtm) {
+    final int[] types = new int[m_names.length];
+    for (int i = 0; i < types.length; i++) {
+      final Name name = m_names[i];
+      types[i] = dtm.getExpandedTypeID(name.m_namespace, name.m_localName, name.m_type);
+    }
+    return types;
+  }
+
+  /**
+   * Hand the nodes one step selects for a context node to a sink.
+   *
+   * @param dtm the DTM.
+   * @param step the step.
+   * @param context the context node.
+   * @param types the expanded type IDs of the names.
+   * @param sink receives the selected nodes.
+   * @return true if the sink stopped the selection.
+   */
+  private static boolean selectStep(
+      final DTM dtm, final Step step, final int context, final int[] types, final Sink sink) {
+
+    final int type = (TEST_NAME == step.m_test) ? types[step.m_name] : DTM.NULL;
+    switch (step.m_axis) {
+      case Axis.ROOT:
+        final int root = dtm.getAxisTraverser(Axis.ROOT).first(context);
+        return select(dtm, step, root, type, types, sink);
+      case Axis.SELF:
+        return select(dtm, step, context, type, types, sink);
+      case Axis.CHILD:
+        for (int node = dtm.getFirstChild(context);
+            DTM.NULL != node;
+            node = dtm.getNextSibling(node)) {
+          if (select(dtm, step, node, type, types, sink)) {
+            return true;
+          }
+        }
+        return false;
+      case Axis.ATTRIBUTE:
+        for (int node = dtm.getFirstAttribute(context);
+            DTM.NULL != node;
+            node = dtm.getNextAttribute(node)) {
+          if (select(dtm, step, node, type, types, sink)) {
+            return true;
+          }
+        }
+        return false;
+      default:
+        if (Axis.DESCENDANTORSELF == step.m_axis
+            && select(dtm, step, context, type, types, sink)) {
+          return true;
+        }
+        final DTMAxisTraverser traverser = dtm.getAxisTraverser(Axis.DESCENDANT);
+        if (TEST_NAME == step.m_test) {
+          for (int node = traverser.first(context, type);
+              DTM.NULL != node;
+              node = traverser.next(context, node, type)) {
+            if (select(dtm, step, node, type, types, sink)) {
+              return true;
+            }
+          }
+        }
+        else {
+          for (int node = traverser.first(context);
+              DTM.NULL != node;
+              node = traverser.next(context, node)) {
+            if (select(dtm, step, node, type, types, sink)) {
+              return true;
+            }
+          }
+        }
+        return false;
+    }
+  }
+
+  /**
+   * Hand a node to a sink if it passes the node test and the predicates of a step.
+   *
+   * @param dtm the DTM.
+   * @param step the step.
+   * @param node the candidate node.
+   * @param type the expanded type ID of a named node test.
+   * @param types the expanded type IDs of the names.
+   * @param sink receives the node.
+   * @return true if the sink stopped the selection.
+   */
+  private static boolean select(
+      final DTM dtm, final Step step, final int node, final int type, final int[] types,
+      final Sink sink) {
+
+    if (DTM.NULL == node) {
+      return false;
+    }
+
+    final boolean matches;
+    switch (step.m_test) {
+      case TEST_NAME:
+        matches = dtm.getExpandedTypeID(node) == type;
+        break;
+      case TEST_PRINCIPAL:
+        matches = dtm.getNodeType(node)
+            == (Axis.ATTRIBUTE == step.m_axis ? DTM.ATTRIBUTE_NODE : DTM.ELEMENT_NODE);
+        break;
+      case TEST_TEXT: {
+          final short nodeType = dtm.getNodeType(node);
+          matches = DTM.TEXT_NODE == nodeType || DTM.CDATA_SECTION_NODE == nodeType;
+          break;
+        }
+      case TEST_COMMENT:
+        matches = DTM.COMMENT_NODE == dtm.getNodeType(node);
+        break;
+      default:
+        matches = Axis.ATTRIBUTE != step.m_axis || DTM.ATTRIBUTE_NODE == dtm.getNodeType(node);
+    }
+    if (!matches) {
+      return false;
+    }
+
+    for (final Test predicate : step.m_predicates) {
+      if (!predicate.matches(dtm, node, types)) {
+        return false;
+      }
+    }
+    return sink.add(node);
+  }
+
+  /**
+   * Put the nodes in document order and drop duplicates.
+   *
+   * @param dtm the DTM of the nodes.
+   * @param nodes the nodes, which are never attributes.
+   * @return the sorted nodes.
+   */
+  private static NodeVector sortAndUnique(final DTMDefaultBase dtm, final NodeVector nodes) {
+    // node identities follow the document order, handles need not
+    final int[] identities = new int[nodes.size()];
+    for (int i = 0; i < identities.length; i++) {
+      identities[i] = dtm.makeNodeIdentity(nodes.elementAt(i));
+    }
+    Arrays.sort(identities);
+
+    final NodeVector sorted = new NodeVector();
+    int last = DTM.NULL;
+    for (final int identity : identities) {
+      if (identity != last) {
+        sorted.addElement(dtm.makeNodeHandle(identity));
+        last = identity;
+      }
+    }
+    return sorted;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public double num(final XPathContext xctxt) throws javax.xml.transform.TransformerException {
+    if (RESULT_COUNT != m_result) {
+      return super.num(xctxt);
+    }
+
+    final int context = xctxt.getCurrentNode();
+    final DTM dtm = xctxt.getDTM(context);
+    if (!(dtm instanceof DTMDefaultBase)) {
+      return m_expr.num(xctxt);
+    }
+    return select(dtm, context, Integer.MAX_VALUE).size();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean bool(final XPathContext xctxt) throws javax.xml.transform.TransformerException {
+    if (RESULT_COUNT == m_result) {
+      return super.bool(xctxt);
+    }
+
+    final int context = xctxt.getCurrentNode();
+    final DTM dtm = xctxt.getDTM(context);
+    if (!(dtm instanceof DTMDefaultBase)) {
+      return m_expr.bool(xctxt);
+    }
+    return exists(dtm, context) != (RESULT_NOT == m_result);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean canTraverseOutsideSubtree() {
+    return m_expr.canTraverseOutsideSubtree();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void callVisitors(final XPathVisitor visitor) {
+    m_expr.callVisitors(visitor);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean deepEquals(final Expression expr) {
+    return isSameClass(expr) && m_expr.deepEquals(((FusedPath) expr).m_expr);
+  }
+}
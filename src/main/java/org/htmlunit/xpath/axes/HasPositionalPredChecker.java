@@ -24,6 +24,7 @@ import org.htmlunit.xpath.functions.FuncPosition;
 import org.htmlunit.xpath.functions.Function;
 import org.htmlunit.xpath.objects.XNumber;
 import org.htmlunit.xpath.operations.Div;
+import org.htmlunit.xpath.operations.Invariant;
 import org.htmlunit.xpath.operations.Minus;
 import org.htmlunit.xpath.operations.Mod;
 import org.htmlunit.xpath.operations.Mult;
@@ -62,18 +63,20 @@ public class HasPositionalPredChecker extends XPathVisitor {
     m_predDepth++;
 
     if (m_predDepth == 1) {
-      if ((pred instanceof XNumber)
-          || (pred instanceof Div)
-          || (pred instanceof Plus)
-          || (pred instanceof Minus)
-          || (pred instanceof Mod)
-          || (pred instanceof Mult)
-          || (pred instanceof org.htmlunit.xpath.operations.Number)
-          || (pred instanceof Function)) {
+      // look into a predicate that is computed once per evaluation
+      final Expression expr = (pred instanceof Invariant) ? ((Invariant) pred).getOperand() : pred;
+      if ((expr instanceof XNumber)
+          || (expr instanceof Div)
+          || (expr instanceof Plus)
+          || (expr instanceof Minus)
+          || (expr instanceof Mod)
+          || (expr instanceof Mult)
+          || (expr instanceof org.htmlunit.xpath.operations.Number)
+          || (expr instanceof Function)) {
           m_hasPositionalPred = true;
       }
       else {
-          pred.callVisitors(this);
+          expr.callVisitors(this);
       }
     }
 
@@ -18,10 +18,19 @@
 package org.htmlunit.xpath.axes;
 
 import java.util.ArrayList;
+import org.htmlunit.xpath.XPathContext;
 import org.htmlunit.xpath.xml.dtm.DTMIterator;
 import org.htmlunit.xpath.xml.utils.WrappedRuntimeException;
 
-/** Pool of object of a given type to pick from to help memory usage */
+/**
+ * Pool of object of a given type to pick from to help memory usage.
+ *
+ * <p>The original iterator is the compiled, shared part of an expression and is never handed out;
+ * the running state lives in its clones. Clones used by an evaluation are recycled through the
+ * free list its {@link XPathContext} keeps for this pool until the evaluation ends, which needs no
+ * locking since a context is only used by one thread at a time. The shared free stack only serves
+ * callers without a context.
+ */
 public final class IteratorPool {
 
   /** Type of objects in this pool. */
@@ -77,6 +86,53 @@ public final class IteratorPool {
     return m_freeStack.remove(m_freeStack.size() - 1);
   }
 
+  /**
+   * Get an instance of the given object from the free list the context keeps for this pool.
+   *
+   * @param xctxt The context of the evaluation that will use the instance, may be null.
+   * @return An instance of the given object
+   * @throws CloneNotSupportedException if the original can not be cloned
+   */
+  public DTMIterator getInstanceOrThrow(final XPathContext xctxt)
+      throws CloneNotSupportedException {
+    if (null == xctxt) {
+      return getInstanceOrThrow();
+    }
+
+    final DTMIterator free = xctxt.getFreeIterator(this);
+    return (null == free) ? (DTMIterator) m_orig.clone() : free;
+  }
+
+  /**
+   * Get an instance of the given object from the free list the context keeps for this pool.
+   *
+   * @param xctxt The context of the evaluation that will use the instance, may be null.
+   * @return An instance of the given object
+   */
+  public DTMIterator getInstance(final XPathContext xctxt) {
+    try {
+      return getInstanceOrThrow(xctxt);
+    }
+    catch (final Exception ex) {
+      throw new WrappedRuntimeException(ex);
+    }
+  }
+
+  /**
+   * Add an instance of the given object to the free list the context keeps for this pool.
+   *
+   * @param xctxt The context of the evaluation that used the instance, may be null.
+   * @param obj Object to add.
+   */
+  public void freeInstance(final XPathContext xctxt, final DTMIterator obj) {
+    if (null == xctxt) {
+      freeInstance(obj);
+    }
+    else {
+      xctxt.addFreeIterator(this, obj);
+    }
+  }
+
   /**
    * Add an instance of the given object to the pool
    *
@@ -104,7 +104,7 @@ public abstract class LocPathIterator extends PredicatedNodeTest
   @Override
   public XObject execute(final XPathContext xctxt) throws javax.xml.transform.TransformerException {
 
-    final XNodeSet iter = new XNodeSet(m_clones.getInstance());
+    final XNodeSet iter = new XNodeSet(m_clones.getInstance(xctxt));
 
     iter.setRoot(xctxt.getCurrentNode(), xctxt);
 
@@ -114,7 +114,7 @@ public abstract class LocPathIterator extends PredicatedNodeTest
   /** {@inheritDoc} */
   @Override
   public DTMIterator asIterator(final XPathContext xctxt, final int contextNode) {
-    final XNodeSet iter = new XNodeSet(m_clones.getInstance());
+    final XNodeSet iter = new XNodeSet(m_clones.getInstance(xctxt));
 
     iter.setRoot(contextNode, xctxt);
 
@@ -124,7 +124,7 @@ public abstract class LocPathIterator extends PredicatedNodeTest
   /** {@inheritDoc} */
   @Override
   public int asNode(final XPathContext xctxt) throws javax.xml.transform.TransformerException {
-    final DTMIterator iter = m_clones.getInstance();
+    final DTMIterator iter = m_clones.getInstance(xctxt);
 
     final int current = xctxt.getCurrentNode();
 
@@ -311,6 +311,7 @@ public abstract class LocPathIterator extends PredicatedNodeTest
   public void detach() {
     // sb: allow reusing of cached nodes when possible?
     // m_cachedNodes = null;
+    final XPathContext xctxt = m_execContext;
     m_execContext = null;
     // m_prefixResolver = null; sb: Why would this ever want to be null?
     m_cdtm = null;
@@ -320,7 +321,7 @@ public abstract class LocPathIterator extends PredicatedNodeTest
     m_context = DTM.NULL;
     m_currentContextNode = DTM.NULL;
 
-    m_clones.freeInstance(this);
+    m_clones.freeInstance(xctxt, this);
   }
 
   /** {@inheritDoc} */
@@ -334,7 +335,7 @@ public abstract class LocPathIterator extends PredicatedNodeTest
   public DTMIterator cloneWithReset() throws CloneNotSupportedException {
     final LocPathIterator clone;
     // clone = (LocPathIterator) clone();
-    clone = (LocPathIterator) m_clones.getInstanceOrThrow();
+    clone = (LocPathIterator) m_clones.getInstanceOrThrow(m_execContext);
     clone.m_execContext = m_execContext;
     clone.m_cdtm = m_cdtm;
 
@@ -437,7 +438,8 @@ public abstract class LocPathIterator extends PredicatedNodeTest
 
   /**
    * The pool for cloned iterators. Iterators need to be cloned because the hold running state, and
-   * thus the original iterator expression from the stylesheet pool can not be used.
+   * thus the original iterator expression from the stylesheet pool can not be used. The original
+   * is never modified by an evaluation, so one compiled expression can be run by many threads.
    */
   protected final transient IteratorPool m_clones = new IteratorPool(this);
 
@@ -18,6 +18,7 @@
 package org.htmlunit.xpath.axes;
 
 import org.htmlunit.xpath.NodeSetDTM;
+import org.htmlunit.xpath.StringValueCache;
 import org.htmlunit.xpath.XPathContext;
 import org.htmlunit.xpath.objects.XObject;
 import org.htmlunit.xpath.xml.dtm.DTM;
@@ -120,6 +121,25 @@ public class NodeSequence extends XObject implements DTMIterator, Cloneable, Pat
    */
   protected DTMManager m_dtmMgr;
 
+  /** The cache of string-values of the context the nodes have been found in, may be null. */
+  protected StringValueCache m_stringValueCache;
+
+  /**
+   * The evaluation that returned this node-set, resumed while the iterator finds more nodes;
+   * null if there is none or once the iterator is exhausted.
+   */
+  protected XPathContext.Evaluation m_evaluation;
+
+  /**
+   * Let the iterator find the nodes it has not found yet as part of the given evaluation, which
+   * keeps the values computed for it, after that evaluation has ended.
+   *
+   * @param evaluation the evaluation that returns this node-set, may be null.
+   */
+  public void setEvaluation(final XPathContext.Evaluation evaluation) {
+    m_evaluation = cacheComplete() ? null : evaluation;
+  }
+
   // ==== Constructors ====
 
   /**
@@ -182,6 +202,7 @@ public class NodeSequence extends XObject implements DTMIterator, Cloneable, Pat
     if (null != m_iter) {
       final XPathContext xctxt = (XPathContext) environment;
       m_dtmMgr = xctxt.getDTMManager();
+      m_stringValueCache = xctxt.getStringValueCache();
       m_iter.setRoot(nodeHandle, environment);
       if (!m_iter.isDocOrdered()) {
         if (!hasCache()) {
@@ -244,7 +265,7 @@ public class NodeSequence extends XObject implements DTMIterator, Cloneable, Pat
         return DTM.NULL;
     }
 
-    final int next = m_iter.nextNode();
+    final int next = nextFromIterator();
     if (DTM.NULL != next) {
       if (hasCache()) {
         if (m_iter.isDocOrdered()) {
@@ -275,6 +296,27 @@ public class NodeSequence extends XObject implements DTMIterator, Cloneable, Pat
     return next;
   }
 
+  /** @return the next node of the iterator, found as part of the evaluation if there is one. */
+  private int nextFromIterator() {
+    final XPathContext.Evaluation evaluation = m_evaluation;
+    if (null == evaluation) {
+      return m_iter.nextNode();
+    }
+
+    final XPathContext xctxt = evaluation.getContext();
+    xctxt.resumeEvaluation(evaluation);
+    try {
+      final int next = m_iter.nextNode();
+      if (DTM.NULL == next) {
+        m_evaluation = null;
+      }
+      return next;
+    }
+    finally {
+      xctxt.endEvaluation();
+    }
+  }
+
   /** {@inheritDoc} */
   @Override
   public int previousNode() {
@@ -295,6 +337,7 @@ public class NodeSequence extends XObject implements DTMIterator, Cloneable, Pat
   /** {@inheritDoc} */
   @Override
   public void detach() {
+    m_evaluation = null;
     if (null != m_iter) {
         m_iter.detach();
     }
@@ -415,7 +458,22 @@ public class NodeSequence extends XObject implements DTMIterator, Cloneable, Pat
       return m_last;
     }
 
-    return (-1 == m_last) ? (m_last = m_iter.getLength()) : m_last;
+    if (-1 == m_last) {
+      final XPathContext.Evaluation evaluation = m_evaluation;
+      if (null == evaluation) {
+        m_last = m_iter.getLength();
+      }
+      else {
+        evaluation.getContext().resumeEvaluation(evaluation);
+        try {
+          m_last = m_iter.getLength();
+        }
+        finally {
+          evaluation.getContext().endEvaluation();
+        }
+      }
+    }
+    return m_last;
   }
 
   /** {@inheritDoc} */
@@ -23,6 +23,7 @@ import org.htmlunit.xpath.compiler.FunctionTable;
 import org.htmlunit.xpath.compiler.OpCodes;
 import org.htmlunit.xpath.compiler.OpMap;
 import org.htmlunit.xpath.objects.XNumber;
+import org.htmlunit.xpath.objects.XString;
 import org.htmlunit.xpath.patterns.ContextMatchStepPattern;
 import org.htmlunit.xpath.patterns.FunctionPattern;
 import org.htmlunit.xpath.patterns.NodeTest;
@@ -32,6 +33,7 @@ import org.htmlunit.xpath.res.XPATHMessages;
 import org.htmlunit.xpath.xml.dtm.Axis;
 import org.htmlunit.xpath.xml.dtm.DTMFilter;
 import org.htmlunit.xpath.xml.dtm.DTMIterator;
+import org.htmlunit.xpath.xml.utils.XMLCharacterRecognizer;
 
 /**
  * This class is both a factory for XPath location path expressions, which are built from the opcode
@@ -966,6 +968,262 @@ public class WalkerFactory {
     return nPredicates > 0;
   }
 
+  /**
+   * Recognize a step whose first predicate compares a named attribute with a string literal, e.g.
+   * <code>input[@name = 'q']</code> or <code>a['/' = @href]</code>. Such a predicate selects the
+   * elements that can be looked up in an attribute value index, see {@link
+   * org.htmlunit.xpath.xml.dtm.DTM#getElementsByAttributeValue(String, String, String)}.
+   *
+   * @param compiler non-null reference to compiler object that has processed the XPath operations
+   *     into an opcode map.
+   * @param opPos The opcode position for the step.
+   * @return the namespace URI (null for none), local name and value of the attribute, or null if
+   *     the step has no such first predicate.
+   * @throws javax.xml.transform.TransformerException if any
+   */
+  static String[] getAttributeValuePredicate(final Compiler compiler, final int opPos)
+      throws javax.xml.transform.TransformerException {
+
+    final int predPos = compiler.getFirstPredicateOpPos(opPos);
+    if (OpCodes.OP_PREDICATE != compiler.getOp(predPos)) {
+      return null;
+    }
+
+    // see Compiler.predicate()
+    return getAttributeValueTest(compiler, predPos + 2);
+  }
+
+  /**
+   * Recognize an expression comparing a named attribute of the context node with a string
+   * literal, e.g. <code>@name = 'q'</code>.
+   *
+   * @param compiler non-null reference to compiler object that has processed the XPath operations
+   *     into an opcode map.
+   * @param exprPos The opcode position of the expression.
+   * @return the namespace URI (null for none), local name and value of the attribute, or null if
+   *     the expression is no such comparison.
+   * @throws javax.xml.transform.TransformerException if any
+   */
+  static String[] getAttributeValueTest(final Compiler compiler, final int exprPos)
+      throws javax.xml.transform.TransformerException {
+
+    if (OpCodes.OP_EQUALS != compiler.getOp(exprPos)) {
+      return null;
+    }
+
+    final int leftPos = OpMap.getFirstChildPos(exprPos);
+    final int rightPos = compiler.getNextOpPos(leftPos);
+    final int pathPos;
+    final int literalPos;
+    if (OpCodes.OP_LITERAL == compiler.getOp(rightPos)) {
+      pathPos = leftPos;
+      literalPos = rightPos;
+    }
+    else if (OpCodes.OP_LITERAL == compiler.getOp(leftPos)) {
+      pathPos = rightPos;
+      literalPos = leftPos;
+    }
+    else {
+      return null;
+    }
+
+    final String[] attribute = getAttribute(compiler, pathPos);
+    if (null == attribute) {
+      return null;
+    }
+    return new String[] {attribute[0], attribute[1], getLiteral(compiler, literalPos)};
+  }
+
+  /**
+   * Recognize a step whose first predicate tests for a whitespace separated token of a named
+   * attribute with the usual idiom for HTML classes, e.g. <code>
+   * div[contains(concat(' ', normalize-space(@class), ' '), ' item ')]</code>, with or without
+   * normalize-space(). Such a predicate selects a subset of the elements that can be looked up in
+   * an attribute token index, see {@link
+   * org.htmlunit.xpath.xml.dtm.DTM#getElementsByAttributeToken(String, String, String)}.
+   *
+   * @param compiler non-null reference to compiler object that has processed the XPath operations
+   *     into an opcode map.
+   * @param opPos The opcode position for the step.
+   * @return the namespace URI (null for none) and local name of the attribute and the token, or
+   *     null if the step has no such first predicate.
+   * @throws javax.xml.transform.TransformerException if any
+   */
+  static String[] getAttributeTokenPredicate(final Compiler compiler, final int opPos)
+      throws javax.xml.transform.TransformerException {
+
+    final int predPos = compiler.getFirstPredicateOpPos(opPos);
+    if (OpCodes.OP_PREDICATE != compiler.getOp(predPos)) {
+      return null;
+    }
+
+    // see Compiler.predicate()
+    return getAttributeTokenTest(compiler, predPos + 2);
+  }
+
+  /**
+   * Recognize an expression testing for a whitespace separated token of a named attribute of the
+   * context node with the usual idiom for HTML classes, see {@link
+   * #getAttributeTokenPredicate(Compiler, int)}.
+   *
+   * @param compiler non-null reference to compiler object that has processed the XPath operations
+   *     into an opcode map.
+   * @param exprPos The opcode position of the expression.
+   * @return the namespace URI (null for none) and local name of the attribute and the token, or
+   *     null if the expression is no such test.
+   * @throws javax.xml.transform.TransformerException if any
+   */
+  static String[] getAttributeTokenTest(final Compiler compiler, final int exprPos)
+      throws javax.xml.transform.TransformerException {
+
+    final int[] contains = getFunctionArgs(compiler, exprPos, FunctionTable.FUNC_CONTAINS, 2);
+    if (null == contains) {
+      return null;
+    }
+    final int[] concat = getFunctionArgs(compiler, contains[0], FunctionTable.FUNC_CONCAT, 3);
+    final String padded = getLiteral(compiler, contains[1]);
+    if (null == concat
+        || !" ".equals(getLiteral(compiler, concat[0]))
+        || !" ".equals(getLiteral(compiler, concat[2]))
+        || null == padded
+        || padded.length() < 3
+        || ' ' != padded.charAt(0)
+        || ' ' != padded.charAt(padded.length() - 1)) {
+      return null;
+    }
+
+    final String token = padded.substring(1, padded.length() - 1);
+    for (int i = 0; i < token.length(); i++) {
+      if (XMLCharacterRecognizer.isWhiteSpace(token.charAt(i))) {
+        return null;
+      }
+    }
+
+    int pathPos = concat[1];
+    final int[] normalize =
+        getFunctionArgs(compiler, pathPos, FunctionTable.FUNC_NORMALIZE_SPACE, 1);
+    if (null != normalize) {
+      pathPos = normalize[0];
+    }
+    final String[] attribute = getAttribute(compiler, pathPos);
+    if (null == attribute) {
+      return null;
+    }
+    return new String[] {attribute[0], attribute[1], token};
+  }
+
+  /**
+   * Recognize a step whose first predicate tests if the string-value of the context node contains
+   * a string literal, e.g. <code>td[contains(., 'Price')]</code>. Such a predicate selects the
+   * elements that can be looked up in a text index, see {@link
+   * org.htmlunit.xpath.xml.dtm.DTM#getElementsContainingText(String)}.
+   *
+   * @param compiler non-null reference to compiler object that has processed the XPath operations
+   *     into an opcode map.
+   * @param opPos The opcode position for the step.
+   * @return the string literal, or null if the step has no such first predicate.
+   * @throws javax.xml.transform.TransformerException if any
+   */
+  static String getContainsTextPredicate(final Compiler compiler, final int opPos)
+      throws javax.xml.transform.TransformerException {
+
+    final int predPos = compiler.getFirstPredicateOpPos(opPos);
+    if (OpCodes.OP_PREDICATE != compiler.getOp(predPos)) {
+      return null;
+    }
+
+    // see Compiler.predicate()
+    final int[] contains =
+        getFunctionArgs(compiler, predPos + 2, FunctionTable.FUNC_CONTAINS, 2);
+    if (null == contains || OpCodes.OP_LOCATIONPATH != compiler.getOp(contains[0])) {
+      return null;
+    }
+
+    // "." or self::node()
+    final int selfStepPos = OpMap.getFirstChildPos(contains[0]);
+    if (OpCodes.FROM_SELF != compiler.getOp(selfStepPos)
+        || OpCodes.NODETYPE_NODE != compiler.getStepTestType(selfStepPos)
+        || OpCodes.OP_PREDICATE == compiler.getOp(compiler.getFirstPredicateOpPos(selfStepPos))
+        || OpCodes.ENDOP != compiler.getOp(compiler.getNextStepPos(selfStepPos))) {
+      return null;
+    }
+    return getLiteral(compiler, contains[1]);
+  }
+
+  /**
+   * @param compiler non-null reference to compiler object that has processed the XPath operations
+   *     into an opcode map.
+   * @param opPos The opcode position of an expression.
+   * @param funcID The ID of a built-in function.
+   * @param nArgs The number of arguments.
+   * @return the opcode positions of the argument expressions if the expression calls the function
+   *     with that number of arguments, otherwise null.
+   */
+  static int[] getFunctionArgs(
+      final Compiler compiler, final int opPos, final int funcID, final int nArgs) {
+    if (OpCodes.OP_FUNCTION != compiler.getOp(opPos)
+        || funcID != compiler.getOp(OpMap.getFirstChildPos(opPos))) {
+      return null;
+    }
+
+    // see Compiler.compileFunction()
+    final int endFunc = opPos + compiler.getOp(opPos + 1) - 1;
+    final int[] args = new int[nArgs];
+    int i = 0;
+    for (int p = OpMap.getFirstChildPos(opPos) + 1; p < endFunc; p = compiler.getNextOpPos(p)) {
+      if (i == nArgs) {
+        return null;
+      }
+      // see Compiler.arg()
+      args[i++] = OpMap.getFirstChildPos(p);
+    }
+    return (i == nArgs) ? args : null;
+  }
+
+  /**
+   * @param compiler non-null reference to compiler object that has processed the XPath operations
+   *     into an opcode map.
+   * @param opPos The opcode position of an expression.
+   * @return the string if the expression is a literal, otherwise null.
+   */
+  static String getLiteral(final Compiler compiler, final int opPos) {
+    if (OpCodes.OP_LITERAL != compiler.getOp(opPos)) {
+      return null;
+    }
+    // see Compiler.literal()
+    return ((XString) compiler.getTokenQueue().get(compiler.getOp(OpMap.getFirstChildPos(opPos))))
+        .str();
+  }
+
+  /**
+   * @param compiler non-null reference to compiler object that has processed the XPath operations
+   *     into an opcode map.
+   * @param opPos The opcode position of an expression.
+   * @return the namespace URI (null for none) and local name of the attribute if the expression is
+   *     a location path selecting one named attribute of the context node, otherwise null.
+   * @throws javax.xml.transform.TransformerException if any
+   */
+  static String[] getAttribute(final Compiler compiler, final int opPos)
+      throws javax.xml.transform.TransformerException {
+    if (OpCodes.OP_LOCATIONPATH != compiler.getOp(opPos)) {
+      return null;
+    }
+    final int attrStepPos = OpMap.getFirstChildPos(opPos);
+    if (OpCodes.FROM_ATTRIBUTES != compiler.getOp(attrStepPos)
+        || OpCodes.NODENAME != compiler.getStepTestType(attrStepPos)
+        || OpCodes.OP_PREDICATE == compiler.getOp(compiler.getFirstPredicateOpPos(attrStepPos))
+        || OpCodes.ENDOP != compiler.getOp(compiler.getNextStepPos(attrStepPos))) {
+      return null;
+    }
+
+    final String namespace = compiler.getStepNS(attrStepPos);
+    final String localName = compiler.getStepLocalName(attrStepPos);
+    if (NodeTest.WILD.equals(namespace) || NodeTest.WILD.equals(localName)) {
+      return null;
+    }
+    return new String[] {namespace, localName};
+  }
+
   /**
    * Create the proper Walker from the axes type.
    *
@@ -1269,6 +1527,154 @@ public class WalkerFactory {
         && !isAbsolute(analysis);
   }
 
+  /**
+   * Tell if an expression only ever looks at the subtree of its context node, so that it can be
+   * evaluated against a DTM built for that subtree alone. Unlike {@link #walksDownOnly(int)}, this
+   * looks at the whole expression including predicates, filters and function arguments. It is
+   * conservative: absolute paths, upward and sideways axes, the namespace axis (which needs the
+   * declarations inherited from outside the subtree), variables, extension functions, id() and
+   * lang() all make it return false.
+   *
+   * @param compiler non-null reference to compiler object that has processed the XPath operations
+   *     into an opcode map.
+   * @param opPos The position of the expression in the opcode map.
+   * @return true if the expression never leaves the subtree of the context node.
+   * @throws javax.xml.transform.TransformerException if any
+   */
+  public static boolean walksContextSubtreeOnly(final Compiler compiler, final int opPos)
+      throws javax.xml.transform.TransformerException {
+
+    final int op = compiler.getOp(opPos);
+    switch (op) {
+      case OpCodes.OP_XPATH:
+      case OpCodes.OP_NEG:
+      case OpCodes.OP_STRING:
+      case OpCodes.OP_BOOL:
+      case OpCodes.OP_NUMBER:
+      case OpCodes.OP_GROUP:
+      case OpCodes.OP_ARGUMENT:
+      case OpCodes.OP_PREDICATE:
+        return walksContextSubtreeOnly(compiler, OpMap.getFirstChildPos(opPos));
+      case OpCodes.OP_OR:
+      case OpCodes.OP_AND:
+      case OpCodes.OP_NOTEQUALS:
+      case OpCodes.OP_EQUALS:
+      case OpCodes.OP_LTE:
+      case OpCodes.OP_LT:
+      case OpCodes.OP_GTE:
+      case OpCodes.OP_GT:
+      case OpCodes.OP_PLUS:
+      case OpCodes.OP_MINUS:
+      case OpCodes.OP_MULT:
+      case OpCodes.OP_DIV:
+      case OpCodes.OP_MOD:
+      case OpCodes.OP_QUO:
+        final int leftPos = OpMap.getFirstChildPos(opPos);
+        return walksContextSubtreeOnly(compiler, leftPos)
+            && walksContextSubtreeOnly(compiler, compiler.getNextOpPos(leftPos));
+      case OpCodes.OP_LITERAL:
+      case OpCodes.OP_NUMBERLIT:
+        return true;
+      case OpCodes.OP_UNION:
+        final int endUnion = compiler.getNextOpPos(opPos);
+        for (int pathPos = OpMap.getFirstChildPos(opPos);
+            pathPos < endUnion;
+            pathPos = compiler.getNextOpPos(pathPos)) {
+          if (!walksContextSubtreeOnly(compiler, pathPos)) {
+            return false;
+          }
+        }
+        return true;
+      case OpCodes.OP_FUNCTION:
+        return functionWalksContextSubtreeOnly(compiler, opPos);
+      case OpCodes.OP_LOCATIONPATH:
+        for (int stepPos = OpMap.getFirstChildPos(opPos);
+            OpCodes.ENDOP != stepPos && OpCodes.ENDOP != compiler.getOp(stepPos);
+            stepPos = compiler.getNextStepPos(stepPos)) {
+          if (!stepWalksContextSubtreeOnly(compiler, stepPos)) {
+            return false;
+          }
+        }
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Tell if a single location step, including its predicates, stays in the subtree of its context
+   * node.
+   *
+   * @param compiler non-null reference to compiler object that has processed the XPath operations
+   *     into an opcode map.
+   * @param stepPos The position of the step in the opcode map.
+   * @return true if the step never leaves the subtree of its context node.
+   * @throws javax.xml.transform.TransformerException if any
+   */
+  private static boolean stepWalksContextSubtreeOnly(final Compiler compiler, final int stepPos)
+      throws javax.xml.transform.TransformerException {
+
+    switch (compiler.getOp(stepPos)) {
+      case OpCodes.FROM_ATTRIBUTES:
+      case OpCodes.FROM_CHILDREN:
+      case OpCodes.FROM_DESCENDANTS:
+      case OpCodes.FROM_DESCENDANTS_OR_SELF:
+      case OpCodes.FROM_SELF:
+        break;
+      case OpCodes.OP_FUNCTION:
+      case OpCodes.OP_GROUP:
+        // a filter expression as first step
+        if (!walksContextSubtreeOnly(compiler, stepPos)) {
+          return false;
+        }
+        break;
+      default:
+        return false;
+    }
+
+    for (int predPos = compiler.getFirstPredicateOpPos(stepPos);
+        OpCodes.OP_PREDICATE == compiler.getOp(predPos);
+        predPos = compiler.getNextOpPos(predPos)) {
+      if (!walksContextSubtreeOnly(compiler, predPos)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Tell if a function call, including its arguments, stays in the subtree of the context node.
+   *
+   * @param compiler non-null reference to compiler object that has processed the XPath operations
+   *     into an opcode map.
+   * @param opPos The position of the function in the opcode map.
+   * @return true if the function call never leaves the subtree of the context node.
+   * @throws javax.xml.transform.TransformerException if any
+   */
+  private static boolean functionWalksContextSubtreeOnly(final Compiler compiler, final int opPos)
+      throws javax.xml.transform.TransformerException {
+
+    final int endFunc = opPos + compiler.getOp(opPos + 1) - 1;
+    final int funcPos = OpMap.getFirstChildPos(opPos);
+
+    final int funcID = compiler.getOp(funcPos);
+    if (funcID < 0
+        || funcID > FunctionTable.FUNC_STRING_LENGTH
+        || FunctionTable.FUNC_ID == funcID
+        || FunctionTable.FUNC_LANG == funcID) {
+      // Extension functions are unknown territory, id() searches the whole
+      // document and lang() looks at the ancestors.
+      return false;
+    }
+
+    for (int argPos = funcPos + 1; argPos < endFunc; argPos = compiler.getNextOpPos(argPos)) {
+      if (!walksContextSubtreeOnly(compiler, argPos)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   public static boolean canSkipSubtrees(final int analysis) {
     return isSet(analysis, BIT_CHILD) | walksSideways(analysis);
   }
@@ -25,12 +25,14 @@ import org.htmlunit.xpath.axes.WalkerFactory;
 import org.htmlunit.xpath.functions.Function;
 import org.htmlunit.xpath.functions.WrongNumberArgsException;
 import org.htmlunit.xpath.objects.XNumber;
+import org.htmlunit.xpath.objects.XObject;
 import org.htmlunit.xpath.objects.XString;
 import org.htmlunit.xpath.operations.And;
 import org.htmlunit.xpath.operations.Div;
 import org.htmlunit.xpath.operations.Equals;
 import org.htmlunit.xpath.operations.Gt;
 import org.htmlunit.xpath.operations.Gte;
+import org.htmlunit.xpath.operations.Invariant;
 import org.htmlunit.xpath.operations.Lt;
 import org.htmlunit.xpath.operations.Lte;
 import org.htmlunit.xpath.operations.Minus;
@@ -83,6 +85,26 @@ public class Compiler extends OpMap {
 
     final int op = getOp(opPos);
 
+    if (m_hoistInvariants
+        && OpCodes.OP_LITERAL != op
+        && OpCodes.OP_NUMBERLIT != op
+        && isInvariant(opPos)) {
+      // compute it once per evaluation rather than for every node the predicate tests
+      m_hoistInvariants = false;
+      try {
+        final Expression expr = compile(opPos);
+        if (expr instanceof XObject) {
+          return expr;
+        }
+        final Invariant invariant = new Invariant();
+        invariant.setRight(expr);
+        return invariant;
+      }
+      finally {
+        m_hoistInvariants = true;
+      }
+    }
+
     Expression expr = null;
     // System.out.println(getPatternString()+"op: "+op);
     switch (op) {
@@ -181,7 +203,127 @@ public class Compiler extends OpMap {
         error(XPATHErrorResources.ER_UNKNOWN_OPCODE, new Object[] {Integer.toString(getOp(opPos))});
     }
 
-    return expr;
+    return m_folder.fold(expr);
+  }
+
+  /**
+   * Get the number of expressions that were replaced at compile time, either by the literal they
+   * evaluate to or by a simpler equivalent, see {@link ConstantFolder}.
+   *
+   * @return the number of folded expression nodes.
+   */
+  public int getFoldedNodeCount() {
+    return m_folder.getFoldedCount();
+  }
+
+  /**
+   * Tell whether an expression has the same value for every context node, position and size of an
+   * evaluation. This holds for literals, absolute location paths, and operations and built-in
+   * functions of those, except for the functions that look at the context.
+   *
+   * @param opPos The op map position of the expression.
+   * @return true if the expression does not depend on the context.
+   */
+  private boolean isInvariant(final int opPos) {
+    switch (getOp(opPos)) {
+      case OpCodes.OP_LITERAL:
+      case OpCodes.OP_NUMBERLIT:
+        return true;
+      case OpCodes.OP_GROUP:
+      case OpCodes.OP_ARGUMENT:
+        return isInvariant(opPos + 2);
+      case OpCodes.OP_OR:
+      case OpCodes.OP_AND:
+      case OpCodes.OP_NOTEQUALS:
+      case OpCodes.OP_EQUALS:
+      case OpCodes.OP_LTE:
+      case OpCodes.OP_LT:
+      case OpCodes.OP_GTE:
+      case OpCodes.OP_GT:
+      case OpCodes.OP_PLUS:
+      case OpCodes.OP_MINUS:
+      case OpCodes.OP_MULT:
+      case OpCodes.OP_DIV:
+      case OpCodes.OP_MOD:
+        final int leftPos = getFirstChildPos(opPos);
+        return isInvariant(leftPos) && isInvariant(getNextOpPos(leftPos));
+      case OpCodes.OP_NEG:
+      case OpCodes.OP_STRING:
+      case OpCodes.OP_BOOL:
+      case OpCodes.OP_NUMBER:
+        return isInvariant(getFirstChildPos(opPos));
+      case OpCodes.OP_UNION:
+        for (int pathPos = getFirstChildPos(opPos);
+            pathPos < getNextOpPos(opPos);
+            pathPos = getNextOpPos(pathPos)) {
+          if (OpCodes.OP_LOCATIONPATH != getOp(pathPos) || !isInvariant(pathPos)) {
+            return false;
+          }
+        }
+        return true;
+      case OpCodes.OP_LOCATIONPATH:
+        // the later steps and all predicates are relative to the first step
+        final int stepPos = getFirstChildPos(opPos);
+        final int stepType = getOp(stepPos);
+        return OpCodes.FROM_ROOT == stepType
+            || ((OpCodes.OP_FUNCTION == stepType || OpCodes.OP_GROUP == stepType)
+                && isInvariant(stepPos));
+      case OpCodes.OP_FUNCTION:
+        return isInvariantFunction(opPos);
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Tell whether a function call has the same value for every context node, position and size of
+   * an evaluation.
+   *
+   * @param opPos The op map position of the function call.
+   * @return true if the function does not look at the context and its arguments do not depend on
+   *     it.
+   */
+  private boolean isInvariantFunction(final int opPos) {
+    // see compileFunction()
+    final int endFunc = opPos + getOp(opPos + 1) - 1;
+    final int funcPos = getFirstChildPos(opPos);
+    int argCount = 0;
+    for (int p = funcPos + 1; p < endFunc; p = getNextOpPos(p), argCount++) {
+      if (!isInvariant(p)) {
+        return false;
+      }
+    }
+
+    switch (getOp(funcPos)) {
+      case FunctionTable.FUNC_LOCAL_PART:
+      case FunctionTable.FUNC_NAMESPACE:
+      case FunctionTable.FUNC_QNAME:
+      case FunctionTable.FUNC_NORMALIZE_SPACE:
+      case FunctionTable.FUNC_NUMBER:
+      case FunctionTable.FUNC_STRING:
+      case FunctionTable.FUNC_STRING_LENGTH:
+        // without an argument these use the context node
+        return argCount > 0;
+      case FunctionTable.FUNC_COUNT:
+      case FunctionTable.FUNC_NOT:
+      case FunctionTable.FUNC_TRUE:
+      case FunctionTable.FUNC_FALSE:
+      case FunctionTable.FUNC_BOOLEAN:
+      case FunctionTable.FUNC_FLOOR:
+      case FunctionTable.FUNC_CEILING:
+      case FunctionTable.FUNC_ROUND:
+      case FunctionTable.FUNC_SUM:
+      case FunctionTable.FUNC_STARTS_WITH:
+      case FunctionTable.FUNC_CONTAINS:
+      case FunctionTable.FUNC_SUBSTRING_BEFORE:
+      case FunctionTable.FUNC_SUBSTRING_AFTER:
+      case FunctionTable.FUNC_TRANSLATE:
+      case FunctionTable.FUNC_CONCAT:
+      case FunctionTable.FUNC_SUBSTRING:
+        return true;
+      default:
+        return false;
+    }
   }
 
   /**
@@ -521,7 +663,14 @@ public class Compiler extends OpMap {
    * @throws TransformerException if a error occurs creating the Expression.
    */
   public Expression predicate(final int opPos) throws TransformerException {
-    return compile(opPos + 2);
+    final boolean hoistInvariants = m_hoistInvariants;
+    m_hoistInvariants = true;
+    try {
+      return compile(opPos + 2);
+    }
+    finally {
+      m_hoistInvariants = hoistInvariants;
+    }
   }
 
   /**
@@ -929,4 +1078,13 @@ public class Compiler extends OpMap {
 
   /** The FunctionTable for all xpath build-in functions */
   private final FunctionTable m_functionTable;
+
+  /** Folds the constant parts of the compiled expressions. */
+  private final ConstantFolder m_folder = new ConstantFolder();
+
+  /**
+   * true while a predicate is compiled, so that its parts which do not depend on the context are
+   * wrapped in an {@link Invariant}.
+   */
+  private boolean m_hoistInvariants;
 }
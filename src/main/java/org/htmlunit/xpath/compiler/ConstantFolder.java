@@ -0,0 +1,317 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath.compiler;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import javax.xml.transform.TransformerException;
+import org.htmlunit.xpath.Expression;
+import org.htmlunit.xpath.XPathContext;
+import org.htmlunit.xpath.XPathVisitor;
+import org.htmlunit.xpath.functions.FuncBoolean;
+import org.htmlunit.xpath.functions.FuncCeiling;
+import org.htmlunit.xpath.functions.FuncConcat;
+import org.htmlunit.xpath.functions.FuncContains;
+import org.htmlunit.xpath.functions.FuncFalse;
+import org.htmlunit.xpath.functions.FuncFloor;
+import org.htmlunit.xpath.functions.FuncNormalizeSpace;
+import org.htmlunit.xpath.functions.FuncNot;
+import org.htmlunit.xpath.functions.FuncNumber;
+import org.htmlunit.xpath.functions.FuncRound;
+import org.htmlunit.xpath.functions.FuncStartsWith;
+import org.htmlunit.xpath.functions.FuncString;
+import org.htmlunit.xpath.functions.FuncStringLength;
+import org.htmlunit.xpath.functions.FuncSubstring;
+import org.htmlunit.xpath.functions.FuncSubstringAfter;
+import org.htmlunit.xpath.functions.FuncSubstringBefore;
+import org.htmlunit.xpath.functions.FuncTranslate;
+import org.htmlunit.xpath.functions.FuncTrue;
+import org.htmlunit.xpath.functions.Function;
+import org.htmlunit.xpath.functions.FunctionDef1Arg;
+import org.htmlunit.xpath.functions.WrongNumberArgsException;
+import org.htmlunit.xpath.objects.XBoolean;
+import org.htmlunit.xpath.objects.XObject;
+import org.htmlunit.xpath.operations.And;
+import org.htmlunit.xpath.operations.Bool;
+import org.htmlunit.xpath.operations.Equals;
+import org.htmlunit.xpath.operations.NotEquals;
+import org.htmlunit.xpath.operations.Operation;
+import org.htmlunit.xpath.operations.Or;
+import org.htmlunit.xpath.xml.utils.WrappedRuntimeException;
+
+/**
+ * Replaces the parts of a compiled expression that do not depend on the context by the literal
+ * they evaluate to, and simplifies a few boolean patterns: <code>boolean(X)</code> becomes a test
+ * that stops at the first node of a location path, comparisons with a boolean literal become
+ * <code>boolean(X)</code> or <code>not(X)</code>, and <code>and</code>/<code>or</code> with a
+ * literal operand are reduced to the other operand or to their result.
+ *
+ * <p>The compiler hands every expression it builds to {@link #fold(Expression)}, operands first,
+ * so an expression is constant exactly when its operands have already become literals. The
+ * visitor methods check this for the expression being folded.
+ */
+class ConstantFolder extends XPathVisitor {
+
+  /** The functions whose result only depends on their arguments. */
+  private static final Set<Class<?>> PURE_FUNCTIONS =
+      new HashSet<>(
+          Arrays.asList(
+              FuncBoolean.class,
+              FuncCeiling.class,
+              FuncConcat.class,
+              FuncContains.class,
+              FuncFalse.class,
+              FuncFloor.class,
+              FuncNormalizeSpace.class,
+              FuncNot.class,
+              FuncNumber.class,
+              FuncRound.class,
+              FuncStartsWith.class,
+              FuncString.class,
+              FuncStringLength.class,
+              FuncSubstring.class,
+              FuncSubstringAfter.class,
+              FuncSubstringBefore.class,
+              FuncTranslate.class,
+              FuncTrue.class));
+
+  /** The context constant expressions are evaluated in, created when first needed. */
+  private XPathContext m_xctxt;
+
+  /** The number of expressions folded or simplified so far. */
+  private int m_foldedCount;
+
+  /** true once the visitor has seen the expression being checked. */
+  private boolean m_visitedRoot;
+
+  /** true while the expression being checked may be evaluated without a context. */
+  private boolean m_constant;
+
+  /** @return the number of expressions folded or simplified so far. */
+  int getFoldedCount() {
+    return m_foldedCount;
+  }
+
+  /**
+   * Fold an expression whose operands have been folded already.
+   *
+   * @param expr the expression, may be null.
+   * @return the literal the expression evaluates to, a simpler equivalent expression, or the
+   *     expression itself.
+   * @throws TransformerException if a literal can not be converted.
+   */
+  Expression fold(final Expression expr) throws TransformerException {
+    if (null == expr || expr instanceof XObject) {
+      return expr;
+    }
+
+    m_visitedRoot = false;
+    m_constant = false;
+    expr.callVisitors(this);
+    if (m_constant) {
+      final XObject value = evaluate(expr);
+      if (null != value) {
+        m_foldedCount++;
+        return value;
+      }
+      return expr;
+    }
+
+    final Expression simplified = simplify(expr);
+    if (simplified != expr) {
+      m_foldedCount++;
+    }
+    return simplified;
+  }
+
+  /**
+   * Evaluate a constant expression.
+   *
+   * @param expr the expression.
+   * @return the literal value, or null if the evaluation fails and has to report at run time.
+   */
+  private XObject evaluate(final Expression expr) {
+    if (null == m_xctxt) {
+      m_xctxt = new XPathContext();
+    }
+
+    try {
+      final XObject value = expr.execute(m_xctxt);
+      switch (value.getType()) {
+        case XObject.CLASS_BOOLEAN:
+          // do not share the parent of XBoolean.S_TRUE and S_FALSE between expressions
+          return new XBoolean(value.bool());
+        case XObject.CLASS_NUMBER:
+        case XObject.CLASS_STRING:
+          return value;
+        default:
+          return null;
+      }
+    }
+    catch (final TransformerException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Simplify an expression that is not constant.
+   *
+   * @param expr the expression.
+   * @return a simpler equivalent expression, or the expression itself.
+   * @throws TransformerException if a literal can not be converted.
+   */
+  private static Expression simplify(final Expression expr) throws TransformerException {
+    if (expr instanceof FuncBoolean) {
+      return bool(((FuncBoolean) expr).getArg0());
+    }
+
+    if (!(expr instanceof Operation)) {
+      return expr;
+    }
+    final Expression left = ((Operation) expr).getLeftOperand();
+    final Expression right = ((Operation) expr).getRightOperand();
+    final boolean literalLeft = left instanceof XObject;
+    if (!literalLeft && !(right instanceof XObject)) {
+      return expr;
+    }
+    final XObject literal = (XObject) (literalLeft ? left : right);
+    final Expression other = literalLeft ? right : left;
+
+    if (expr instanceof Equals || expr instanceof NotEquals) {
+      if (XObject.CLASS_BOOLEAN != literal.getType()) {
+        return expr;
+      }
+      // the other operand is compared by its boolean value
+      return (literal.bool() == (expr instanceof Equals)) ? bool(other) : not(other);
+    }
+
+    if (expr instanceof And || expr instanceof Or) {
+      final boolean isAnd = expr instanceof And;
+      if (literal.bool() != isAnd) {
+        // false() and X, true() or X
+        return new XBoolean(!isAnd);
+      }
+      return bool(other);
+    }
+    return expr;
+  }
+
+  /**
+   * @param expr an expression.
+   * @return the expression converted to a boolean.
+   */
+  private static Expression bool(final Expression expr) {
+    if (expr instanceof Bool) {
+      return expr;
+    }
+    final Bool bool = new Bool();
+    bool.setRight(expr);
+    return bool;
+  }
+
+  /**
+   * @param expr an expression.
+   * @return the negation of the expression.
+   */
+  private static Expression not(final Expression expr) {
+    final FuncNot not = new FuncNot();
+    try {
+      not.setArg(expr, 0);
+    }
+    catch (final WrongNumberArgsException e) {
+      throw new WrappedRuntimeException(e);
+    }
+    return not;
+  }
+
+  /**
+   * Record the kind of an expression seen by the visitor. The first one is the expression being
+   * checked, any other is one of its operands, which have been folded already and keep the
+   * expression from being constant unless they are literals.
+   *
+   * @param foldable true if the expression is constant when its operands are.
+   * @return true if the operands should be visited.
+   */
+  private boolean visit(final boolean foldable) {
+    if (m_visitedRoot) {
+      m_constant = false;
+      return false;
+    }
+    m_visitedRoot = true;
+    m_constant = foldable;
+    return foldable;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean visitLocationPath() {
+    return visit(false);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean visitUnionPath() {
+    return visit(false);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean visitStep() {
+    return visit(false);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean visitPredicate(final Expression pred) {
+    return visit(false);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean visitBinaryOperation() {
+    return visit(true);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean visitUnaryOperation() {
+    return visit(true);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean visitFunction(final Function func) {
+    // string() and friends without an argument use the context node
+    return visit(
+        PURE_FUNCTIONS.contains(func.getClass())
+            && !(func instanceof FunctionDef1Arg && null == ((FunctionDef1Arg) func).getArg0()));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean visitMatchPattern() {
+    return visit(false);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void visitUnionPattern() {
+    visit(false);
+  }
+}
@@ -27,6 +27,6 @@ public class FuncBoolean extends FunctionOneArg {
   /** {@inheritDoc} */
   @Override
   public XObject execute(final XPathContext xctxt) throws javax.xml.transform.TransformerException {
-    return m_arg0.execute(xctxt).bool() ? XBoolean.S_TRUE : XBoolean.S_FALSE;
+    return m_arg0.bool(xctxt) ? XBoolean.S_TRUE : XBoolean.S_FALSE;
   }
 }
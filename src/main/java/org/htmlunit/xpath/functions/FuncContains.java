@@ -19,7 +19,9 @@ package org.htmlunit.xpath.functions;
 
 import org.htmlunit.xpath.XPathContext;
 import org.htmlunit.xpath.objects.XBoolean;
+import org.htmlunit.xpath.objects.XNodeSet;
 import org.htmlunit.xpath.objects.XObject;
+import org.htmlunit.xpath.xml.dtm.DTM;
 
 /** Execute the Contains() function. */
 public class FuncContains extends Function2Args {
@@ -28,9 +30,28 @@ public class FuncContains extends Function2Args {
   @Override
   public XObject execute(final XPathContext xctxt) throws javax.xml.transform.TransformerException {
 
-    final String s1 = m_arg0.execute(xctxt).str();
+    final XObject arg0 = m_arg0.execute(xctxt);
     final String s2 = m_arg1.execute(xctxt).str();
 
+    final String s1;
+    if (arg0 instanceof XNodeSet) {
+      final int node = ((XNodeSet) arg0).item(0);
+      if (DTM.NULL == node) {
+        s1 = "";
+      }
+      else {
+        // Let the DTM look the string up if it has an index of its text.
+        final DTM dtm = xctxt.getDTM(node);
+        if (dtm.hasTextIndex()) {
+          return dtm.containsText(node, s2) ? XBoolean.S_TRUE : XBoolean.S_FALSE;
+        }
+        s1 = xctxt.getStringValue(node).toString();
+      }
+    }
+    else {
+      s1 = arg0.str();
+    }
+
     // Add this check for JDK consistency for empty strings.
     if (s1.length() == 0 && s2.length() == 0) {
         return XBoolean.S_TRUE;
@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath.functions;
+
+import java.util.StringTokenizer;
+import org.htmlunit.xpath.XPathContext;
+import org.htmlunit.xpath.objects.XBoolean;
+import org.htmlunit.xpath.objects.XObject;
+import org.htmlunit.xpath.objects.XString;
+import org.htmlunit.xpath.xml.dtm.DTM;
+
+/**
+ * Execute the has-class() extension function, which tells if the context node is an element whose
+ * <code>class</code> attribute contains the argument among its whitespace separated tokens. It is
+ * not part of XPath 1.0; install it with {@link
+ * org.htmlunit.xpath.compiler.FunctionTable#installFunction(String, Class)} and pass the table to
+ * the XPath.
+ */
+public class FuncHasClass extends FunctionOneArg {
+
+  /** The local name of the attribute holding the classes. */
+  public static final String CLASS_ATTRIBUTE = "class";
+
+  /** {@inheritDoc} */
+  @Override
+  public XObject execute(final XPathContext xctxt) throws javax.xml.transform.TransformerException {
+
+    final String className = m_arg0.execute(xctxt).str();
+    final int context = xctxt.getCurrentNode();
+    final DTM dtm = xctxt.getDTM(context);
+
+    if (DTM.ELEMENT_NODE == dtm.getNodeType(context)) {
+      final int classType = dtm.getExpandedTypeID(null, CLASS_ATTRIBUTE, DTM.ATTRIBUTE_NODE);
+      for (int attr = dtm.getFirstAttribute(context);
+          DTM.NULL != attr;
+          attr = dtm.getNextAttribute(attr)) {
+        if (classType == dtm.getExpandedTypeID(attr)) {
+          final StringTokenizer tokenizer = new StringTokenizer(dtm.getNodeValue(attr), " \t\n\r");
+          while (tokenizer.hasMoreTokens()) {
+            if (tokenizer.nextToken().equals(className)) {
+              return XBoolean.S_TRUE;
+            }
+          }
+          break;
+        }
+      }
+    }
+
+    return XBoolean.S_FALSE;
+  }
+
+  /**
+   * @return the class tested for if the argument is a string literal, so that the elements can be
+   *     looked up in an attribute token index, otherwise null.
+   */
+  public String getClassName() {
+    return (m_arg0 instanceof XString) ? ((XString) m_arg0).str() : null;
+  }
+}
@@ -106,8 +106,7 @@ public class FuncId extends FunctionOneArg {
       int pos = ni.nextNode();
 
       while (DTM.NULL != pos) {
-        final DTM ndtm = ni.getDTM(pos);
-        final String refval = ndtm.getStringValue(pos).toString();
+        final String refval = xctxt.getStringValue(pos).toString();
 
         pos = ni.nextNode();
         usedrefs = getNodesByID(xctxt, docContext, refval, usedrefs, nodeSet, DTM.NULL != pos);
@@ -27,6 +27,6 @@ public class FuncNot extends FunctionOneArg {
   /** {@inheritDoc} */
   @Override
   public XObject execute(final XPathContext xctxt) throws javax.xml.transform.TransformerException {
-    return m_arg0.execute(xctxt).bool() ? XBoolean.S_FALSE : XBoolean.S_TRUE;
+    return m_arg0.bool(xctxt) ? XBoolean.S_FALSE : XBoolean.S_TRUE;
   }
 }
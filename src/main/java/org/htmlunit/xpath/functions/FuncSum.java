@@ -42,8 +42,7 @@ public class FuncSum extends FunctionOneArg {
     int pos;
 
     while (DTM.NULL != (pos = nodes.nextNode())) {
-      final DTM dtm = nodes.getDTM(pos);
-      final XString s = dtm.getStringValue(pos);
+      final XString s = xctxt.getStringValue(pos);
 
       if (null != s) {
           sum += s.toDouble();
@@ -59,8 +59,7 @@ public class FunctionDef1Arg extends FunctionOneArg {
       if (DTM.NULL == currentNode) {
         return XString.EMPTYSTRING;
       }
-      final DTM dtm = xctxt.getDTM(currentNode);
-      return dtm.getStringValue(currentNode);
+      return xctxt.getStringValue(currentNode);
     }
 
     return m_arg0.execute(xctxt).xstr();
@@ -84,8 +83,7 @@ public class FunctionDef1Arg extends FunctionOneArg {
       if (DTM.NULL == currentNode) {
         return 0;
       }
-      final DTM dtm = xctxt.getDTM(currentNode);
-      final XString str = dtm.getStringValue(currentNode);
+      final XString str = xctxt.getStringValue(currentNode);
 
       return str.toDouble();
     }
@@ -31,6 +31,16 @@ public class FunctionOneArg extends Function {
    */
   Expression m_arg0;
 
+  /**
+   * Return the first argument passed to the function (at index 0).
+   *
+   * @return An expression that represents the first argument passed to the function, or null if
+   *     the function has not been given an argument.
+   */
+  public Expression getArg0() {
+    return m_arg0;
+  }
+
   /** {@inheritDoc} */
   @Override
   public void setArg(final Expression arg, final int argNum) throws WrongNumberArgsException {
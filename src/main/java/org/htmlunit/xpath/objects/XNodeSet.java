@@ -44,6 +44,8 @@ public class XNodeSet extends NodeSequence {
       final XNodeSet nodeSet = (XNodeSet) val;
       setIter(nodeSet.m_iter);
       m_dtmMgr = nodeSet.m_dtmMgr;
+      m_stringValueCache = nodeSet.m_stringValueCache;
+      m_evaluation = nodeSet.m_evaluation;
       m_last = nodeSet.m_last;
       // First make sure the DTMIterator val has a cache,
       // so if it doesn't have one, make one.
@@ -88,8 +90,7 @@ public class XNodeSet extends NodeSequence {
    * @return numeric value of the string conversion from a single node.
    */
   public double getNumberFromNode(final int n) {
-    final XString xstr = m_dtmMgr.getDTM(n).getStringValue(n);
-    return xstr.toDouble();
+    return getStringFromNode(n).toDouble();
   }
 
   /** {@inheritDoc} */
@@ -130,7 +131,10 @@ public class XNodeSet extends NodeSequence {
     // %OPT%
     // I guess we'll have to get a static instance of the DTM manager...
     if (DTM.NULL != n) {
-      return m_dtmMgr.getDTM(n).getStringValue(n);
+      final DTM dtm = m_dtmMgr.getDTM(n);
+      return (null == m_stringValueCache)
+          ? dtm.getStringValue(n)
+          : m_stringValueCache.getStringValue(dtm, n);
     }
     return org.htmlunit.xpath.objects.XString.EMPTYSTRING;
   }
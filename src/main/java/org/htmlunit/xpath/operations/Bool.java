@@ -24,6 +24,13 @@ import org.htmlunit.xpath.objects.XObject;
 /** The 'boolean()' operation expression executer. */
 public class Bool extends UnaryOperation {
 
+  /** {@inheritDoc} */
+  @Override
+  public XObject execute(final XPathContext xctxt) throws javax.xml.transform.TransformerException {
+    // a location path only needs to find its first node
+    return m_right.bool(xctxt) ? XBoolean.S_TRUE : XBoolean.S_FALSE;
+  }
+
   /** {@inheritDoc} */
   @Override
   public XObject operate(final XObject right) throws javax.xml.transform.TransformerException {
@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath.operations;
+
+import org.htmlunit.xpath.NodeSetDTM;
+import org.htmlunit.xpath.XPathContext;
+import org.htmlunit.xpath.objects.XNodeSet;
+import org.htmlunit.xpath.objects.XObject;
+import org.htmlunit.xpath.xml.dtm.DTM;
+import org.htmlunit.xpath.xml.dtm.DTMIterator;
+
+/**
+ * Wraps a part of a predicate that does not depend on the context node, position or size, like
+ * <code>sum(/catalog/item/@price)</code>, so that it is computed once per evaluation instead of
+ * once for every node the predicate is tested on. The value is kept by the {@link XPathContext}
+ * until the outermost evaluation ends; the nodes of a node-set value are collected once and handed
+ * out as fresh node-sets.
+ */
+public class Invariant extends UnaryOperation {
+
+  /** {@inheritDoc} */
+  @Override
+  public XObject execute(final XPathContext xctxt) throws javax.xml.transform.TransformerException {
+    XObject value = xctxt.getInvariantValue(this);
+    if (null == value) {
+      value = m_right.execute(xctxt);
+      if (XObject.CLASS_NODESET == value.getType()) {
+        final XNodeSet nodes = new XNodeSet(xctxt.getDTMManager());
+        final NodeSetDTM nodeSet = nodes.mutableNodeset();
+        final DTMIterator iter = value.iter();
+        for (int node = iter.nextNode(); DTM.NULL != node; node = iter.nextNode()) {
+          nodeSet.addNode(node);
+        }
+        value.detach();
+        value = nodes;
+      }
+      xctxt.setInvariantValue(this, value);
+    }
+
+    if (value instanceof XNodeSet) {
+      try {
+        return (XNodeSet) ((XNodeSet) value).cloneWithReset();
+      }
+      catch (final CloneNotSupportedException cnse) {
+        throw new RuntimeException(cnse.getMessage());
+      }
+    }
+    return value;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public XObject operate(final XObject right) throws javax.xml.transform.TransformerException {
+    return right;
+  }
+}
@@ -64,6 +64,16 @@ public class Operation extends Expression {
     r.exprSetParent(this);
   }
 
+  /** @return the left operand of binary operation, as an Expression. */
+  public Expression getLeftOperand() {
+    return m_left;
+  }
+
+  /** @return the right operand of binary operation, as an Expression. */
+  public Expression getRightOperand() {
+    return m_right;
+  }
+
   /** {@inheritDoc} */
   @Override
   public XObject execute(final XPathContext xctxt) throws javax.xml.transform.TransformerException {
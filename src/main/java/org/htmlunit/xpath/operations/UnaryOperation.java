@@ -53,6 +53,11 @@ public abstract class UnaryOperation extends Expression {
     r.exprSetParent(this);
   }
 
+  /** @return the operand of unary operation, as an Expression. */
+  public Expression getOperand() {
+    return m_right;
+  }
+
   /** {@inheritDoc} */
   @Override
   public XObject execute(final XPathContext xctxt) throws javax.xml.transform.TransformerException {
@@ -161,6 +161,8 @@ public class XPATHErrorResources extends ListResourceBundle {
   public static final String ER_SELF_CAUSATION_NOT_PERMITTED = "ER_SELF_CAUSATION_NOT_PERMITTED";
   public static final String ER_METHOD_NOT_SUPPORTED = "ER_METHOD_NOT_SUPPORTED";
   public static final String ER_AXIS_TRAVERSER_NOT_SUPPORTED = "ER_AXIS_TRAVERSER_NOT_SUPPORTED";
+  public static final String ER_COULD_NOT_BUILD_DTM = "ER_COULD_NOT_BUILD_DTM";
+  public static final String ER_INVALID_DTM_SNAPSHOT = "ER_INVALID_DTM_SNAPSHOT";
 
   // Error messages...
 
@@ -273,6 +275,8 @@ public class XPATHErrorResources extends ListResourceBundle {
       {ER_SELF_CAUSATION_NOT_PERMITTED, "Self-causation not permitted"},
       {ER_METHOD_NOT_SUPPORTED, "Method not yet supported "},
       {ER_AXIS_TRAVERSER_NOT_SUPPORTED, "Axis traverser not supported: {0}"},
+      {ER_COULD_NOT_BUILD_DTM, "Could not build a DTM from {0}: {1}"},
+      {ER_INVALID_DTM_SNAPSHOT, "{0} is not a DTM snapshot of a supported version"},
       {"BAD_CODE", "Parameter to createMessage was out of bounds"},
       {"FORMAT_FAILED", "Exception thrown during messageFormat call"},
       {"line", "Line #"},
@@ -378,6 +378,72 @@ public interface DTM {
    */
   int getElementById(String elementId);
 
+  /**
+   * Returns the elements that have an attribute with the given expanded name and string value.
+   * This lets predicates such as <code>[@name = 'q']</code> be answered without testing every
+   * candidate element. Implementations that do not keep an index of attribute values return null,
+   * in which case the caller has to test the elements itself.
+   *
+   * @param namespace The namespace URI of the attribute, null for none.
+   * @param localName The local name of the attribute.
+   * @param value The string value of the attribute.
+   * @return The handles of the matching elements in document order, possibly empty, or null if
+   *     there is no index.
+   */
+  default int[] getElementsByAttributeValue(
+      final String namespace, final String localName, final String value) {
+    return null;
+  }
+
+  /**
+   * Returns the elements that have an attribute with the given expanded name, whose value contains
+   * the given token among its whitespace separated tokens, like the <code>class</code> attribute
+   * of HTML does. Implementations that do not keep an index of attribute values return null.
+   *
+   * @param namespace The namespace URI of the attribute, null for none.
+   * @param localName The local name of the attribute.
+   * @param token The token, without whitespace.
+   * @return The handles of the matching elements in document order, possibly empty, or null if
+   *     there is no index.
+   */
+  default int[] getElementsByAttributeToken(
+      final String namespace, final String localName, final String token) {
+    return null;
+  }
+
+  /**
+   * Returns the elements whose string-value contains the given string. This lets predicates such
+   * as <code>[contains(., 'Price')]</code> be answered without building the string-value of every
+   * candidate element. Implementations that do not keep an index of their text return null.
+   *
+   * @param s The string to look for.
+   * @return The handles of the matching elements in document order, possibly empty, or null if
+   *     there is no index.
+   */
+  default int[] getElementsContainingText(final String s) {
+    return null;
+  }
+
+  /**
+   * @return true if containsText() answers from an index of the text rather than from the
+   *     string-value of the node.
+   */
+  default boolean hasTextIndex() {
+    return false;
+  }
+
+  /**
+   * Tell if the string-value of a node contains a string. Implementations that keep an index of
+   * their text may answer without building the string-value.
+   *
+   * @param nodeHandle The node handle.
+   * @param s The string to look for.
+   * @return true if the string-value of the node contains the string.
+   */
+  default boolean containsText(final int nodeHandle, final String s) {
+    return getStringValue(nodeHandle).toString().contains(s);
+  }
+
   // ============== Boolean methods ================
 
   /**
@@ -400,6 +466,24 @@ public interface DTM {
    */
   boolean isNodeAfter(int firstNodeHandle, int secondNodeHandle);
 
+  /**
+   * Tell if a node is a descendant of another node, that is if the other node is one of its
+   * ancestors. Implementations that know the extent of each subtree answer without walking up the
+   * ancestors of the node.
+   *
+   * @param ancestorHandle The handle of the possible ancestor.
+   * @param nodeHandle The handle of the node in question.
+   * @return true if the node is a descendant of the other node.
+   */
+  default boolean isDescendant(final int ancestorHandle, final int nodeHandle) {
+    for (int parent = getParent(nodeHandle); NULL != parent; parent = getParent(parent)) {
+      if (parent == ancestorHandle) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /**
    * Return an DOM node for the given node.
    *
@@ -95,6 +95,15 @@ public abstract class DTMManager {
    */
   public abstract DTM getDTM(int nodeHandle);
 
+  /**
+   * Release a DTM, so that its DTM identifiers can be reused and its memory reclaimed. The handles
+   * of its nodes must not be used afterwards, they may resolve to nodes of another DTM.
+   *
+   * @param dtm the DTM to be released.
+   * @return true if the DTM was managed by this manager and has been released.
+   */
+  public abstract boolean release(DTM dtm);
+
   /**
    * Given a W3C DOM node, try and return a DTM handle. Note: calling this may be non-optimal.
    *
@@ -103,6 +112,19 @@ public abstract class DTMManager {
    */
   public abstract int getDTMHandleFromNode(org.w3c.dom.Node node);
 
+  /**
+   * Given a W3C DOM node, return a DTM handle for it from a DTM that covers at least the subtree
+   * rooted at that node. The DTM need not contain the node's ancestors, siblings or inherited
+   * namespace declarations, so the handle must only be used with expressions that never leave the
+   * subtree. The default implementation simply calls {@link #getDTMHandleFromNode(org.w3c.dom.Node)}.
+   *
+   * @param node Non-null reference to a DOM node.
+   * @return a valid DTM handle.
+   */
+  public int getDTMHandleFromSubtree(final org.w3c.dom.Node node) {
+    return getDTMHandleFromNode(node);
+  }
+
   // -------------------- private methods --------------------
 
   static {
@@ -0,0 +1,43 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath.xml.dtm;
+
+/**
+ * This interface is meant to be implemented by a client of the DTM, and allows stripping of
+ * whitespace nodes while the DTM is built. Whitespace-only text nodes that are stripped never get
+ * a DTM record and are therefore invisible to XPath, in the spirit of <code>xsl:strip-space</code>.
+ */
+public interface DTMWSFilter {
+  /** Do not strip whitespace child nodes of this element. */
+  short NOTSTRIP = 1;
+
+  /** Strip whitespace child nodes of this element. */
+  short STRIP = 2;
+
+  /** Inherit whitespace stripping behavior of the parent node. */
+  short INHERIT = 3;
+
+  /**
+   * Test whether whitespace-only text nodes are visible in the logical view of the source tree.
+   *
+   * @param elementHandle int Handle of the element.
+   * @param dtm the DTM the element belongs to; it may still be under construction.
+   * @return one of NOTSTRIP, STRIP, or INHERIT.
+   */
+  short getShouldStripSpace(int elementHandle, DTM dtm);
+}
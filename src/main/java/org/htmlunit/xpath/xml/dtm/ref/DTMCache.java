@@ -0,0 +1,255 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath.xml.dtm.ref;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import org.htmlunit.xpath.xml.dtm.DTMManager;
+import org.w3c.dom.Document;
+
+/**
+ * Keeps the DTMManager (and therefore the DTMs built by it) of a document around between
+ * evaluations, so that repeated queries against an unchanged document do not rebuild the DTM and
+ * its element index every time.
+ *
+ * <p>The cache holds the managers of at most {@link #getMaxSize()} documents and drops the least
+ * recently used one beyond that. A DTM references the DOM it wraps, so a cached document stays
+ * reachable until its entry is dropped, invalidated or cleared.
+ *
+ * <p>Every lookup carries a version stamp supplied by the caller. A stamp that differs from the
+ * cached one is treated like a DOM mutation and causes the DTMs to be rebuilt. Callers that do not
+ * track versions can use {@link #invalidate(Document)} instead.
+ *
+ * <p>The DTMs are built incrementally and are not thread safe, so a manager is lent to one caller
+ * at a time: {@link #acquire(Document, long)} takes it out of the cache and {@link #release(Lease)}
+ * puts it back once the caller no longer uses its DTMs. A caller that finds the manager of its
+ * document lent out gets a new one.
+ */
+public class DTMCache {
+
+  /** The default maximum number of cached documents. */
+  public static final int DEFAULT_MAX_SIZE = 16;
+
+  /** A manager lent out by {@link #acquire(Document, long)}. */
+  public static final class Lease {
+    private final Document m_doc;
+    private final long m_version;
+    private final long m_invalidations;
+    private final DTMManager m_manager;
+
+    Lease(
+        final Document doc,
+        final long version,
+        final long invalidations,
+        final DTMManager manager) {
+      m_doc = doc;
+      m_version = version;
+      m_invalidations = invalidations;
+      m_manager = manager;
+    }
+
+    /** @return the lent manager. */
+    public DTMManager getDTMManager() {
+      return m_manager;
+    }
+  }
+
+  /** The cached state of one document. */
+  private static final class Entry {
+    private final long m_version;
+    private DTMManager m_manager;
+
+    Entry(final long version, final DTMManager manager) {
+      m_version = version;
+      m_manager = manager;
+    }
+  }
+
+  /** Guards the entries and the counters. */
+  private final ReentrantLock m_lock = new ReentrantLock();
+
+  /** The cached managers, least recently used first; null while a manager is lent out. */
+  private final Map<Document, Entry> m_entries =
+      new LinkedHashMap<Document, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Document, Entry> eldest) {
+          return size() > m_maxSize;
+        }
+      };
+
+  /** The maximum number of cached documents. */
+  private int m_maxSize = DEFAULT_MAX_SIZE;
+
+  /**
+   * The number of calls to invalidate() and clear(); managers lent out before one of them may be
+   * stale and are not taken back.
+   */
+  private long m_invalidations;
+
+  /** The number of lookups answered from the cache. */
+  private long m_hits;
+
+  /** The number of lookups that had to create a new manager. */
+  private long m_misses;
+
+  /**
+   * Take the DTMManager for the given document out of the cache, creating a new one if there is
+   * none, it was built for a different version of the document, or it is lent out. The caller
+   * owns the manager until it hands it back by {@link #release(Lease)}; a caller that keeps using
+   * the DTMs, e.g. through a node-set result, does not release it.
+   *
+   * @param doc the document the DTMs are going to be built for.
+   * @param version the caller's version stamp for the current state of the document.
+   * @return the lent manager, never null.
+   */
+  public Lease acquire(final Document doc, final long version) {
+    m_lock.lock();
+    try {
+      final Entry entry = m_entries.get(doc);
+      if (null != entry && entry.m_version == version && null != entry.m_manager) {
+        final DTMManager mgr = entry.m_manager;
+        entry.m_manager = null;
+        m_hits++;
+        return new Lease(doc, version, m_invalidations, mgr);
+      }
+      m_misses++;
+      return new Lease(doc, version, m_invalidations, DTMManager.newInstance());
+    }
+    finally {
+      m_lock.unlock();
+    }
+  }
+
+  /**
+   * Hand a manager obtained by {@link #acquire(Document, long)} back to the cache. It is kept
+   * unless the cache already holds another manager for the same version of the document, or the
+   * cache has been invalidated since it was lent out.
+   *
+   * @param lease the lease returned by acquire(), whose manager is no longer used by the caller.
+   */
+  public void release(final Lease lease) {
+    m_lock.lock();
+    try {
+      if (lease.m_invalidations != m_invalidations) {
+        return;
+      }
+      final Entry entry = m_entries.get(lease.m_doc);
+      if (null == entry || entry.m_version != lease.m_version) {
+        m_entries.put(lease.m_doc, new Entry(lease.m_version, lease.m_manager));
+      }
+      else if (null == entry.m_manager) {
+        entry.m_manager = lease.m_manager;
+      }
+    }
+    finally {
+      m_lock.unlock();
+    }
+  }
+
+  /**
+   * Drop the cached DTMs of the given document; the next lookup will rebuild them.
+   *
+   * @param doc the document that has changed.
+   */
+  public void invalidate(final Document doc) {
+    m_lock.lock();
+    try {
+      m_entries.remove(doc);
+      m_invalidations++;
+    }
+    finally {
+      m_lock.unlock();
+    }
+  }
+
+  /** Drop all cached DTMs. The hit and miss counters are not reset. */
+  public void clear() {
+    m_lock.lock();
+    try {
+      m_entries.clear();
+      m_invalidations++;
+    }
+    finally {
+      m_lock.unlock();
+    }
+  }
+
+  /** @return the maximum number of cached documents. */
+  public int getMaxSize() {
+    m_lock.lock();
+    try {
+      return m_maxSize;
+    }
+    finally {
+      m_lock.unlock();
+    }
+  }
+
+  /**
+   * Set the maximum number of cached documents. The least recently used documents beyond it are
+   * dropped.
+   *
+   * @param maxSize the maximum number of cached documents, at least 1.
+   */
+  public void setMaxSize(final int maxSize) {
+    m_lock.lock();
+    try {
+      m_maxSize = Math.max(1, maxSize);
+      while (m_entries.size() > m_maxSize) {
+        m_entries.remove(m_entries.keySet().iterator().next());
+      }
+    }
+    finally {
+      m_lock.unlock();
+    }
+  }
+
+  /** @return the number of documents currently cached. */
+  public int size() {
+    m_lock.lock();
+    try {
+      return m_entries.size();
+    }
+    finally {
+      m_lock.unlock();
+    }
+  }
+
+  /** @return the number of lookups answered from the cache. */
+  public long getHitCount() {
+    m_lock.lock();
+    try {
+      return m_hits;
+    }
+    finally {
+      m_lock.unlock();
+    }
+  }
+
+  /** @return the number of lookups that had to build new DTMs. */
+  public long getMissCount() {
+    m_lock.lock();
+    try {
+      return m_misses;
+    }
+    finally {
+      m_lock.unlock();
+    }
+  }
+}
@@ -24,7 +24,12 @@ import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
 
 import javax.xml.transform.Source;
 
@@ -34,6 +39,7 @@ import org.htmlunit.xpath.res.XPATHMessages;
 import org.htmlunit.xpath.xml.dtm.DTM;
 import org.htmlunit.xpath.xml.dtm.DTMAxisTraverser;
 import org.htmlunit.xpath.xml.dtm.DTMManager;
+import org.htmlunit.xpath.xml.utils.InterleavedIntTable;
 import org.htmlunit.xpath.xml.utils.SuballocatedIntVector;
 
 /**
@@ -67,6 +73,16 @@ public abstract class DTMDefaultBase implements DTM {
   /** Previous sibling values, one array element for each node. */
   protected final SuballocatedIntVector m_parent;
 
+  /** Tree depth values, one array element for each node. The root has depth 0. */
+  protected final SuballocatedIntVector m_level;
+
+  /**
+   * The identity of the last record of each node's subtree, or NOTPROCESSED while the subtree is
+   * still being built. Since identities are assigned in document order, this turns descendant tests
+   * into a range check; see isInSubtreeRange().
+   */
+  protected final SuballocatedIntVector m_subtreeEnd;
+
   /** Vector of SuballocatedIntVectors of NS decl sets */
   protected List<SuballocatedIntVector> m_namespaceDeclSets = null;
 
@@ -125,6 +141,40 @@ public abstract class DTMDefaultBase implements DTM {
   /** true if indexing is turned on. */
   protected final boolean m_indexing;
 
+  /**
+   * true if getElementsByAttributeValue() answers from an index, see {@link
+   * DTMManagerDefault#setAttributeValueIndexing(boolean)}.
+   */
+  protected final boolean m_indexAttributeValues;
+
+  /**
+   * The attribute value indexes, keyed by the expanded type ID of the attribute. Each one maps the
+   * attribute values to the handles of the elements having them, in document order. An index is
+   * built when its attribute is first asked for, and all are dropped when records are discarded.
+   */
+  private Map<Integer, Map<String, int[]>> m_attributeValueIndexes;
+
+  /**
+   * The attribute token indexes, like m_attributeValueIndexes but keyed by the whitespace
+   * separated tokens of the values, as used by the <code>class</code> attribute of HTML.
+   */
+  private Map<Integer, Map<String, int[]>> m_attributeTokenIndexes;
+
+  /**
+   * true if containsText() answers from an index, see {@link
+   * DTMManagerDefault#setTextIndexing(boolean)}.
+   */
+  protected final boolean m_indexText;
+
+  /** The trigram index of the text, built when containsText() is first called. */
+  private DTMTextIndex m_textIndex;
+
+  /** The position in the text of m_textIndex at which each node identity starts. */
+  private int[] m_textOffsets;
+
+  /** The number of node identities m_textOffsets holds. */
+  private int m_textOffsetCount;
+
   /**
    * Construct a DTMDefaultBase object using the default block size.
    *
@@ -167,28 +217,50 @@ public abstract class DTMDefaultBase implements DTM {
       m_dtmIdent = new SuballocatedIntVector(32);
     }
 
-    m_exptype = new SuballocatedIntVector(blocksize, numblocks);
-    m_firstch = new SuballocatedIntVector(blocksize, numblocks);
-    m_nextsib = new SuballocatedIntVector(blocksize, numblocks);
-    m_parent = new SuballocatedIntVector(blocksize, numblocks);
-
-    // Only create the m_prevsib array if the usePrevsib flag is true.
-    // Some DTM implementations (e.g. SAXImpl) do not need this array.
-    // We can save the time to build it in those cases.
-    if (usePrevsib) {
-      m_prevsib = new SuballocatedIntVector(blocksize, numblocks);
-    }
-
     m_mgr = mgr;
     if (mgr instanceof DTMManagerDefault) {
       m_mgrDefault = (DTMManagerDefault) mgr;
     }
 
+    if (null != m_mgrDefault && m_mgrDefault.getInterleavedRecords()) {
+      // One record per node; the columns are views of its fields.
+      final InterleavedIntTable records = new InterleavedIntTable(7, blocksize, numblocks);
+      m_exptype = records.getColumn(0);
+      m_firstch = records.getColumn(1);
+      m_nextsib = records.getColumn(2);
+      m_parent = records.getColumn(3);
+      m_level = records.getColumn(4);
+      m_subtreeEnd = records.getColumn(5);
+      if (usePrevsib) {
+        m_prevsib = records.getColumn(6);
+      }
+    }
+    else {
+      m_exptype = new SuballocatedIntVector(blocksize, numblocks);
+      m_firstch = new SuballocatedIntVector(blocksize, numblocks);
+      m_nextsib = new SuballocatedIntVector(blocksize, numblocks);
+      m_parent = new SuballocatedIntVector(blocksize, numblocks);
+      m_level = new SuballocatedIntVector(blocksize, numblocks);
+      m_subtreeEnd = new SuballocatedIntVector(blocksize, numblocks);
+
+      // Only create the m_prevsib array if the usePrevsib flag is true.
+      // Some DTM implementations (e.g. SAXImpl) do not need this array.
+      // We can save the time to build it in those cases.
+      if (usePrevsib) {
+        m_prevsib = new SuballocatedIntVector(blocksize, numblocks);
+      }
+    }
+
     m_documentBaseURI = (null != source) ? source.getSystemId() : null;
     m_dtmIdent.setElementAt(dtmIdentity, 0);
     m_indexing = doIndexing;
+    m_indexAttributeValues = null != m_mgrDefault && m_mgrDefault.getAttributeValueIndexing();
+    m_indexText = null != m_mgrDefault && m_mgrDefault.getTextIndexing();
 
-    if (doIndexing) {
+    if (null != m_mgrDefault && m_mgrDefault.getSharedNameTable()) {
+      m_expandedNameTable = ExpandedNameTable.getSharedInstance();
+    }
+    else if (doIndexing) {
       m_expandedNameTable = new ExpandedNameTable();
     }
     else {
@@ -198,6 +270,44 @@ public abstract class DTMDefaultBase implements DTM {
     }
   }
 
+  /**
+   * Construct a DTMDefaultBase object around node arrays that have already been filled, e.g.
+   * read-only views of a stored DTM. The derived class sets m_size and fills the expanded name
+   * table, which is always a table of its own; indexing is turned on.
+   *
+   * @param mgr The DTMManager who owns this DTM.
+   * @param source The object that is used to specify the construction source, may be null.
+   * @param dtmIdentity The DTM identity ID for this DTM.
+   * @param columns The exptype, firstch, nextsib, parent, level, subtreeEnd and prevsib arrays, in
+   *     that order.
+   */
+  protected DTMDefaultBase(
+      final DTMManager mgr,
+      final Source source,
+      final int dtmIdentity,
+      final SuballocatedIntVector[] columns) {
+    m_mgr = mgr;
+    if (mgr instanceof DTMManagerDefault) {
+      m_mgrDefault = (DTMManagerDefault) mgr;
+    }
+
+    m_exptype = columns[0];
+    m_firstch = columns[1];
+    m_nextsib = columns[2];
+    m_parent = columns[3];
+    m_level = columns[4];
+    m_subtreeEnd = columns[5];
+    m_prevsib = columns[6];
+
+    m_dtmIdent = new SuballocatedIntVector(32);
+    m_documentBaseURI = (null != source) ? source.getSystemId() : null;
+    m_dtmIdent.setElementAt(dtmIdentity, 0);
+    m_indexing = true;
+    m_indexAttributeValues = null != m_mgrDefault && m_mgrDefault.getAttributeValueIndexing();
+    m_indexText = null != m_mgrDefault && m_mgrDefault.getTextIndexing();
+    m_expandedNameTable = new ExpandedNameTable();
+  }
+
   /**
    * Ensure that the size of the element indexes can hold the information.
    *
@@ -330,7 +440,10 @@ public abstract class DTMDefaultBase implements DTM {
         final int[] elems = lnIndexs[lnIndex];
 
         if (null != elems) {
-          final int pos = findGTE(elems, 1, elems[0], firstPotential);
+          // elems[0] is the first free slot, so there are elems[0] - 1 elements. Searching
+          // elems[0] slots used to be harmless, the free slot held 0, but truncateIndexes()
+          // leaves the identities of discarded elements behind in the free slots.
+          final int pos = findGTE(elems, 1, elems[0] - 1, firstPotential);
 
           if (pos > -1) {
             return elems[pos];
@@ -342,6 +455,309 @@ public abstract class DTMDefaultBase implements DTM {
     return NOTPROCESSED;
   }
 
+  /**
+   * Remove all nodes at or after the given identity from the element indexes and the namespace
+   * declaration tables. Used by DTMs that discard the tail of their records in order to rebuild it.
+   *
+   * @param identity The first node identity to forget.
+   */
+  protected void truncateIndexes(final int identity) {
+    if (null != m_elemIndexes) {
+      for (final int[][] lnIndexes : m_elemIndexes) {
+        if (null != lnIndexes) {
+          for (final int[] elems : lnIndexes) {
+            if (null != elems) {
+              final int pos = findGTE(elems, 1, elems[0] - 1, identity);
+              if (pos > -1) {
+                elems[0] = pos;
+              }
+            }
+          }
+        }
+      }
+    }
+
+    if (null != m_namespaceDeclSetElements) {
+      int size = m_namespaceDeclSetElements.size();
+      while (size > 0 && m_namespaceDeclSetElements.elementAt(size - 1) >= identity) {
+        size--;
+        m_namespaceDeclSets.remove(size);
+      }
+      m_namespaceDeclSetElements.setSize(size);
+    }
+
+    discardAttributeValueIndexes();
+    discardTextIndex();
+  }
+
+  /**
+   * Drop the text index, e.g. because text has been changed; it is rebuilt when it is asked for
+   * again.
+   */
+  protected void discardTextIndex() {
+    m_textIndex = null;
+    m_textOffsets = null;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean hasTextIndex() {
+    return m_indexText;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean containsText(final int nodeHandle, final String s) {
+    final int identity = makeNodeIdentity(nodeHandle);
+    final int type = (DTM.NULL == identity) ? DTM.NULL : _type(identity);
+    if (!m_indexText
+        || (DTM.ELEMENT_NODE != type
+            && DTM.DOCUMENT_NODE != type
+            && DTM.DOCUMENT_FRAGMENT_NODE != type
+            && DTM.TEXT_NODE != type
+            && DTM.CDATA_SECTION_NODE != type)) {
+      return getStringValue(nodeHandle).toString().contains(s);
+    }
+
+    if (null == m_textIndex) {
+      buildTextIndex();
+    }
+    return m_textIndex.contains(m_textOffsets[identity], getTextEnd(identity), s);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int[] getElementsContainingText(final String s) {
+    // every element contains the empty string, the index does not narrow them down
+    if (!m_indexText || s.isEmpty()) {
+      return null;
+    }
+
+    if (null == m_textIndex) {
+      buildTextIndex();
+    }
+
+    final BitSet containing = new BitSet();
+    for (final int start : m_textIndex.indexOf(s)) {
+      final int end = start + s.length();
+
+      // The text record the occurrence starts in is the last record starting
+      // no later; the records after it start where its text ends.
+      int low = 0;
+      int high = m_textOffsetCount - 1;
+      while (low < high) {
+        final int mid = (low + high + 1) >>> 1;
+        if (m_textOffsets[mid] <= start) {
+          low = mid;
+        }
+        else {
+          high = mid - 1;
+        }
+      }
+
+      // The text of an ancestor ends no earlier than the text of its
+      // descendants, so once a record contains the occurrence, all of its
+      // ancestors do. A record without a next sibling ends with its parent.
+      int first = low;
+      for (int id = low; DTM.NULL != id && !containing.get(id); id = _parent(id)) {
+        final int next = _nextsib(id);
+        if (DTM.NULL != next) {
+          if (m_textOffsets[next] >= end) {
+            break;
+          }
+          first = _parent(id);
+        }
+      }
+      for (int id = first; DTM.NULL != id && !containing.get(id); id = _parent(id)) {
+        containing.set(id);
+      }
+    }
+
+    final int[] handles = new int[containing.cardinality()];
+    int count = 0;
+    for (int id = containing.nextSetBit(0); id >= 0; id = containing.nextSetBit(id + 1)) {
+      if (DTM.ELEMENT_NODE == _type(id)) {
+        handles[count++] = makeNodeHandle(id);
+      }
+    }
+    return Arrays.copyOf(handles, count);
+  }
+
+  /**
+   * @param identity The identity of a record, which m_textOffsets holds.
+   * @return The position in the text of m_textIndex at which the text of the record ends, that is
+   *     where the text of the next record that is not a descendant starts.
+   */
+  private int getTextEnd(final int identity) {
+    for (int id = identity; DTM.NULL != id; id = _parent(id)) {
+      final int next = _nextsib(id);
+      if (DTM.NULL != next) {
+        return m_textOffsets[next];
+      }
+    }
+    return m_textIndex.length();
+  }
+
+  /** Build the text index, completing the DTM if it is built incrementally. */
+  private void buildTextIndex() {
+    final StringBuilder text = new StringBuilder();
+    int[] offsets = new int[Math.max(16, m_size)];
+    int count = 0;
+    for (int identity = 0; DTM.NULL != identity; identity = getNextNodeIdentity(identity)) {
+      count = identity + 1;
+      if (offsets.length <= identity) {
+        offsets = Arrays.copyOf(offsets, Math.max(2 * offsets.length, identity + 1));
+      }
+      offsets[identity] = text.length();
+
+      final int type = _type(identity);
+      if (DTM.TEXT_NODE == type || DTM.CDATA_SECTION_NODE == type) {
+        text.append(getStringValue(makeNodeHandle(identity)).toString());
+      }
+    }
+
+    m_textOffsets = offsets;
+    m_textOffsetCount = count;
+    m_textIndex = new DTMTextIndex(text.toString());
+  }
+
+  /**
+   * Drop the attribute value indexes, e.g. because attributes have been changed; they are rebuilt
+   * when they are asked for again.
+   */
+  protected void discardAttributeValueIndexes() {
+    m_attributeValueIndexes = null;
+    m_attributeTokenIndexes = null;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int[] getElementsByAttributeValue(
+      final String namespace, final String localName, final String value) {
+    if (!m_indexAttributeValues) {
+      return null;
+    }
+
+    if (null == m_attributeValueIndexes) {
+      m_attributeValueIndexes = new HashMap<>();
+    }
+    return getIndexedElements(m_attributeValueIndexes, namespace, localName, value, false);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int[] getElementsByAttributeToken(
+      final String namespace, final String localName, final String token) {
+    if (!m_indexAttributeValues) {
+      return null;
+    }
+
+    if (null == m_attributeTokenIndexes) {
+      m_attributeTokenIndexes = new HashMap<>();
+    }
+    return getIndexedElements(m_attributeTokenIndexes, namespace, localName, token, true);
+  }
+
+  /**
+   * Look the elements up in one of the indexes of an attribute, building it first if need be.
+   *
+   * @param indexes The indexes, keyed by the expanded type ID of the attribute.
+   * @param namespace The namespace URI of the attribute, null for none.
+   * @param localName The local name of the attribute.
+   * @param key The value, or the token, to look up.
+   * @param tokens true if the index is keyed by the whitespace separated tokens of the values.
+   * @return the handles of the matching elements in document order, possibly empty.
+   */
+  private int[] getIndexedElements(
+      final Map<Integer, Map<String, int[]>> indexes,
+      final String namespace,
+      final String localName,
+      final String key,
+      final boolean tokens) {
+    final Integer attributeType = getExpandedTypeID(namespace, localName, DTM.ATTRIBUTE_NODE);
+    Map<String, int[]> index = indexes.get(attributeType);
+    if (null == index) {
+      index = buildAttributeValueIndex(attributeType, tokens);
+      indexes.put(attributeType, index);
+    }
+
+    final int[] elements = index.get(key);
+    return (null == elements) ? new int[0] : elements;
+  }
+
+  /**
+   * Build the index of the values of an attribute, completing the DTM if it is built incrementally.
+   *
+   * @param attributeType The expanded type ID of the attribute.
+   * @param tokens true to index the whitespace separated tokens of the values, false to index the
+   *     values.
+   * @return the handles of the elements having the attribute, by value or token, in document order.
+   */
+  private Map<String, int[]> buildAttributeValueIndex(
+      final int attributeType, final boolean tokens) {
+    // Like m_elemIndexes, each array holds the first free element at the start.
+    final Map<String, int[]> index = new HashMap<>();
+    for (int identity = 0; DTM.NULL != identity; identity = getNextNodeIdentity(identity)) {
+      if (DTM.ELEMENT_NODE != _type(identity)) {
+        continue;
+      }
+
+      // Attributes are matched by their expanded type, like the axes do; getAttributeNode()
+      // misses those of DOM level 1 nodes, which have no local name.
+      final int element = makeNodeHandle(identity);
+      int attr = getFirstAttribute(element);
+      while (DTM.NULL != attr && attributeType != getExpandedTypeID(attr)) {
+        attr = getNextAttribute(attr);
+      }
+      if (DTM.NULL == attr) {
+        continue;
+      }
+
+      final String value = getStringValue(attr).toString();
+      if (tokens) {
+        final StringTokenizer tokenizer = new StringTokenizer(value, " \t\n\r");
+        while (tokenizer.hasMoreTokens()) {
+          addIndexedElement(index, tokenizer.nextToken(), element);
+        }
+      }
+      else {
+        addIndexedElement(index, value, element);
+      }
+    }
+
+    for (final Map.Entry<String, int[]> entry : index.entrySet()) {
+      final int[] elements = entry.getValue();
+      entry.setValue(Arrays.copyOfRange(elements, 1, elements[0]));
+    }
+    return index;
+  }
+
+  /**
+   * Append an element to the elements of a key of an index under construction, unless it is the
+   * last one already because a token repeats within a value.
+   *
+   * @param index The index.
+   * @param key The value or token.
+   * @param element The handle of the element.
+   */
+  private static void addIndexedElement(
+      final Map<String, int[]> index, final String key, final int element) {
+    int[] elements = index.get(key);
+    if (null == elements) {
+      elements = new int[4];
+      elements[0] = 1;
+      index.put(key, elements);
+    }
+    else if (element == elements[elements[0] - 1]) {
+      return;
+    }
+    else if (elements.length == elements[0]) {
+      elements = Arrays.copyOf(elements, 2 * elements.length);
+      index.put(key, elements);
+    }
+    elements[elements[0]++] = element;
+  }
+
   /**
    * Get the next node identity value in the list, and call the iterator if it hasn't been added
    * yet.
@@ -404,7 +820,7 @@ public abstract class DTMDefaultBase implements DTM {
    * @param identity The node identity.
    * @return The tree level, or DTM.NULL.
    */
-  protected int _level(int identity) {
+  protected int _level(final int identity) {
     while (identity >= m_size) {
       final boolean isMore = nextNode();
       if (!isMore && identity >= m_size) {
@@ -412,11 +828,45 @@ public abstract class DTMDefaultBase implements DTM {
       }
     }
 
-    int i = 0;
-    while (NULL != (identity = _parent(identity))) {
-      ++i;
+    return m_level.elementAt(identity);
+  }
+
+  /**
+   * Tell if a node identity lies within the identity range of a subtree, that is the root of the
+   * subtree itself or any record up to the end of the subtree. Every record in that range belongs
+   * to the subtree, except for attribute records, which a DTM may append out of line (see
+   * DOM2DTM). A subtree that is still being built extends to the last record built so far.
+   *
+   * @param rootIdentity The identity of the root of the subtree.
+   * @param identity The identity in question, which must have been built already.
+   * @return true if the identity is in the range of the subtree.
+   */
+  protected boolean isInSubtreeRange(final int rootIdentity, final int identity) {
+    if (identity < rootIdentity || identity >= m_size) {
+      return false;
     }
-    return i;
+    final int end = m_subtreeEnd.elementAt(rootIdentity);
+    return NOTPROCESSED == end || identity <= end;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean isDescendant(final int ancestorHandle, final int nodeHandle) {
+    final int ancestor = makeNodeIdentity(ancestorHandle);
+    int identity = makeNodeIdentity(nodeHandle);
+    if (DTM.NULL == ancestor || DTM.NULL == identity) {
+      return false;
+    }
+
+    // attribute and namespace records may be out of line, test their element instead
+    final int type = _type(identity);
+    if (DTM.ATTRIBUTE_NODE == type || DTM.NAMESPACE_NODE == type) {
+      identity = _parent(identity);
+      if (ancestor == identity) {
+        return true;
+      }
+    }
+    return ancestor != identity && isInSubtreeRange(ancestor, identity);
   }
 
   /**
@@ -814,7 +1264,9 @@ public abstract class DTMDefaultBase implements DTM {
       // someone is apparently asking DTMs whether they contain nodes
       // which really don't belong to them. That's probably a bug
       // which should be fixed, but until it is:
-      if (m_mgrDefault.m_dtms[whichDTMindex] != this) {
+      // Read the table once; m_dtm_offsets is published before it.
+      final DTM[] dtms = m_mgrDefault.m_dtms;
+      if (whichDTMindex >= dtms.length || dtms[whichDTMindex] != this) {
         return NULL;
       }
       return m_mgrDefault.m_dtm_offsets[whichDTMindex]
@@ -1345,6 +1797,24 @@ public abstract class DTMDefaultBase implements DTM {
     return new DTMNodeProxy(this, nodeHandle);
   }
 
+  /** @return the table of the expanded names used by this DTM. */
+  public ExpandedNameTable getExpandedNameTable() {
+    return m_expandedNameTable;
+  }
+
+  /** @return the number of node records built so far. */
+  public int getNumberOfNodes() {
+    return m_size;
+  }
+
+  /**
+   * Called by the manager once this DTM has been released. The handles of its nodes are no longer
+   * valid afterwards, so subclasses may drop whatever they keep besides the node tables, e.g. the
+   * source nodes they refer to.
+   */
+  public void documentRelease() {
+  }
+
   /**
    * Query which DTMManager this DTM is currently being handled by.
    *
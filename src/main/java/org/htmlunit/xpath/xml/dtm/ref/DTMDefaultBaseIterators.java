@@ -26,6 +26,7 @@ import org.htmlunit.xpath.xml.dtm.DTM;
 import org.htmlunit.xpath.xml.dtm.DTMAxisIterator;
 import org.htmlunit.xpath.xml.dtm.DTMAxisTraverser;
 import org.htmlunit.xpath.xml.dtm.DTMManager;
+import org.htmlunit.xpath.xml.utils.SuballocatedIntVector;
 
 /** This class implements the traversers for DTMDefaultBase. */
 public abstract class DTMDefaultBaseIterators extends DTMDefaultBaseTraversers {
@@ -43,6 +44,43 @@ public abstract class DTMDefaultBaseIterators extends DTMDefaultBaseTraversers {
     super(mgr, source, dtmIdentity, doIndexing);
   }
 
+  /**
+   * Construct a DTMDefaultBaseIterators object using the given block size.
+   *
+   * @param mgr The DTMManager who owns this DTM.
+   * @param source The object that is used to specify the construction source.
+   * @param dtmIdentity The DTM identity ID for this DTM.
+   * @param doIndexing true if the caller considers it worth it to use indexing schemes.
+   * @param blocksize The block size of the DTM.
+   * @param usePrevsib true if we want to build the previous sibling node array.
+   */
+  public DTMDefaultBaseIterators(
+      final DTMManager mgr,
+      final Source source,
+      final int dtmIdentity,
+      final boolean doIndexing,
+      final int blocksize,
+      final boolean usePrevsib) {
+    super(mgr, source, dtmIdentity, doIndexing, blocksize, usePrevsib);
+  }
+
+  /**
+   * Construct a DTMDefaultBaseIterators object around node arrays that have already been filled.
+   *
+   * @param mgr The DTMManager who owns this DTM.
+   * @param source The object that is used to specify the construction source, may be null.
+   * @param dtmIdentity The DTM identity ID for this DTM.
+   * @param columns The exptype, firstch, nextsib, parent, level, subtreeEnd and prevsib arrays, in
+   *     that order.
+   */
+  protected DTMDefaultBaseIterators(
+      final DTMManager mgr,
+      final Source source,
+      final int dtmIdentity,
+      final SuballocatedIntVector[] columns) {
+    super(mgr, source, dtmIdentity, columns);
+  }
+
   /** {@inheritDoc} */
   @Override
   public DTMAxisIterator getAxisIterator(final int axis) {
@@ -653,19 +691,17 @@ public abstract class DTMDefaultBaseIterators extends DTMDefaultBaseTraversers {
     }
 
     /**
-     * Tell if this node identity is a descendant. Assumes that the node info for the element has
-     * already been obtained.
+     * Tell if this node identity is a descendant (or the start node itself). Assumes that the node
+     * info for the element has already been obtained.
      *
-     * <p>This one-sided test works only if the parent has been previously tested and is known to be
-     * a descendent. It fails if the parent is the _startNode's next sibling, or indeed any node
-     * that follows _startNode in document order. That may suffice for this iterator, but it's not
-     * really an isDescendent() test. %REVIEW% rename?
+     * <p>Attribute records may be appended out of document order and are always accepted; next()
+     * skips them anyway.
      *
      * @param identity The index number of the node in question.
      * @return true if the index is a descendant of _startNode.
      */
     protected boolean isDescendant(final int identity) {
-      return (_parent(identity) >= _startNode) || (_startNode == identity);
+      return ATTRIBUTE_NODE == _type(identity) || isInSubtreeRange(_startNode, identity);
     }
 
     /** {@inheritDoc} */
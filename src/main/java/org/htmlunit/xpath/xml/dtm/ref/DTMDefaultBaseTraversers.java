@@ -24,6 +24,7 @@ import org.htmlunit.xpath.xml.dtm.Axis;
 import org.htmlunit.xpath.xml.dtm.DTM;
 import org.htmlunit.xpath.xml.dtm.DTMAxisTraverser;
 import org.htmlunit.xpath.xml.dtm.DTMManager;
+import org.htmlunit.xpath.xml.utils.SuballocatedIntVector;
 
 /**
  * This class implements the traversers for DTMDefaultBase.
@@ -47,6 +48,43 @@ public abstract class DTMDefaultBaseTraversers extends DTMDefaultBase {
     super(mgr, source, dtmIdentity, doIndexing);
   }
 
+  /**
+   * Construct a DTMDefaultBaseTraversers object using the given block size.
+   *
+   * @param mgr The DTMManager who owns this DTM.
+   * @param source The object that is used to specify the construction source.
+   * @param dtmIdentity The DTM identity ID for this DTM.
+   * @param doIndexing true if the caller considers it worth it to use indexing schemes.
+   * @param blocksize The block size of the DTM.
+   * @param usePrevsib true if we want to build the previous sibling node array.
+   */
+  public DTMDefaultBaseTraversers(
+      final DTMManager mgr,
+      final Source source,
+      final int dtmIdentity,
+      final boolean doIndexing,
+      final int blocksize,
+      final boolean usePrevsib) {
+    super(mgr, source, dtmIdentity, doIndexing, blocksize, usePrevsib);
+  }
+
+  /**
+   * Construct a DTMDefaultBaseTraversers object around node arrays that have already been filled.
+   *
+   * @param mgr The DTMManager who owns this DTM.
+   * @param source The object that is used to specify the construction source, may be null.
+   * @param dtmIdentity The DTM identity ID for this DTM.
+   * @param columns The exptype, firstch, nextsib, parent, level, subtreeEnd and prevsib arrays, in
+   *     that order.
+   */
+  protected DTMDefaultBaseTraversers(
+      final DTMManager mgr,
+      final Source source,
+      final int dtmIdentity,
+      final SuballocatedIntVector[] columns) {
+    super(mgr, source, dtmIdentity, columns);
+  }
+
   /** {@inheritDoc} */
   @Override
   public DTMAxisTraverser getAxisTraverser(final int axis) {
@@ -417,32 +455,21 @@ public abstract class DTMDefaultBaseTraversers extends DTMDefaultBase {
      * Tell if this node identity is a descendant. Assumes that the node info for the element has
      * already been obtained.
      *
-     * <p>%REVIEW% This is really parentFollowsRootInDocumentOrder ... which fails if the parent
-     * starts after the root ends. May be sufficient for this class's logic, but misleadingly named!
+     * <p>Attribute records are always treated as descendants, since a DTM may append them out of
+     * document order (see DOM2DTM); they are skipped by the callers anyway.
      *
      * @param subtreeRootIdentity The root context of the subtree in question.
      * @param identity The index number of the node in question.
      * @return true if the index is a descendant of _startNode.
      */
     protected boolean isDescendant(final int subtreeRootIdentity, final int identity) {
-      return _parent(identity) >= subtreeRootIdentity;
+      return ATTRIBUTE_NODE == _type(identity) || isInSubtreeRange(subtreeRootIdentity, identity);
     }
 
     /** {@inheritDoc} */
     @Override
-    protected boolean isAfterAxis(final int axisRoot, int identity) {
-      // %REVIEW% Is there *any* cheaper way to do this?
-      // Yes. In ID space, compare to axisRoot's successor
-      // (next-sib or ancestor's-next-sib). Probably shallower search.
-      do {
-        if (identity == axisRoot) {
-            return false;
-        }
-        identity = m_parent.elementAt(identity);
-      }
-      while (identity >= axisRoot);
-
-      return true;
+    protected boolean isAfterAxis(final int axisRoot, final int identity) {
+      return !isInSubtreeRange(axisRoot, identity);
     }
 
     /** {@inheritDoc} */
@@ -545,6 +572,11 @@ public abstract class DTMDefaultBaseTraversers extends DTMDefaultBase {
             return NULL;
         }
 
+        // skip attribute records of elements outside of the subtree
+        if (ATTRIBUTE_NODE == _type(current) && _parent(current) < subtreeRootIdent) {
+            continue;
+        }
+
         return makeNodeHandle(current); // make handle.
       }
     }
@@ -563,12 +595,14 @@ public abstract class DTMDefaultBaseTraversers extends DTMDefaultBase {
       final int type = _type(context);
 
       if ((DTM.ATTRIBUTE_NODE == type) || (DTM.NAMESPACE_NODE == type)) {
-        context = _parent(context);
-        first = _firstch(context);
+        // The content of the element follows its attributes.
+        return next(makeNodeHandle(context), makeNodeHandle(_parent(context)));
+      }
 
-        if (NULL != first) {
-            return makeNodeHandle(first);
-        }
+      // Skip the subtree in one go if it has been built completely.
+      final int end = m_subtreeEnd.elementAt(context);
+      if (NOTPROCESSED != end) {
+        return next(makeNodeHandle(context), makeNodeHandle(end));
       }
 
       do {
@@ -592,15 +626,14 @@ public abstract class DTMDefaultBaseTraversers extends DTMDefaultBase {
       final int type = getNodeType(context);
 
       if ((DTM.ATTRIBUTE_NODE == type) || (DTM.NAMESPACE_NODE == type)) {
-        context = getParent(context);
-        first = getFirstChild(context);
+        // The content of the element follows its attributes.
+        return next(context, getParent(context), expandedTypeID);
+      }
 
-        if (NULL != first) {
-          if (getExpandedTypeID(first) == expandedTypeID) {
-              return first;
-          }
-          return next(context, first, expandedTypeID);
-        }
+      // Skip the subtree in one go if it has been built completely.
+      final int end = m_subtreeEnd.elementAt(makeNodeIdentity(context));
+      if (NOTPROCESSED != end) {
+        return next(context, makeNodeHandle(end), expandedTypeID);
       }
 
       do {
@@ -794,6 +827,17 @@ public abstract class DTMDefaultBaseTraversers extends DTMDefaultBase {
     }
   }
 
+  /**
+   * Attribute records are not necessarily stored right behind their element (see DOM2DTM), so a
+   * scan in reverse document order that starts at an attribute has to start at its element instead.
+   *
+   * @param context the handle of the context node.
+   * @return the handle of the node the scan starts from.
+   */
+  int getReverseScanStart(final int context) {
+    return (ATTRIBUTE_NODE == getNodeType(context)) ? getParent(context) : context;
+  }
+
   /** Implements traversal of the Ancestor access, in reverse document order. */
   private class PrecedingTraverser extends DTMAxisTraverser {
 
@@ -807,17 +851,27 @@ public abstract class DTMDefaultBaseTraversers extends DTMDefaultBase {
      * @return true if the currentIdent node is an ancestor of contextIdent.
      */
     protected boolean isAncestor(int contextIdent, final int currentIdent) {
-      // %REVIEW% See comments in IsAfterAxis; using the "successor" of
-      // contextIdent is probably more efficient.
-      for (contextIdent = m_parent.elementAt(contextIdent);
-          DTM.NULL != contextIdent;
-          contextIdent = m_parent.elementAt(contextIdent)) {
+      if (ATTRIBUTE_NODE == _type(contextIdent)) {
+        // attribute records may be stored out of line, so start from the element
+        contextIdent = m_parent.elementAt(contextIdent);
         if (contextIdent == currentIdent) {
-            return true;
+          return true;
         }
       }
 
-      return false;
+      return currentIdent < contextIdent && isInSubtreeRange(currentIdent, contextIdent);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int first(final int context) {
+      return next(context, getReverseScanStart(context));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int first(final int context, final int expandedTypeID) {
+      return next(context, getReverseScanStart(context), expandedTypeID);
     }
 
     /** {@inheritDoc} */
@@ -864,6 +918,23 @@ public abstract class DTMDefaultBaseTraversers extends DTMDefaultBase {
   /** Implements traversal of the Ancestor and the Preceding axis, in reverse document order. */
   private class PrecedingAndAncestorTraverser extends DTMAxisTraverser {
 
+    /** {@inheritDoc} */
+    @Override
+    public int first(final int context) {
+      final int start = getReverseScanStart(context);
+      return (start == context) ? next(context, context) : start;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int first(final int context, final int expandedTypeID) {
+      final int start = getReverseScanStart(context);
+      if (start != context && getExpandedTypeID(start) == expandedTypeID) {
+        return start;
+      }
+      return next(context, start, expandedTypeID);
+    }
+
     /** {@inheritDoc} */
     @Override
     public int next(final int context, int current) {
@@ -17,27 +17,43 @@
  */
 package org.htmlunit.xpath.xml.dtm.ref;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.xml.transform.Source;
 import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stax.StAXSource;
+import javax.xml.transform.stream.StreamSource;
 import org.htmlunit.xpath.res.XPATHErrorResources;
 import org.htmlunit.xpath.res.XPATHMessages;
 import org.htmlunit.xpath.xml.dtm.DTM;
 import org.htmlunit.xpath.xml.dtm.DTMManager;
+import org.htmlunit.xpath.xml.dtm.DTMWSFilter;
 import org.htmlunit.xpath.xml.dtm.ref.dom2dtm.DOM2DTM;
+import org.htmlunit.xpath.xml.dtm.ref.dom2dtm.DOM2DTMEager;
+import org.htmlunit.xpath.xml.dtm.ref.mapped.MappedDTM;
+import org.htmlunit.xpath.xml.dtm.ref.sax2dtm.SAX2DTM;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
 /**
  * The default implementation for the DTMManager.
  *
- * <p>%REVIEW% There is currently a reentrancy issue, since the finalizer for XRTreeFrag (which runs
- * in the GC thread) wants to call DTMManager.release(), and may do so at the same time that the
- * main transformation thread is accessing the manager. Our current solution is to make most of the
- * manager's methods <code>synchronized</code>. Early tests suggest that doing so is not causing a
- * significant performance hit in Xalan. However, it should be noted that there is a possible
- * alternative solution: rewrite release() so it merely posts a request for release onto a
- * threadsafe queue, and explicitly process that queue on an infrequent basis during main-thread
- * activity (eg, when getDTM() is invoked). The downside of that solution would be a greater delay
- * before the DTM's storage is actually released for reuse.
+ * <p>Resolving a node handle to its DTM does not lock: the DTM table is copied on write, and
+ * readers see either the old or the new table, both of which are consistent. Registering DTMs and
+ * creating them for DOM nodes is serialized by a ReentrantLock rather than by the monitor of the
+ * manager, so that virtual threads waiting for it are not pinned to their carrier thread.
+ *
+ * <p>DTMs stay registered until they are released, see {@link #release(DTM)}, and their DTM IDs are
+ * reused after that. Optionally the manager releases the least recently used DTMs itself once more
+ * than {@link #setMaxDTMs(int)} DTMs or {@link #setMaxNodes(long)} nodes are registered.
  */
 public class DTMManagerDefault extends DTMManager {
 
@@ -49,12 +65,10 @@ public class DTMManagerDefault extends DTMManager {
    * several prefix numbers, if extended node indexing is in use; in that case, m_dtm_offsets[] will
    * used to control which prefix maps to which section of the DTM.
    *
-   * <p>This array grows as necessary; see addDTM().
-   *
-   * <p>This array grows as necessary; see addDTM(). Growth is uncommon... but access needs to be
-   * blindingly fast since it's used in node addressing.
+   * <p>This array is never modified once it has been published; addDTM() replaces it by a copy.
+   * Access needs to be blindingly fast since it's used in node addressing, and is not locked.
    */
-  protected DTM[] m_dtms = new DTM[256];
+  protected volatile DTM[] m_dtms = new DTM[256];
 
   /**
    * Map from DTM identifier numbers to offsets. For small DTMs with a single identifier, this will
@@ -62,13 +76,41 @@ public class DTMManagerDefault extends DTMManager {
    * beyond the range of a single Node Handle, this table is used to map the handle's node field
    * into the actual node identifier.
    *
-   * <p>This array grows as necessary; see addDTM().
-   *
-   * <p>This array grows as necessary; see addDTM(). Growth is uncommon... but access needs to be
-   * blindingly fast since it's used in node addressing. (And at the moment, that includes accessing
-   * it from DTMDefaultBase, which is why this is not Protected or Private.)
+   * <p>This array is replaced by addDTM() before m_dtms, so a reader that finds a DTM in m_dtms
+   * also finds its offset here. Access needs to be blindingly fast since it's used in node
+   * addressing. (And at the moment, that includes accessing it from DTMDefaultBase, which is why
+   * this is not Protected or Private.)
+   */
+  volatile int[] m_dtm_offsets = new int[256];
+
+  /** Serializes the registration and creation of DTMs. */
+  private final ReentrantLock m_lock = new ReentrantLock();
+
+  /**
+   * The registered DTMs, least recently used first. A DTM counts as used when it is registered and
+   * when getDTMHandleFromNode() or getDTMHandleFromSubtree() finds a node in it; resolving node
+   * handles does not, as that must not lock. Guarded by m_lock, like the counters below.
+   */
+  private final Map<DTM, Boolean> m_lru = new LinkedHashMap<>(16, 0.75f, true);
+
+  /**
+   * The registered DOM2DTMs, keyed by the DOM node they have been built from, so that the DTM of a
+   * DOM node is found by looking up its ancestors rather than by asking every DTM. If several
+   * DOM2DTMs share a root, the first one registered is used. Guarded by m_lock.
    */
-  int[] m_dtm_offsets = new int[256];
+  private final Map<Node, DOM2DTM> m_domDTMs = new IdentityHashMap<>();
+
+  /** The maximum number of registered DTMs, 0 if unbounded. */
+  private int m_maxDTMs;
+
+  /** The maximum number of nodes of all registered DTMs, 0 if unbounded. */
+  private long m_maxNodes;
+
+  /** The number of DTMs released by release(). */
+  private long m_releaseCount;
+
+  /** The number of DTMs released because a bound was exceeded. */
+  private long m_evictionCount;
 
   /**
    * Add a DTM to the DTM table.
@@ -80,60 +122,494 @@ public class DTMManagerDefault extends DTMManager {
    *     each DTM, this is 0; for overflow addressing it will be a multiple of
    *     1&lt;&lt;IDENT_DTM_NODE_BITS.
    */
-  public synchronized void addDTM(final DTM dtm, final int id, final int offset) {
+  public void addDTM(final DTM dtm, final int id, final int offset) {
     if (id >= IDENT_MAX_DTMS) {
       throw new RuntimeException(
           XPATHMessages.createXPATHMessage(XPATHErrorResources.ER_NO_DTMIDS_AVAIL, null));
     }
 
-    // We used to just allocate the array size to IDENT_MAX_DTMS.
-    // But we expect to increase that to 16 bits, and I'm not willing
-    // to allocate that much space unless needed. We could use one of our
-    // handy-dandy Fast*Vectors, but this will do for now.
-    // %REVIEW%
-    final int oldlen = m_dtms.length;
-    if (oldlen <= id) {
-      // Various growth strategies are possible. I think we don't want
-      // to over-allocate excessively, and I'm willing to reallocate
-      // more often to get that. See also Fast*Vector classes.
-      //
-      // %REVIEW% Should throw a more diagnostic error if we go over the max...
-      final int newlen = Math.min(id + 256, IDENT_MAX_DTMS);
+    m_lock.lock();
+    try {
+      // We used to just allocate the array size to IDENT_MAX_DTMS.
+      // But we expect to increase that to 16 bits, and I'm not willing
+      // to allocate that much space unless needed.
+      final DTM[] dtms = m_dtms;
+      final int oldlen = dtms.length;
+      final int newlen = (oldlen <= id) ? Math.min(id + 256, IDENT_MAX_DTMS) : oldlen;
 
       final DTM[] newDtms = new DTM[newlen];
-      System.arraycopy(m_dtms, 0, newDtms, 0, oldlen);
-      m_dtms = newDtms;
+      System.arraycopy(dtms, 0, newDtms, 0, oldlen);
+      newDtms[id] = dtm;
       final int[] newDtmOffsets = new int[newlen];
       System.arraycopy(m_dtm_offsets, 0, newDtmOffsets, 0, oldlen);
+      newDtmOffsets[id] = offset;
+
+      // offsets first, see m_dtm_offsets
       m_dtm_offsets = newDtmOffsets;
-    }
+      m_dtms = newDtms;
 
-    m_dtms[id] = dtm;
-    m_dtm_offsets[id] = offset;
+      if (0 == offset) {
+        m_lru.put(dtm, Boolean.TRUE);
+        if (dtm instanceof DOM2DTM) {
+          m_domDTMs.putIfAbsent(((DOM2DTM) dtm).getRoot(), (DOM2DTM) dtm);
+        }
+      }
+    }
+    finally {
+      m_lock.unlock();
+    }
     // The DTM should have been told who its manager was when we created it.
     // Do we need to allow for adopting DTMs _not_ created by this manager?
   }
 
-  /** @return the first free DTM ID available. %OPT% Linear search is inefficient! */
-  public synchronized int getFirstFreeDTMID() {
-    final int n = m_dtms.length;
+  /**
+   * Add a DTM to the DTM table under the first free DTM ID, e.g. for extended addressing while the
+   * DTM is being built.
+   *
+   * @param dtm Should be a valid reference to a DTM.
+   * @param offset Integer addressing offset, see {@link #addDTM(DTM, int, int)}.
+   * @return the DTM ID bound to the DTM.
+   */
+  public int addDTMAtFreeID(final DTM dtm, final int offset) {
+    m_lock.lock();
+    try {
+      final int id = getFirstFreeDTMID();
+      addDTM(dtm, id, offset);
+      return id;
+    }
+    finally {
+      m_lock.unlock();
+    }
+  }
+
+  /**
+   * @return the first free DTM ID available. The ID may be taken by another thread before it is
+   *     passed to addDTM(); use addDTMAtFreeID() to do both at once. %OPT% Linear search is
+   *     inefficient!
+   */
+  public int getFirstFreeDTMID() {
+    final DTM[] dtms = m_dtms;
+    final int n = dtms.length;
     for (int i = 1; i < n; i++) {
-      if (null == m_dtms[i]) {
+      if (null == dtms[i]) {
         return i;
       }
     }
     return n; // count on addDTM() to throw exception if out of range
   }
 
+  /** {@inheritDoc} */
+  @Override
+  public boolean release(final DTM dtm) {
+    m_lock.lock();
+    try {
+      if (null == m_lru.remove(dtm)) {
+        return false;
+      }
+      unregister(dtm);
+      m_releaseCount++;
+      return true;
+    }
+    finally {
+      m_lock.unlock();
+    }
+  }
+
+  /**
+   * Unregister a DTM whose build has failed, so that neither it nor its DTM IDs are left behind.
+   * The caller holds the registration lock.
+   *
+   * @param dtm the DTM to be discarded.
+   */
+  private void discard(final DTM dtm) {
+    m_lru.remove(dtm);
+    unregister(dtm);
+  }
+
+  /**
+   * Remove a DTM from the DTM table, freeing all its DTM IDs. The caller holds the registration
+   * lock and has already removed the DTM from m_lru.
+   *
+   * @param dtm the DTM to be removed.
+   */
+  private void unregister(final DTM dtm) {
+    final DTM[] newDtms = m_dtms.clone();
+    for (int i = 0; i < newDtms.length; i++) {
+      if (newDtms[i] == dtm) {
+        newDtms[i] = null;
+      }
+    }
+    // a freed ID keeps its stale offset until addDTM() reuses it
+    m_dtms = newDtms;
+    m_subtreeDTMs.remove(dtm);
+
+    if (dtm instanceof DOM2DTM) {
+      final Node root = ((DOM2DTM) dtm).getRoot();
+      if (m_domDTMs.remove(root, dtm)) {
+        // index another DTM of the same tree, if any
+        for (final DTM other : m_lru.keySet()) {
+          if (other instanceof DOM2DTM && ((DOM2DTM) other).getRoot() == root) {
+            m_domDTMs.put(root, (DOM2DTM) other);
+            break;
+          }
+        }
+      }
+    }
+
+    if (dtm instanceof DTMDefaultBase) {
+      ((DTMDefaultBase) dtm).documentRelease();
+    }
+  }
+
+  /**
+   * Release the least recently used DTMs until the bounds are met again. The caller holds the
+   * registration lock.
+   *
+   * @param keep a DTM that must not be released, because it has just been handed out; may be null.
+   */
+  private void evict(final DTM keep) {
+    if (0 == m_maxDTMs && 0 == m_maxNodes) {
+      return;
+    }
+
+    int dtmCount = m_lru.size();
+    long nodeCount = (0 == m_maxNodes) ? 0 : getNodeCountLocked();
+    final Iterator<DTM> it = m_lru.keySet().iterator();
+    while (it.hasNext()
+        && ((0 != m_maxDTMs && dtmCount > m_maxDTMs)
+            || (0 != m_maxNodes && nodeCount > m_maxNodes))) {
+      final DTM dtm = it.next();
+      if (dtm == keep) {
+        continue;
+      }
+      it.remove();
+      dtmCount--;
+      nodeCount -= getNumberOfNodes(dtm);
+      unregister(dtm);
+      m_evictionCount++;
+    }
+  }
+
+  /**
+   * @param dtm a DTM.
+   * @return the number of nodes the DTM has built so far, 0 if it does not tell.
+   */
+  private static int getNumberOfNodes(final DTM dtm) {
+    return (dtm instanceof DTMDefaultBase) ? ((DTMDefaultBase) dtm).getNumberOfNodes() : 0;
+  }
+
+  /** @return the number of nodes of all registered DTMs; the caller holds the lock. */
+  private long getNodeCountLocked() {
+    long count = 0;
+    for (final DTM dtm : m_lru.keySet()) {
+      count += getNumberOfNodes(dtm);
+    }
+    return count;
+  }
+
+  /** @return the maximum number of registered DTMs, 0 if unbounded (the default). */
+  public int getMaxDTMs() {
+    m_lock.lock();
+    try {
+      return m_maxDTMs;
+    }
+    finally {
+      m_lock.unlock();
+    }
+  }
+
+  /**
+   * Bound the number of registered DTMs. Once it is exceeded, the least recently used DTMs are
+   * released. The handles of their nodes become invalid, so the bound must leave room for all the
+   * DTMs that are in use at the same time, e.g. by the documents of one evaluation.
+   *
+   * @param maxDTMs the maximum number of DTMs, 0 for no bound.
+   */
+  public void setMaxDTMs(final int maxDTMs) {
+    m_lock.lock();
+    try {
+      m_maxDTMs = Math.max(0, maxDTMs);
+      evict(null);
+    }
+    finally {
+      m_lock.unlock();
+    }
+  }
+
+  /** @return the maximum number of nodes of all registered DTMs, 0 if unbounded (the default). */
+  public long getMaxNodes() {
+    m_lock.lock();
+    try {
+      return m_maxNodes;
+    }
+    finally {
+      m_lock.unlock();
+    }
+  }
+
+  /**
+   * Bound the number of nodes of all registered DTMs, which is what their memory use is roughly
+   * proportional to. Once it is exceeded when a DTM is created, the least recently used other DTMs
+   * are released, as for {@link #setMaxDTMs(int)}. DTMs that are built incrementally only count
+   * the nodes built so far.
+   *
+   * @param maxNodes the maximum number of nodes, 0 for no bound.
+   */
+  public void setMaxNodes(final long maxNodes) {
+    m_lock.lock();
+    try {
+      m_maxNodes = Math.max(0, maxNodes);
+      evict(null);
+    }
+    finally {
+      m_lock.unlock();
+    }
+  }
+
+  /** @return the number of registered DTMs. */
+  public int getDTMCount() {
+    m_lock.lock();
+    try {
+      return m_lru.size();
+    }
+    finally {
+      m_lock.unlock();
+    }
+  }
+
+  /** @return the number of nodes built so far by all registered DTMs. */
+  public long getNodeCount() {
+    m_lock.lock();
+    try {
+      return getNodeCountLocked();
+    }
+    finally {
+      m_lock.unlock();
+    }
+  }
+
+  /** @return the number of DTMs released by {@link #release(DTM)}. */
+  public long getReleaseCount() {
+    m_lock.lock();
+    try {
+      return m_releaseCount;
+    }
+    finally {
+      m_lock.unlock();
+    }
+  }
+
+  /** @return the number of DTMs released because a bound was exceeded. */
+  public long getEvictionCount() {
+    m_lock.lock();
+    try {
+      return m_evictionCount;
+    }
+    finally {
+      m_lock.unlock();
+    }
+  }
+
   /** The default table for exandedNameID lookups. */
   private final ExpandedNameTable m_expandedNameTable = new ExpandedNameTable();
 
+  /**
+   * true if the DTMs created by getDTMHandleFromNode() should be built incrementally, false if they
+   * should be built completely up front.
+   */
+  private boolean m_incremental = true;
+
+  /**
+   * The DTMs created by getDTMHandleFromSubtree() for a subtree of a larger tree. They are not used
+   * to look up nodes for getDTMHandleFromNode(), since they lack the rest of the tree.
+   */
+  private final Set<DTM> m_subtreeDTMs = Collections.newSetFromMap(new IdentityHashMap<>());
+
+  /** The whitespace filter for the DTMs created by this manager, may be null. */
+  private DTMWSFilter m_wsfilter;
+
+  /** true if the DTMs created by this manager store their node records interleaved. */
+  private boolean m_interleavedRecords;
+
+  /** true if the DTMs created by this manager use the process-wide expanded name table. */
+  private boolean m_sharedNameTable;
+
+  /** true if the DTMs created by this manager index attribute values. */
+  private boolean m_attributeValueIndexing;
+
+  /** true if the DTMs created by this manager index their text. */
+  private boolean m_textIndexing;
+
+  /** The name of the attribute holding the IDs of elements in DOMs, null for DOM-declared IDs. */
+  private String m_idAttributeName;
+
   /** Constructor DTMManagerDefault */
   public DTMManagerDefault() {
   }
 
+  /**
+   * @return true if DTMs created for DOM nodes are built incrementally (the default), false if
+   *     they are built completely when they are created.
+   */
+  public boolean getIncremental() {
+    return m_incremental;
+  }
+
+  /**
+   * Set whether the DTMs created for DOM nodes are built incrementally. Building them up front
+   * saves the per-access build checks and is faster for queries that visit most of the document;
+   * incremental building is cheaper if only the start of a large document is ever looked at.
+   *
+   * @param incremental true to build incrementally, false to build up front.
+   */
+  public void setIncremental(final boolean incremental) {
+    m_incremental = incremental;
+  }
+
+  /**
+   * @return true if the DTMs created by this manager keep the fields of each node in one
+   *     contiguous record, false if they keep one array per field (the default).
+   */
+  public boolean getInterleavedRecords() {
+    return m_interleavedRecords;
+  }
+
+  /**
+   * Set the storage layout of the node tables of the DTMs created from now on. With interleaved
+   * records, the type, parent, child and sibling links of a node share a cache line, which helps
+   * navigation that reads several of them per node, e.g. child and descendant walks over large
+   * documents. The separate arrays are slightly cheaper to build and to scan for a single field.
+   *
+   * @param interleaved true to store one record per node, false for one array per field.
+   */
+  public void setInterleavedRecords(final boolean interleaved) {
+    m_interleavedRecords = interleaved;
+  }
+
+  /**
+   * @return true if the DTMs created by this manager use the process-wide expanded name table,
+   *     false if each indexing DTM has a table of its own (the default).
+   */
+  public boolean getSharedNameTable() {
+    return m_sharedNameTable;
+  }
+
+  /**
+   * Set whether the DTMs created from now on use the process-wide expanded name table of {@link
+   * ExpandedNameTable#getSharedInstance()}. Documents that use the same names, e.g. the tag and
+   * attribute names of HTML pages, then no longer have to add them to a new table each, and the
+   * expanded type IDs of their nodes can be compared across documents. The shared table keeps every
+   * name it has ever seen, and the element indexes of the DTMs are sized by the IDs, so this suits
+   * applications whose documents draw from a limited vocabulary.
+   *
+   * @param shared true to use the process-wide table, false for a table per DTM.
+   */
+  public void setSharedNameTable(final boolean shared) {
+    m_sharedNameTable = shared;
+  }
+
+  /**
+   * @return true if the DTMs created by this manager index attribute values, false if not (the
+   *     default).
+   */
+  public boolean getAttributeValueIndexing() {
+    return m_attributeValueIndexing;
+  }
+
+  /**
+   * Set whether the DTMs created from now on index attribute values, so that predicates like
+   * <code>//input[@name = 'q']</code> or <code>//div[contains(concat(' ', @class, ' '), ' x ')]
+   * </code> look the matching elements up instead of testing every element. The index of an
+   * attribute is built, completing the DTM, the first time a query asks for it. DTMs built from a DOM that is changed afterwards must then be told about
+   * changed attribute values too, see {@link DOM2DTM#attributesChanged(Element)}.
+   *
+   * @param indexing true to index attribute values, false to test the elements.
+   */
+  public void setAttributeValueIndexing(final boolean indexing) {
+    m_attributeValueIndexing = indexing;
+  }
+
+  /**
+   * @return true if the DTMs created by this manager index their text, false if not (the
+   *     default).
+   */
+  public boolean getTextIndexing() {
+    return m_textIndexing;
+  }
+
+  /**
+   * Set whether the DTMs created from now on keep a trigram index of their text, so that
+   * predicates like <code>//td[contains(., 'Total')]</code> find the string without building the
+   * string-value of every candidate. The index is built, completing the DTM, the first time a
+   * query uses it. DTMs built from a DOM whose text is changed afterwards must then be told about
+   * it, see {@link DOM2DTM#characterDataChanged(Node)}.
+   *
+   * @param indexing true to index the text, false to build the string-values.
+   */
+  public void setTextIndexing(final boolean indexing) {
+    m_textIndexing = indexing;
+  }
+
+  /**
+   * @return the name of the attribute the DTMs created for DOM nodes take the IDs of elements
+   *     from, or null if they ask the DOM (the default).
+   */
+  public String getIdAttributeName() {
+    return m_idAttributeName;
+  }
+
+  /**
+   * Set the name of the attribute the DTMs created for DOM nodes from now on take the IDs of
+   * elements from, e.g. <code>id</code> for HTML. Such a DTM records the IDs while it is built, so
+   * that <code>id()</code> looks each one up in constant time, whether or not the DOM declares the
+   * attribute as being of type ID. By default the DOM is asked, see {@link
+   * org.w3c.dom.Document#getElementById(String)}, which only knows declared IDs.
+   *
+   * @param name the attribute name, null to ask the DOM.
+   */
+  public void setIdAttributeName(final String name) {
+    m_idAttributeName = name;
+  }
+
+  /** @return the whitespace filter for the DTMs created by this manager, or null if none. */
+  public DTMWSFilter getWhitespaceFilter() {
+    return m_wsfilter;
+  }
+
+  /**
+   * Set the filter that decides which whitespace-only text nodes are left out of the DTMs created
+   * from now on, e.g. a {@link DTMStripSpaceFilter}. Stripped nodes get no DTM record, which keeps
+   * the DTMs of pretty-printed documents small and child/descendant walks short; they can however
+   * no longer be selected or used as context nodes. By default nothing is stripped.
+   *
+   * @param filter the whitespace filter, or null to preserve all whitespace.
+   */
+  public void setWhitespaceFilter(final DTMWSFilter filter) {
+    m_wsfilter = filter;
+  }
+
   @Override
-  public synchronized DTM getDTM(
+  public DTM getDTM(
+      final Source source,
+      final boolean unique,
+      final boolean incremental,
+      final boolean doIndexing) {
+    m_lock.lock();
+    try {
+      final DTM dtm = createDTM(source, unique, incremental, doIndexing);
+      evict(dtm);
+      return dtm;
+    }
+    finally {
+      m_lock.unlock();
+    }
+  }
+
+  /**
+   * Create and register a DTM; see {@link #getDTM(Source, boolean, boolean, boolean)}. The caller
+   * holds the registration lock.
+   */
+  private DTM createDTM(
       final Source source,
       final boolean unique,
       final boolean incremental,
@@ -148,9 +624,44 @@ public class DTMManagerDefault extends DTMManager {
     final int documentID = dtmPos << IDENT_DTM_NODE_BITS;
 
     if ((null != source) && source instanceof DOMSource) {
-      final DOM2DTM dtm = new DOM2DTM(this, (DOMSource) source, documentID, doIndexing);
+      if (incremental) {
+        final DOM2DTM dtm =
+            new DOM2DTM(this, (DOMSource) source, documentID, m_wsfilter, doIndexing);
+
+        addDTM(dtm, dtmPos, 0);
+        return dtm;
+      }
+
+      final DOM2DTMEager dtm =
+          new DOM2DTMEager(this, (DOMSource) source, documentID, m_wsfilter, doIndexing);
 
+      // register first, the build may need further DTM IDs for extended addressing
       addDTM(dtm, dtmPos, 0);
+      try {
+        dtm.build();
+      }
+      catch (final RuntimeException e) {
+        discard(dtm);
+        throw e;
+      }
+      return dtm;
+    }
+
+    if (source instanceof StreamSource
+        || source instanceof SAXSource
+        || source instanceof StAXSource) {
+      // There is no DOM to build from incrementally; the parser pushes the whole document.
+      final SAX2DTM dtm = new SAX2DTM(this, source, documentID, m_wsfilter, doIndexing);
+
+      // register first, the build may need further DTM IDs for extended addressing
+      addDTM(dtm, dtmPos, 0);
+      try {
+        dtm.parse(source);
+      }
+      catch (final RuntimeException e) {
+        discard(dtm);
+        throw e;
+      }
       return dtm;
     }
 
@@ -161,9 +672,42 @@ public class DTMManagerDefault extends DTMManager {
             XPATHErrorResources.ER_NOT_SUPPORTED, new Object[] {source}));
   }
 
+  /**
+   * Get a read-only DTM for a snapshot file written by {@link
+   * org.htmlunit.xpath.xml.dtm.ref.mapped.MappedDTMWriter}. The file is memory mapped, so the DTM
+   * is available without parsing anything, and the node data stays off the heap and is shared with
+   * other processes that map the same file.
+   *
+   * @param snapshot the snapshot file.
+   * @return a DTM for the snapshot.
+   * @throws IOException if the file can not be mapped.
+   */
+  public DTM getDTM(final Path snapshot) throws IOException {
+    m_lock.lock();
+    try {
+      final int dtmPos = getFirstFreeDTMID();
+      final MappedDTM dtm = new MappedDTM(this, snapshot, dtmPos << IDENT_DTM_NODE_BITS);
+
+      // register first, large snapshots need further DTM IDs for extended addressing
+      addDTM(dtm, dtmPos, 0);
+      try {
+        dtm.open();
+      }
+      catch (final RuntimeException e) {
+        discard(dtm);
+        throw e;
+      }
+      evict(dtm);
+      return dtm;
+    }
+    finally {
+      m_lock.unlock();
+    }
+  }
+
   /** {@inheritDoc} */
   @Override
-  public synchronized int getDTMHandleFromNode(final org.w3c.dom.Node node) {
+  public int getDTMHandleFromNode(final org.w3c.dom.Node node) {
     if (null == node) {
       throw new IllegalArgumentException(
           XPATHMessages.createXPATHMessage(XPATHErrorResources.ER_NODE_NON_NULL, null));
@@ -173,33 +717,37 @@ public class DTMManagerDefault extends DTMManager {
       return ((org.htmlunit.xpath.xml.dtm.ref.DTMNodeProxy) node).getDTMNodeNumber();
     }
 
+    m_lock.lock();
+    try {
+      return findOrCreateDTMHandle(node);
+    }
+    finally {
+      m_lock.unlock();
+    }
+  }
+
+  /**
+   * Find the handle of a DOM node in the DTMs of this manager, creating a DTM for its tree if none
+   * contains it; see {@link #getDTMHandleFromNode(Node)}. The caller holds the registration lock.
+   *
+   * @param node Non-null reference to a DOM node.
+   * @return a valid DTM handle.
+   */
+  private int findOrCreateDTMHandle(final Node node) {
+
     // Find the DOM2DTMs wrapped around this Document (if any)
     // and check whether they contain the Node in question.
     //
     // NOTE that since a DOM2DTM may represent a subtree rather
-    // than a full document, we have to be prepared to check more
-    // than one -- and there is no guarantee that we will find
-    // one that contains ancestors or siblings of the node we're
-    // seeking.
-    //
-    // %REVIEW% We could search for the one which contains this
-    // node at the deepest level, and thus covers the widest
-    // subtree, but that's going to entail additional work
-    // checking more DTMs... and getHandleOfNode is not a
-    // cheap operation in most implementations.
-    //
-    // TODO: %REVIEW% If overflow addressing, we may recheck a DTM
-    // already examined. Ouch. But with the increased number of DTMs,
-    // scanning back to check this is painful.
-    // POSSIBLE SOLUTIONS:
-    // Generate a list of _unique_ DTM objects?
-    // Have each DTM cache last DOM node search?
-    for (final DTM thisDTM : m_dtms) {
-      if ((null != thisDTM) && thisDTM instanceof DOM2DTM) {
-        final int handle = ((DOM2DTM) thisDTM).getHandleOfNode(node);
-        if (handle != DTM.NULL) {
-            return handle;
-        }
+    // than a full document, the root of the first DTM found
+    // going up from the node need not be the root of the tree.
+    // The topmost one covers the widest subtree.
+    final DOM2DTM found = findDOM2DTM(node, false);
+    if (null != found) {
+      final int handle = found.getHandleOfNodeInTree(node);
+      if (handle != DTM.NULL) {
+        m_lru.get(found); // marks it as recently used
+        return handle;
       }
     }
 
@@ -232,7 +780,8 @@ public class DTMManagerDefault extends DTMManager {
     }
 
     final DOM2DTM dtm =
-        (DOM2DTM) getDTM(new javax.xml.transform.dom.DOMSource(root), false, true, true);
+        (DOM2DTM) createDTM(new javax.xml.transform.dom.DOMSource(root), false, m_incremental, true);
+    evict(dtm);
 
     int handle;
 
@@ -255,9 +804,165 @@ public class DTMManagerDefault extends DTMManager {
     return handle;
   }
 
+  /**
+   * Find a registered DOM2DTM whose root is the node or one of its ancestors. The caller holds the
+   * registration lock.
+   *
+   * @param node Non-null reference to a DOM node.
+   * @param subtrees true if DTMs created by getDTMHandleFromSubtree() will do; the DTM with the
+   *     nearest root is returned then, otherwise the one with the topmost root, which covers the
+   *     widest subtree.
+   * @return the DTM, or null if no registered DOM2DTM covers the node.
+   */
+  private DOM2DTM findDOM2DTM(final Node node, final boolean subtrees) {
+    if (m_domDTMs.isEmpty()) {
+      return null;
+    }
+
+    DOM2DTM found = null;
+    for (Node cursor = node;
+        cursor != null;
+        cursor =
+            (cursor.getNodeType() != Node.ATTRIBUTE_NODE)
+                ? cursor.getParentNode()
+                : ((org.w3c.dom.Attr) cursor).getOwnerElement()) {
+      final DOM2DTM dtm = m_domDTMs.get(cursor);
+      if (null != dtm) {
+        if (subtrees) {
+          return dtm;
+        }
+        if (!m_subtreeDTMs.contains(dtm)) {
+          found = dtm;
+        }
+      }
+    }
+    return found;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Any DOM2DTM that already contains the node is good enough. Otherwise a new DOM2DTM rooted at
+   * the node is created if the node is an element; for all other nodes this falls back to {@link
+   * #getDTMHandleFromNode(Node)}.
+   */
+  @Override
+  public int getDTMHandleFromSubtree(final Node node) {
+    if (null == node
+        || Node.ELEMENT_NODE != node.getNodeType()
+        || null == node.getParentNode()) {
+      return getDTMHandleFromNode(node);
+    }
+
+    m_lock.lock();
+    try {
+      final DOM2DTM found = findDOM2DTM(node, true);
+      if (null != found) {
+        final int handle = found.getHandleOfNodeInTree(node);
+        if (handle != DTM.NULL) {
+          m_lru.get(found); // marks it as recently used
+          return handle;
+        }
+      }
+
+      final DTM dtm = createDTM(new DOMSource(node), false, m_incremental, true);
+      m_subtreeDTMs.add(dtm);
+      evict(dtm);
+      return dtm.getDocument();
+    }
+    finally {
+      m_lock.unlock();
+    }
+  }
+
+  /**
+   * Tell all DTMs of this manager that a node has been inserted into the DOM.
+   *
+   * @param child the inserted node, already attached to its new parent.
+   * @see DOM2DTM#childInserted(Node)
+   */
+  public void childInserted(final Node child) {
+    m_lock.lock();
+    try {
+      final DTM[] dtms = m_dtms;
+      for (int i = 0; i < dtms.length; i++) {
+        if (dtms[i] instanceof DOM2DTM && 0 == m_dtm_offsets[i]) {
+          ((DOM2DTM) dtms[i]).childInserted(child);
+        }
+      }
+    }
+    finally {
+      m_lock.unlock();
+    }
+  }
+
+  /**
+   * Tell all DTMs of this manager that a node has been removed from the DOM.
+   *
+   * @param parent the former parent of the removed node.
+   * @param child the removed node.
+   * @see DOM2DTM#childRemoved(Node, Node)
+   */
+  public void childRemoved(final Node parent, final Node child) {
+    m_lock.lock();
+    try {
+      final DTM[] dtms = m_dtms;
+      for (int i = 0; i < dtms.length; i++) {
+        if (dtms[i] instanceof DOM2DTM && 0 == m_dtm_offsets[i]) {
+          ((DOM2DTM) dtms[i]).childRemoved(parent, child);
+        }
+      }
+    }
+    finally {
+      m_lock.unlock();
+    }
+  }
+
+  /**
+   * Tell all DTMs of this manager that attributes have been added to or removed from an element.
+   *
+   * @param element the element whose attributes have changed.
+   * @see DOM2DTM#attributesChanged(Element)
+   */
+  public void attributesChanged(final Element element) {
+    m_lock.lock();
+    try {
+      final DTM[] dtms = m_dtms;
+      for (int i = 0; i < dtms.length; i++) {
+        if (dtms[i] instanceof DOM2DTM && 0 == m_dtm_offsets[i]) {
+          ((DOM2DTM) dtms[i]).attributesChanged(element);
+        }
+      }
+    }
+    finally {
+      m_lock.unlock();
+    }
+  }
+
+  /**
+   * Tell all DTMs of this manager that the data of a text node has been changed in the DOM.
+   *
+   * @param node the text node whose data has changed.
+   * @see DOM2DTM#characterDataChanged(Node)
+   */
+  public void characterDataChanged(final Node node) {
+    m_lock.lock();
+    try {
+      final DTM[] dtms = m_dtms;
+      for (int i = 0; i < dtms.length; i++) {
+        if (dtms[i] instanceof DOM2DTM && 0 == m_dtm_offsets[i]) {
+          ((DOM2DTM) dtms[i]).characterDataChanged(node);
+        }
+      }
+    }
+    finally {
+      m_lock.unlock();
+    }
+  }
+
   /** {@inheritDoc} */
   @Override
-  public synchronized DTM getDTM(final int nodeHandle) {
+  public DTM getDTM(final int nodeHandle) {
     try {
       // Performance critical function.
       return m_dtms[nodeHandle >>> IDENT_DTM_NODE_BITS];
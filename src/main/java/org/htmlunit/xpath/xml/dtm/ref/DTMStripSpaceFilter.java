@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath.xml.dtm.ref;
+
+import java.util.HashSet;
+import java.util.Set;
+import org.htmlunit.xpath.xml.dtm.DTM;
+import org.htmlunit.xpath.xml.dtm.DTMWSFilter;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * A DTMWSFilter that strips whitespace-only text by element name, much like the
+ * <code>xsl:strip-space</code> and <code>xsl:preserve-space</code> declarations.
+ *
+ * <p>The decision for an element is taken from the nearest ancestor-or-self element that either
+ * carries an <code>xml:space</code> attribute or whose name has been registered with {@link
+ * #addStripSpaceElement(String)} or {@link #addPreserveSpaceElement(String)}; if there is none, the
+ * default given to the constructor applies. Unlike XSLT, the name rules are therefore inherited,
+ * which keeps the content of e.g. HTML <code>pre</code> elements intact.
+ *
+ * <p>Element names are compared with the DOM node name.
+ */
+public class DTMStripSpaceFilter implements DTMWSFilter {
+
+  /** true if whitespace is stripped from elements without a rule. */
+  private final boolean m_stripByDefault;
+
+  /** The names of the elements whitespace is stripped from. */
+  private final Set<String> m_stripSpaceElements = new HashSet<>();
+
+  /** The names of the elements whitespace is preserved in. */
+  private final Set<String> m_preserveSpaceElements = new HashSet<>();
+
+  /**
+   * Construct a filter.
+   *
+   * @param stripByDefault true to strip whitespace from all elements without a rule (like <code>
+   *     &lt;xsl:strip-space elements="*"/&gt;</code>), false to preserve it.
+   */
+  public DTMStripSpaceFilter(final boolean stripByDefault) {
+    m_stripByDefault = stripByDefault;
+  }
+
+  /**
+   * Strip whitespace-only text from elements with the given name and their descendants.
+   *
+   * @param name the element name.
+   */
+  public void addStripSpaceElement(final String name) {
+    m_preserveSpaceElements.remove(name);
+    m_stripSpaceElements.add(name);
+  }
+
+  /**
+   * Preserve whitespace-only text in elements with the given name and their descendants.
+   *
+   * @param name the element name.
+   */
+  public void addPreserveSpaceElement(final String name) {
+    m_stripSpaceElements.remove(name);
+    m_preserveSpaceElements.add(name);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public short getShouldStripSpace(final int elementHandle, final DTM dtm) {
+    // Walk the DOM rather than the DTM; a DTM may be built for a subtree only.
+    for (Node node = dtm.getNode(elementHandle);
+        null != node && Node.ELEMENT_NODE == node.getNodeType();
+        node = node.getParentNode()) {
+      final String space = ((Element) node).getAttribute("xml:space");
+      if ("preserve".equals(space)) {
+        return NOTSTRIP;
+      }
+
+      final String name = node.getNodeName();
+      if (m_preserveSpaceElements.contains(name)) {
+        return NOTSTRIP;
+      }
+      if (m_stripSpaceElements.contains(name)) {
+        return STRIP;
+      }
+
+      if ("default".equals(space)) {
+        break;
+      }
+    }
+
+    return m_stripByDefault ? STRIP : NOTSTRIP;
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath.xml.dtm.ref;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A trigram index of the text of a DTM. The text of all text records is concatenated in document
+ * order, so the string-value of any element is a range of it; for each sequence of three
+ * characters the index holds the positions in the text where it starts. A search looks the
+ * rarest trigram of the searched string up and only compares the text at those positions.
+ */
+final class DTMTextIndex {
+
+  /** The text of the text records in document order. */
+  private final String m_text;
+
+  /** The start positions of each trigram in m_text, ascending, keyed by trigramKey(). */
+  private final Map<Long, int[]> m_positions = new HashMap<>();
+
+  /**
+   * Index a text.
+   *
+   * @param text the concatenated text of the text records.
+   */
+  DTMTextIndex(final String text) {
+    m_text = text;
+
+    // Like the attribute value indexes, each array holds the first free element at the start.
+    for (int pos = 0; pos + 3 <= text.length(); pos++) {
+      final Long key = trigramKey(text, pos);
+      int[] positions = m_positions.get(key);
+      if (null == positions) {
+        positions = new int[4];
+        positions[0] = 1;
+        m_positions.put(key, positions);
+      }
+      else if (positions.length == positions[0]) {
+        positions = Arrays.copyOf(positions, 2 * positions.length);
+        m_positions.put(key, positions);
+      }
+      positions[positions[0]++] = pos;
+    }
+  }
+
+  /** @return the length of the indexed text. */
+  int length() {
+    return m_text.length();
+  }
+
+  /**
+   * Tell if a range of the text contains a string.
+   *
+   * @param start the start of the range.
+   * @param end the end of the range, exclusive.
+   * @param s the string to look for.
+   * @return true if the string occurs within the range.
+   */
+  boolean contains(final int start, final int end, final String s) {
+    final int length = s.length();
+    if (length > end - start) {
+      return false;
+    }
+    if (length < 3) {
+      final int pos = m_text.indexOf(s, start);
+      return pos > -1 && pos + length <= end;
+    }
+
+    final int offset = getRarestTrigram(s);
+    if (-1 == offset) {
+      return false;
+    }
+    final int[] rarest = m_positions.get(trigramKey(s, offset));
+
+    // The occurrences of s starting in [start, end - length] have the
+    // trigram at offset starting in [start + offset, end - length + offset].
+    int low = 1;
+    int high = rarest[0] - 1;
+    while (low <= high) {
+      final int mid = (low + high) >>> 1;
+      if (rarest[mid] < start + offset) {
+        low = mid + 1;
+      }
+      else {
+        high = mid - 1;
+      }
+    }
+    for (int i = low; i < rarest[0] && rarest[i] <= end - length + offset; i++) {
+      if (m_text.regionMatches(rarest[i] - offset, s, 0, length)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Find all occurrences of a string.
+   *
+   * @param s the string to look for, not empty.
+   * @return the positions in the text at which the string starts, ascending.
+   */
+  int[] indexOf(final String s) {
+    final int length = s.length();
+    int[] found = new int[8];
+    int count = 0;
+    if (length < 3) {
+      for (int pos = m_text.indexOf(s); pos > -1; pos = m_text.indexOf(s, pos + 1)) {
+        if (found.length == count) {
+          found = Arrays.copyOf(found, 2 * count);
+        }
+        found[count++] = pos;
+      }
+      return Arrays.copyOf(found, count);
+    }
+
+    final int offset = getRarestTrigram(s);
+    if (-1 == offset) {
+      return new int[0];
+    }
+    final int[] rarest = m_positions.get(trigramKey(s, offset));
+    for (int i = 1; i < rarest[0]; i++) {
+      final int pos = rarest[i] - offset;
+      if (pos >= 0 && m_text.regionMatches(pos, s, 0, length)) {
+        if (found.length == count) {
+          found = Arrays.copyOf(found, 2 * count);
+        }
+        found[count++] = pos;
+      }
+    }
+    return Arrays.copyOf(found, count);
+  }
+
+  /**
+   * @param s a string of at least three characters.
+   * @return the position in the string of the trigram that occurs least often in the text, or -1
+   *     if one of its trigrams does not occur at all.
+   */
+  private int getRarestTrigram(final String s) {
+    int[] rarest = null;
+    int offset = -1;
+    for (int i = 0; i + 3 <= s.length(); i++) {
+      final int[] positions = m_positions.get(trigramKey(s, i));
+      if (null == positions) {
+        return -1;
+      }
+      if (null == rarest || positions[0] < rarest[0]) {
+        rarest = positions;
+        offset = i;
+      }
+    }
+    return offset;
+  }
+
+  /**
+   * @param s a string.
+   * @param pos the position of a trigram in the string.
+   * @return the key of the trigram.
+   */
+  private static Long trigramKey(final String s, final int pos) {
+    return Long.valueOf(
+        ((long) s.charAt(pos) << 32) | ((long) s.charAt(pos + 1) << 16) | s.charAt(pos + 2));
+  }
+}
@@ -28,28 +28,32 @@ import org.htmlunit.xpath.xml.dtm.DTM;
  * this class, instead of using the inefficient java.util.Hashtable. The code for the get and put
  * operations are combined in getExpandedTypeID() method to share the same hash calculation code. We
  * only need to implement the rehash() interface which is used to expand the hash table.
+ *
+ * <p>The table is safe for concurrent use. Looking up names and IDs does not lock: the hash entries
+ * are immutable, and the arrays are replaced rather than reorganized when they grow. Only adding a
+ * new name locks the table. An ID, once handed out, always stands for the same name, so the
+ * process-wide table of {@link #getSharedInstance()} gives IDs that can be compared across all DTMs
+ * using it.
  */
 public class ExpandedNameTable {
 
-  /** Array of extended types for this document */
-  private ExtendedType[] m_extendedTypes;
+  /**
+   * Array of extended types for this document. Slots are only written while holding the monitor,
+   * before the ID is handed out.
+   */
+  private volatile ExtendedType[] m_extendedTypes;
 
   /** The initial size of the m_extendedTypes array */
   private static final int m_initialSize = 128;
 
-  /** Next available extended type */
-  // %REVIEW% Since this is (should be) always equal
-  // to the length of m_extendedTypes, do we need this?
-  private int m_nextType;
+  /** Next available extended type. Only written while holding the monitor. */
+  private volatile int m_nextType;
 
   // These are all the types prerotated, for caller convenience.
   public static final int ELEMENT = DTM.ELEMENT_NODE;
   public static final int ATTRIBUTE = DTM.ATTRIBUTE_NODE;
   public static final int NAMESPACE = DTM.NAMESPACE_NODE;
 
-  /** Workspace for lookup. NOT THREAD SAFE! */
-  final ExtendedType hashET = new ExtendedType(-1, "", "");
-
   /** The array to store the default extended types. */
   private static final ExtendedType[] m_defaultExtendedTypes;
 
@@ -62,19 +66,19 @@ public class ExpandedNameTable {
    */
   private static final int m_initialCapacity = 203;
 
-  /** The capacity of the hash table, i.e. the size of the internal HashEntry array. */
-  private int m_capacity;
-
   /**
    * The threshold of the hash table, which is equal to capacity * loadFactor. If the number of
    * entries in the hash table is bigger than the threshold, the hash table needs to be expanded.
+   * Guarded by the monitor.
    */
   private int m_threshold;
 
   /**
    * The internal array to store the hash entries. Each array member is a slot for a hash bucket.
+   * New entries are put in front of their bucket while holding the monitor; a reader that misses
+   * one looks again while holding it.
    */
-  private HashEntry[] m_table;
+  private volatile HashEntry[] m_table;
 
   /* Init default values */
   static {
@@ -85,23 +89,35 @@ public class ExpandedNameTable {
     }
   }
 
+  /** The process-wide table; created after the default types it is initialized with. */
+  private static final ExpandedNameTable SHARED_INSTANCE = new ExpandedNameTable();
+
   /** Create an expanded name table. */
   public ExpandedNameTable() {
-    m_capacity = m_initialCapacity;
-    m_threshold = (int) (m_capacity * m_loadFactor);
-    m_table = new HashEntry[m_capacity];
+    m_threshold = (int) (m_initialCapacity * m_loadFactor);
+    m_table = new HashEntry[m_initialCapacity];
 
     initExtendedTypes();
   }
 
+  /**
+   * @return the process-wide table, shared by the DTMs of all managers configured to use it, see
+   *     {@link DTMManagerDefault#setSharedNameTable(boolean)}.
+   */
+  public static ExpandedNameTable getSharedInstance() {
+    return SHARED_INSTANCE;
+  }
+
   /** Initialize the vector of extended types with the basic DOM node types. */
   private void initExtendedTypes() {
-    m_extendedTypes = new ExtendedType[m_initialSize];
+    final ExtendedType[] types = new ExtendedType[m_initialSize];
+    final HashEntry[] table = m_table;
     for (int i = 0; i < DTM.NTYPES; i++) {
-      m_extendedTypes[i] = m_defaultExtendedTypes[i];
-      m_table[i] = new HashEntry(m_defaultExtendedTypes[i], i, i, null);
+      types[i] = m_defaultExtendedTypes[i];
+      table[i] = new HashEntry(m_defaultExtendedTypes[i], i, i, null);
     }
 
+    m_extendedTypes = types;
     m_nextType = DTM.NTYPES;
   }
 
@@ -127,80 +143,156 @@ public class ExpandedNameTable {
     // Calculate the hash code
     final int hash = type + namespace.hashCode() + localName.hashCode();
 
-    // Redefine the hashET object to represent the new expanded name.
-    hashET.redefine(type, namespace, localName, hash);
-
-    // Calculate the index into the HashEntry table.
-    int index = hash % m_capacity;
-    if (index < 0) {
-        index = -index;
-    }
-
     // Look up the expanded name in the hash table. Return the id if
     // the expanded name is already in the hash table.
-    for (HashEntry e = m_table[index]; e != null; e = e.next) {
-      if (e.hash == hash && e.key.equals(hashET)) {
-          return e.value;
+    final int id = lookup(m_table, namespace, localName, type, hash);
+    if (DTM.NULL != id) {
+      return id;
+    }
+    return add(namespace, localName, type, hash);
+  }
+
+  /**
+   * Look up an expanded name in a hash table.
+   *
+   * @return the expanded-name id, or DTM.NULL if the table does not contain the name.
+   */
+  private static int lookup(
+      final HashEntry[] table,
+      final String namespace,
+      final String localName,
+      final int type,
+      final int hash) {
+    for (HashEntry e = table[index(hash, table.length)]; e != null; e = e.next) {
+      if (e.hash == hash && e.key.equals(type, namespace, localName)) {
+        return e.value;
       }
     }
+    return DTM.NULL;
+  }
+
+  /**
+   * @param hash a hash code.
+   * @param capacity the size of the HashEntry array.
+   * @return the index of the bucket for the hash code.
+   */
+  private static int index(final int hash, final int capacity) {
+    final int index = hash % capacity;
+    return (index < 0) ? -index : index;
+  }
+
+  /**
+   * Add an expanded name, unless another thread has done so in the meantime.
+   *
+   * @return the expanded-name id.
+   */
+  private synchronized int add(
+      final String namespace, final String localName, final int type, final int hash) {
+    HashEntry[] table = m_table;
+    final int id = lookup(table, namespace, localName, type, hash);
+    if (DTM.NULL != id) {
+      return id;
+    }
+
+    final int nextType = m_nextType;
 
     // Expand the internal HashEntry array if necessary.
-    if (m_nextType > m_threshold) {
-      rehash();
-      index = hash % m_capacity;
-      if (index < 0) {
-          index = -index;
-      }
+    if (nextType > m_threshold) {
+      table = rehash(table);
     }
 
     // Create a new ExtendedType object
     final ExtendedType newET = new ExtendedType(type, namespace, localName, hash);
 
     // Expand the m_extendedTypes array if necessary.
-    if (m_extendedTypes.length == m_nextType) {
-      final ExtendedType[] newArray = new ExtendedType[m_extendedTypes.length * 2];
-      System.arraycopy(m_extendedTypes, 0, newArray, 0, m_extendedTypes.length);
-      m_extendedTypes = newArray;
+    ExtendedType[] types = m_extendedTypes;
+    if (types.length == nextType) {
+      final ExtendedType[] newArray = new ExtendedType[types.length * 2];
+      System.arraycopy(types, 0, newArray, 0, types.length);
+      types = newArray;
     }
-
-    m_extendedTypes[m_nextType] = newET;
+    types[nextType] = newET;
 
     // Create a new hash entry for the new ExtendedType and put it into
     // the table.
-    final HashEntry entry = new HashEntry(newET, m_nextType, hash, m_table[index]);
-    m_table[index] = entry;
+    final int index = index(hash, table.length);
+    table[index] = new HashEntry(newET, nextType, hash, table[index]);
 
-    return m_nextType++;
+    m_extendedTypes = types;
+    m_table = table;
+    m_nextType = nextType + 1;
+    return nextType;
   }
 
   /**
    * Increases the capacity of and internally reorganizes the hashtable, in order to accommodate and
    * access its entries more efficiently. This method is called when the number of keys in the
-   * hashtable exceeds this hashtable's capacity and load factor.
+   * hashtable exceeds this hashtable's capacity and load factor. The old table stays untouched, so
+   * that readers still using it find all entries that were in it.
+   *
+   * @param oldTable the current table.
+   * @return the new table, not yet published.
    */
-  private void rehash() {
-    final int oldCapacity = m_capacity;
-    final HashEntry[] oldTable = m_table;
+  private HashEntry[] rehash(final HashEntry[] oldTable) {
+    final int oldCapacity = oldTable.length;
 
     final int newCapacity = 2 * oldCapacity + 1;
-    m_capacity = newCapacity;
     m_threshold = (int) (newCapacity * m_loadFactor);
 
-    m_table = new HashEntry[newCapacity];
+    final HashEntry[] newTable = new HashEntry[newCapacity];
     for (int i = oldCapacity - 1; i >= 0; i--) {
-      for (HashEntry old = oldTable[i]; old != null;) {
-        final HashEntry e = old;
-        old = old.next;
-
-        int newIndex = e.hash % newCapacity;
-        if (newIndex < 0) {
-            newIndex = -newIndex;
-        }
+      for (HashEntry e = oldTable[i]; e != null; e = e.next) {
+        final int newIndex = index(e.hash, newCapacity);
+        newTable[newIndex] = new HashEntry(e.key, e.value, e.hash, newTable[newIndex]);
+      }
+    }
+    return newTable;
+  }
 
-        e.next = m_table[newIndex];
-        m_table[newIndex] = e;
+  /**
+   * @param expandedNameID an ID that has been handed out by this table.
+   * @return the extended type of the ID.
+   */
+  private ExtendedType getExtendedType(final int expandedNameID) {
+    final ExtendedType[] types = m_extendedTypes;
+    if (expandedNameID < types.length) {
+      final ExtendedType type = types[expandedNameID];
+      if (null != type) {
+        return type;
       }
     }
+
+    // The ID has been handed out by another thread, without anything
+    // to make its entry visible to this one.
+    synchronized (this) {
+      return m_extendedTypes[expandedNameID];
+    }
+  }
+
+  /** @return the number of expanded names in this table, including the basic node types. */
+  public int getSize() {
+    return m_nextType;
+  }
+
+  /**
+   * Given an expanded name ID, return the local name part.
+   *
+   * @param expandedNameID an ID that represents an expanded-name.
+   * @return String Local name of this node, or "" if it has none.
+   */
+  public final String getLocalName(final int expandedNameID) {
+    return getExtendedType(expandedNameID).getLocalName();
+  }
+
+  /**
+   * Given an expanded name ID, return the namespace URI part.
+   *
+   * @param expandedNameID an ID that represents an expanded-name.
+   * @return String URI value of this node's namespace, or null if no namespace was resolved.
+   */
+  public final String getNamespace(final int expandedNameID) {
+    final String namespace = getExtendedType(expandedNameID).getNamespace();
+    return namespace.length() == 0 ? null : namespace;
   }
 
   /**
@@ -210,7 +302,7 @@ public class ExpandedNameTable {
    * @return The id of this local name.
    */
   public final int getLocalNameID(final int expandedNameID) {
-    if (m_extendedTypes[expandedNameID].getLocalName().length() == 0) {
+    if (getExtendedType(expandedNameID).getLocalName().length() == 0) {
         return 0;
     }
     return expandedNameID;
@@ -223,7 +315,7 @@ public class ExpandedNameTable {
    * @return The id of this namespace.
    */
   public final int getNamespaceID(final int expandedNameID) {
-    if (m_extendedTypes[expandedNameID].getNamespace().length() == 0) {
+    if (getExtendedType(expandedNameID).getNamespace().length() == 0) {
         return 0;
     }
     return expandedNameID;
@@ -236,18 +328,19 @@ public class ExpandedNameTable {
    * @return The id of this local name.
    */
   public final short getType(final int expandedNameID) {
-    return (short) m_extendedTypes[expandedNameID].getNodeType();
+    return (short) getExtendedType(expandedNameID).getNodeType();
   }
 
   /**
    * Inner class which represents a hash table entry. The field next points to the next entry which
-   * is hashed into the same bucket in the case of "hash collision".
+   * is hashed into the same bucket in the case of "hash collision". Entries are immutable, so that
+   * they can be read without locking.
    */
   private static final class HashEntry {
     final ExtendedType key;
     final int value;
     final int hash;
-    HashEntry next;
+    final HashEntry next;
 
     private HashEntry(
         final ExtendedType key, final int value, final int hash, final HashEntry next) {
@@ -19,10 +19,10 @@ package org.htmlunit.xpath.xml.dtm.ref;
 
 /** The class ExtendedType represents an extended type object used by ExpandedNameTable. */
 public final class ExtendedType {
-  private int nodetype;
-  private String namespace;
-  private String localName;
-  private int hash;
+  private final int nodetype;
+  private final String namespace;
+  private final String localName;
+  private final int hash;
 
   /**
    * Create an ExtendedType object from node type, namespace and local name. The hash code is
@@ -55,18 +55,6 @@ public final class ExtendedType {
     this.hash = hash;
   }
 
-  /**
-   * Redefine this ExtendedType object to represent a different extended type. This is intended to
-   * be used ONLY on the hashET object. Using it elsewhere will mess up existing hashtable entries!
-   */
-  void redefine(
-      final int nodetype, final String namespace, final String localName, final int hash) {
-    this.nodetype = nodetype;
-    this.namespace = namespace;
-    this.localName = localName;
-    this.hash = hash;
-  }
-
   /** {@inheritDoc} */
   @Override
   public int hashCode() {
@@ -90,6 +78,20 @@ public final class ExtendedType {
     }
   }
 
+  /**
+   * Test if this ExtendedType object represents the given expanded name.
+   *
+   * @param nodetype Type of the node
+   * @param namespace Namespace of the node, not null
+   * @param localName Local name of the node, not null
+   * @return true if this ExtendedType object represents the expanded name.
+   */
+  boolean equals(final int nodetype, final String namespace, final String localName) {
+    return nodetype == this.nodetype
+        && localName.equals(this.localName)
+        && namespace.equals(this.namespace);
+  }
+
   /** @return the node type */
   public int getNodeType() {
     return nodetype;
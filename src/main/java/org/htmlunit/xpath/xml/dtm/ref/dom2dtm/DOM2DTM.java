@@ -18,7 +18,12 @@
 package org.htmlunit.xpath.xml.dtm.ref.dom2dtm;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
 
 import javax.xml.transform.dom.DOMSource;
 
@@ -27,9 +32,11 @@ import org.htmlunit.xpath.res.XPATHErrorResources;
 import org.htmlunit.xpath.res.XPATHMessages;
 import org.htmlunit.xpath.xml.dtm.DTM;
 import org.htmlunit.xpath.xml.dtm.DTMManager;
+import org.htmlunit.xpath.xml.dtm.DTMWSFilter;
 import org.htmlunit.xpath.xml.dtm.ref.DTMDefaultBaseIterators;
 import org.htmlunit.xpath.xml.dtm.ref.DTMManagerDefault;
 import org.htmlunit.xpath.xml.dtm.ref.ExpandedNameTable;
+import org.htmlunit.xpath.xml.utils.SuballocatedIntVector;
 import org.htmlunit.xpath.xml.utils.XMLCharacterRecognizer;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -43,8 +50,13 @@ import org.w3c.dom.Node;
  * a specific node and its subtree and the right things should happen. (I don't _think_ we currently
  * support DocumentFrgment nodes as roots, though that might be worth considering.)
  *
- * <p>Note too that we do not currently attempt to track document mutation. If you alter the DOM
- * after wrapping DOM2DTM around it, all bets are off.
+ * <p>Note too that we do not track document mutation by ourselves. If you alter the DOM after
+ * wrapping DOM2DTM around it, either report the change through {@link #childInserted(Node)}, {@link
+ * #childRemoved(Node, Node)} or {@link #attributesChanged(Element)}, or build a new DTM. Changes of
+ * character data or attribute values need no report, since values are always read from the DOM;
+ * the exception are attribute values while the DTM indexes them (see {@link
+ * DTMManagerDefault#setAttributeValueIndexing(boolean)}), which have to be reported as changed
+ * attributes.
  */
 public class DOM2DTM extends DTMDefaultBaseIterators {
   static final boolean JJK_DEBUG = false;
@@ -82,20 +94,111 @@ public class DOM2DTM extends DTMDefaultBaseIterators {
    */
   protected final List<Node> m_nodes = new ArrayList<>();
 
+  /**
+   * Reverse lookup for the first m_indexedNodes entries of m_nodes, keyed by object identity, so
+   * that resolving a DOM node to its DTM identity does not have to scan m_nodes. Most evaluations
+   * only ever resolve the root, so the map is filled by getIdentity() when a lookup needs it rather
+   * than by addNode().
+   */
+  private final Map<Node, Integer> m_nodeIdentities = new IdentityHashMap<>();
+
+  /** The number of entries of m_nodes that have been added to m_nodeIdentities. */
+  private int m_indexedNodes;
+
+  /**
+   * The first attribute record of each element record, DTM.NULL if the element has none, or
+   * NOTPROCESSED if they have not been asked for yet. Most queries never look at most attributes,
+   * so unlike namespace declarations (which the namespace tables need in document order) they are
+   * not recorded while the tree is built. Instead the attribute records of an element are appended
+   * as one block, chained by m_nextsib, when its attribute axis is first used.
+   */
+  private final SuballocatedIntVector m_firstattr;
+
+  /** The filter deciding which whitespace-only text nodes are stripped, may be null. */
+  private final DTMWSFilter m_wsfilter;
+
+  /**
+   * The name of the attribute holding the IDs of elements, see {@link
+   * DTMManagerDefault#setIdAttributeName(String)}; null if getElementById() asks the DOM.
+   */
+  private final String m_idAttribute;
+
+  /**
+   * The ID of each element record having one, by identity. Filled in by addNode() if
+   * m_idAttribute is set, in document order.
+   */
+  private final TreeMap<Integer, String> m_ids = new TreeMap<>();
+
+  /**
+   * The first element record having each ID. Derived from m_ids, and derived again if
+   * m_idsChanged is set.
+   */
+  private final Map<String, Integer> m_elementsById = new HashMap<>();
+
+  /** true if m_elementsById has to be derived from m_ids again. */
+  private boolean m_idsChanged;
+
+  /** The element record the last whitespace stripping decision was made for, or NULL. */
+  private int m_wsLastParent = NULL;
+
+  /** The last whitespace stripping decision, valid for m_wsLastParent. */
+  private boolean m_wsLastStrip;
+
+  /**
+   * Construct a DOM2DTM object from a DOM node.
+   *
+   * @param mgr The DTMManager who owns this DTM.
+   * @param domSource the DOM source that this DTM will wrap.
+   * @param dtmIdentity The DTM identity ID for this DTM.
+   * @param doIndexing true if the caller considers it worth it to use indexing schemes.
+   */
+  public DOM2DTM(
+      final DTMManager mgr,
+      final DOMSource domSource,
+      final int dtmIdentity,
+      final boolean doIndexing) {
+    this(mgr, domSource, dtmIdentity, null, doIndexing);
+  }
+
   /**
    * Construct a DOM2DTM object from a DOM node.
    *
    * @param mgr The DTMManager who owns this DTM.
    * @param domSource the DOM source that this DTM will wrap.
    * @param dtmIdentity The DTM identity ID for this DTM.
+   * @param whiteSpaceFilter The white space filter for this DTM, which may be null.
    * @param doIndexing true if the caller considers it worth it to use indexing schemes.
    */
   public DOM2DTM(
       final DTMManager mgr,
       final DOMSource domSource,
       final int dtmIdentity,
+      final DTMWSFilter whiteSpaceFilter,
       final boolean doIndexing) {
-    super(mgr, domSource, dtmIdentity, doIndexing);
+    this(mgr, domSource, dtmIdentity, whiteSpaceFilter, doIndexing, DEFAULT_BLOCKSIZE);
+  }
+
+  /**
+   * Construct a DOM2DTM object from a DOM node, using the given block size for the node arrays.
+   *
+   * @param mgr The DTMManager who owns this DTM.
+   * @param domSource the DOM source that this DTM will wrap.
+   * @param dtmIdentity The DTM identity ID for this DTM.
+   * @param whiteSpaceFilter The white space filter for this DTM, which may be null.
+   * @param doIndexing true if the caller considers it worth it to use indexing schemes.
+   * @param blocksize The block size of the node arrays.
+   */
+  protected DOM2DTM(
+      final DTMManager mgr,
+      final DOMSource domSource,
+      final int dtmIdentity,
+      final DTMWSFilter whiteSpaceFilter,
+      final boolean doIndexing,
+      final int blocksize) {
+    super(mgr, domSource, dtmIdentity, doIndexing, blocksize, true);
+    m_firstattr = new SuballocatedIntVector(blocksize);
+    m_wsfilter = whiteSpaceFilter;
+    m_idAttribute = (null == m_mgrDefault) ? null : m_mgrDefault.getIdAttributeName();
 
     // Initialize DOM navigation
     m_pos = m_root = domSource.getNode();
@@ -105,37 +208,46 @@ public class DOM2DTM extends DTMDefaultBaseIterators {
 
     // Apparently the domSource root may not actually be the
     // Document node. If it's an Element node, we need to immediately
-    // add its attributes. Adapted from nextNode().
-    // %REVIEW% Move this logic into addNode and recurse? Cleaner!
-    //
-    // (If it's an EntityReference node, we're probably in
-    // seriously bad trouble. For now
-    // I'm just hoping nobody is ever quite that foolish... %REVIEW%)
-    //
-    // %ISSUE% What about inherited namespaces in this case?
-    // Do we need to special-case initialize them into the DTM model?
+    // add its attributes.
+    addRootAttributes();
+
+    // Initialize DTM-completed status
+    m_nodesAreProcessed = false;
+  }
+
+  /**
+   * If the root is an Element node, add its namespace declarations. Adapted from nextNode().
+   *
+   * <p>%REVIEW% Move this logic into addNode and recurse? Cleaner!
+   *
+   * <p>(If it's an EntityReference node, we're probably in seriously bad trouble. For now I'm just
+   * hoping nobody is ever quite that foolish... %REVIEW%)
+   *
+   * <p>%ISSUE% What about inherited namespaces in this case? Do we need to special-case initialize
+   * them into the DTM model?
+   */
+  private void addRootAttributes() {
     if (ELEMENT_NODE == m_root.getNodeType()) {
       final NamedNodeMap attrs = m_root.getAttributes();
       final int attrsize = (attrs == null) ? 0 : attrs.getLength();
       if (attrsize > 0) {
         int attrIndex = NULL; // start with no previous sib
         for (int i = 0; i < attrsize; ++i) {
-          // No need to force nodetype in this case;
-          // addNode() will take care of switching it from
-          // Attr to Namespace if necessary.
-          attrIndex = addNode(attrs.item(i), 0, attrIndex, NULL);
-          m_firstch.setElementAt(DTM.NULL, attrIndex);
+          // Ordinary attributes are added on demand by getFirstAttributeIdentity().
+          if (isNamespaceDeclaration(attrs.item(i))) {
+            attrIndex = addNode(attrs.item(i), 0, attrIndex, NULL);
+            m_firstch.setElementAt(DTM.NULL, attrIndex);
+          }
         }
         // Terminate list of attrs, and make sure they aren't
         // considered children of the element
-        m_nextsib.setElementAt(DTM.NULL, attrIndex);
+        if (attrIndex != NULL) {
+          m_nextsib.setElementAt(DTM.NULL, attrIndex);
+        }
 
         // IMPORTANT: This does NOT change m_last_parent or m_last_kid!
       } // if attrs exist
     } // if(ELEMENT_NODE)
-
-    // Initialize DTM-completed status
-    m_nodesAreProcessed = false;
   }
 
   /**
@@ -162,8 +274,7 @@ public class DOM2DTM extends DTMDefaultBaseIterators {
 
         // Handle as Extended Addressing
         final DTMManagerDefault mgrD = (DTMManagerDefault) m_mgr;
-        final int id = mgrD.getFirstFreeDTMID();
-        mgrD.addDTM(this, id, nodeIndex);
+        final int id = mgrD.addDTMAtFreeID(this, nodeIndex);
         m_dtmIdent.addElement(id << DTMManager.IDENT_DTM_NODE_BITS);
       }
       catch (final ClassCastException e) {
@@ -203,20 +314,27 @@ public class DOM2DTM extends DTMDefaultBaseIterators {
     // so if it's read-only). The best available answer might be to
     // synthesize additional DTM Namespace Nodes that don't correspond
     // to DOM Attr Nodes.
-    if (Node.ATTRIBUTE_NODE == type) {
-      final String name = node.getNodeName();
-
-      if (name.startsWith("xmlns:") || "xmlns".equals(name)) {
-        type = DTM.NAMESPACE_NODE;
-      }
+    if (Node.ATTRIBUTE_NODE == type && isNamespaceDeclaration(node)) {
+      type = DTM.NAMESPACE_NODE;
     }
 
     m_nodes.add(node);
+    if (null != m_idAttribute && Node.ELEMENT_NODE == type) {
+      addId((Element) node, nodeIndex);
+    }
 
     m_firstch.setElementAt(NOTPROCESSED, nodeIndex);
     m_nextsib.setElementAt(NOTPROCESSED, nodeIndex);
     m_prevsib.setElementAt(previousSibling, nodeIndex);
     m_parent.setElementAt(parentIndex, nodeIndex);
+    m_firstattr.setElementAt((DTM.ELEMENT_NODE == type) ? NOTPROCESSED : DTM.NULL, nodeIndex);
+    m_level.setElementAt(
+        (DTM.NULL == parentIndex) ? 0 : m_level.elementAt(parentIndex) + 1, nodeIndex);
+    // Attributes and namespace nodes never have children; everything
+    // else is closed by nextNode() once its content has been added.
+    m_subtreeEnd.setElementAt(
+        (DTM.ATTRIBUTE_NODE == type || DTM.NAMESPACE_NODE == type) ? nodeIndex : NOTPROCESSED,
+        nodeIndex);
 
     if (DTM.NULL != parentIndex && type != DTM.ATTRIBUTE_NODE && type != DTM.NAMESPACE_NODE) {
       // If the DTM parent had no children, this becomes its first child.
@@ -319,6 +437,7 @@ public class DOM2DTM extends DTMDefaultBaseIterators {
           // If it has _no_ children, we need to record that.
           if (m_firstch.elementAt(m_last_kid) == NOTPROCESSED) {
             m_firstch.setElementAt(NULL, m_last_kid);
+            m_subtreeEnd.setElementAt(m_size - 1, m_last_kid);
           }
         }
 
@@ -363,6 +482,7 @@ public class DOM2DTM extends DTMDefaultBaseIterators {
             else {
                 m_nextsib.setElementAt(NULL, m_last_kid); // Popping from anything else
             }
+            m_subtreeEnd.setElementAt(m_size - 1, m_last_parent);
             m_last_parent = m_parent.elementAt(m_last_kid = m_last_parent);
           }
         }
@@ -425,6 +545,7 @@ public class DOM2DTM extends DTMDefaultBaseIterators {
     // nexttype=pos.getNodeType();
     if (TEXT_NODE == nexttype || CDATA_SECTION_NODE == nexttype) {
       // If filtering, initially assume we're going to suppress the node
+      suppressNode = null != m_wsfilter;
 
       // Scan logically contiguous text (siblings, plus "flattening"
       // of entity reference boundaries).
@@ -437,10 +558,13 @@ public class DOM2DTM extends DTMDefaultBaseIterators {
         }
         // Any non-whitespace in this sequence blocks whitespace
         // suppression
-        suppressNode &= XMLCharacterRecognizer.isWhiteSpace(n.getNodeValue());
+        suppressNode = suppressNode && XMLCharacterRecognizer.isWhiteSpace(n.getNodeValue());
 
         n = logicalNextDOMTextNode(n);
       }
+
+      // Only ask the filter once the text is known to be whitespace
+      suppressNode = suppressNode && getShouldStripWhitespace(m_last_parent);
     }
 
     // Special handling for PIs: Some DOMs represent the XML
@@ -462,15 +586,16 @@ public class DOM2DTM extends DTMDefaultBaseIterators {
 
       if (ELEMENT_NODE == nexttype) {
         int attrIndex = NULL; // start with no previous sib
-        // Process attributes _now_, rather than waiting.
+        // Process namespace declarations _now_, rather than waiting.
         // Simpler control flow, makes NS cache available immediately.
+        // Ordinary attributes are added on demand by getFirstAttributeIdentity().
         final NamedNodeMap attrs = next.getAttributes();
         final int attrsize = (attrs == null) ? 0 : attrs.getLength();
         if (attrsize > 0) {
           for (int i = 0; i < attrsize; ++i) {
-            // No need to force nodetype in this case;
-            // addNode() will take care of switching it from
-            // Attr to Namespace if necessary.
+            if (!isNamespaceDeclaration(attrs.item(i))) {
+              continue;
+            }
             attrIndex = addNode(attrs.item(i), nextindex, attrIndex, NULL);
             m_firstch.setElementAt(DTM.NULL, attrIndex);
 
@@ -525,6 +650,417 @@ public class DOM2DTM extends DTMDefaultBaseIterators {
     return true;
   }
 
+  /**
+   * Update the DTM after a node has been inserted into the DOM.
+   *
+   * <p>Node identities have to stay in document order, so the new node can not simply be appended
+   * to the node arrays. Instead all records from the insertion point on are discarded and rebuilt
+   * incrementally when they are needed. Handles of discarded nodes become invalid.
+   *
+   * @param child the inserted node, already attached to its new parent.
+   */
+  public void childInserted(final Node child) {
+    if (!isInTree(child.getParentNode())) {
+      return;
+    }
+
+    // find the first node following the new one that already has a record
+    for (Node n = child; n != null && n != m_root; n = n.getParentNode()) {
+      for (Node sib = n.getNextSibling(); sib != null; sib = sib.getNextSibling()) {
+        final Integer identity = getIdentity(sib);
+        if (null != identity) {
+          rewind(identity);
+          return;
+        }
+      }
+    }
+    rewind(m_size);
+  }
+
+  /**
+   * Update the DTM after a node has been removed from the DOM. All records from the removed node
+   * on are discarded and rebuilt incrementally when they are needed. Handles of discarded nodes
+   * become invalid.
+   *
+   * @param parent the former parent of the removed node.
+   * @param child the removed node.
+   */
+  public void childRemoved(final Node parent, final Node child) {
+    if (!isInTree(parent)) {
+      return;
+    }
+
+    Integer identity = getIdentity(child);
+    if (null == identity) {
+      // Not built yet, or merged into a preceding text record;
+      // rebuild the content of the parent to be on the safe side.
+      final Integer parentIdentity = getIdentity(parent);
+      if (null == parentIdentity) {
+        return;
+      }
+      identity = parentIdentity + 1;
+      while (identity < m_size) {
+        final int type = m_expandedNameTable.getType(m_exptype.elementAt(identity));
+        if (DTM.ATTRIBUTE_NODE != type && DTM.NAMESPACE_NODE != type) {
+          break;
+        }
+        identity++;
+      }
+    }
+    rewind(identity);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Drops the references to the DOM nodes, so that a released DTM that is still referenced
+   * somewhere no longer keeps the visited part of the DOM reachable, and stops building.
+   */
+  @Override
+  public void documentRelease() {
+    m_nodes.clear();
+    m_nodeIdentities.clear();
+    m_indexedNodes = 0;
+    m_ids.clear();
+    m_elementsById.clear();
+    m_nodesAreProcessed = true;
+    m_pos = null;
+  }
+
+  /**
+   * Update the DTM after attributes have been added to or removed from an element. Value changes
+   * of existing attributes need no update, unless a whitespace filter that may depend on them is
+   * used.
+   *
+   * @param element the element whose attributes have changed.
+   */
+  public void attributesChanged(final Element element) {
+    final Integer identity = getIdentity(element);
+    if (null == identity) {
+      return;
+    }
+    discardAttributeValueIndexes();
+    if (null != m_idAttribute) {
+      final String id = element.getAttribute(m_idAttribute);
+      if (!Objects.equals(m_ids.get(identity), id.isEmpty() ? null : id)) {
+        m_idsChanged = true;
+        m_ids.remove(identity);
+        addId(element, identity);
+      }
+    }
+
+    final List<Node> declarations = new ArrayList<>();
+    final List<Node> attributes = new ArrayList<>();
+    final NamedNodeMap attrs = element.getAttributes();
+    final int attrsize = (attrs == null) ? 0 : attrs.getLength();
+    for (int i = 0; i < attrsize; i++) {
+      final Node attr = attrs.item(i);
+      (isNamespaceDeclaration(attr) ? declarations : attributes).add(attr);
+    }
+
+    // Namespace declarations are recorded right behind the element and
+    // can only be changed by rebuilding it.
+    boolean unchanged = true;
+    int i = 0;
+    for (int nsIndex = identity + 1;
+        nsIndex < m_size && DTM.NAMESPACE_NODE == _type(nsIndex);
+        nsIndex++) {
+      final Node decl = m_nodes.get(nsIndex);
+      if (!(decl instanceof DOM2DTMdefaultNamespaceDeclarationNode)) {
+        unchanged &= i < declarations.size() && decl == declarations.get(i);
+        i++;
+      }
+    }
+    if (!unchanged || i != declarations.size()) {
+      rewind(identity);
+      return;
+    }
+
+    if (null != m_wsfilter) {
+      // The filter may depend on attributes (e.g. xml:space), so the
+      // whitespace in the content may have to be stripped differently.
+      rewind(identity);
+      return;
+    }
+
+    final int first = m_firstattr.elementAt(identity);
+    if (NOTPROCESSED == first) {
+      return;
+    }
+    i = 0;
+    for (int attrIndex = first; DTM.NULL != attrIndex; attrIndex = m_nextsib.elementAt(attrIndex)) {
+      unchanged &= i < attributes.size() && m_nodes.get(attrIndex) == attributes.get(i);
+      i++;
+    }
+    if (!unchanged || i != attributes.size()) {
+      // Abandon the old block; a new one is built when the attributes are asked for.
+      for (int attrIndex = first;
+          DTM.NULL != attrIndex;
+          attrIndex = m_nextsib.elementAt(attrIndex)) {
+        m_nodeIdentities.remove(m_nodes.get(attrIndex));
+      }
+      m_firstattr.setElementAt(NOTPROCESSED, identity);
+    }
+  }
+
+  /**
+   * Update the DTM after the data of a text node has been changed. The text is always read from
+   * the DOM, only the text index has to be dropped.
+   *
+   * @param node the text node whose data has changed.
+   */
+  public void characterDataChanged(final Node node) {
+    discardTextIndex();
+  }
+
+  /**
+   * Discard all records at or after the given identity and set up the incremental builder to
+   * continue right behind the last remaining record. Text records directly before the given
+   * identity are discarded too, since new text may have to be coalesced with them.
+   *
+   * <p>Everything after the first changed node is discarded, not only the mutated subtree: node
+   * identities are assigned in document order and handed out as part of the node handles, so the
+   * records following the subtree can not be shifted to make room for more or fewer nodes. A
+   * mutation near the start of a large document therefore costs about as much as building its DTM
+   * again, although the rebuild only happens as far as later queries walk.
+   *
+   * @param identity the first record to discard.
+   */
+  protected void rewind(int identity) {
+    identity = Math.max(1, Math.min(identity, m_size));
+
+    // Find the last record that stays, skipping attribute blocks (they are
+    // not part of the build order) and text records.
+    int last = identity - 1;
+    while (true) {
+      while (last > 0 && DTM.ATTRIBUTE_NODE == _type(last)) {
+        last--;
+      }
+      if (last > 0 && isTextType(m_exptype.elementAt(last))) {
+        identity = last--;
+      }
+      else {
+        break;
+      }
+    }
+
+    for (int i = identity; i < m_nodes.size(); i++) {
+      // attribute blocks of remaining elements have to be rebuilt on demand
+      final int parent = m_parent.elementAt(i);
+      if (parent < identity && DTM.NULL != parent && m_firstattr.elementAt(parent) == i) {
+        m_firstattr.setElementAt(NOTPROCESSED, parent);
+      }
+      if (i < m_indexedNodes) {
+        m_nodeIdentities.remove(m_nodes.get(i));
+      }
+    }
+    m_nodes.subList(identity, m_nodes.size()).clear();
+    m_indexedNodes = Math.min(m_indexedNodes, identity);
+    m_size = identity;
+    m_wsLastParent = NULL;
+    if (!m_ids.isEmpty() && m_ids.lastKey() >= identity) {
+      m_ids.tailMap(identity).clear();
+      m_idsChanged = true;
+    }
+    truncateIndexes(identity);
+    if (1 == identity) {
+      addRootAttributes();
+    }
+
+    // Namespace declarations are built together with their element, so restart behind the element.
+    if (DTM.NAMESPACE_NODE == _type(last)) {
+      last = m_parent.elementAt(last);
+    }
+
+    // Reopen the path from the last record up to the root, exactly as
+    // nextNode() leaves it after adding that record.
+    m_firstch.setElementAt(NOTPROCESSED, last);
+    for (int n = last; n != NULL; n = m_parent.elementAt(n)) {
+      m_nextsib.setElementAt(NOTPROCESSED, n);
+      m_subtreeEnd.setElementAt(NOTPROCESSED, n);
+    }
+
+    m_pos = m_nodes.get(last);
+    m_last_kid = last;
+    m_last_parent = m_parent.elementAt(last);
+    m_nodesAreProcessed = false;
+
+    m_processedFirstElement = false;
+    for (int i = 1; i < m_size; i++) {
+      if (DTM.ELEMENT_NODE == _type(i)) {
+        m_processedFirstElement = true;
+        break;
+      }
+    }
+  }
+
+  /**
+   * @param expandedTypeID the expanded type of a record.
+   * @return true if the record is a text or CDATA section node.
+   */
+  private boolean isTextType(final int expandedTypeID) {
+    final int type = m_expandedNameTable.getType(expandedTypeID);
+    return TEXT_NODE == type || CDATA_SECTION_NODE == type;
+  }
+
+  /**
+   * Ask the whitespace filter whether whitespace-only text is stripped from the given element,
+   * walking up the ancestors as long as the filter answers INHERIT. Whitespace is preserved if no
+   * element decides.
+   *
+   * @param parentIdentity the identity of the parent record of the text.
+   * @return true if whitespace-only text children of the parent are stripped.
+   */
+  private boolean getShouldStripWhitespace(final int parentIdentity) {
+    // Whitespace typically separates siblings, so the same parent is asked over and over.
+    if (parentIdentity == m_wsLastParent) {
+      return m_wsLastStrip;
+    }
+
+    boolean strip = false;
+    for (int identity = parentIdentity;
+        DTM.NULL != identity;
+        identity = m_parent.elementAt(identity)) {
+      if (DTM.ELEMENT_NODE == _type(identity)) {
+        final short wsv = m_wsfilter.getShouldStripSpace(makeNodeHandle(identity), this);
+        if (DTMWSFilter.INHERIT != wsv) {
+          strip = DTMWSFilter.STRIP == wsv;
+          break;
+        }
+      }
+    }
+
+    m_wsLastParent = parentIdentity;
+    m_wsLastStrip = strip;
+    return strip;
+  }
+
+  /**
+   * @param attr an attribute node.
+   * @return true if the attribute is a namespace declaration, and therefore becomes a namespace
+   *     node in the DTM.
+   */
+  static boolean isNamespaceDeclaration(final Node attr) {
+    final String name = attr.getNodeName();
+    return name.startsWith("xmlns:") || "xmlns".equals(name);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected int getFirstAttributeIdentity(final int identity) {
+    if (DTM.ELEMENT_NODE != _type(identity)) {
+      return DTM.NULL;
+    }
+
+    final int first = m_firstattr.elementAt(identity);
+    return (NOTPROCESSED == first) ? addAttributes(identity) : first;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected int getNextAttributeIdentity(final int identity) {
+    // The block of attribute records is chained by m_nextsib.
+    return m_nextsib.elementAt(identity);
+  }
+
+  /**
+   * Append the attribute records of an element, which are left out when the element is added.
+   * Namespace declarations are not included, they are recorded together with the element.
+   *
+   * @param identity the identity of the element record.
+   * @return the identity of the first attribute record, or DTM.NULL if there are none.
+   */
+  private int addAttributes(final int identity) {
+    int first = DTM.NULL;
+    int attrIndex = DTM.NULL;
+
+    final NamedNodeMap attrs = m_nodes.get(identity).getAttributes();
+    final int attrsize = (attrs == null) ? 0 : attrs.getLength();
+    for (int i = 0; i < attrsize; ++i) {
+      final Node attr = attrs.item(i);
+      if (!isNamespaceDeclaration(attr)) {
+        attrIndex = addNode(attr, identity, attrIndex, NULL);
+        m_firstch.setElementAt(DTM.NULL, attrIndex);
+        if (DTM.NULL == first) {
+          first = attrIndex;
+        }
+      }
+    }
+    if (DTM.NULL != attrIndex) {
+      m_nextsib.setElementAt(DTM.NULL, attrIndex);
+    }
+
+    m_firstattr.setElementAt(first, identity);
+    return first;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Attribute records are not stored in document order, see m_firstattr.
+   */
+  @Override
+  public boolean isNodeAfter(final int nodeHandle1, final int nodeHandle2) {
+    // These return NULL if the node doesn't belong to this document.
+    final int index1 = makeNodeIdentity(nodeHandle1);
+    final int index2 = makeNodeIdentity(nodeHandle2);
+
+    return index1 != NULL
+        && index2 != NULL
+        && getDocumentOrderKey(index1) <= getDocumentOrderKey(index2);
+  }
+
+  /**
+   * Compute a key that sorts the records in document order. Namespace and attribute nodes are
+   * placed right after their element, in that order.
+   *
+   * @param identity the identity of a record.
+   * @return the sort key.
+   */
+  private long getDocumentOrderKey(final int identity) {
+    final int type = _type(identity);
+    if (DTM.ATTRIBUTE_NODE == type || DTM.NAMESPACE_NODE == type) {
+      final int owner = _parent(identity);
+      final long offset = (DTM.ATTRIBUTE_NODE == type) ? 0x40000000L + identity : identity - owner;
+      return ((long) owner << 32) + offset;
+    }
+    return (long) identity << 32;
+  }
+
+  /** @return the DOM node this DTM has been built from, the root of the tree it covers. */
+  public Node getRoot() {
+    return m_root;
+  }
+
+  /**
+   * Get the handle of a node whose ancestors have already been checked to include the root of this
+   * DTM, which saves getHandleOfNode(Node) from checking them again.
+   *
+   * @param node A node in the tree of this DTM.
+   * @return The node handle or <code>DTM.NULL</code>, e.g. for stripped whitespace.
+   */
+  public int getHandleOfNodeInTree(final Node node) {
+    return getHandleFromNode(node);
+  }
+
+  /**
+   * @param node a DOM node, may be null.
+   * @return true if the node is m_root or one of its descendants.
+   */
+  private boolean isInTree(final Node node) {
+    for (Node cursor = node;
+        cursor != null;
+        cursor =
+            (cursor.getNodeType() != ATTRIBUTE_NODE)
+                ? cursor.getParentNode()
+                : ((org.w3c.dom.Attr) cursor).getOwnerElement()) {
+      if (cursor == m_root) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /** {@inheritDoc} */
   @Override
   public Node getNode(final int nodeHandle) {
@@ -563,47 +1099,67 @@ public class DOM2DTM extends DTMDefaultBaseIterators {
   /**
    * Get the handle from a Node.
    *
-   * <p>%OPT% This will be pretty slow.
-   *
-   * <p>%OPT% An XPath-like search (walk up DOM to root, tracking path; walk down DTM reconstructing
-   * path) might be considerably faster on later nodes in large documents. That might also imply
-   * improving this call to handle nodes which would be in this DTM but have not yet been built,
-   * which might or might not be a Good Thing. %REVIEW% This relies on being able to test
-   * node-identity via object-identity. DTM2DOM proxying is a great example of a case where that
-   * doesn't work. DOM Level 3 will provide the isSameNode() method to fix that, but until then this
-   * is going to be flaky.
+   * <p>The lookup goes through an identity map maintained by getIdentity(); if the node has not been
+   * reached by the incremental build yet, the build is advanced until it is. %REVIEW% This relies
+   * on being able to test node-identity via object-identity. DTM2DOM proxying is a great example of
+   * a case where that doesn't work. DOM Level 3 will provide the isSameNode() method to fix that,
+   * but until then this is going to be flaky.
    *
    * @param node A node, which may be null.
    * @return The node handle or <code>DTM.NULL</code>.
    */
   private int getHandleFromNode(final Node node) {
     if (null != node) {
-      int len = m_nodes.size();
-      boolean isMore;
-      int i = 0;
-      do {
-        for ( ; i < len; i++) {
-          if (m_nodes.get(i) == node) {
-              return makeNodeHandle(i);
-          }
+      if (ATTRIBUTE_NODE == node.getNodeType() && !isNamespaceDeclaration(node)) {
+        // Attribute records only exist once the attributes of their element were asked for.
+        final int owner = getHandleFromNode(((org.w3c.dom.Attr) node).getOwnerElement());
+        if (DTM.NULL != owner) {
+          getFirstAttributeIdentity(makeNodeIdentity(owner));
         }
 
-        isMore = nextNode();
+        final Integer identity = getIdentity(node);
+        return (null == identity) ? DTM.NULL : makeNodeHandle(identity);
+      }
 
-        len = m_nodes.size();
+      Integer identity = getIdentity(node);
+      while (null == identity && nextNode()) {
+        identity = getIdentity(node);
+      }
 
+      if (null != identity) {
+        return makeNodeHandle(identity);
       }
-      while (isMore || i < len);
     }
 
     return DTM.NULL;
   }
 
+  /**
+   * Look up the identity of a DOM node among the records built so far, first adding the records
+   * built since the last lookup to m_nodeIdentities.
+   *
+   * @param node a DOM node.
+   * @return the identity, or null if the node has no record (yet).
+   */
+  private Integer getIdentity(final Node node) {
+    final List<Node> nodes = m_nodes;
+    if (node == m_root && !nodes.isEmpty()) {
+      return 0;
+    }
+
+    final int size = nodes.size();
+    for (int i = m_indexedNodes; i < size; i++) {
+      m_nodeIdentities.put(nodes.get(i), i);
+    }
+    m_indexedNodes = size;
+    return m_nodeIdentities.get(node);
+  }
+
   /**
    * Get the handle from a Node. This is a more robust version of getHandleFromNode, intended to be
    * usable by the public.
    *
-   * <p>%OPT% This will be pretty slow. %REVIEW% This relies on being able to test node-identity via
+   * <p>%REVIEW% This relies on being able to test node-identity via
    * object-identity. DTM2DOM proxying is a great example of a case where that doesn't work. DOM
    * Level 3 will provide the isSameNode() method to fix that, but until then this is going to be
    * flaky.
@@ -651,40 +1207,30 @@ public class DOM2DTM extends DTMDefaultBaseIterators {
         namespaceURI = "";
     }
 
-    int type = getNodeType(nodeHandle);
+    final int type = getNodeType(nodeHandle);
 
     if (DTM.ELEMENT_NODE == type) {
+      final int elementIdentity = makeNodeIdentity(nodeHandle);
 
-      // Assume that attributes immediately follow the element.
-      int identity = makeNodeIdentity(nodeHandle);
-
-      while (DTM.NULL != (identity = getNextNodeIdentity(identity))) {
-        // Assume this can not be null.
-        type = _type(identity);
-
-        // %REVIEW%
-        // Should namespace nodes be retrievable DOM-style as attrs?
-        // If not we need a separate function... which may be desirable
-        // architecturally, but which is ugly from a code point of view.
-        // (If we REALLY insist on it, this code should become a subroutine
-        // of both -- retrieve the node, then test if the type matches
-        // what you're looking for.)
-        if (type == DTM.ATTRIBUTE_NODE || type == DTM.NAMESPACE_NODE) {
-          final Node node = lookupNode(identity);
-          String nodeuri = node.getNamespaceURI();
-
-          if (null == nodeuri) {
-              nodeuri = "";
-          }
-
-          final String nodelocalname = node.getLocalName();
-
-          if (nodeuri.equals(namespaceURI) && name.equals(nodelocalname)) {
-            return makeNodeHandle(identity);
-          }
+      // Namespace declarations immediately follow the element.
+      //
+      // %REVIEW%
+      // Should namespace nodes be retrievable DOM-style as attrs?
+      // If not we need a separate function... which may be desirable
+      // architecturally, but which is ugly from a code point of view.
+      int identity = elementIdentity;
+      while (DTM.NULL != (identity = getNextNodeIdentity(identity))
+          && DTM.NAMESPACE_NODE == _type(identity)) {
+        if (hasName(identity, namespaceURI, name)) {
+          return makeNodeHandle(identity);
         }
-        else { // if (DTM.NAMESPACE_NODE != type)
-          break;
+      }
+
+      for (identity = getFirstAttributeIdentity(elementIdentity);
+          DTM.NULL != identity;
+          identity = getNextAttributeIdentity(identity)) {
+        if (hasName(identity, namespaceURI, name)) {
+          return makeNodeHandle(identity);
         }
       }
     }
@@ -692,6 +1238,23 @@ public class DOM2DTM extends DTMDefaultBaseIterators {
     return DTM.NULL;
   }
 
+  /**
+   * @param identity the identity of an attribute or namespace record.
+   * @param namespaceURI the namespace URI to compare with, "" for no namespace.
+   * @param name the local name to compare with.
+   * @return true if the record has the given name.
+   */
+  private boolean hasName(final int identity, final String namespaceURI, final String name) {
+    final Node node = lookupNode(identity);
+    String nodeuri = node.getNamespaceURI();
+
+    if (null == nodeuri) {
+        nodeuri = "";
+    }
+
+    return nodeuri.equals(namespaceURI) && name.equals(node.getLocalName());
+  }
+
   /** {@inheritDoc} */
   @Override
   public XString getStringValue(final int nodeHandle) {
@@ -704,7 +1267,13 @@ public class DOM2DTM extends DTMDefaultBaseIterators {
         || DTM.DOCUMENT_NODE == type
         || DTM.DOCUMENT_FRAGMENT_NODE == type) {
       final StringBuilder buf = new StringBuilder();
-      getNodeData(node, buf);
+      if (null == m_wsfilter) {
+        getNodeData(node, buf);
+      }
+      else {
+        // Stripped whitespace is not part of the string value.
+        getTextRecordData(makeNodeIdentity(nodeHandle), buf);
+      }
       final String s = (buf.length() > 0) ? buf.toString() : "";
 
       return new XString(s);
@@ -730,6 +1299,27 @@ public class DOM2DTM extends DTMDefaultBaseIterators {
     }
   }
 
+  /**
+   * Retrieve the text content of a DTM subtree. Unlike getNodeData() this only picks up the DOM text
+   * nodes that have a DTM record, so whitespace removed by the filter is left out.
+   *
+   * @param identity the identity of the root record of the subtree.
+   * @param buf StringBuilder into which the contents of the text nodes are to be concatenated.
+   */
+  private void getTextRecordData(final int identity, final StringBuilder buf) {
+    for (int child = _firstch(identity); DTM.NULL != child; child = _nextsib(child)) {
+      final int type = _type(child);
+      if (TEXT_NODE == type || CDATA_SECTION_NODE == type) {
+        for (Node node = m_nodes.get(child); node != null; node = logicalNextDOMTextNode(node)) {
+          buf.append(node.getNodeValue());
+        }
+      }
+      else if (ELEMENT_NODE == type) {
+        getTextRecordData(child, buf);
+      }
+    }
+  }
+
   /**
    * Retrieve the text content of a DOM subtree, appending it into a user-supplied FastStringBuffer
    * object. Note that attributes are not considered part of the content of an element.
@@ -956,9 +1546,29 @@ public class DOM2DTM extends DTMDefaultBaseIterators {
     return (buf.length() > 0) ? buf.toString() : "";
   }
 
-  /** {@inheritDoc} */
+  /**
+   * {@inheritDoc}
+   *
+   * <p>If the manager names an ID attribute, the IDs recorded while building are looked up,
+   * building on until the ID is found. Otherwise the DOM is asked.
+   */
   @Override
   public int getElementById(final String elementId) {
+    if (null != m_idAttribute) {
+      if (m_idsChanged) {
+        m_elementsById.clear();
+        for (final Map.Entry<Integer, String> entry : m_ids.entrySet()) {
+          m_elementsById.putIfAbsent(entry.getValue(), entry.getKey());
+        }
+        m_idsChanged = false;
+      }
+
+      Integer identity = m_elementsById.get(elementId);
+      while (null == identity && nextNode()) {
+        identity = m_elementsById.get(elementId);
+      }
+      return (null == identity) ? DTM.NULL : makeNodeHandle(identity);
+    }
 
     final Document doc =
         (m_root.getNodeType() == Node.DOCUMENT_NODE)
@@ -968,22 +1578,25 @@ public class DOM2DTM extends DTMDefaultBaseIterators {
     if (null != doc) {
       final Node elem = doc.getElementById(elementId);
       if (null != elem) {
-        int elemHandle = getHandleFromNode(elem);
-
-        if (DTM.NULL == elemHandle) {
-          int identity = m_nodes.size() - 1;
-          while (DTM.NULL != (identity = getNextNodeIdentity(identity))) {
-            final Node node = getNode(identity);
-            if (node == elem) {
-              elemHandle = getHandleFromNode(elem);
-              break;
-            }
-          }
-        }
-
-        return elemHandle;
+        return getHandleFromNode(elem);
       }
     }
     return DTM.NULL;
   }
+
+  /**
+   * Record the ID of an element, if it has one.
+   *
+   * @param element the element.
+   * @param identity the identity of its record.
+   */
+  private void addId(final Element element, final int identity) {
+    final String id = element.getAttribute(m_idAttribute);
+    if (!id.isEmpty()) {
+      m_ids.put(identity, id);
+      if (!m_idsChanged) {
+        m_elementsById.putIfAbsent(id, identity);
+      }
+    }
+  }
 }
@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath.xml.dtm.ref.dom2dtm;
+
+import javax.xml.transform.dom.DOMSource;
+import org.htmlunit.xpath.xml.dtm.DTM;
+import org.htmlunit.xpath.xml.dtm.DTMManager;
+import org.htmlunit.xpath.xml.dtm.DTMWSFilter;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * A DOM2DTM that is built completely up front instead of incrementally.
+ *
+ * <p>The DOM is counted first so that the node arrays can be allocated as a single block large
+ * enough for the whole tree; {@link #build()} then creates all records in one pass. Because every
+ * record exists once the build is done, the navigation accessors read the node arrays directly and
+ * never have to check for NOTPROCESSED entries or advance the builder.
+ *
+ * <p>This pays off for queries that end up visiting most of the document anyway (e.g. "//foo"); for
+ * queries that only look at the beginning of a large document the incremental DOM2DTM is cheaper.
+ */
+public class DOM2DTMEager extends DOM2DTM {
+
+  /**
+   * Construct a DOM2DTMEager object from a DOM node. The records are not built until {@link
+   * #build()} is called.
+   *
+   * @param mgr The DTMManager who owns this DTM.
+   * @param domSource the DOM source that this DTM will wrap.
+   * @param dtmIdentity The DTM identity ID for this DTM.
+   * @param whiteSpaceFilter The white space filter for this DTM, which may be null.
+   * @param doIndexing true if the caller considers it worth it to use indexing schemes.
+   */
+  public DOM2DTMEager(
+      final DTMManager mgr,
+      final DOMSource domSource,
+      final int dtmIdentity,
+      final DTMWSFilter whiteSpaceFilter,
+      final boolean doIndexing) {
+    super(
+        mgr,
+        domSource,
+        dtmIdentity,
+        whiteSpaceFilter,
+        doIndexing,
+        blocksizeFor(domSource.getNode()));
+  }
+
+  /**
+   * Build all records of the DTM. This has to be called exactly once, after the DTM has been
+   * registered with its manager (large documents need additional DTM IDs from the manager while
+   * they are built) and before the DTM is used.
+   */
+  public void build() {
+    boolean more = true;
+    while (more) {
+      more = nextNode();
+    }
+  }
+
+  /** {@inheritDoc} The discarded records are rebuilt right away. */
+  @Override
+  protected void rewind(final int identity) {
+    super.rewind(identity);
+    build();
+  }
+
+  /**
+   * Compute a block size that lets the node arrays hold all records of the given subtree in their
+   * first block. SuballocatedIntVector only supports powers of two, so the count is rounded up.
+   *
+   * @param root the root of the subtree that will be wrapped.
+   * @return the block size.
+   */
+  private static int blocksizeFor(final Node root) {
+    final int count = countRecords(root);
+    return Math.max(Integer.highestOneBit(count - 1) << 1, 64);
+  }
+
+  /**
+   * Count the DTM records needed for a DOM subtree. This is an upper bound, since adjacent text
+   * nodes are coalesced and some nodes are suppressed during the build. Ordinary attributes are not
+   * counted; their records are only added on demand.
+   *
+   * @param root the root of the subtree.
+   * @return the upper bound of the number of records.
+   */
+  private static int countRecords(final Node root) {
+    // The implied xml: namespace declaration node.
+    int count = 1;
+
+    Node node = root;
+    while (null != node) {
+      count++;
+
+      final NamedNodeMap attrs = node.getAttributes();
+      final int attrsize = (null == attrs) ? 0 : attrs.getLength();
+      for (int i = 0; i < attrsize; i++) {
+        if (isNamespaceDeclaration(attrs.item(i))) {
+          count++;
+        }
+      }
+
+      Node next = node.getFirstChild();
+      while (null == next && node != root) {
+        next = node.getNextSibling();
+        if (null == next) {
+          node = node.getParentNode();
+        }
+      }
+      node = next;
+    }
+    return count;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected int getNextNodeIdentity(final int identity) {
+    final int next = identity + 1;
+    return (next < m_size) ? next : DTM.NULL;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected int _exptype(final int identity) {
+    if (identity == DTM.NULL || identity >= m_size) {
+      return NULL;
+    }
+    return m_exptype.elementAt(identity);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected int _level(final int identity) {
+    return (identity < m_size) ? m_level.elementAt(identity) : NULL;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected int _firstch(final int identity) {
+    return (identity < m_size) ? m_firstch.elementAt(identity) : NULL;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected int _nextsib(final int identity) {
+    return (identity < m_size) ? m_nextsib.elementAt(identity) : NULL;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected int _prevsib(final int identity) {
+    return (identity < m_size) ? m_prevsib.elementAt(identity) : NULL;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected int _parent(final int identity) {
+    return (identity < m_size) ? m_parent.elementAt(identity) : NULL;
+  }
+}
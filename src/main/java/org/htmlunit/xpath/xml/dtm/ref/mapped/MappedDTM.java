@@ -0,0 +1,433 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath.xml.dtm.ref.mapped;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import org.htmlunit.xpath.objects.XString;
+import org.htmlunit.xpath.res.XPATHErrorResources;
+import org.htmlunit.xpath.res.XPATHMessages;
+import org.htmlunit.xpath.xml.dtm.DTM;
+import org.htmlunit.xpath.xml.dtm.DTMManager;
+import org.htmlunit.xpath.xml.dtm.ref.DTMDefaultBaseIterators;
+import org.htmlunit.xpath.xml.dtm.ref.ExpandedNameTable;
+import org.htmlunit.xpath.xml.utils.MappedIntTable;
+import org.htmlunit.xpath.xml.utils.SuballocatedIntVector;
+
+/**
+ * A read-only DTM that serves its nodes straight from a memory mapped snapshot file, as written by
+ * {@link MappedDTMWriter}. The node arrays and the strings stay in the file; only the expanded
+ * name table, the element index and the namespace declaration sets are read into the heap when
+ * the DTM is opened. Since the file is mapped, the pages are shared with every other process that
+ * maps the same snapshot.
+ *
+ * <p>The snapshot file is a sequence of big-endian ints, followed by the UTF-8 bytes of the string
+ * pool:
+ *
+ * <ul>
+ *   <li>the header: MAGIC, VERSION, the number of records, the number of expanded names, the number
+ *       of strings, and the number of ints of the element index and of the namespace sets;
+ *   <li>the expanded names past the basic node types, as node type, namespace string and local
+ *       name string;
+ *   <li>the node arrays, one column per field, see the F_* constants; names and values are
+ *       indexes into the string pool, DTM.NULL for none;
+ *   <li>the element index, as namespace ID, local name ID, count and the element identities;
+ *   <li>the namespace declaration sets, as element identity, count and the identities of the
+ *       namespace records in scope;
+ *   <li>the byte offsets of the strings, one more than the number of strings, and their bytes.
+ * </ul>
+ *
+ * <p>Records are in document order, with the namespace and attribute records right after their
+ * element. ID attributes are not part of the snapshot, getElementById() never finds anything.
+ */
+public class MappedDTM extends DTMDefaultBaseIterators {
+
+  /** The first int of every snapshot file. */
+  static final int MAGIC = 0x44544D53;
+
+  /** The version of the file layout. */
+  static final int VERSION = 1;
+
+  /** The number of ints in the header. */
+  static final int HEADER_INTS = 7;
+
+  /** The number of fields per record. */
+  static final int FIELDS = 9;
+
+  // The fields of a record, in the order the DTMDefaultBase constructor takes the node arrays.
+  static final int F_EXPTYPE = 0;
+  static final int F_FIRSTCH = 1;
+  static final int F_NEXTSIB = 2;
+  static final int F_PARENT = 3;
+  static final int F_LEVEL = 4;
+  static final int F_SUBTREE_END = 5;
+  static final int F_PREVSIB = 6;
+  static final int F_NAME = 7;
+  static final int F_VALUE = 8;
+
+  /** The mapped file. */
+  private final ByteBuffer m_buffer;
+
+  /** The ints of the mapped file. */
+  private final IntBuffer m_ints;
+
+  /** The string pool index of the qualified name of each record. */
+  private final SuballocatedIntVector m_names;
+
+  /** The string pool index of the value of each record. */
+  private final SuballocatedIntVector m_values;
+
+  /** The position of the element index in m_ints. */
+  private final int m_indexStart;
+
+  /** The position of the namespace declaration sets in m_ints. */
+  private final int m_namespacesStart;
+
+  /** The position of the string offsets in m_ints. */
+  private final int m_stringOffsetsStart;
+
+  /** The byte position of the string pool. */
+  private final int m_stringsStart;
+
+  /** The strings decoded so far, by string pool index. */
+  private final String[] m_strings;
+
+  /**
+   * Map a snapshot file. The DTM has to be {@link #open() opened} once it has been registered with
+   * its manager.
+   *
+   * @param mgr The DTMManager who owns this DTM.
+   * @param file the snapshot file.
+   * @param dtmIdentity The DTM identity ID for this DTM.
+   * @throws IOException if the file can not be mapped.
+   */
+  public MappedDTM(final DTMManager mgr, final Path file, final int dtmIdentity)
+      throws IOException {
+    this(mgr, dtmIdentity, map(file));
+  }
+
+  private MappedDTM(final DTMManager mgr, final int dtmIdentity, final ByteBuffer buffer) {
+    super(mgr, null, dtmIdentity, getColumns(buffer));
+
+    m_buffer = buffer;
+    m_ints = buffer.asIntBuffer();
+    m_size = m_ints.get(2);
+
+    final int nameCount = m_ints.get(3);
+    final int stringCount = m_ints.get(4);
+    final int columnsStart = HEADER_INTS + 3 * (nameCount - NTYPES);
+    final MappedIntTable records = new MappedIntTable(m_ints, columnsStart, m_size);
+    m_names = records.getColumn(F_NAME);
+    m_values = records.getColumn(F_VALUE);
+
+    m_indexStart = columnsStart + FIELDS * m_size;
+    m_namespacesStart = m_indexStart + m_ints.get(5);
+    m_stringOffsetsStart = m_namespacesStart + m_ints.get(6);
+    m_stringsStart = 4 * (m_stringOffsetsStart + stringCount + 1);
+    m_strings = new String[stringCount];
+
+    // Filled in order, the table hands out the same IDs as the one of the stored DTM.
+    final ExpandedNameTable exnt = m_expandedNameTable;
+    for (int i = HEADER_INTS; i < columnsStart; i += 3) {
+      exnt.getExpandedTypeID(
+          getString(m_ints.get(i + 1)), getString(m_ints.get(i + 2)), m_ints.get(i));
+    }
+  }
+
+  /**
+   * Map a snapshot file and check its header.
+   *
+   * @param file the snapshot file.
+   * @return the mapped file.
+   * @throws IOException if the file can not be mapped.
+   */
+  private static ByteBuffer map(final Path file) throws IOException {
+    final ByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    if (buffer.capacity() < 4 * HEADER_INTS
+        || MAGIC != buffer.getInt(0)
+        || VERSION != buffer.getInt(4)) {
+      throw new RuntimeException(
+          XPATHMessages.createXPATHMessage(
+              XPATHErrorResources.ER_INVALID_DTM_SNAPSHOT, new Object[] {file}));
+    }
+    return buffer;
+  }
+
+  /**
+   * @param buffer a mapped snapshot file.
+   * @return the node arrays of the snapshot, in the order the DTMDefaultBase constructor takes.
+   */
+  private static SuballocatedIntVector[] getColumns(final ByteBuffer buffer) {
+    final IntBuffer ints = buffer.asIntBuffer();
+    final int size = ints.get(2);
+    final MappedIntTable records =
+        new MappedIntTable(ints, HEADER_INTS + 3 * (ints.get(3) - NTYPES), size);
+
+    final SuballocatedIntVector[] columns = new SuballocatedIntVector[F_PREVSIB + 1];
+    for (int i = 0; i < columns.length; i++) {
+      columns[i] = records.getColumn(i);
+    }
+    return columns;
+  }
+
+  /**
+   * Finish opening the DTM: add the DTM IDs needed to address all records, and read the element
+   * index and the namespace declaration sets. This has to be called exactly once, after the DTM
+   * has been registered with its manager and before it is used.
+   */
+  public void open() {
+    // Have we overflowed a DTM Identity's addressing range?
+    for (int offset = 1 << DTMManager.IDENT_DTM_NODE_BITS;
+        offset < m_size;
+        offset += 1 << DTMManager.IDENT_DTM_NODE_BITS) {
+      if (null == m_mgrDefault) {
+        throw new RuntimeException(
+            XPATHMessages.createXPATHMessage(XPATHErrorResources.ER_NO_DTMIDS_AVAIL, null));
+      }
+
+      // Handle as Extended Addressing
+      final int id = m_mgrDefault.addDTMAtFreeID(this, offset);
+      m_dtmIdent.addElement(id << DTMManager.IDENT_DTM_NODE_BITS);
+    }
+
+    final IntBuffer ints = m_ints;
+    for (int i = m_indexStart; i < m_namespacesStart; ) {
+      final int namespaceID = ints.get(i++);
+      final int localNameID = ints.get(i++);
+      final int count = ints.get(i++);
+
+      ensureSizeOfIndex(namespaceID, localNameID);
+      final int[] index = new int[count + 1];
+      index[0] = count + 1;
+      for (int k = 1; k <= count; k++) {
+        index[k] = ints.get(i++);
+      }
+      m_elemIndexes[namespaceID][localNameID] = index;
+    }
+
+    if (m_namespacesStart < m_stringOffsetsStart) {
+      m_namespaceDeclSetElements = new SuballocatedIntVector(32);
+      m_namespaceDeclSets = new ArrayList<>();
+    }
+    for (int i = m_namespacesStart; i < m_stringOffsetsStart; ) {
+      m_namespaceDeclSetElements.addElement(ints.get(i++));
+      final int count = ints.get(i++);
+
+      final SuballocatedIntVector nsList = new SuballocatedIntVector(32);
+      for (int k = 0; k < count; k++) {
+        nsList.addElement(makeNodeHandle(ints.get(i++)));
+      }
+      m_namespaceDeclSets.add(nsList);
+    }
+  }
+
+  /**
+   * @param index an index into the string pool, or DTM.NULL.
+   * @return the string, or null for DTM.NULL.
+   */
+  private String getString(final int index) {
+    if (DTM.NULL == index) {
+      return null;
+    }
+
+    String string = m_strings[index];
+    if (null == string) {
+      final int start = m_ints.get(m_stringOffsetsStart + index);
+      final byte[] bytes = new byte[m_ints.get(m_stringOffsetsStart + index + 1) - start];
+      for (int i = 0; i < bytes.length; i++) {
+        bytes[i] = m_buffer.get(m_stringsStart + start + i);
+      }
+      string = new String(bytes, StandardCharsets.UTF_8);
+      m_strings[index] = string;
+    }
+    return string;
+  }
+
+  /** {@inheritDoc} The DTM is complete once it has been mapped. */
+  @Override
+  protected boolean nextNode() {
+    return false;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected int getNextNodeIdentity(final int identity) {
+    final int next = identity + 1;
+    return (next < m_size) ? next : DTM.NULL;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getAttributeNode(final int nodeHandle, String namespaceURI, final String name) {
+    if (null == namespaceURI) {
+        namespaceURI = "";
+    }
+
+    final int elementIdentity = makeNodeIdentity(nodeHandle);
+    if (DTM.NULL == elementIdentity || ELEMENT_NODE != _type(elementIdentity)) {
+      return DTM.NULL;
+    }
+
+    // Namespace declarations and attributes immediately follow the element.
+    int identity = elementIdentity;
+    while (DTM.NULL != (identity = getNextNodeIdentity(identity))) {
+      final int type = _type(identity);
+      if (ATTRIBUTE_NODE != type && NAMESPACE_NODE != type) {
+        break;
+      }
+
+      final int exptype = _exptype(identity);
+      final String nodeuri = m_expandedNameTable.getNamespace(exptype);
+      if (namespaceURI.equals(null == nodeuri ? "" : nodeuri)
+          && name.equals(m_expandedNameTable.getLocalName(exptype))) {
+        return makeNodeHandle(identity);
+      }
+    }
+    return DTM.NULL;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public XString getStringValue(final int nodeHandle) {
+    final int identity = makeNodeIdentity(nodeHandle);
+    if (DTM.NULL == identity) {
+      return XString.EMPTYSTRING;
+    }
+
+    final int type = _type(identity);
+    if (ELEMENT_NODE != type && DOCUMENT_NODE != type && DOCUMENT_FRAGMENT_NODE != type) {
+      return new XString(getString(m_values.elementAt(identity)));
+    }
+
+    // The text of the subtree is found in the contiguous range of its descendants.
+    final int end = m_subtreeEnd.elementAt(identity);
+    final StringBuilder buf = new StringBuilder();
+    for (int i = identity + 1; i <= end; i++) {
+      final int t = _type(i);
+      if (TEXT_NODE == t || CDATA_SECTION_NODE == t) {
+        buf.append(getString(m_values.elementAt(i)));
+      }
+    }
+    return new XString(buf.toString());
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getNodeName(final int nodeHandle) {
+    final int identity = makeNodeIdentity(nodeHandle);
+    switch (_type(identity)) {
+      case TEXT_NODE:
+        return "#text";
+      case CDATA_SECTION_NODE:
+        return "#cdata-section";
+      case COMMENT_NODE:
+        return "#comment";
+      case DOCUMENT_NODE:
+        return "#document";
+      case DOCUMENT_FRAGMENT_NODE:
+        return "#document-fragment";
+      default:
+        return getString(m_names.elementAt(identity));
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getNodeNameX(final int nodeHandle) {
+    final int identity = makeNodeIdentity(nodeHandle);
+    final int type = _type(identity);
+
+    if (NAMESPACE_NODE == type) {
+      final String qname = getString(m_names.elementAt(identity));
+      final int index = qname.indexOf(':');
+      return (index < 0) ? "" : qname.substring(index + 1);
+    }
+
+    if (ATTRIBUTE_NODE == type
+        || ELEMENT_NODE == type
+        || PROCESSING_INSTRUCTION_NODE == type) {
+      return getString(m_names.elementAt(identity));
+    }
+
+    return "";
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getLocalName(final int nodeHandle) {
+    final int identity = makeNodeIdentity(nodeHandle);
+    if (DTM.NULL == identity) {
+        return null;
+    }
+    return m_expandedNameTable.getLocalName(_exptype(identity));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getPrefix(final int nodeHandle) {
+    final int identity = makeNodeIdentity(nodeHandle);
+    final int type = _type(identity);
+
+    if (NAMESPACE_NODE == type) {
+      final String qname = getString(m_names.elementAt(identity));
+      final int index = qname.indexOf(':');
+      return (index < 0) ? "" : qname.substring(index + 1);
+    }
+
+    if (ATTRIBUTE_NODE == type || ELEMENT_NODE == type) {
+      final String qname = getString(m_names.elementAt(identity));
+      final int index = qname.indexOf(':');
+      return (index < 0) ? "" : qname.substring(0, index);
+    }
+    return "";
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getNamespaceURI(final int nodeHandle) {
+    final int identity = makeNodeIdentity(nodeHandle);
+    if (DTM.NULL == identity) {
+        return null;
+    }
+    return m_expandedNameTable.getNamespace(_exptype(identity));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getNodeValue(final int nodeHandle) {
+    final int identity = makeNodeIdentity(nodeHandle);
+    return (DTM.NULL == identity) ? null : getString(m_values.elementAt(identity));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getElementById(final String elementId) {
+    // ID attributes are not kept in the snapshot
+    return DTM.NULL;
+  }
+}
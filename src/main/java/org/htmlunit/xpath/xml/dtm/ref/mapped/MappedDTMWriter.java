@@ -0,0 +1,329 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath.xml.dtm.ref.mapped;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.htmlunit.xpath.xml.dtm.DTM;
+import org.htmlunit.xpath.xml.dtm.ref.DTMDefaultBase;
+import org.htmlunit.xpath.xml.dtm.ref.ExpandedNameTable;
+import org.htmlunit.xpath.xml.utils.SuballocatedIntVector;
+
+/**
+ * Writes a DTM to a snapshot file that can be mapped by {@link MappedDTM}.
+ *
+ * <p>The DTM is walked through its public navigation methods, so any DTM can be written, however
+ * its records are ordered; the snapshot always has its records in document order with the
+ * namespace and attribute records right after their element. The expanded type IDs of the DTM are
+ * kept.
+ */
+public final class MappedDTMWriter {
+
+  /** The DTM that is written. */
+  private final DTMDefaultBase m_dtm;
+
+  /** The node arrays of the snapshot, see the MappedDTM.F_* constants. */
+  private final SuballocatedIntVector[] m_columns =
+      new SuballocatedIntVector[MappedDTM.FIELDS];
+
+  /** The number of records added so far. */
+  private int m_size;
+
+  /** The strings of the snapshot, in pool order. */
+  private final List<String> m_strings = new ArrayList<>();
+
+  /** Map from the strings to their index in the pool. */
+  private final Map<String, Integer> m_stringIndexes = new HashMap<>();
+
+  /** Map from the namespace node handles of the DTM to the identities of their records. */
+  private final Map<Integer, Integer> m_namespaceIdentities = new HashMap<>();
+
+  /** The element identities per namespace ID and local name ID, keyed by both IDs. */
+  private final Map<Long, SuballocatedIntVector> m_elemIndexes = new LinkedHashMap<>();
+
+  /** The namespace declaration sets, as element identity, count and namespace identities. */
+  private final SuballocatedIntVector m_namespaceSets = new SuballocatedIntVector(512);
+
+  private MappedDTMWriter(final DTMDefaultBase dtm) {
+    m_dtm = dtm;
+    for (int i = 0; i < m_columns.length; i++) {
+      m_columns[i] = new SuballocatedIntVector(DTMDefaultBase.DEFAULT_BLOCKSIZE);
+    }
+  }
+
+  /**
+   * Write a snapshot of a DTM. The DTM is built completely if it hasn't been yet.
+   *
+   * @param dtm the DTM to write.
+   * @param file the snapshot file, which is replaced if it exists.
+   * @throws IOException if the file can not be written.
+   */
+  public static void write(final DTMDefaultBase dtm, final Path file) throws IOException {
+    final MappedDTMWriter writer = new MappedDTMWriter(dtm);
+    writer.addTree();
+    writer.writeTo(file);
+  }
+
+  /** Add the records of the whole DTM, walking it in document order. */
+  private void addTree() {
+    final DTM dtm = m_dtm;
+    final SuballocatedIntVector parents = m_columns[MappedDTM.F_PARENT];
+    final SuballocatedIntVector subtreeEnds = m_columns[MappedDTM.F_SUBTREE_END];
+
+    final int root = dtm.getDocument();
+    int node = root;
+    int identity = addRecord(root, DTM.NULL, DTM.NULL);
+
+    while (true) {
+      final int child = dtm.getFirstChild(node);
+      if (DTM.NULL != child) {
+        node = child;
+        identity = addRecord(child, identity, DTM.NULL);
+        continue;
+      }
+
+      // Close the node and its ancestors up to the first one that has a next sibling.
+      while (true) {
+        subtreeEnds.setElementAt(m_size - 1, identity);
+        if (root == node) {
+          return;
+        }
+
+        final int next = dtm.getNextSibling(node);
+        if (DTM.NULL != next) {
+          node = next;
+          identity = addRecord(next, parents.elementAt(identity), identity);
+          break;
+        }
+
+        node = dtm.getParent(node);
+        identity = parents.elementAt(identity);
+      }
+    }
+  }
+
+  /**
+   * Add the record of a node; for an element also the records of its namespace nodes and
+   * attributes.
+   *
+   * @param node the handle of the node in the DTM.
+   * @param parent the identity of the parent record, or DTM.NULL.
+   * @param previousSibling the identity of the previous sibling record, or DTM.NULL.
+   * @return the identity of the new record.
+   */
+  private int addRecord(final int node, final int parent, final int previousSibling) {
+    final DTM dtm = m_dtm;
+    final SuballocatedIntVector[] columns = m_columns;
+    final int identity = m_size++;
+    final int exptype = dtm.getExpandedTypeID(node);
+    final short type = dtm.getNodeType(node);
+
+    columns[MappedDTM.F_EXPTYPE].setElementAt(exptype, identity);
+    columns[MappedDTM.F_FIRSTCH].setElementAt(DTM.NULL, identity);
+    columns[MappedDTM.F_NEXTSIB].setElementAt(DTM.NULL, identity);
+    columns[MappedDTM.F_PARENT].setElementAt(parent, identity);
+    columns[MappedDTM.F_LEVEL].setElementAt(
+        (DTM.NULL == parent) ? 0 : columns[MappedDTM.F_LEVEL].elementAt(parent) + 1, identity);
+    columns[MappedDTM.F_SUBTREE_END].setElementAt(identity, identity);
+    columns[MappedDTM.F_PREVSIB].setElementAt(previousSibling, identity);
+
+    if (DTM.NULL != previousSibling) {
+      columns[MappedDTM.F_NEXTSIB].setElementAt(identity, previousSibling);
+    }
+    if (DTM.NULL != parent
+        && DTM.ATTRIBUTE_NODE != type
+        && DTM.NAMESPACE_NODE != type
+        && DTM.NULL == columns[MappedDTM.F_FIRSTCH].elementAt(parent)) {
+      columns[MappedDTM.F_FIRSTCH].setElementAt(identity, parent);
+    }
+
+    final boolean hasName =
+        DTM.ELEMENT_NODE == type
+            || DTM.ATTRIBUTE_NODE == type
+            || DTM.NAMESPACE_NODE == type
+            || DTM.PROCESSING_INSTRUCTION_NODE == type;
+    columns[MappedDTM.F_NAME].setElementAt(
+        hasName ? getStringIndex(dtm.getNodeName(node)) : DTM.NULL, identity);
+
+    final boolean hasValue =
+        DTM.ELEMENT_NODE != type
+            && DTM.DOCUMENT_NODE != type
+            && DTM.DOCUMENT_FRAGMENT_NODE != type;
+    columns[MappedDTM.F_VALUE].setElementAt(
+        hasValue ? getStringIndex(dtm.getStringValue(node).toString()) : DTM.NULL, identity);
+
+    if (DTM.ELEMENT_NODE == type) {
+      addElementRecords(node, identity, exptype);
+    }
+    return identity;
+  }
+
+  /**
+   * Index an element and add the records of its namespace nodes and attributes.
+   *
+   * @param node the handle of the element in the DTM.
+   * @param identity the identity of the element record.
+   * @param exptype the expanded type ID of the element.
+   */
+  private void addElementRecords(final int node, final int identity, final int exptype) {
+    final DTM dtm = m_dtm;
+    final ExpandedNameTable exnt = m_dtm.getExpandedNameTable();
+
+    final long key =
+        ((long) exnt.getNamespaceID(exptype) << 32) | exnt.getLocalNameID(exptype);
+    m_elemIndexes
+        .computeIfAbsent(key, k -> new SuballocatedIntVector(DTMDefaultBase.DEFAULT_BLOCKSIZE))
+        .addElement(identity);
+
+    int previous = DTM.NULL;
+    for (int ns = dtm.getFirstNamespaceNode(node, false);
+        DTM.NULL != ns;
+        ns = dtm.getNextNamespaceNode(node, ns, false)) {
+      previous = addRecord(ns, identity, previous);
+      m_namespaceIdentities.put(ns, previous);
+    }
+
+    if (DTM.NULL != previous) {
+      // The element declares namespaces, record all of those in scope.
+      m_namespaceSets.addElement(identity);
+      final int countIndex = m_namespaceSets.size();
+      m_namespaceSets.addElement(0);
+
+      int count = 0;
+      for (int ns = dtm.getFirstNamespaceNode(node, true);
+          DTM.NULL != ns;
+          ns = dtm.getNextNamespaceNode(node, ns, true)) {
+        final Integer nsIdentity = m_namespaceIdentities.get(ns);
+        if (null != nsIdentity) {
+          m_namespaceSets.addElement(nsIdentity);
+          count++;
+        }
+      }
+      m_namespaceSets.setElementAt(count, countIndex);
+    }
+
+    for (int attr = dtm.getFirstAttribute(node);
+        DTM.NULL != attr;
+        attr = dtm.getNextAttribute(attr)) {
+      previous = addRecord(attr, identity, previous);
+    }
+  }
+
+  /**
+   * @param string a string.
+   * @return the index of the string in the string pool, which is added if necessary.
+   */
+  private int getStringIndex(final String string) {
+    if (null == string) {
+      return DTM.NULL;
+    }
+
+    Integer index = m_stringIndexes.get(string);
+    if (null == index) {
+      index = m_strings.size();
+      m_strings.add(string);
+      m_stringIndexes.put(string, index);
+    }
+    return index;
+  }
+
+  /**
+   * Write the snapshot file; see MappedDTM for the layout.
+   *
+   * @param file the snapshot file.
+   * @throws IOException if the file can not be written.
+   */
+  private void writeTo(final Path file) throws IOException {
+    final ExpandedNameTable exnt = m_dtm.getExpandedNameTable();
+    final int nameCount = exnt.getSize();
+
+    // The strings of the expanded names are needed before the pool is written.
+    final int[] nameStrings = new int[2 * nameCount];
+    for (int i = DTM.NTYPES; i < nameCount; i++) {
+      nameStrings[2 * i] = getStringIndex(exnt.getNamespace(i));
+      nameStrings[2 * i + 1] = getStringIndex(exnt.getLocalName(i));
+    }
+
+    int indexInts = 0;
+    for (final SuballocatedIntVector elems : m_elemIndexes.values()) {
+      indexInts += 3 + elems.size();
+    }
+
+    final List<byte[]> bytes = new ArrayList<>(m_strings.size());
+    for (final String string : m_strings) {
+      bytes.add(string.getBytes(StandardCharsets.UTF_8));
+    }
+
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+      out.writeInt(MappedDTM.MAGIC);
+      out.writeInt(MappedDTM.VERSION);
+      out.writeInt(m_size);
+      out.writeInt(nameCount);
+      out.writeInt(m_strings.size());
+      out.writeInt(indexInts);
+      out.writeInt(m_namespaceSets.size());
+
+      for (int i = DTM.NTYPES; i < nameCount; i++) {
+        out.writeInt(exnt.getType(i));
+        out.writeInt(nameStrings[2 * i]);
+        out.writeInt(nameStrings[2 * i + 1]);
+      }
+
+      for (final SuballocatedIntVector column : m_columns) {
+        for (int i = 0; i < m_size; i++) {
+          out.writeInt(column.elementAt(i));
+        }
+      }
+
+      for (final Map.Entry<Long, SuballocatedIntVector> entry : m_elemIndexes.entrySet()) {
+        final long key = entry.getKey();
+        final SuballocatedIntVector elems = entry.getValue();
+        out.writeInt((int) (key >>> 32));
+        out.writeInt((int) key);
+        out.writeInt(elems.size());
+        for (int i = 0; i < elems.size(); i++) {
+          out.writeInt(elems.elementAt(i));
+        }
+      }
+
+      for (int i = 0; i < m_namespaceSets.size(); i++) {
+        out.writeInt(m_namespaceSets.elementAt(i));
+      }
+
+      int offset = 0;
+      out.writeInt(offset);
+      for (final byte[] string : bytes) {
+        offset += string.length;
+        out.writeInt(offset);
+      }
+      for (final byte[] string : bytes) {
+        out.write(string);
+      }
+    }
+  }
+}
@@ -0,0 +1,699 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath.xml.dtm.ref.sax2dtm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXSource;
+import org.htmlunit.xpath.objects.XString;
+import org.htmlunit.xpath.res.XPATHErrorResources;
+import org.htmlunit.xpath.res.XPATHMessages;
+import org.htmlunit.xpath.xml.dtm.DTM;
+import org.htmlunit.xpath.xml.dtm.DTMManager;
+import org.htmlunit.xpath.xml.dtm.DTMWSFilter;
+import org.htmlunit.xpath.xml.dtm.ref.DTMDefaultBaseIterators;
+import org.htmlunit.xpath.xml.dtm.ref.DTMManagerDefault;
+import org.htmlunit.xpath.xml.dtm.ref.ExpandedNameTable;
+import org.htmlunit.xpath.xml.utils.XMLCharacterRecognizer;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * A DTM that is built directly from SAX events, without an intermediate DOM.
+ *
+ * <p>The DTM is filled by its {@link ContentHandler} and {@link LexicalHandler} callbacks; {@link
+ * #parse(Source)} feeds it from a stream, SAX or StAX source. The tree is kept in the node arrays
+ * of DTMDefaultBase like any other DTM; the only additional storage are the qualified names and
+ * the values of the records. Since the whole
+ * document is built before it is used, the DTM never has to advance a builder while it is read.
+ *
+ * <p>Attribute and namespace records immediately follow their element, namespace declarations
+ * first, so that node identities are in document order.
+ *
+ * <p>The nodes handed out by {@link #getNode(int)} are DTMNodeProxy objects; there is no DOM
+ * behind this DTM.
+ */
+public class SAX2DTM extends DTMDefaultBaseIterators implements ContentHandler, LexicalHandler {
+
+  /** The namespace URI of the xmlns attributes. */
+  private static final String XMLNS_NS = XMLConstants.XMLNS_ATTRIBUTE_NS_URI;
+
+  /** The qualified name of each record; null for records that have none, e.g. text. */
+  private final List<String> m_names = new ArrayList<>();
+
+  /** The value of each record; null for elements and the document. */
+  private final List<String> m_values = new ArrayList<>();
+
+  /** Map from ID attribute values to the identities of their elements. */
+  private final Map<String, Integer> m_idAttributes = new HashMap<>();
+
+  /** The whitespace filter for this DTM, may be null. */
+  private final DTMWSFilter m_wsfilter;
+
+  /** The identity of the record that receives the next child. */
+  private int m_lastParent = NULL;
+
+  /** The identity of the last child of m_lastParent, NULL if it has none yet. */
+  private int m_lastKid = NULL;
+
+  /** The prefix mappings declared for the next element, as prefix/URI pairs. */
+  private final List<String> m_prefixMappings = new ArrayList<>();
+
+  /** The text collected since the last non-text event. */
+  private final StringBuilder m_chars = new StringBuilder();
+
+  /** The node type of the collected text, CDATA_SECTION_NODE only if it is all CDATA. */
+  private int m_charsType = TEXT_NODE;
+
+  /** true while inside a CDATA section. */
+  private boolean m_inCDATA;
+
+  /** true while inside the DTD; comments there are not part of the document. */
+  private boolean m_inDTD;
+
+  /** true once the first element, which gets the implied xml: namespace node, has been seen. */
+  private boolean m_processedFirstElement;
+
+  /**
+   * Construct a SAX2DTM object. The records are not built until the SAX events are delivered,
+   * usually through {@link #parse(Source)}.
+   *
+   * @param mgr The DTMManager who owns this DTM.
+   * @param source the source that this DTM will be built from.
+   * @param dtmIdentity The DTM identity ID for this DTM.
+   * @param whiteSpaceFilter The white space filter for this DTM, which may be null.
+   * @param doIndexing true if the caller considers it worth it to use indexing schemes.
+   */
+  public SAX2DTM(
+      final DTMManager mgr,
+      final Source source,
+      final int dtmIdentity,
+      final DTMWSFilter whiteSpaceFilter,
+      final boolean doIndexing) {
+    super(mgr, source, dtmIdentity, doIndexing);
+    m_wsfilter = whiteSpaceFilter;
+  }
+
+  /**
+   * Build the DTM from the given source. Stream and SAX sources are handed to a SAX parser
+   * directly, so that the DTD events reach the lexical handler; other sources, i.e. StAX sources,
+   * are run through an identity transformation. This has to be called exactly once, after the DTM
+   * has been registered with its manager (large documents need additional DTM IDs from the manager
+   * while they are built) and before the DTM is used.
+   *
+   * <p>Unless a SAX source brings its own XMLReader, the document is parsed with secure processing
+   * and without loading external entities or an external DTD subset; a caller that needs them has
+   * to supply a reader configured accordingly. The readers of StAX sources are always supplied by
+   * the caller and have to be configured there.
+   *
+   * @param source a stream, SAX or StAX source.
+   */
+  public void parse(final Source source) {
+    try {
+      final InputSource input = SAXSource.sourceToInputSource(source);
+      if (null != input) {
+        XMLReader reader =
+            (source instanceof SAXSource) ? ((SAXSource) source).getXMLReader() : null;
+        if (null == reader) {
+          reader = newXMLReader();
+        }
+        reader.setContentHandler(this);
+        reader.setProperty("http://xml.org/sax/properties/lexical-handler", this);
+        reader.parse(input);
+      }
+      else {
+        final SAXResult result = new SAXResult(this);
+        result.setLexicalHandler(this);
+        final TransformerFactory factory = TransformerFactory.newInstance();
+        factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+        factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_STYLESHEET, "");
+        factory.newTransformer().transform(source, result);
+      }
+    }
+    catch (final TransformerException
+        | SAXException
+        | ParserConfigurationException
+        | IOException e) {
+      throw new RuntimeException(
+          XPATHMessages.createXPATHMessage(
+              XPATHErrorResources.ER_COULD_NOT_BUILD_DTM,
+              new Object[] {source.getSystemId(), e.getMessage()}),
+          e);
+    }
+  }
+
+  /**
+   * @return a namespace aware XMLReader that does not resolve external entities or load an external
+   *     DTD subset.
+   * @throws ParserConfigurationException if the parser can not be configured.
+   * @throws SAXException if the parser can not be configured.
+   */
+  private static XMLReader newXMLReader() throws ParserConfigurationException, SAXException {
+    final SAXParserFactory factory = SAXParserFactory.newInstance();
+    factory.setNamespaceAware(true);
+    factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+    factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+    factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+    factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+    return factory.newSAXParser().getXMLReader();
+  }
+
+  /**
+   * Add a record to the node arrays.
+   *
+   * @param type the node type of the record.
+   * @param expandedTypeID the expanded type ID of the record.
+   * @param name the qualified name, or null.
+   * @param value the value, or null.
+   * @param parentIndex the identity of the parent record.
+   * @param previousSibling the identity of the previous sibling, or of the previous attribute or
+   *     namespace record of the same element; NULL if there is none.
+   * @return the identity of the new record.
+   */
+  private int addNode(
+      final int type,
+      final int expandedTypeID,
+      final String name,
+      final String value,
+      final int parentIndex,
+      final int previousSibling) {
+    final int nodeIndex = m_size;
+
+    // Have we overflowed a DTM Identity's addressing range?
+    if (m_dtmIdent.size() == (nodeIndex >>> DTMManager.IDENT_DTM_NODE_BITS)) {
+      try {
+        if (m_mgr == null) {
+            throw new ClassCastException();
+        }
+
+        // Handle as Extended Addressing
+        final DTMManagerDefault mgrD = (DTMManagerDefault) m_mgr;
+        final int id = mgrD.addDTMAtFreeID(this, nodeIndex);
+        m_dtmIdent.addElement(id << DTMManager.IDENT_DTM_NODE_BITS);
+      }
+      catch (final ClassCastException e) {
+        throw new RuntimeException(
+            XPATHMessages.createXPATHMessage(XPATHErrorResources.ER_NO_DTMIDS_AVAIL, null), e);
+      }
+    }
+
+    m_size++;
+
+    m_names.add(name);
+    m_values.add(value);
+
+    m_exptype.setElementAt(expandedTypeID, nodeIndex);
+    m_prevsib.setElementAt(previousSibling, nodeIndex);
+    m_parent.setElementAt(parentIndex, nodeIndex);
+    m_level.setElementAt(
+        (DTM.NULL == parentIndex) ? 0 : m_level.elementAt(parentIndex) + 1, nodeIndex);
+
+    if (ELEMENT_NODE == type || DOCUMENT_NODE == type) {
+      // closed by closeParent() once the content has been added
+      m_firstch.setElementAt(NOTPROCESSED, nodeIndex);
+      m_nextsib.setElementAt(NOTPROCESSED, nodeIndex);
+      m_subtreeEnd.setElementAt(NOTPROCESSED, nodeIndex);
+    }
+    else {
+      m_firstch.setElementAt(DTM.NULL, nodeIndex);
+      m_nextsib.setElementAt(
+          (ATTRIBUTE_NODE == type || NAMESPACE_NODE == type) ? DTM.NULL : NOTPROCESSED, nodeIndex);
+      m_subtreeEnd.setElementAt(nodeIndex, nodeIndex);
+    }
+
+    if (DTM.NULL != parentIndex
+        && ATTRIBUTE_NODE != type
+        && NAMESPACE_NODE != type
+        && NOTPROCESSED == m_firstch.elementAt(parentIndex)) {
+      m_firstch.setElementAt(nodeIndex, parentIndex);
+    }
+    if (DTM.NULL != previousSibling) {
+      m_nextsib.setElementAt(nodeIndex, previousSibling);
+    }
+
+    indexNode(expandedTypeID, nodeIndex);
+
+    return nodeIndex;
+  }
+
+  /** Add a child record to the current parent. */
+  private void addChild(
+      final int type, final int expandedTypeID, final String name, final String value) {
+    m_lastKid = addNode(type, expandedTypeID, name, value, m_lastParent, m_lastKid);
+  }
+
+  /** Terminate the child list of the current parent and make it the last kid of its parent. */
+  private void closeParent() {
+    if (DTM.NULL == m_lastKid) {
+      m_firstch.setElementAt(DTM.NULL, m_lastParent);
+    }
+    else {
+      m_nextsib.setElementAt(DTM.NULL, m_lastKid);
+    }
+    m_subtreeEnd.setElementAt(m_size - 1, m_lastParent);
+
+    m_lastKid = m_lastParent;
+    m_lastParent = m_parent.elementAt(m_lastParent);
+  }
+
+  /** Add a record for the text collected so far, unless it is whitespace that is stripped. */
+  private void flushCharacters() {
+    if (m_chars.length() == 0) {
+      return;
+    }
+
+    final boolean strip =
+        null != m_wsfilter
+            && XMLCharacterRecognizer.isWhiteSpace(m_chars)
+            && getShouldStripWhitespace(m_lastParent);
+    if (!strip) {
+      addChild(m_charsType, m_charsType, null, m_chars.toString());
+    }
+    m_chars.setLength(0);
+  }
+
+  /**
+   * Ask the whitespace filter whether whitespace-only text is stripped from the given element,
+   * walking up the ancestors as long as the filter answers INHERIT.
+   *
+   * @param parentIdentity the identity of the parent record of the text.
+   * @return true if whitespace-only text children of the parent are stripped.
+   */
+  private boolean getShouldStripWhitespace(final int parentIdentity) {
+    for (int identity = parentIdentity;
+        DTM.NULL != identity;
+        identity = m_parent.elementAt(identity)) {
+      if (ELEMENT_NODE == _type(identity)) {
+        final short wsv = m_wsfilter.getShouldStripSpace(makeNodeHandle(identity), this);
+        if (DTMWSFilter.INHERIT != wsv) {
+          return DTMWSFilter.STRIP == wsv;
+        }
+      }
+    }
+    return false;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void setDocumentLocator(final Locator locator) {
+    // no line numbers are kept
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void startDocument() {
+    m_lastParent =
+        addNode(DOCUMENT_NODE, DOCUMENT_NODE, null, null, DTM.NULL, DTM.NULL);
+    m_lastKid = DTM.NULL;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void endDocument() {
+    flushCharacters();
+    closeParent();
+
+    // the document has no siblings, this also marks the whole DTM as processed
+    m_nextsib.setElementAt(DTM.NULL, m_lastKid);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void startPrefixMapping(final String prefix, final String uri) {
+    m_prefixMappings.add(prefix);
+    m_prefixMappings.add(uri);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void endPrefixMapping(final String prefix) {
+    // the declarations are scoped by the DTM tree
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void startElement(
+      final String uri, final String localName, final String qName, final Attributes attributes) {
+    flushCharacters();
+
+    final ExpandedNameTable exnt = m_expandedNameTable;
+    final String local = (null == localName || localName.isEmpty()) ? qName : localName;
+    addChild(ELEMENT_NODE, exnt.getExpandedTypeID(uri, local, ELEMENT_NODE), qName, null);
+
+    final int element = m_lastKid;
+    int attrIndex = DTM.NULL;
+
+    for (int i = 0; i < m_prefixMappings.size(); i += 2) {
+      final String prefix = m_prefixMappings.get(i);
+      attrIndex = addNamespaceNode(element, attrIndex, prefix, m_prefixMappings.get(i + 1));
+      if ("xml".equals(prefix)) {
+        m_processedFirstElement = true;
+      }
+    }
+    m_prefixMappings.clear();
+
+    if (!m_processedFirstElement) {
+      // The XPath data model requires the implied xml: namespace node.
+      attrIndex = addNamespaceNode(element, attrIndex, "xml", XMLConstants.XML_NS_URI);
+      m_processedFirstElement = true;
+    }
+
+    final int attrsize = attributes.getLength();
+    for (int i = 0; i < attrsize; i++) {
+      final String attrQName = attributes.getQName(i);
+      if ("xmlns".equals(attrQName) || attrQName.startsWith("xmlns:")) {
+        // reported through startPrefixMapping()
+        continue;
+      }
+
+      final String attrUri = attributes.getURI(i);
+      String attrLocal = attributes.getLocalName(i);
+      if (null == attrLocal || attrLocal.isEmpty()) {
+        attrLocal = attrQName;
+      }
+      final String value = attributes.getValue(i);
+      attrIndex =
+          addNode(
+              ATTRIBUTE_NODE,
+              exnt.getExpandedTypeID(attrUri, attrLocal, ATTRIBUTE_NODE),
+              attrQName,
+              value,
+              element,
+              attrIndex);
+
+      if ("ID".equals(attributes.getType(i))
+          || (XMLConstants.XML_NS_URI.equals(attrUri) && "id".equals(attrLocal))) {
+        m_idAttributes.putIfAbsent(value, element);
+      }
+    }
+
+    m_lastParent = element;
+    m_lastKid = DTM.NULL;
+  }
+
+  /**
+   * Add a namespace record for a prefix mapping of an element.
+   *
+   * @param element the identity of the element.
+   * @param previous the identity of the previous attribute or namespace record, or NULL.
+   * @param prefix the declared prefix, "" for the default namespace.
+   * @param uri the namespace URI.
+   * @return the identity of the new record.
+   */
+  private int addNamespaceNode(
+      final int element, final int previous, final String prefix, final String uri) {
+    final String local = prefix.isEmpty() ? "xmlns" : prefix;
+    final int nsIndex =
+        addNode(
+            NAMESPACE_NODE,
+            m_expandedNameTable.getExpandedTypeID(XMLNS_NS, local, NAMESPACE_NODE),
+            prefix.isEmpty() ? "xmlns" : "xmlns:" + prefix,
+            uri,
+            element,
+            previous);
+    declareNamespaceInContext(element, nsIndex);
+    return nsIndex;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void endElement(final String uri, final String localName, final String qName) {
+    flushCharacters();
+    closeParent();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void characters(final char[] ch, final int start, final int length) {
+    if (m_chars.length() == 0) {
+      m_charsType = m_inCDATA ? CDATA_SECTION_NODE : TEXT_NODE;
+    }
+    else if (!m_inCDATA) {
+      // Any Text means DTM considers it all Text
+      m_charsType = TEXT_NODE;
+    }
+    m_chars.append(ch, start, length);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void ignorableWhitespace(final char[] ch, final int start, final int length) {
+    // kept like any other text, the same as a DOM would
+    characters(ch, start, length);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void processingInstruction(final String target, final String data) {
+    flushCharacters();
+    addChild(
+        PROCESSING_INSTRUCTION_NODE,
+        m_expandedNameTable.getExpandedTypeID(null, target, PROCESSING_INSTRUCTION_NODE),
+        target,
+        data);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void skippedEntity(final String name) {
+    // nothing to record
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void startDTD(final String name, final String publicId, final String systemId) {
+    m_inDTD = true;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void endDTD() {
+    m_inDTD = false;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void startEntity(final String name) {
+    // entity references are expanded
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void endEntity(final String name) {
+    // entity references are expanded
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void startCDATA() {
+    m_inCDATA = true;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void endCDATA() {
+    m_inCDATA = false;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void comment(final char[] ch, final int start, final int length) {
+    if (m_inDTD) {
+      return;
+    }
+    flushCharacters();
+    addChild(COMMENT_NODE, COMMENT_NODE, null, new String(ch, start, length));
+  }
+
+  /** {@inheritDoc} The DTM is complete once it has been parsed. */
+  @Override
+  protected boolean nextNode() {
+    return false;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected int getNextNodeIdentity(final int identity) {
+    final int next = identity + 1;
+    return (next < m_size) ? next : DTM.NULL;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getAttributeNode(final int nodeHandle, String namespaceURI, final String name) {
+    if (null == namespaceURI) {
+        namespaceURI = "";
+    }
+
+    final int elementIdentity = makeNodeIdentity(nodeHandle);
+    if (DTM.NULL == elementIdentity || ELEMENT_NODE != _type(elementIdentity)) {
+      return DTM.NULL;
+    }
+
+    // Namespace declarations and attributes immediately follow the element.
+    int identity = elementIdentity;
+    while (DTM.NULL != (identity = getNextNodeIdentity(identity))) {
+      final int type = _type(identity);
+      if (ATTRIBUTE_NODE != type && NAMESPACE_NODE != type) {
+        break;
+      }
+
+      final int exptype = _exptype(identity);
+      final String nodeuri = m_expandedNameTable.getNamespace(exptype);
+      if (namespaceURI.equals(null == nodeuri ? "" : nodeuri)
+          && name.equals(m_expandedNameTable.getLocalName(exptype))) {
+        return makeNodeHandle(identity);
+      }
+    }
+    return DTM.NULL;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public XString getStringValue(final int nodeHandle) {
+    final int identity = makeNodeIdentity(nodeHandle);
+    if (DTM.NULL == identity) {
+      return XString.EMPTYSTRING;
+    }
+
+    final int type = _type(identity);
+    if (ELEMENT_NODE != type && DOCUMENT_NODE != type) {
+      return new XString(m_values.get(identity));
+    }
+
+    // The text of the subtree is found in the contiguous range of its descendants.
+    final int end = m_subtreeEnd.elementAt(identity);
+    final StringBuilder buf = new StringBuilder();
+    for (int i = identity + 1; i <= end; i++) {
+      final int t = _type(i);
+      if (TEXT_NODE == t || CDATA_SECTION_NODE == t) {
+        buf.append(m_values.get(i));
+      }
+    }
+    return new XString(buf.toString());
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getNodeName(final int nodeHandle) {
+    final int identity = makeNodeIdentity(nodeHandle);
+    switch (_type(identity)) {
+      case TEXT_NODE:
+        return "#text";
+      case CDATA_SECTION_NODE:
+        return "#cdata-section";
+      case COMMENT_NODE:
+        return "#comment";
+      case DOCUMENT_NODE:
+        return "#document";
+      default:
+        return m_names.get(identity);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getNodeNameX(final int nodeHandle) {
+    final int identity = makeNodeIdentity(nodeHandle);
+    final int type = _type(identity);
+
+    if (NAMESPACE_NODE == type) {
+      final String qname = m_names.get(identity);
+      final int index = qname.indexOf(':');
+      return (index < 0) ? "" : qname.substring(index + 1);
+    }
+
+    if (ATTRIBUTE_NODE == type
+        || ELEMENT_NODE == type
+        || PROCESSING_INSTRUCTION_NODE == type) {
+      return m_names.get(identity);
+    }
+
+    return "";
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getLocalName(final int nodeHandle) {
+    final int identity = makeNodeIdentity(nodeHandle);
+    if (DTM.NULL == identity) {
+        return null;
+    }
+    return m_expandedNameTable.getLocalName(_exptype(identity));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getPrefix(final int nodeHandle) {
+    final int identity = makeNodeIdentity(nodeHandle);
+    final int type = _type(identity);
+
+    if (NAMESPACE_NODE == type) {
+      final String qname = m_names.get(identity);
+      final int index = qname.indexOf(':');
+      return (index < 0) ? "" : qname.substring(index + 1);
+    }
+
+    if (ATTRIBUTE_NODE == type || ELEMENT_NODE == type) {
+      final String qname = m_names.get(identity);
+      final int index = qname.indexOf(':');
+      return (index < 0) ? "" : qname.substring(0, index);
+    }
+    return "";
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getNamespaceURI(final int nodeHandle) {
+    final int identity = makeNodeIdentity(nodeHandle);
+    if (DTM.NULL == identity) {
+        return null;
+    }
+    return m_expandedNameTable.getNamespace(_exptype(identity));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getNodeValue(final int nodeHandle) {
+    final int identity = makeNodeIdentity(nodeHandle);
+    return (DTM.NULL == identity) ? null : m_values.get(identity);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getElementById(final String elementId) {
+    final Integer identity = m_idAttributes.get(elementId);
+    return (null == identity) ? DTM.NULL : makeNodeHandle(identity);
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath.xml.utils;
+
+/**
+ * A table of fixed size int records, stored interleaved: all fields of a record are adjacent in one
+ * block, so reading several fields of the same record touches a single cache line instead of one
+ * line per field as with separate SuballocatedIntVectors.
+ *
+ * <p>The fields are accessed through {@link #getColumn(int)}, which returns a SuballocatedIntVector
+ * reading and writing one field in the shared blocks. Code written against SuballocatedIntVector
+ * columns can therefore switch to the interleaved layout without changes.
+ *
+ * <p>Like SuballocatedIntVector, the storage is allocated in blocks of a power of two records, and
+ * reads from unset records are not checked.
+ */
+public class InterleavedIntTable {
+
+  /** The number of blocks to (over)allocate by. */
+  private final int m_growBlocks;
+
+  /** Array of blocks, each holding a power of two records. */
+  private int[][] m_blocks;
+
+  /** The number of ints per block. */
+  private final int m_blockLength;
+
+  /** The views of the fields, which share m_blocks. */
+  private final SuballocatedIntVector[] m_columns;
+
+  /**
+   * Construct a table.
+   *
+   * @param fields the number of int fields per record; rounded up to a power of two.
+   * @param blocksize the number of records per block; rounded off to a power of two.
+   * @param numblocks the number of blocks to (over)allocate by.
+   */
+  public InterleavedIntTable(final int fields, int blocksize, final int numblocks) {
+    int strideShift = 0;
+    while ((1 << strideShift) < fields) {
+      strideShift++;
+    }
+
+    int shift = 0;
+    while (0 != (blocksize >>>= 1)) {
+      ++shift;
+    }
+    m_growBlocks = numblocks;
+
+    m_blockLength = 1 << (shift + strideShift);
+    m_blocks = new int[numblocks][];
+    m_blocks[0] = new int[m_blockLength];
+
+    m_columns = new SuballocatedIntVector[fields];
+    for (int i = 0; i < fields; i++) {
+      m_columns[i] = new SuballocatedIntVector(this, m_blocks, shift, strideShift, i);
+    }
+  }
+
+  /**
+   * @param field the index of the field, 0 &lt;= field &lt; the number of fields.
+   * @return a vector that reads and writes the given field of all records.
+   */
+  public SuballocatedIntVector getColumn(final int field) {
+    return m_columns[field];
+  }
+
+  /**
+   * @param index the index of a block.
+   * @return the block, allocated if necessary.
+   */
+  int[] getBlockForWrite(final int index) {
+    if (index >= m_blocks.length) {
+      final int[][] newMap = new int[index + m_growBlocks][];
+      System.arraycopy(m_blocks, 0, newMap, 0, m_blocks.length);
+      m_blocks = newMap;
+      for (final SuballocatedIntVector column : m_columns) {
+        column.m_map = newMap;
+      }
+    }
+
+    int[] block = m_blocks[index];
+    if (null == block) {
+      block = m_blocks[index] = new int[m_blockLength];
+    }
+    return block;
+  }
+}
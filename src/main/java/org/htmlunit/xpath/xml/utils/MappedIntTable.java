@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath.xml.utils;
+
+import java.nio.IntBuffer;
+
+/**
+ * A read-only table of int records kept in an IntBuffer, typically a view of a memory mapped file.
+ * The fields are stored column by column from a start position on: all values of field 0, then
+ * all values of field 1, and so on.
+ *
+ * <p>Like {@link InterleavedIntTable}, the fields are accessed through {@link #getColumn(int)},
+ * which returns a SuballocatedIntVector view of one field, so code written against
+ * SuballocatedIntVector columns can read them without changes. The views can not be modified.
+ */
+public class MappedIntTable {
+
+  /** The storage of the table. */
+  private final IntBuffer m_buffer;
+
+  /** The position of the first field of the first record in the buffer. */
+  private final int m_start;
+
+  /** The number of records. */
+  private final int m_records;
+
+  /**
+   * Construct a table.
+   *
+   * @param buffer the storage.
+   * @param start the position of the table in the buffer.
+   * @param records the number of records.
+   */
+  public MappedIntTable(final IntBuffer buffer, final int start, final int records) {
+    m_buffer = buffer;
+    m_start = start;
+    m_records = records;
+  }
+
+  /**
+   * @param field the index of the field.
+   * @return a read-only vector of the given field of all records.
+   */
+  public SuballocatedIntVector getColumn(final int field) {
+    return new SuballocatedIntVector(m_buffer, m_start + field * m_records, m_records);
+  }
+}
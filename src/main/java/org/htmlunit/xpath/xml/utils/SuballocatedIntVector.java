@@ -17,6 +17,10 @@
  */
 package org.htmlunit.xpath.xml.utils;
 
+import java.nio.IntBuffer;
+import org.htmlunit.xpath.res.XPATHErrorResources;
+import org.htmlunit.xpath.res.XPATHMessages;
+
 /**
  * A very simple table that stores a list of int. Very similar API to our IntVector class (same
  * API); different internal storage.
@@ -33,6 +37,10 @@ package org.htmlunit.xpath.xml.utils;
  * <p>Retrieval performance is critical, since this is used at the core of the DTM model. (Append
  * performance is almost as important.) That's pushing me toward just letting reads from unset
  * indices throw exceptions or return stale data; safer behavior would have performance costs.
+ *
+ * <p>The vector may also be one field of the records of an {@link InterleavedIntTable}, or a
+ * read-only view of a {@link MappedIntTable}. These layouts are chosen here rather than by
+ * subclasses, so that the calls at the core of the DTM model only ever see this class.
  */
 public class SuballocatedIntVector {
   /** Size of blocks to allocate */
@@ -63,6 +71,21 @@ public class SuballocatedIntVector {
 
   protected int m_buildCacheStartIndex;
 
+  /** log2 of the number of ints per element in the blocks; 0 unless the blocks are interleaved. */
+  private final int m_strideShift;
+
+  /** The position of the element within its ints in the blocks. */
+  private final int m_field;
+
+  /** The table that owns the blocks if they are interleaved, else null. */
+  private final InterleavedIntTable m_table;
+
+  /** The storage of a read-only view of a buffer, else null. */
+  private final IntBuffer m_buffer;
+
+  /** The position of the first element in m_buffer. */
+  private final int m_bufferOffset;
+
   /**
    * Construct a IntVector, using the given block size and number of blocks. For efficiency, we will
    * round the requested size off to a power of two.
@@ -83,6 +106,12 @@ public class SuballocatedIntVector {
     m_map[0] = m_map0;
     m_buildCache = m_map0;
     m_buildCacheStartIndex = 0;
+
+    m_strideShift = 0;
+    m_field = 0;
+    m_table = null;
+    m_buffer = null;
+    m_bufferOffset = 0;
   }
 
   /**
@@ -94,6 +123,63 @@ public class SuballocatedIntVector {
     this(blocksize, NUMBLOCKS_DEFAULT);
   }
 
+  /**
+   * Construct a view of one field of the records of an interleaved table.
+   *
+   * @param table the table.
+   * @param blocks the blocks of the table, shared by all its fields.
+   * @param shift log2 of the number of records per block.
+   * @param strideShift log2 of the number of ints per record.
+   * @param field the position of the field within the record.
+   */
+  SuballocatedIntVector(
+      final InterleavedIntTable table,
+      final int[][] blocks,
+      final int shift,
+      final int strideShift,
+      final int field) {
+    m_SHIFT = shift;
+    m_blocksize = 1 << shift;
+    m_MASK = m_blocksize - 1;
+    m_numblocks = 0;
+
+    m_map = blocks;
+    m_map0 = blocks[0];
+    m_buildCache = m_map0;
+    m_buildCacheStartIndex = 0;
+
+    m_strideShift = strideShift;
+    m_field = field;
+    m_table = table;
+    m_buffer = null;
+    m_bufferOffset = 0;
+  }
+
+  /**
+   * Construct a read-only view of ints in a buffer.
+   *
+   * @param buffer the storage.
+   * @param offset the position of the first element in the buffer.
+   * @param size the number of elements.
+   */
+  SuballocatedIntVector(final IntBuffer buffer, final int offset, final int size) {
+    // no block ever holds an element, reads and writes take the slow path
+    m_SHIFT = 0;
+    m_blocksize = 0;
+    m_MASK = 0;
+    m_numblocks = 0;
+
+    m_map0 = new int[0];
+    m_firstFree = size;
+    m_buildCacheStartIndex = size;
+
+    m_strideShift = 0;
+    m_field = 0;
+    m_table = null;
+    m_buffer = buffer;
+    m_bufferOffset = offset;
+  }
+
   /**
    * Get the length of the list.
    *
@@ -103,6 +189,21 @@ public class SuballocatedIntVector {
     return m_firstFree;
   }
 
+  /**
+   * Shrink the list to the given size. The storage is kept; values past the new size are
+   * overwritten as the list grows again.
+   *
+   * @param sz the new size, not larger than the current size.
+   */
+  public void setSize(final int sz) {
+    if (null != m_buffer) {
+      throw readOnly();
+    }
+    if (m_firstFree > sz) {
+      m_firstFree = sz;
+    }
+  }
+
   /**
    * Append a int onto the vector.
    *
@@ -113,7 +214,7 @@ public class SuballocatedIntVector {
 
     // Is the new index an index into the cache row of m_map?
     if (indexRelativeToCache >= 0 && indexRelativeToCache < m_blocksize) {
-      m_buildCache[indexRelativeToCache] = value;
+      m_buildCache[(indexRelativeToCache << m_strideShift) + m_field] = value;
       ++m_firstFree;
     }
     else {
@@ -124,20 +225,9 @@ public class SuballocatedIntVector {
       // long enough and catch exceptions) yield no noticable
       // improvement.
 
-      final int index = m_firstFree >>> m_SHIFT;
       final int offset = m_firstFree & m_MASK;
-
-      if (index >= m_map.length) {
-        final int newsize = index + m_numblocks;
-        final int[][] newMap = new int[newsize][];
-        System.arraycopy(m_map, 0, newMap, 0, m_map.length);
-        m_map = newMap;
-      }
-      int[] block = m_map[index];
-      if (null == block) {
-          block = m_map[index] = new int[m_blocksize];
-      }
-      block[offset] = value;
+      final int[] block = getBlockForWrite(m_firstFree >>> m_SHIFT);
+      block[(offset << m_strideShift) + m_field] = value;
 
       // Cache the current row of m_map. Next m_blocksize-1
       // values added will go to this row.
@@ -160,24 +250,11 @@ public class SuballocatedIntVector {
    */
   public void setElementAt(final int value, final int at) {
     if (at < m_blocksize) {
-        m_map0[at] = value;
+        m_map0[(at << m_strideShift) + m_field] = value;
     }
     else {
-      final int index = at >>> m_SHIFT;
-      final int offset = at & m_MASK;
-
-      if (index >= m_map.length) {
-        final int newsize = index + m_numblocks;
-        final int[][] newMap = new int[newsize][];
-        System.arraycopy(m_map, 0, newMap, 0, m_map.length);
-        m_map = newMap;
-      }
-
-      int[] block = m_map[index];
-      if (null == block) {
-          block = m_map[index] = new int[m_blocksize];
-      }
-      block[offset] = value;
+      final int[] block = getBlockForWrite(at >>> m_SHIFT);
+      block[((at & m_MASK) << m_strideShift) + m_field] = value;
     }
 
     if (at >= m_firstFree) {
@@ -203,10 +280,44 @@ public class SuballocatedIntVector {
   public int elementAt(final int i) {
     // This is actually a significant optimization!
     if (i < m_blocksize) {
-        return m_map0[i];
+        return m_map0[(i << m_strideShift) + m_field];
+    }
+    if (null != m_buffer) {
+        return m_buffer.get(m_bufferOffset + i);
+    }
+
+    return m_map[i >>> m_SHIFT][((i & m_MASK) << m_strideShift) + m_field];
+  }
+
+  /**
+   * @param index the index of a block.
+   * @return the block, allocated if necessary.
+   */
+  private int[] getBlockForWrite(final int index) {
+    if (null != m_buffer) {
+      throw readOnly();
+    }
+    if (null != m_table) {
+      return m_table.getBlockForWrite(index);
     }
 
-    return m_map[i >>> m_SHIFT][i & m_MASK];
+    if (index >= m_map.length) {
+      final int newsize = index + m_numblocks;
+      final int[][] newMap = new int[newsize][];
+      System.arraycopy(m_map, 0, newMap, 0, m_map.length);
+      m_map = newMap;
+    }
+
+    int[] block = m_map[index];
+    if (null == block) {
+        block = m_map[index] = new int[m_blocksize];
+    }
+    return block;
+  }
+
+  private static RuntimeException readOnly() {
+    return new RuntimeException(
+        XPATHMessages.createXPATHMessage(XPATHErrorResources.ER_METHOD_NOT_SUPPORTED, null));
   }
 
   /**
@@ -222,6 +333,14 @@ public class SuballocatedIntVector {
     if (index >= m_firstFree) {
         return -1;
     }
+    if (null != m_buffer) {
+      for (int i = index; i < m_firstFree; i++) {
+        if (m_buffer.get(m_bufferOffset + i) == elem) {
+          return i;
+        }
+      }
+      return -1;
+    }
 
     int bindex = index >>> m_SHIFT;
     int boffset = index & m_MASK;
@@ -232,7 +351,7 @@ public class SuballocatedIntVector {
       block = m_map[bindex];
       if (block != null) {
           for (int offset = boffset; offset < m_blocksize; ++offset) {
-              if (block[offset] == elem) {
+              if (block[(offset << m_strideShift) + m_field] == elem) {
                   return offset + bindex * m_blocksize;
               }
           }
@@ -243,7 +362,7 @@ public class SuballocatedIntVector {
     final int maxoffset = m_firstFree & m_MASK;
     block = m_map[maxindex];
     for (int offset = boffset; offset < maxoffset; ++offset) {
-      if (block[offset] == elem) {
+      if (block[(offset << m_strideShift) + m_field] == elem) {
           return offset + maxindex * m_blocksize;
       }
     }
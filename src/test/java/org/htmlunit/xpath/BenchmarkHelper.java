@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath;
+
+import java.util.Arrays;
+import org.junit.jupiter.api.Assumptions;
+
+/**
+ * Times code for the benchmarks among the tests. They are skipped unless the system property
+ * <code>htmlunit.xpath.benchmark</code> is true, e.g. <code>mvn test -Dtest=FusedPathTest
+ * -Dhtmlunit.xpath.benchmark=true</code>, and print the median time of a number of runs.
+ */
+public final class BenchmarkHelper {
+
+  /** The system property that enables the benchmarks. */
+  public static final String PROPERTY = "htmlunit.xpath.benchmark";
+
+  /** The number of runs before timing starts. */
+  private static final int WARM_UP_RUNS = 20;
+
+  /** The number of timed runs. */
+  private static final int RUNS = 40;
+
+  /** Something to time. */
+  public interface Task {
+    /**
+     * Run once.
+     *
+     * @throws Exception in case of problems
+     */
+    void run() throws Exception;
+  }
+
+  /** Private to avoid instantiation. */
+  private BenchmarkHelper() {
+    // Empty.
+  }
+
+  /** Skip the calling test unless benchmarks are enabled. */
+  public static void assumeEnabled() {
+    Assumptions.assumeTrue(Boolean.getBoolean(PROPERTY), "benchmarks are disabled");
+  }
+
+  /**
+   * @param task the task to time.
+   * @return the median time of a run in milliseconds, after a warm-up.
+   * @throws Exception in case of problems
+   */
+  public static double median(final Task task) throws Exception {
+    for (int i = 0; i < WARM_UP_RUNS; i++) {
+      task.run();
+    }
+    final long[] times = new long[RUNS];
+    for (int i = 0; i < RUNS; i++) {
+      final long start = System.nanoTime();
+      task.run();
+      times[i] = System.nanoTime() - start;
+    }
+    Arrays.sort(times);
+    return times[RUNS / 2] / 1e6;
+  }
+}
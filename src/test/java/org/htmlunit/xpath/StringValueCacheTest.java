@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringReader;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.htmlunit.xpath.xml.dtm.DTM;
+import org.htmlunit.xpath.xml.dtm.DTMIterator;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Text;
+import org.xml.sax.InputSource;
+
+/** Unit test for {@link StringValueCache}. */
+public class StringValueCacheTest {
+
+  private static Document rows(final int count) throws Exception {
+    final StringBuilder xml = new StringBuilder("<table>");
+    for (int i = 0; i < count; i++) {
+      xml.append("<tr><td><b>").append(i % 10).append("</b></td><td>row</td></tr>");
+    }
+    xml.append("</table>");
+    return DocumentBuilderFactory.newInstance()
+        .newDocumentBuilder()
+        .parse(new InputSource(new StringReader(xml.toString())));
+  }
+
+  private static String evaluate(final XPathContext xctxt, final Document doc, final String expr)
+      throws Exception {
+    return new XPath(expr, null, XPath.SELECT).execute(xctxt, doc, null).str();
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void cachedWhileEvaluating() throws Exception {
+    final Document doc = rows(100);
+    final XPathContext xctxt = new XPathContext();
+    final StringValueCache cache = xctxt.getStringValueCache();
+
+    final String expr =
+        "count(//tr[td[1] = '3' and string-length(td[1]) = 1 and normalize-space(td[1]) = td[1]])";
+    assertEquals("10", evaluate(xctxt, doc, expr));
+    // the 10 rows passing the first test convert their cell three more times
+    assertEquals(100, cache.getMissCount());
+    assertEquals(30, cache.getHitCount());
+    assertEquals(0, cache.getSize());
+
+    // the DOM may change between evaluations
+    ((Text) doc.getElementsByTagName("b").item(0).getFirstChild()).setData("3");
+    assertEquals("11", evaluate(xctxt, doc, expr));
+    assertEquals("6", evaluate(xctxt, doc, "string(sum(//tr[1]/td[1]) + //tr[1]/td[1] * 1)"));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void cachedWhileIterating() throws Exception {
+    final Document doc = rows(100);
+    final XPathContext xctxt = new XPathContext();
+    final StringValueCache cache = xctxt.getStringValueCache();
+
+    // the rows are found while the result is iterated, after execute() has returned, and all
+    // of them are compared with the same cell
+    final XPath xpath = new XPath("/table/tr[td[1] = /table/tr[4]/td[1]]", null, XPath.SELECT);
+    final DTMIterator rows = xpath.execute(xctxt, doc, null).iter();
+    int count = 0;
+    while (DTM.NULL != rows.nextNode()) {
+      count++;
+    }
+    assertEquals(10, count);
+    // the cell of every row once, the compared cell is found in the cache from then on
+    assertEquals(100, cache.getMissCount());
+    assertEquals(100, cache.getHitCount());
+    assertEquals(0, cache.getSize());
+
+    // the DOM may change before the next evaluation
+    ((Text) doc.getElementsByTagName("b").item(0).getFirstChild()).setData("3");
+    assertEquals(11, xpath.execute(xctxt, doc, null).nodelist().getLength());
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void limit() throws Exception {
+    final Document doc = rows(100);
+    final XPathContext xctxt = new XPathContext();
+    final StringValueCache cache = xctxt.getStringValueCache();
+    cache.setMaxChars(30);
+
+    cache.startEvaluation();
+    try {
+      final XPath tr = new XPath("//tr", null, XPath.SELECT);
+      final DTMIterator rows = tr.execute(xctxt, doc, null).iter();
+      for (int row = rows.nextNode(); DTM.NULL != row; row = rows.nextNode()) {
+        assertEquals(4, xctxt.getStringValue(row).length());
+        assertTrue(cache.getSize() <= 7);
+      }
+      assertEquals(7, cache.getSize());
+      assertEquals(100, cache.getMissCount());
+    }
+    finally {
+      cache.endEvaluation();
+    }
+    assertEquals(0, cache.getSize());
+
+    cache.setMaxChars(0);
+    assertEquals("10", evaluate(xctxt, doc, "count(//tr[td[1] = '3' and td[1] = '3'])"));
+    assertEquals(0, cache.getHitCount());
+  }
+}
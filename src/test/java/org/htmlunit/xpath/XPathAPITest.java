@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.apache.commons.io.IOUtils;
+import org.htmlunit.xpath.objects.XObject;
+import org.htmlunit.xpath.xml.dtm.ref.DTMCache;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+
+/** Unit test for {@link XPathAPI}. */
+public class XPathAPITest {
+
+  private static Document parse(final String xml) throws Exception {
+    final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    return factory
+        .newDocumentBuilder()
+        .parse(IOUtils.toInputStream(xml, StandardCharsets.UTF_8));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void selectNodeList() throws Exception {
+    final Document doc = parse("<root><a/><a/><b/></root>");
+    assertEquals(2, XPathAPI.selectNodeList(doc, "//a").getLength());
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void dtmCacheReusedForSameVersion() throws Exception {
+    final DTMCache cache = XPathAPI.getDTMCache();
+    final Document doc = parse("<root><a/><a/><b/></root>");
+
+    final long hits = cache.getHitCount();
+    final long misses = cache.getMissCount();
+
+    assertEquals(2, XPathAPI.selectNodeList(doc, "//a", 1).getLength());
+    assertEquals(1, XPathAPI.selectNodeList(doc.getDocumentElement(), "b", 1).getLength());
+    assertEquals(2.0, XPathAPI.eval(doc, "count(//a)", doc, 1).num());
+
+    assertEquals(misses + 1, cache.getMissCount());
+    assertEquals(hits + 2, cache.getHitCount());
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void dtmCacheRebuiltForNewVersion() throws Exception {
+    final DTMCache cache = XPathAPI.getDTMCache();
+    final Document doc = parse("<root><a/></root>");
+
+    assertEquals(1, XPathAPI.selectNodeList(doc, "//a", 1).getLength());
+
+    doc.getDocumentElement().appendChild(doc.createElement("a"));
+    final long misses = cache.getMissCount();
+    assertEquals(2, XPathAPI.selectNodeList(doc, "//a", 2).getLength());
+    assertEquals(misses + 1, cache.getMissCount());
+
+    doc.getDocumentElement().appendChild(doc.createElement("a"));
+    cache.invalidate(doc);
+    assertEquals(3, XPathAPI.selectNodeList(doc, "//a", 2).getLength());
+    assertEquals(misses + 2, cache.getMissCount());
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void dtmCacheIsBounded() throws Exception {
+    final DTMCache cache = new DTMCache();
+    final List<Document> docs = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      final Document doc = parse("<root><x/></root>");
+      docs.add(doc);
+      cache.release(cache.acquire(doc, 1L));
+    }
+    assertEquals(DTMCache.DEFAULT_MAX_SIZE, cache.size());
+
+    // the least recently used documents are gone
+    cache.release(cache.acquire(docs.get(49), 1L));
+    cache.release(cache.acquire(docs.get(0), 1L));
+    assertEquals(1, cache.getHitCount());
+
+    cache.setMaxSize(2);
+    assertEquals(2, cache.size());
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void dtmCacheLendsManagersToOneCaller() throws Exception {
+    final DTMCache cache = new DTMCache();
+    final Document doc = parse("<root/>");
+
+    final DTMCache.Lease first = cache.acquire(doc, 1L);
+    final DTMCache.Lease second = cache.acquire(doc, 1L);
+    assertNotSame(first.getDTMManager(), second.getDTMManager());
+    cache.release(first);
+    cache.release(second);
+    assertSame(first.getDTMManager(), cache.acquire(doc, 1L).getDTMManager());
+
+    // a manager lent out before the document changed is not taken back
+    final DTMCache.Lease stale = cache.acquire(doc, 1L);
+    cache.invalidate(doc);
+    cache.release(stale);
+    assertNotSame(stale.getDTMManager(), cache.acquire(doc, 1L).getDTMManager());
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void dtmCacheKeepsManagersOfNodeSets() throws Exception {
+    final DTMCache cache = XPathAPI.getDTMCache();
+    final Document doc = parse("<root><a/><a/><b/></root>");
+
+    final XObject nodes = XPathAPI.eval(doc, "//a", doc, 1L);
+    final long misses = cache.getMissCount();
+    assertEquals(1, XPathAPI.selectNodeList(doc, "//b", 1L).getLength());
+    assertEquals(misses + 1, cache.getMissCount());
+    assertEquals(2, nodes.nodelist().getLength());
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void dtmCacheConcurrentCallers() throws Exception {
+    final StringBuilder xml = new StringBuilder("<table>");
+    for (int i = 0; i < 2_000; i++) {
+      xml.append("<tr><td>").append(i).append("</td></tr>");
+    }
+    // the deferred DOM of the JDK parser is expanded while it is read, which is not thread safe
+    final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setFeature("http://apache.org/xml/features/dom/defer-node-expansion", false);
+    xml.append("</table>");
+    final Document doc =
+        factory
+            .newDocumentBuilder()
+            .parse(IOUtils.toInputStream(xml.toString(), StandardCharsets.UTF_8));
+
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      final List<Future<Integer>> results = new ArrayList<>();
+      for (int i = 0; i < 64; i++) {
+        final int row = i * 31;
+        results.add(
+            executor.submit(
+                () -> XPathAPI.selectNodeList(doc, "//tr[td = '" + row + "']/following::td", 1L)
+                    .getLength()));
+      }
+      for (int i = 0; i < results.size(); i++) {
+        assertEquals(2_000 - i * 31 - 1, results.get(i).get().intValue());
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,243 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerException;
+import org.htmlunit.xpath.xml.utils.PrefixResolver;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+
+/** Unit test for {@link XPathCache}. */
+public class XPathCacheTest {
+
+  private static final String XML =
+      "<root xmlns:a='urn:a' xmlns:b='urn:b'><a:item/><a:item/><b:item/><item/></root>";
+
+  /** Resolves the prefixes from a map. */
+  private static final class MapResolver implements PrefixResolver {
+    private final Map<String, String> m_namespaces = new HashMap<>();
+
+    MapResolver bind(final String prefix, final String uri) {
+      m_namespaces.put(prefix, uri);
+      return this;
+    }
+
+    @Override
+    public String getNamespaceForPrefix(final String prefix) {
+      return m_namespaces.get(prefix);
+    }
+
+    @Override
+    public String getNamespaceForPrefix(final String prefix, final Node context) {
+      return getNamespaceForPrefix(prefix);
+    }
+
+    @Override
+    public boolean handlesNullPrefixes() {
+      return false;
+    }
+  }
+
+  private static Document parse(final String xml) throws Exception {
+    final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    return factory.newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void reuse() throws Exception {
+    final XPathCache cache = new XPathCache();
+    final XPath xpath = cache.getXPath("count(//item)", null);
+    assertSame(xpath, cache.getXPath("count(//item)", null));
+    assertNotSame(xpath, cache.getXPath("count(//item) ", null));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+    assertEquals(2, cache.size());
+
+    // prefix free expressions do not depend on the bindings
+    assertSame(
+        cache.getXPath("count(//item)", new MapResolver()),
+        cache.getXPath("count(//item)", new MapResolver().bind("a", "urn:a")));
+    assertEquals(3, cache.size());
+
+    assertThrows(TransformerException.class, () -> cache.getXPath("//item[", null));
+    assertEquals(3, cache.size());
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void namespaceBindings() throws Exception {
+    final Document doc = parse(XML);
+    final XPathCache cache = new XPathCache();
+    final MapResolver first = new MapResolver().bind("x", "urn:a");
+    final MapResolver second = new MapResolver().bind("x", "urn:b");
+
+    final XPath a = cache.getXPath("count(//x:item)", first);
+    final XPath b = cache.getXPath("count(//x:item)", second);
+    assertNotSame(a, b);
+    assertSame(a, cache.getXPath("count(//x:item)", new MapResolver().bind("x", "urn:a")));
+    assertSame(b, cache.getXPath("count(//x:item)", second.bind("y", "urn:a")));
+    assertEquals(2, cache.size());
+
+    assertEquals(2.0, a.execute(new XPathContext(), doc, first).num());
+    assertEquals(1.0, b.execute(new XPathContext(), doc, second).num());
+
+    // an undeclared prefix is still an error
+    assertThrows(
+        TransformerException.class, () -> cache.getXPath("count(//x:item)", new MapResolver()));
+    assertEquals(2, cache.size());
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void eviction() throws Exception {
+    final XPathCache cache = new XPathCache();
+    cache.setMaxSize(2);
+    final XPath first = cache.getXPath("/a", null);
+    cache.getXPath("/b", null);
+    assertSame(first, cache.getXPath("/a", null));
+    cache.getXPath("/c", null);
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.getEvictionCount());
+
+    // the least recently used one went away
+    assertSame(first, cache.getXPath("/a", null));
+    cache.getXPath("/b", null);
+    assertEquals(2, cache.getEvictionCount());
+    assertEquals(2, cache.getHitCount());
+
+    cache.setMaxSize(0);
+    assertEquals(0, cache.size());
+    assertNotSame(first, cache.getXPath("/a", null));
+    assertEquals(0, cache.size());
+
+    cache.setMaxSize(XPathCache.DEFAULT_MAX_SIZE);
+    cache.getXPath("/a", null);
+    cache.clear();
+    assertEquals(0, cache.size());
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void batchEviction() throws Exception {
+    final XPathCache cache = new XPathCache();
+    cache.setMaxSize(16);
+    final XPath first = cache.getXPath("/a0", null);
+    for (int i = 1; i < 16; i++) {
+      cache.getXPath("/a" + i, null);
+    }
+    assertSame(first, cache.getXPath("/a0", null));
+
+    // the miss that grows the cache beyond its maximum size drops an eighth of it more
+    cache.getXPath("/a16", null);
+    assertEquals(14, cache.size());
+    assertEquals(3, cache.getEvictionCount());
+    assertSame(first, cache.getXPath("/a0", null));
+    final long misses = cache.getMissCount();
+    cache.getXPath("/a4", null);
+    assertEquals(misses, cache.getMissCount());
+    cache.getXPath("/a3", null);
+    assertEquals(misses + 1, cache.getMissCount());
+
+    // so the next miss does not look for entries to drop
+    cache.getXPath("/b", null);
+    assertEquals(16, cache.size());
+    assertEquals(3, cache.getEvictionCount());
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void concurrentLookups() throws Exception {
+    final Document doc = parse(XML);
+    final XPathCache cache = new XPathCache();
+    final int threads = 8;
+    final int rounds = 20;
+    final String[] exprs = new String[50];
+    for (int i = 0; i < exprs.length; i++) {
+      exprs[i] = "count(//a:item) + " + i;
+    }
+
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      final List<Future<XPath[]>> results = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        results.add(executor.submit(() -> {
+          final PrefixResolver resolver = new MapResolver().bind("a", "urn:a");
+          final XPathContext xctxt = new XPathContext();
+          final XPath[] xpaths = new XPath[exprs.length];
+          for (int r = 0; r < rounds; r++) {
+            for (int i = 0; i < exprs.length; i++) {
+              xpaths[i] = cache.getXPath(exprs[i], resolver);
+              assertEquals(2.0 + i, xpaths[i].execute(xctxt, doc, resolver).num());
+            }
+          }
+          return xpaths;
+        }));
+      }
+
+      final XPath[] xpaths = results.get(0).get();
+      for (final Future<XPath[]> result : results) {
+        final XPath[] other = result.get();
+        for (int i = 0; i < exprs.length; i++) {
+          assertSame(xpaths[i], other[i]);
+        }
+      }
+      assertEquals(exprs.length, cache.size());
+      assertEquals(threads * rounds * exprs.length, cache.getHitCount() + cache.getMissCount());
+    }
+    finally {
+      executor.shutdown();
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void usedByXPathAPI() throws Exception {
+    final Document doc = parse(XML);
+    final XPathCache cache = XPathAPI.getXPathCache();
+    final String expr = "count(//a:item) + 0.5";
+
+    final long misses = cache.getMissCount();
+    final long hits = cache.getHitCount();
+    for (int i = 0; i < 10; i++) {
+      assertEquals(2.5, XPathAPI.eval(doc, expr).num());
+    }
+    // compiled once, answered from the cache afterwards
+    assertEquals(misses + 1, cache.getMissCount());
+    assertEquals(hits + 9, cache.getHitCount());
+  }
+}
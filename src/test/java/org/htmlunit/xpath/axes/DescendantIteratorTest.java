@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath.axes;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.apache.commons.io.IOUtils;
+import org.htmlunit.xpath.XPath;
+import org.htmlunit.xpath.XPathContext;
+import org.htmlunit.xpath.xml.dtm.DTM;
+import org.htmlunit.xpath.xml.dtm.DTMIterator;
+import org.htmlunit.xpath.xml.dtm.ref.DTMManagerDefault;
+import org.htmlunit.xpath.xml.dtm.ref.dom2dtm.DOM2DTM;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/** Unit test for {@link DescendantIterator}. */
+public class DescendantIteratorTest {
+
+  private static final String FORMS =
+      "<html><body id='x'>"
+          + "<form id='f1'><input name='q' type='text'/><input name='q' type='hidden'/>"
+          + "<input name='p'/><a href='/b'>b</a></form>"
+          + "<form id='f2'><input name='q' type='text'/><a href='/b' id='x'>b</a></form>"
+          + "<input name='q'/>"
+          + "</body></html>";
+
+  private static final String[] EXPRESSIONS = {
+    "//*[@id='x']",
+    "//input[@name='q']",
+    "//input[@name=\"q\"][@type='text']",
+    "//a['/b' = @href]",
+    "//input[@name='missing']",
+    "/descendant::input[@name='q']",
+    "//form[@id='f2']//input[@name='q']",
+    "count(//input[@name='q'])",
+  };
+
+  private static final String CLASSES =
+      "<html><body class='page'>"
+          + "<div class='item'>1</div><div class=' item\tfirst '>2</div><div class='items'>3</div>"
+          + "<div class='x item item'>4<span class='item'>5</span></div><div>6</div>"
+          + "<p class='item'>7</p><div class='a  item'>8</div>"
+          + "</body></html>";
+
+  private static final String[] CLASS_EXPRESSIONS = {
+    "//div[contains(concat(' ', normalize-space(@class), ' '), ' item ')]",
+    "//div[contains(concat(' ', @class, ' '), ' item ')]",
+    "//*[contains(concat(' ', normalize-space(@class), ' '), ' item ')]",
+    "//div[contains(concat(' ', normalize-space(@class), ' '), ' first ')]/text()",
+    "//div[contains(concat(' ', normalize-space(@class), ' '), ' items ')]",
+    "//div[contains(concat(' ', normalize-space(@class), ' '), ' missing ')]",
+    "//div[contains(concat(' ', normalize-space(@class), ' '), ' item ')][2]",
+    "//div[contains(concat(' ', normalize-space(@class), ' '), 'item')]",
+    "//div[contains(concat(' ', normalize-space(@class), ' '), ' a  item ')]",
+  };
+
+  private static Document parse(final String xml) throws Exception {
+    final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    return factory
+        .newDocumentBuilder()
+        .parse(IOUtils.toInputStream(xml, StandardCharsets.UTF_8));
+  }
+
+  private static List<Node> select(final XPathContext xctxt, final Node context, final String expr)
+      throws Exception {
+    final DTMIterator iter =
+        new XPath(expr, null, XPath.SELECT).execute(xctxt, context, null).iter();
+    final List<Node> nodes = new ArrayList<>();
+    for (int node = iter.nextNode(); DTM.NULL != node; node = iter.nextNode()) {
+      nodes.add(xctxt.getDTM(node).getNode(node));
+    }
+    return nodes;
+  }
+
+  private static XPathContext newContext(final boolean indexing) {
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    mgr.setAttributeValueIndexing(indexing);
+    return new XPathContext(mgr);
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void attributeValueIndexMatchesWalk() throws Exception {
+    final Document doc = parse(FORMS);
+    final XPathContext walked = newContext(false);
+    final XPathContext indexed = newContext(true);
+
+    for (final String expr : EXPRESSIONS) {
+      if (expr.startsWith("count")) {
+        assertEquals(
+            new XPath(expr, null, XPath.SELECT).execute(walked, doc, null).num(),
+            new XPath(expr, null, XPath.SELECT).execute(indexed, doc, null).num(),
+            expr);
+      }
+      else {
+        assertEquals(select(walked, doc, expr), select(indexed, doc, expr), expr);
+      }
+    }
+
+    final Node form = doc.getElementsByTagName("form").item(0);
+    final String[] relative = {
+      ".//input[@name='q']", "descendant-or-self::*[@id='f1']", "descendant::*[@id='f1']"
+    };
+    for (final String expr : relative) {
+      assertEquals(select(walked, form, expr), select(indexed, form, expr), expr);
+    }
+    assertEquals(2, select(indexed, form, ".//input[@name='q']").size());
+    assertEquals(1, select(indexed, form, "descendant-or-self::*[@id='f1']").size());
+    assertEquals(0, select(indexed, form, "descendant::*[@id='f1']").size());
+
+    final DTM dtm = indexed.getDTM(indexed.getDTMHandleFromNode(doc));
+    assertNotNull(dtm.getElementsByAttributeValue(null, "name", "q"));
+    assertNull(walked.getDTM(walked.getDTMHandleFromNode(doc))
+        .getElementsByAttributeValue(null, "name", "q"));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void attributeValueIndexFollowsReportedChanges() throws Exception {
+    final Document doc = parse(FORMS);
+    final XPathContext xctxt = newContext(true);
+    assertEquals(4, select(xctxt, doc, "//input[@name='q']").size());
+
+    final Element input = (Element) doc.getElementsByTagName("input").item(2);
+    input.setAttribute("name", "q");
+    final DTMManagerDefault mgr = (DTMManagerDefault) xctxt.getDTMManager();
+    mgr.attributesChanged(input);
+    final List<Node> inputs = select(xctxt, doc, "//input[@name='q']");
+    assertEquals(5, inputs.size());
+    assertEquals(input, inputs.get(2));
+
+    final Element added = doc.createElement("input");
+    added.setAttribute("name", "q");
+    doc.getElementsByTagName("form").item(1).appendChild(added);
+    mgr.childInserted(added);
+    assertEquals(added, select(xctxt, doc, "//input[@name='q']").get(4));
+
+    final DOM2DTM dtm = (DOM2DTM) xctxt.getDTM(xctxt.getDTMHandleFromNode(doc));
+    assertEquals(6, dtm.getElementsByAttributeValue(null, "name", "q").length);
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void attributeTokenIndexMatchesWalk() throws Exception {
+    final Document doc = parse(CLASSES);
+    final XPathContext walked = newContext(false);
+    final XPathContext indexed = newContext(true);
+
+    for (final String expr : CLASS_EXPRESSIONS) {
+      assertEquals(select(walked, doc, expr), select(indexed, doc, expr), expr);
+    }
+    assertEquals(4, select(indexed, doc, CLASS_EXPRESSIONS[0]).size());
+
+    final DTM dtm = indexed.getDTM(indexed.getDTMHandleFromNode(doc));
+    assertEquals(6, dtm.getElementsByAttributeToken(null, "class", "item").length);
+    assertEquals(0, dtm.getElementsByAttributeToken(null, "class", "missing").length);
+  }
+}
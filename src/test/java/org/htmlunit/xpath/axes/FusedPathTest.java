@@ -0,0 +1,250 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath.axes;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.htmlunit.xpath.BenchmarkHelper;
+import org.htmlunit.xpath.XPath;
+import org.htmlunit.xpath.XPathAPI;
+import org.htmlunit.xpath.XPathCache;
+import org.htmlunit.xpath.XPathContext;
+import org.htmlunit.xpath.objects.XObject;
+import org.htmlunit.xpath.xml.dtm.DTM;
+import org.htmlunit.xpath.xml.dtm.DTMIterator;
+import org.htmlunit.xpath.xml.dtm.ref.DTMManagerDefault;
+import org.htmlunit.xpath.xml.utils.PrefixResolverDefault;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+
+/** Unit test for {@link FusedPath}. */
+public class FusedPathTest {
+
+  private static final String HTML =
+      "<html xmlns:s='urn:s'><body class='page'>"
+          + "<div id='a' class='box'>1<!--c--><div class='inner box'><p>2</p><p lang='en'>3</p>"
+          + "<div class='box\tx'><p>4</p></div></div><p>5<![CDATA[6]]></p></div>"
+          + "<form name='f'><input name='q' type='text'/><input name='q'/><input type='hidden'/>"
+          + "</form><s:p s:name='q'>7</s:p><p id='last' class=' box '>8</p>"
+          + "</body></html>";
+
+  private static final String[] SUPPORTED = {
+    "//p",
+    "//div//p",
+    "//div/div//p",
+    "/html/body/div/p",
+    "//div[@class='box']",
+    "//div[contains(concat(' ', normalize-space(@class), ' '), ' box ')]",
+    "//*[contains(concat(' ', @class, ' '), ' box ')]",
+    "//div[@id or @class='inner box']/p",
+    "//input[@name='q' and not(@type)]",
+    "//input[not(@name = 'q')]",
+    "//*[@lang]",
+    "//div/*",
+    "//div/node()",
+    "//div/text()",
+    "//p/text()",
+    "//comment()",
+    "//input/@name",
+    "//input/@*",
+    "//body/descendant::p",
+    "/descendant-or-self::div/p",
+    "//p/self::p",
+    "/",
+    "//s:p",
+    "//*[@s:name='q']",
+    "count(//p)",
+    "count(//div//p)",
+    "count(//input[@name='q'])",
+    "boolean(//p[@lang='en'])",
+    "boolean(//p[@lang='de'])",
+    "not(//form)",
+    "not(//table)",
+    "//div[@id='a']//div[contains(concat(' ', normalize-space(@class), ' '), ' x ')]/p",
+    "//missing",
+  };
+
+  private static final String[] UNSUPPORTED = {
+    "//p[1]",
+    "//p[last()]",
+    "//p/..",
+    "//p/following-sibling::p",
+    "//p[. = '2']",
+    "//s:*",
+    "string(//p)",
+    "count(//p) + 1",
+    "//p | //div",
+  };
+
+  private static Document parse(final String xml) throws Exception {
+    final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    return factory.newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+  }
+
+  private static Object evaluate(
+      final XPath xpath, final XPathContext xctxt, final Node context, final Document doc)
+      throws Exception {
+    final XObject result =
+        xpath.execute(xctxt, context, new PrefixResolverDefault(doc.getDocumentElement()));
+    if (XObject.CLASS_NODESET != result.getType()) {
+      return result.toString();
+    }
+
+    final DTMIterator iter = result.iter();
+    final List<Node> nodes = new ArrayList<>();
+    for (int node = iter.nextNode(); DTM.NULL != node; node = iter.nextNode()) {
+      nodes.add(xctxt.getDTM(node).getNode(node));
+    }
+    return nodes;
+  }
+
+  private static XPath compile(final String expr, final Document doc) throws Exception {
+    return new XPath(expr, new PrefixResolverDefault(doc.getDocumentElement()), XPath.SELECT);
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void sameResults() throws Exception {
+    final Document doc = parse(HTML);
+    final Node div = doc.getElementsByTagName("div").item(0);
+    for (final String expr : SUPPORTED) {
+      final XPath interpreted = compile(expr, doc);
+      final XPath fused = compile(expr, doc);
+      assertTrue(fused.useFusedPlan(), expr);
+      assertTrue(fused.isUsingFusedPlan(), expr);
+      assertFalse(interpreted.isUsingFusedPlan(), expr);
+
+      final XPathContext xctxt = new XPathContext();
+      assertEquals(
+          evaluate(interpreted, xctxt, doc, doc), evaluate(fused, xctxt, doc, doc), expr);
+      assertEquals(
+          evaluate(interpreted, xctxt, div, doc), evaluate(fused, xctxt, div, doc), expr);
+    }
+
+    for (final String expr : new String[] {".//p", "p", "*/p", "self::div/div/@class", "."}) {
+      final XPath fused = compile(expr, doc);
+      assertTrue(fused.useFusedPlan(), expr);
+      final XPathContext xctxt = new XPathContext();
+      assertEquals(
+          evaluate(compile(expr, doc), xctxt, div, doc), evaluate(fused, xctxt, div, doc), expr);
+    }
+
+    assertEquals("5", evaluate(compile("count(//p)", doc), new XPathContext(), div, doc));
+    assertEquals(
+        "false", evaluate(compile("boolean(//p[@lang='de'])", doc), new XPathContext(), doc, doc));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void unsupported() throws Exception {
+    final Document doc = parse(HTML);
+    for (final String expr : UNSUPPORTED) {
+      final XPath xpath = compile(expr, doc);
+      assertFalse(xpath.useFusedPlan(), expr);
+      assertFalse(xpath.isUsingFusedPlan(), expr);
+    }
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void sameResultsWithIndexes() throws Exception {
+    final Document doc = parse(HTML);
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    mgr.setAttributeValueIndexing(true);
+    final XPathContext xctxt = new XPathContext(mgr);
+    for (final String expr : SUPPORTED) {
+      final XPath fused = compile(expr, doc);
+      fused.useFusedPlan();
+      assertEquals(
+          evaluate(compile(expr, doc), new XPathContext(), doc, doc),
+          evaluate(fused, xctxt, doc, doc),
+          expr);
+    }
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void cacheThreshold() throws Exception {
+    final Document doc = parse(HTML);
+    final XPathCache cache = new XPathCache();
+    cache.setFusedPlanThreshold(3);
+    final XPath xpath = cache.getXPath("count(//input[@name='q'])", null);
+    cache.getXPath("count(//input[@name='q'])", null);
+    assertFalse(xpath.isUsingFusedPlan());
+    cache.getXPath("count(//input[@name='q'])", null);
+    assertTrue(xpath.isUsingFusedPlan());
+    assertEquals(2.0, xpath.execute(new XPathContext(), doc, null).num());
+
+    cache.setFusedPlanThreshold(1);
+    assertTrue(cache.getXPath("//p", null).isUsingFusedPlan());
+    assertFalse(cache.getXPath("//p[2]", null).isUsingFusedPlan());
+
+    // the shared cache of XPathAPI leaves the plans alone by default
+    assertEquals(0, XPathAPI.getXPathCache().getFusedPlanThreshold());
+  }
+
+  /**
+   * Compares the interpreted and the fused plan on a larger page, see {@link BenchmarkHelper}.
+   *
+   * @throws Exception in case of problems
+   */
+  @Test
+  public void benchmark() throws Exception {
+    BenchmarkHelper.assumeEnabled();
+
+    final StringBuilder html = new StringBuilder("<html><body>");
+    for (int i = 0; i < 5000; i++) {
+      html.append("<div class='row").append(i % 10 == 0 ? " hit" : "").append("'><span>")
+          .append(i).append("</span><p><a href='/").append(i).append("'>x</a><input name='q")
+          .append(i % 50).append("'/></p></div>");
+    }
+    html.append("</body></html>");
+    final Document doc = parse(html.toString());
+
+    final String[] expressions = {
+      "count(//a)",
+      "count(//div//a)",
+      "count(//div[contains(concat(' ', normalize-space(@class), ' '), ' hit ')])",
+      "count(//input[@name='q7'])",
+      "boolean(//p/input[@name='q49'])",
+      "//div/p/a",
+    };
+    for (final String expr : expressions) {
+      final XPathContext xctxt = new XPathContext();
+      final XPath interpreted = compile(expr, doc);
+      final XPath fused = compile(expr, doc);
+      assertTrue(fused.useFusedPlan(), expr);
+      assertEquals(evaluate(interpreted, xctxt, doc, doc), evaluate(fused, xctxt, doc, doc), expr);
+
+      final double interpretedTime =
+          BenchmarkHelper.median(() -> evaluate(interpreted, xctxt, doc, doc));
+      final double fusedTime = BenchmarkHelper.median(() -> evaluate(fused, xctxt, doc, doc));
+      System.out.printf(
+          "%-80s interpreted %8.3f ms, fused %8.3f ms%n", expr, interpretedTime, fusedTime);
+    }
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath.axes;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringReader;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.htmlunit.xpath.XPath;
+import org.htmlunit.xpath.XPathContext;
+import org.htmlunit.xpath.objects.XObject;
+import org.htmlunit.xpath.xml.dtm.DTMIterator;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/** Unit test for {@link IteratorPool}. */
+public class IteratorPoolTest {
+
+  private static final String[] EXPRESSIONS = {
+    "count(//div[@class='c3'])",
+    "string(//div[p='t5'][3]/span)",
+    "sum(//span[position() mod 2 = 0])",
+    "count(//p | //span[. > 50])",
+    "string(/html/body/div[5]/following::span[2])",
+    "count(//div[count(p[contains(., '1')]) > 0])",
+    "count(//div[not(p = 't2')][position() < 10])",
+    "string((//span)[last()])",
+    "count(//div[p[. = //div[@id='d3']/p]])",
+  };
+
+  private static Document rows() throws Exception {
+    final StringBuilder xml = new StringBuilder("<html><body>");
+    for (int i = 0; i < 60; i++) {
+      xml.append("<div class='c").append(i % 7).append("' id='d").append(i).append("'><p>t")
+          .append(i % 13).append("</p><span>").append(i).append("</span></div>");
+    }
+    xml.append("</body></html>");
+    return DocumentBuilderFactory.newInstance()
+        .newDocumentBuilder()
+        .parse(new InputSource(new StringReader(xml.toString())));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void instancesPerContext() throws Exception {
+    final DTMIterator original =
+        (DTMIterator) new XPath("//p", null, XPath.SELECT).getLocator();
+    final IteratorPool pool = new IteratorPool(original);
+    final XPathContext first = new XPathContext();
+    final XPathContext second = new XPathContext();
+
+    first.startEvaluation();
+    second.startEvaluation();
+    final DTMIterator instance = pool.getInstance(first);
+    assertNotSame(original, instance);
+    pool.freeInstance(first, instance);
+    assertSame(instance, pool.getInstance(first));
+
+    pool.freeInstance(first, instance);
+    assertNotSame(instance, pool.getInstance(second));
+    assertSame(instance, pool.getInstance(first));
+    assertNull(first.getFreeIterator(pool));
+
+    // iterators are kept after the evaluation has ended, until the context is reset
+    pool.freeInstance(first, instance);
+    first.endEvaluation();
+    assertSame(instance, first.getFreeIterator(pool));
+    pool.freeInstance(first, instance);
+    first.reset();
+    assertNull(first.getFreeIterator(pool));
+    second.endEvaluation();
+
+    // evaluations hand their iterators back to the context
+    final Document doc = rows();
+    final XPath xpath = new XPath("string(//div[@id='d7']/p)", null, XPath.SELECT);
+    assertEquals("t7", xpath.execute(first, doc, null).str());
+    assertEquals("t7", xpath.execute(first, doc, null).str());
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void boundedPerContext() throws Exception {
+    final DTMIterator original =
+        (DTMIterator) new XPath("//p", null, XPath.SELECT).getLocator();
+    final IteratorPool pool = new IteratorPool(original);
+    final XPathContext xctxt = new XPathContext();
+
+    xctxt.startEvaluation();
+    final List<DTMIterator> instances = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      instances.add(pool.getInstance(xctxt));
+    }
+    for (final DTMIterator instance : instances) {
+      pool.freeInstance(xctxt, instance);
+    }
+    int kept = 0;
+    while (null != xctxt.getFreeIterator(pool)) {
+      kept++;
+    }
+    assertTrue(kept > 0 && kept < 100, Integer.toString(kept));
+    xctxt.endEvaluation();
+
+    // a long-lived context keeps the expressions it has run for a limited number of pools only
+    final Document doc = rows();
+    final List<WeakReference<XPath>> xpaths = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      final XPath xpath = new XPath("//*[@id='d" + i + "']/*", null, XPath.SELECT);
+      final XObject result = xpath.execute(xctxt, doc, null);
+      assertEquals(2, result.nodelist().getLength());
+      result.detach();
+      xpaths.add(new WeakReference<>(xpath));
+    }
+    final List<WeakReference<XPath>> dropped = xpaths.subList(0, 30);
+    for (int i = 0; i < 20 && dropped.stream().anyMatch(r -> null != r.get()); i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertTrue(dropped.stream().allMatch(r -> null == r.get()));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void reusedByNextEvaluation() throws Exception {
+    final Document doc = rows();
+    final XPath xpath = new XPath("//div[@class='c3']", null, XPath.SELECT);
+    final IteratorPool pool = ((LocPathIterator) xpath.getLocator()).m_clones;
+    final XPathContext xctxt = new XPathContext();
+
+    // the result is detached after execute() has returned
+    final XObject first = xpath.execute(xctxt, doc, null);
+    assertEquals(9, first.nodelist().getLength());
+    first.detach();
+    final DTMIterator free = xctxt.getFreeIterator(pool);
+    assertNotNull(free);
+    xctxt.addFreeIterator(pool, free);
+
+    final XObject second = xpath.execute(xctxt, doc, null);
+    assertNull(xctxt.getFreeIterator(pool));
+    assertEquals(9, second.nodelist().getLength());
+    second.detach();
+    assertSame(free, xctxt.getFreeIterator(pool));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void sharedCompiledExpressions() throws Exception {
+    final Document doc = rows();
+    final XPath[] xpaths = new XPath[EXPRESSIONS.length];
+    final String[] expected = new String[EXPRESSIONS.length];
+    for (int i = 0; i < EXPRESSIONS.length; i++) {
+      xpaths[i] = new XPath(EXPRESSIONS[i], null, XPath.SELECT);
+      expected[i] = xpaths[i].execute(new XPathContext(), doc, null).str();
+    }
+
+    final int threads = 8;
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      final List<Future<?>> results = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        results.add(executor.submit(() -> {
+          final XPathContext xctxt = new XPathContext();
+          for (int r = 0; r < 20; r++) {
+            for (int i = 0; i < EXPRESSIONS.length; i++) {
+              assertEquals(expected[i], xpaths[i].execute(xctxt, doc, null).str(), EXPRESSIONS[i]);
+            }
+          }
+          return null;
+        }));
+      }
+      for (final Future<?> result : results) {
+        result.get();
+      }
+    }
+    finally {
+      executor.shutdown();
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath.axes;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.apache.commons.io.IOUtils;
+import org.htmlunit.xpath.XPath;
+import org.htmlunit.xpath.XPathContext;
+import org.htmlunit.xpath.objects.XObject;
+import org.htmlunit.xpath.xml.dtm.DTM;
+import org.htmlunit.xpath.xml.dtm.DTMManager;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+/** Unit test for {@link WalkerFactory}. */
+public class WalkerFactoryTest {
+
+  private static Document parse(final String xml) throws Exception {
+    final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    return factory
+        .newDocumentBuilder()
+        .parse(IOUtils.toInputStream(xml, StandardCharsets.UTF_8));
+  }
+
+  private static boolean walksContextSubtreeOnly(final String expr) throws Exception {
+    return new XPath(expr, null, XPath.SELECT).walksContextSubtreeOnly();
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void walksContextSubtreeOnly() throws Exception {
+    assertTrue(walksContextSubtreeOnly("."));
+    assertTrue(walksContextSubtreeOnly("./td[2]"));
+    assertTrue(walksContextSubtreeOnly(".//a[@href][position() < last()]"));
+    assertTrue(walksContextSubtreeOnly("td | th"));
+    assertTrue(walksContextSubtreeOnly("count(td) + 1"));
+    assertTrue(walksContextSubtreeOnly("(td/span)[1]/text()"));
+    assertTrue(walksContextSubtreeOnly("td[contains(string(.), 'x')]"));
+
+    assertFalse(walksContextSubtreeOnly("/html"));
+    assertFalse(walksContextSubtreeOnly("//td"));
+    assertFalse(walksContextSubtreeOnly(".."));
+    assertFalse(walksContextSubtreeOnly("following-sibling::tr"));
+    assertFalse(walksContextSubtreeOnly("td[../@id]"));
+    assertFalse(walksContextSubtreeOnly("td[count(//td) > 1]"));
+    assertFalse(walksContextSubtreeOnly("td | ../th"));
+    assertFalse(walksContextSubtreeOnly("namespace::*"));
+    assertFalse(walksContextSubtreeOnly("id('a')"));
+    assertFalse(walksContextSubtreeOnly("td[lang('en')]"));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void subtreeScopedEvaluation() throws Exception {
+    final Document doc =
+        parse("<table><tr id='r1'><td>1</td><td>2</td></tr><tr id='r2'><td>3</td></tr></table>");
+    final Node row = doc.getElementsByTagName("tr").item(0);
+
+    final XPathContext xctxt = new XPathContext();
+    xctxt.setSubtreeScoped(true);
+
+    final XObject cell = new XPath("./td[2]", null, XPath.SELECT).execute(xctxt, row, null);
+    final int cellHandle = cell.iter().nextNode();
+    assertSame(doc.getElementsByTagName("td").item(1), xctxt.getDTM(cellHandle).getNode(cellHandle));
+
+    // the DTM built for the row is not used for queries that leave the row
+    final XPath parent = new XPath("string(../tr[2]/@id)", null, XPath.SELECT);
+    assertEquals("r2", parent.execute(xctxt, row, null).str());
+
+    final DTMManager mgr = xctxt.getDTMManager();
+    final DTM rowDTM = mgr.getDTM(mgr.getDTMHandleFromSubtree(row));
+    final DTM docDTM = mgr.getDTM(mgr.getDTMHandleFromNode(row));
+    assertNotEquals(rowDTM, docDTM);
+    assertEquals(DTM.DOCUMENT_NODE, docDTM.getNodeType(docDTM.getDocument()));
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath.compiler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.StringReader;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.htmlunit.xpath.XPath;
+import org.htmlunit.xpath.XPathContext;
+import org.htmlunit.xpath.functions.FuncNot;
+import org.htmlunit.xpath.objects.XBoolean;
+import org.htmlunit.xpath.objects.XNumber;
+import org.htmlunit.xpath.objects.XString;
+import org.htmlunit.xpath.operations.Bool;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/** Unit test for {@link ConstantFolder}. */
+public class ConstantFolderTest {
+
+  private static final String XML =
+      "<root><div class='a'><p>1</p><p>ab</p><p>3</p></div><div><p/></div></root>";
+
+  private static XPath compile(final String expr) throws Exception {
+    return new XPath(expr, null, XPath.SELECT);
+  }
+
+  private static String evaluate(final String expr) throws Exception {
+    final Document doc =
+        DocumentBuilderFactory.newInstance()
+            .newDocumentBuilder()
+            .parse(new InputSource(new StringReader(XML)));
+    return compile(expr).execute(new XPathContext(), doc, null).str();
+  }
+
+  private static void assertFolded(final int count, final Class<?> type, final String expr)
+      throws Exception {
+    final XPath xpath = compile(expr);
+    assertEquals(count, xpath.getFoldedNodeCount(), expr);
+    assertEquals(type, xpath.getLocator().getClass(), expr);
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void constants() throws Exception {
+    assertFolded(1, XNumber.class, "1 + 2");
+    assertFolded(2, XNumber.class, "-(1 + 2)");
+    assertFolded(2, XBoolean.class, "not(true())");
+    assertFolded(1, XString.class, "concat('a', 'b')");
+    assertFolded(1, XNumber.class, "string-length('abc')");
+    assertFolded(1, XNumber.class, "number('5')");
+    assertFolded(3, XString.class, "substring(concat('ab', 'cd'), 1 + 1)");
+    assertFolded(3, XBoolean.class, "1 = 1 and 'a' != 'b'");
+
+    assertEquals("3", evaluate("1 + 2"));
+    assertEquals("false", evaluate("not(true())"));
+    assertEquals("bcd", evaluate("substring(concat('ab', 'cd'), 1 + 1)"));
+    assertEquals("NaN", evaluate("number('x') + 1"));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void contextDependent() throws Exception {
+    for (final String expr : new String[] {
+      "//p", "string()", "string-length()", "number()", "normalize-space()",
+      "position() = 1", "last() - 1", "count(//p) + 1", "name()", "lang('en')"}) {
+      assertEquals(0, compile(expr).getFoldedNodeCount(), expr);
+    }
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void predicates() throws Exception {
+    assertEquals(1, compile("//p[1 + 1]").getFoldedNodeCount());
+    assertEquals("ab", evaluate("string(//p[1 + 1])"));
+    assertEquals("3", evaluate("string(//div/p[string-length('abc')])"));
+    assertEquals("4", evaluate("count(//p[concat('a', 'b') = 'ab'])"));
+    assertEquals("0", evaluate("count(//p[not(true())])"));
+    assertEquals("ab", evaluate("string(//p[. = concat('a', 'b')])"));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void simplifications() throws Exception {
+    assertFolded(1, Bool.class, "boolean(//p)");
+    assertFolded(2, Bool.class, "//p = true()");
+    assertFolded(2, Bool.class, "false() != //p");
+    assertFolded(2, FuncNot.class, "//p = false()");
+    assertFolded(2, Bool.class, "true() and //p");
+    assertFolded(2, XBoolean.class, "//p and false()");
+    assertFolded(2, XBoolean.class, "true() or //p");
+    assertFolded(1, Bool.class, "//p or 0");
+
+    assertEquals("true", evaluate("boolean(//p)"));
+    assertEquals("false", evaluate("boolean(//table)"));
+    assertEquals("false", evaluate("//table = true()"));
+    assertEquals("true", evaluate("//table = false()"));
+    assertEquals("true", evaluate("count(//p) = true()"));
+    assertEquals("false", evaluate("false() or //table"));
+    assertEquals("1", evaluate("count(//div[@class = true()])"));
+    assertEquals("4", evaluate("count(//p[. = true()])"));
+    assertEquals("3", evaluate("count(//p[. != '1' and true()])"));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void matchPatterns() throws Exception {
+    final XPath xpath = new XPath("p[1 + 1]", null, XPath.MATCH);
+    assertEquals(1, xpath.getFoldedNodeCount());
+    assertEquals(0, new XPath("//p", null, XPath.MATCH).getFoldedNodeCount());
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath.functions;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.apache.commons.io.IOUtils;
+import org.htmlunit.xpath.XPath;
+import org.htmlunit.xpath.XPathContext;
+import org.htmlunit.xpath.compiler.FunctionTable;
+import org.htmlunit.xpath.xml.dtm.ref.DTMManagerDefault;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+
+/** Unit test for has-class() function. */
+public class HasClassTest {
+
+  private static final String XML =
+      "<root><div class='item'>1</div><div class=' first\titem '>2</div>"
+          + "<div class='items'>3</div><div>4</div><p class='item'>5</p></root>";
+
+  private static String evaluate(final boolean indexing, final String expr) throws Exception {
+    final Document doc =
+        DocumentBuilderFactory.newInstance()
+            .newDocumentBuilder()
+            .parse(IOUtils.toInputStream(XML, StandardCharsets.UTF_8));
+    final FunctionTable functions = new FunctionTable();
+    functions.installFunction("has-class", FuncHasClass.class);
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    mgr.setAttributeValueIndexing(indexing);
+
+    final XPath xpath = new XPath(expr, null, XPath.SELECT, null, functions);
+    return xpath.execute(new XPathContext(mgr), doc, null).str();
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void hasClass() throws Exception {
+    for (final boolean indexing : new boolean[] {false, true}) {
+      assertEquals("2", evaluate(indexing, "count(//div[has-class('item')])"));
+      assertEquals("1", evaluate(indexing, "string(//div[has-class('item')][1])"));
+      assertEquals("2", evaluate(indexing, "string(//*[has-class('first')])"));
+      assertEquals("1", evaluate(indexing, "count(//div[has-class('items')])"));
+      assertEquals("0", evaluate(indexing, "count(//div[has-class('first item')])"));
+      assertEquals("0", evaluate(indexing, "count(//div[has-class('')])"));
+      assertEquals("2", evaluate(indexing, "count(//div[has-class(concat('it', 'em'))][. < 3])"));
+      assertEquals("false", evaluate(indexing, "string(has-class('item'))"));
+    }
+  }
+}
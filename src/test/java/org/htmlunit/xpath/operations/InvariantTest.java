@@ -0,0 +1,225 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath.operations;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.htmlunit.xpath.Expression;
+import org.htmlunit.xpath.XPath;
+import org.htmlunit.xpath.XPathContext;
+import org.htmlunit.xpath.XPathVisitor;
+import org.htmlunit.xpath.objects.XObject;
+import org.htmlunit.xpath.xml.dtm.DTM;
+import org.htmlunit.xpath.xml.dtm.DTMIterator;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/** Unit test for {@link Invariant}. */
+public class InvariantTest {
+
+  private static final java.lang.String CATALOG =
+      "<catalog open='yes'><item id='a' price='10'/><item id='b' price='20'/>"
+          + "<item id='c' price='30'/><item id='d' price='60'/>"
+          + "<ref id='b'/><ref id='d'/></catalog>";
+
+  private static Document parse(final java.lang.String xml) throws Exception {
+    return DocumentBuilderFactory.newInstance()
+        .newDocumentBuilder()
+        .parse(new InputSource(new StringReader(xml)));
+  }
+
+  private static java.lang.String evaluate(final java.lang.String expr, final Document doc)
+      throws Exception {
+    return new XPath(expr, null, XPath.SELECT).execute(new XPathContext(), doc, null).str();
+  }
+
+  private static List<Expression> getPredicates(final java.lang.String expr) throws Exception {
+    final List<Expression> predicates = new ArrayList<>();
+    new XPath(expr, null, XPath.SELECT).callVisitors(new XPathVisitor() {
+      @Override
+      public boolean visitPredicate(final Expression pred) {
+        predicates.add(pred);
+        return false;
+      }
+    });
+    return predicates;
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void hoisted() throws Exception {
+    Expression pred =
+        getPredicates("//item[@price > sum(/catalog/item/@price) div count(/catalog/item)]").get(0);
+    assertTrue(pred instanceof Gt);
+    assertTrue(((Operation) pred).getRightOperand() instanceof Invariant);
+    assertTrue(((Invariant) ((Operation) pred).getRightOperand()).getOperand() instanceof Div);
+
+    pred = getPredicates("//item[position() = count(//ref)]").get(0);
+    assertTrue(((Operation) pred).getRightOperand() instanceof Invariant);
+
+    assertTrue(getPredicates("//item[/catalog/@open = 'yes']").get(0) instanceof Invariant);
+
+    // depends on the context, or is cheap already
+    for (final java.lang.String expr : new java.lang.String[] {
+      "//item[@price > ../@max]", "//item[position() = last()]", "//item[1]",
+      "//item[@id = 'a']", "//item[string-length() = 1]", "//item[1 + 1]"}) {
+      assertFalse(getPredicates(expr).get(0) instanceof Invariant, expr);
+    }
+
+    // not outside of predicates
+    assertFalse(new XPath("count(/catalog/item)", null, XPath.SELECT).getLocator()
+        instanceof Invariant);
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void results() throws Exception {
+    final Document doc = parse(CATALOG);
+    assertEquals(
+        "d",
+        evaluate(
+            "string(//item[@price > sum(/catalog/item/@price) div count(/catalog/item)]/@id)",
+            doc));
+    assertEquals(
+        "1", evaluate("count(//item[@price > sum(//item/@price) div count(//item)])", doc));
+    assertEquals("2", evaluate("count(//item[@id = /catalog/ref/@id])", doc));
+    assertEquals(
+        "3", evaluate("count(//item[@id = /catalog/ref/@id | /catalog/item[1]/@id])", doc));
+    assertEquals("b", evaluate("string(//item[count(/catalog/ref)]/@id)", doc));
+    assertEquals("b", evaluate("string(//item[position() = count(//ref)]/@id)", doc));
+    assertEquals("4", evaluate("count(//item[/catalog/@open = 'yes'])", doc));
+    assertEquals("d", evaluate("string(//item[@price = /catalog/item[last()]/@price]/@id)", doc));
+    assertEquals("1", evaluate("count(//item[@price = (/catalog/item/@price)[2]])", doc));
+    assertEquals(
+        "4", evaluate("count(//item[string-length(@id) = string-length(/catalog/ref/@id)])", doc));
+    assertEquals("2", evaluate("count(//item[not(@id = /catalog/ref/@id)])", doc));
+
+    // nothing is kept between evaluations
+    final XPath xpath = new XPath("count(//item[/catalog/@open = 'yes'])", null, XPath.SELECT);
+    final XPathContext xctxt = new XPathContext();
+    assertEquals(4.0, xpath.execute(xctxt, doc, null).num());
+    assertEquals(
+        0.0, xpath.execute(xctxt, parse(CATALOG.replace("'yes'", "'no'")), null).num());
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void evaluationState() throws Exception {
+    final Document doc = parse(CATALOG);
+    final XPathContext xctxt = new XPathContext();
+    xctxt.pushCurrentNodeAndExpression(xctxt.getDTMHandleFromNode(doc));
+
+    final Invariant count = new Invariant();
+    count.setRight((Expression) new XPath("count(//item)", null, XPath.SELECT).getLocator());
+    final Invariant items = new Invariant();
+    items.setRight((Expression) new XPath("//item", null, XPath.SELECT).getLocator());
+
+    // without an evaluation in progress nothing is kept
+    assertNotSame(count.execute(xctxt), count.execute(xctxt));
+
+    xctxt.startEvaluation();
+    final XObject first = count.execute(xctxt);
+    assertEquals(4.0, first.num());
+    assertSame(first, count.execute(xctxt));
+
+    // every use of a node-set gets its own iteration
+    final DTMIterator one = items.execute(xctxt).iter();
+    final DTMIterator two = items.execute(xctxt).iter();
+    assertEquals(one.nextNode(), two.nextNode());
+    for (int i = 0; i < 3; i++) {
+      assertTrue(DTM.NULL != one.nextNode());
+    }
+    assertEquals(DTM.NULL, one.nextNode());
+    assertEquals(4, items.execute(xctxt).iter().getLength());
+
+    xctxt.endEvaluation();
+    assertNull(xctxt.getInvariantValue(count));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void iteratedAfterExecute() throws Exception {
+    final StringBuilder xml = new StringBuilder("<catalog>");
+    for (int i = 0; i < 200; i++) {
+      xml.append("<item price='").append(i).append("'/>");
+    }
+    xml.append("</catalog>");
+    final Document doc = parse(xml.toString());
+
+    final XPath xpath =
+        new XPath(
+            "/catalog/item[@price > sum(/catalog/item/@price) div count(/catalog/item)]",
+            null,
+            XPath.SELECT);
+    final List<Expression> predicates = new ArrayList<>();
+    xpath.callVisitors(new XPathVisitor() {
+      @Override
+      public boolean visitPredicate(final Expression pred) {
+        predicates.add(pred);
+        return false;
+      }
+    });
+    final Invariant average = (Invariant) ((Operation) predicates.get(0)).getRightOperand();
+    final Expression operand = average.getOperand();
+    final int[] evaluations = new int[1];
+    average.setRight(new Expression() {
+      @Override
+      public XObject execute(final XPathContext xctxt)
+          throws javax.xml.transform.TransformerException {
+        evaluations[0]++;
+        return operand.execute(xctxt);
+      }
+
+      @Override
+      public boolean deepEquals(final Expression expr) {
+        return false;
+      }
+
+      @Override
+      public void callVisitors(final XPathVisitor visitor) {
+        operand.callVisitors(visitor);
+      }
+    });
+
+    // the nodes are found while the result is iterated, after execute() has returned
+    final XPathContext xctxt = new XPathContext();
+    assertEquals(100, xpath.execute(xctxt, doc, null).nodelist().getLength());
+    assertEquals(1, evaluations[0]);
+
+    final DTMIterator items = xpath.execute(xctxt, doc, null).iter();
+    assertNotNull(xctxt.getDTM(items.nextNode()));
+    assertNull(xctxt.getEvaluation());
+    int count = 1;
+    while (DTM.NULL != items.nextNode()) {
+      count++;
+    }
+    assertEquals(100, count);
+    assertEquals(2, evaluations[0]);
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath.xml.dtm.ref;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.stream.StreamSource;
+import org.htmlunit.xpath.xml.dtm.DTM;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Contention test for the handle to DTM resolution of {@link DTMManagerDefault}: several threads
+ * resolve node handles of a shared manager while another one keeps registering new DTMs.
+ */
+public class DTMManagerDefaultConcurrencyTest {
+
+  private static final int READERS = 8;
+
+  private static final int ROUNDS = 200;
+
+  private static DTM build(final DTMManagerDefault mgr, final int rows) {
+    final StringBuilder xml = new StringBuilder("<table>");
+    for (int i = 0; i < rows; i++) {
+      xml.append("<tr><td>").append(i).append("</td></tr>");
+    }
+    xml.append("</table>");
+    return mgr.getDTM(new StreamSource(new StringReader(xml.toString())), false, true, true);
+  }
+
+  /**
+   * Resolve all handles of a DTM, as iterators and XNodeSet do for every node they touch.
+   *
+   * @return the number of element nodes found
+   */
+  private static int resolveAll(final DTMManagerDefault mgr, final DTM dtm) {
+    int elements = 0;
+    final int root = dtm.getDocument();
+    for (int node = root; DTM.NULL != node; ) {
+      final DTM owner = mgr.getDTM(node);
+      if (DTM.ELEMENT_NODE == owner.getNodeType(node)) {
+        elements++;
+      }
+
+      int next = owner.getFirstChild(node);
+      while (DTM.NULL == next && DTM.NULL != node) {
+        next = (root == node) ? DTM.NULL : owner.getNextSibling(node);
+        if (DTM.NULL == next) {
+          node = owner.getParent(node);
+          if (root == node) {
+            node = DTM.NULL;
+          }
+        }
+      }
+      node = next;
+    }
+    return elements;
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void lookupWhileRegistering() throws Exception {
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+
+    // more records than a single DTM ID can address
+    final DTM dtm = build(mgr, 25_000);
+    final int expected = 1 + 2 * 25_000;
+
+    final ExecutorService executor = Executors.newFixedThreadPool(READERS + 1);
+    try {
+      final List<Future<Integer>> readers = new ArrayList<>();
+      for (int i = 0; i < READERS; i++) {
+        readers.add(
+            executor.submit(
+                () -> {
+                  int found = 0;
+                  for (int round = 0; round < ROUNDS / READERS; round++) {
+                    found = resolveAll(mgr, dtm);
+                  }
+                  return found;
+                }));
+      }
+
+      final Future<Integer> registrar =
+          executor.submit(
+              () -> {
+                int registered = 0;
+                for (int i = 0; i < 100; i++) {
+                  final DTM other = build(mgr, 10);
+                  if (other == mgr.getDTM(other.getDocument())) {
+                    registered++;
+                  }
+                }
+                return registered;
+              });
+
+      for (final Future<Integer> reader : readers) {
+        assertEquals(expected, reader.get().intValue());
+      }
+      assertEquals(100, registrar.get().intValue());
+    }
+    finally {
+      executor.shutdown();
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath.xml.dtm.ref;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringReader;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.stream.StreamSource;
+import org.htmlunit.xpath.xml.dtm.DTM;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/** Tests for releasing and evicting the DTMs of {@link DTMManagerDefault}. */
+public class DTMManagerDefaultLifecycleTest {
+
+  private static String table(final int rows) {
+    final StringBuilder xml = new StringBuilder("<table>");
+    for (int i = 0; i < rows; i++) {
+      xml.append("<tr><td>").append(i).append("</td></tr>");
+    }
+    return xml.append("</table>").toString();
+  }
+
+  private static DTM build(final DTMManagerDefault mgr, final int rows) {
+    return mgr.getDTM(new StreamSource(new StringReader(table(rows))), false, true, true);
+  }
+
+  private static Document parse(final int rows) throws Exception {
+    return DocumentBuilderFactory.newInstance()
+        .newDocumentBuilder()
+        .parse(new InputSource(new StringReader(table(rows))));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void releaseFreesTheDTMID() throws Exception {
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    final DTM first = build(mgr, 3);
+    final int handle = first.getDocument();
+    assertSame(first, mgr.getDTM(handle));
+    assertEquals(1, mgr.getDTMCount());
+
+    assertTrue(mgr.release(first));
+    assertFalse(mgr.release(first));
+    assertNull(mgr.getDTM(handle));
+    assertEquals(0, mgr.getDTMCount());
+    assertEquals(0, mgr.getNodeCount());
+    assertEquals(1, mgr.getReleaseCount());
+
+    final DTM second = build(mgr, 3);
+    assertEquals(handle, second.getDocument());
+    assertSame(second, mgr.getDTM(handle));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void releaseFreesAllIDsOfLargeDTM() throws Exception {
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    final DTMDefaultBase dtm = (DTMDefaultBase) build(mgr, 30000);
+    assertTrue(dtm.getNumberOfNodes() > 1 << DTMManagerDefault.IDENT_DTM_NODE_BITS);
+    assertTrue(mgr.getFirstFreeDTMID() > 2);
+    assertEquals(dtm.getNumberOfNodes(), mgr.getNodeCount());
+
+    assertTrue(mgr.release(dtm));
+    assertEquals(1, mgr.getFirstFreeDTMID());
+    for (final DTM registered : mgr.m_dtms) {
+      assertNull(registered);
+    }
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void releasedDOM2DTMIsRecreated() throws Exception {
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    final Document doc = parse(3);
+
+    final DTM dtm = mgr.getDTM(mgr.getDTMHandleFromNode(doc));
+    assertSame(dtm, mgr.getDTM(mgr.getDTMHandleFromNode(doc.getDocumentElement())));
+    assertTrue(mgr.release(dtm));
+
+    final int handle = mgr.getDTMHandleFromNode(doc.getDocumentElement());
+    assertNotSame(dtm, mgr.getDTM(handle));
+    assertEquals("table", mgr.getDTM(handle).getNodeName(handle));
+    assertEquals(1, mgr.getDTMCount());
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void evictLeastRecentlyUsed() throws Exception {
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    mgr.setMaxDTMs(2);
+    final Document a = parse(1);
+    final Document b = parse(2);
+    final Document c = parse(3);
+
+    final DTM dtmA = mgr.getDTM(mgr.getDTMHandleFromNode(a));
+    final DTM dtmB = mgr.getDTM(mgr.getDTMHandleFromNode(b));
+    // use a again, so that b is the least recently used one
+    assertSame(dtmA, mgr.getDTM(mgr.getDTMHandleFromNode(a)));
+
+    final DTM dtmC = mgr.getDTM(mgr.getDTMHandleFromNode(c));
+    assertEquals(2, mgr.getDTMCount());
+    assertEquals(1, mgr.getEvictionCount());
+    assertSame(dtmA, mgr.getDTM(dtmA.getDocument()));
+    assertSame(dtmC, mgr.getDTM(dtmC.getDocument()));
+    assertFalse(mgr.release(dtmB));
+
+    // lowering the bound evicts right away
+    mgr.setMaxDTMs(1);
+    assertEquals(1, mgr.getDTMCount());
+    assertSame(dtmC, mgr.getDTM(dtmC.getDocument()));
+    assertEquals(0, mgr.getReleaseCount());
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void evictByNodeCount() throws Exception {
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    final int nodes = ((DTMDefaultBase) build(mgr, 100)).getNumberOfNodes();
+    mgr.setMaxNodes(nodes * 3L);
+    assertEquals(1, mgr.getDTMCount());
+
+    for (int i = 0; i < 10; i++) {
+      final DTM dtm = build(mgr, 100);
+      assertSame(dtm, mgr.getDTM(dtm.getDocument()));
+      assertTrue(mgr.getNodeCount() <= nodes * 3L);
+    }
+    assertEquals(3, mgr.getDTMCount());
+    assertEquals(8, mgr.getEvictionCount());
+
+    // a DTM larger than the bound is kept until the next one comes in
+    final DTM large = build(mgr, 1000);
+    assertEquals(1, mgr.getDTMCount());
+    assertSame(large, mgr.getDTM(large.getDocument()));
+  }
+}
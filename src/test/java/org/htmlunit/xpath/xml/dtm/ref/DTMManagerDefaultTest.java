@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath.xml.dtm.ref;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringReader;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.dom.DOMSource;
+import org.htmlunit.xpath.xml.dtm.DTM;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+/** Tests for resolving DOM nodes to DTM handles in {@link DTMManagerDefault}. */
+public class DTMManagerDefaultTest {
+
+  private static Document parse(final String xml) throws Exception {
+    return DocumentBuilderFactory.newInstance()
+        .newDocumentBuilder()
+        .parse(new InputSource(new StringReader(xml)));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void nodesOfManyDocuments() throws Exception {
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    final Document[] docs = new Document[50];
+    final DTM[] dtms = new DTM[docs.length];
+    for (int i = 0; i < docs.length; i++) {
+      docs[i] = parse("<root id='" + i + "'><a><b>" + i + "</b></a></root>");
+      dtms[i] = mgr.getDTM(mgr.getDTMHandleFromNode(docs[i]));
+    }
+
+    for (int i = docs.length - 1; i >= 0; i--) {
+      final Element b = (Element) docs[i].getElementsByTagName("b").item(0);
+      final int handle = mgr.getDTMHandleFromNode(b.getFirstChild());
+      assertSame(dtms[i], mgr.getDTM(handle));
+      assertEquals(String.valueOf(i), dtms[i].getStringValue(handle).toString());
+
+      final int attr = mgr.getDTMHandleFromNode(docs[i].getDocumentElement().getAttributeNode("id"));
+      assertSame(dtms[i], mgr.getDTM(attr));
+      assertEquals(DTM.ATTRIBUTE_NODE, dtms[i].getNodeType(attr));
+    }
+    assertEquals(docs.length, mgr.getDTMCount());
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void subtreeDTMIsNotUsedForWholeTree() throws Exception {
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    final Document doc = parse("<root><a><b>text</b></a></root>");
+    final Element a = (Element) doc.getElementsByTagName("a").item(0);
+
+    final DTM subtree = mgr.getDTM(mgr.getDTMHandleFromSubtree(a));
+    assertSame(subtree, mgr.getDTM(mgr.getDTMHandleFromSubtree(a.getFirstChild())));
+
+    final DTM whole = mgr.getDTM(mgr.getDTMHandleFromNode(a.getFirstChild()));
+    assertNotSame(subtree, whole);
+    assertSame(whole, mgr.getDTM(mgr.getDTMHandleFromNode(doc)));
+    // the nearest root wins for subtrees
+    assertSame(subtree, mgr.getDTM(mgr.getDTMHandleFromSubtree(a)));
+    final Element root = doc.getDocumentElement();
+    assertSame(whole, mgr.getDTM(mgr.getDTMHandleFromSubtree(root)));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void sharedRootAfterRelease() throws Exception {
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    final Document doc = parse("<root><a/></root>");
+
+    final DTM first = mgr.getDTM(new DOMSource(doc), true, true, true);
+    final DTM second = mgr.getDTM(new DOMSource(doc), true, true, true);
+    final Element a = (Element) doc.getElementsByTagName("a").item(0);
+    assertSame(first, mgr.getDTM(mgr.getDTMHandleFromNode(a)));
+
+    assertTrue(mgr.release(first));
+    assertSame(second, mgr.getDTM(mgr.getDTMHandleFromNode(a)));
+    assertEquals(1, mgr.getDTMCount());
+  }
+}
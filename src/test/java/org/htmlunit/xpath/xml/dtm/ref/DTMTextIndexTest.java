@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath.xml.dtm.ref;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.htmlunit.xpath.XPath;
+import org.htmlunit.xpath.XPathContext;
+import org.htmlunit.xpath.xml.dtm.DTM;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.Text;
+import org.xml.sax.InputSource;
+
+/** Unit test for {@link DTMTextIndex}. */
+public class DTMTextIndexTest {
+
+  private static final String LISTING =
+      "<table><tr><td>Price</td><td>12</td></tr>"
+          + "<tr><td>Pr<b>ice</b> total</td><td a='Price'>Total: 30</td></tr>"
+          + "<tr><td><![CDATA[Price <b>]]></td><td><!--Price-->x</td></tr>"
+          + "<tr><td>TotalTotal</td><td>ab</td></tr></table>";
+
+  private static final String[] EXPRESSIONS = {
+    "count(//td[contains(., 'Price')])",
+    "count(//td[contains(text(), 'Total')])",
+    "count(//*[contains(., 'Total')])",
+    "count(//td[contains(., 'ice to')])",
+    "count(//td[contains(., 'Price <b>')])",
+    "count(//td[contains(., 'ab')])",
+    "count(//td[contains(., '')])",
+    "count(//td[contains(., 'b')])",
+    "count(//td[contains(@a, 'Price')])",
+    "count(//td[contains(., 'Price12')])",
+    "count(//tr[contains(., 'Price12')])",
+    "count(//td[contains(., 'alTot')])",
+    "count(//td[contains(., 'missing')])",
+    "count(//td[contains(comment(), 'Price')])",
+    "count(//tr[2]//*[contains(., 'ice')])",
+    "count(/descendant::td[contains(self::node(), 'Total')][2])",
+    "count(//node()[contains(., 'Price')])",
+    "string(contains(/, 'x') and contains(/table, '30Price'))",
+  };
+
+  private static Document parse(final String xml) throws Exception {
+    return DocumentBuilderFactory.newInstance()
+        .newDocumentBuilder()
+        .parse(new InputSource(new StringReader(xml)));
+  }
+
+  private static String evaluate(final XPathContext xctxt, final Document doc, final String expr)
+      throws Exception {
+    return new XPath(expr, null, XPath.SELECT).execute(xctxt, doc, null).str();
+  }
+
+  private static XPathContext newContext(final boolean indexing) {
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    mgr.setTextIndexing(indexing);
+    return new XPathContext(mgr);
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void contains() throws Exception {
+    final DTMTextIndex index = new DTMTextIndex("abcabcxabc");
+    assertTrue(index.contains(0, 10, "cabc"));
+    assertTrue(index.contains(3, 7, "abcx"));
+    assertFalse(index.contains(3, 6, "abcx"));
+    assertFalse(index.contains(4, 10, "bca"));
+    assertTrue(index.contains(7, 10, "bc"));
+    assertFalse(index.contains(7, 9, "bc"));
+    assertTrue(index.contains(5, 5, ""));
+    assertFalse(index.contains(0, 10, "abd"));
+
+    assertArrayEquals(new int[] {2, 5, 9}, index.indexOf("c"));
+    assertArrayEquals(new int[] {0, 3, 7}, index.indexOf("abc"));
+    assertArrayEquals(new int[] {2}, index.indexOf("cabcx"));
+    assertArrayEquals(new int[0], index.indexOf("abd"));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void indexMatchesStringValues() throws Exception {
+    final Document doc = parse(LISTING);
+    final XPathContext built = newContext(false);
+    final XPathContext indexed = newContext(true);
+
+    for (final String expr : EXPRESSIONS) {
+      assertEquals(evaluate(built, doc, expr), evaluate(indexed, doc, expr), expr);
+    }
+    assertEquals("3", evaluate(indexed, doc, EXPRESSIONS[0]));
+    assertEquals("true", evaluate(indexed, doc, EXPRESSIONS[EXPRESSIONS.length - 1]));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void elementsContainingText() throws Exception {
+    final Document doc = parse(LISTING);
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    mgr.setTextIndexing(true);
+    final DTM dtm = mgr.getDTM(mgr.getDTMHandleFromNode(doc));
+
+    for (final String s : new String[] {"Price", "ice to", "30Price", "b", "al", "missing"}) {
+      final List<Integer> expected = new ArrayList<>();
+      final NodeList elements = doc.getElementsByTagName("*");
+      for (int i = 0; i < elements.getLength(); i++) {
+        if (elements.item(i).getTextContent().contains(s)) {
+          expected.add(mgr.getDTMHandleFromNode(elements.item(i)));
+        }
+      }
+
+      final List<Integer> found = new ArrayList<>();
+      for (final int handle : dtm.getElementsContainingText(s)) {
+        found.add(handle);
+      }
+      assertEquals(expected, found, s);
+    }
+    assertNull(dtm.getElementsContainingText(""));
+
+    final DTMManagerDefault unindexed = new DTMManagerDefault();
+    assertNull(unindexed.getDTM(unindexed.getDTMHandleFromNode(doc))
+        .getElementsContainingText("Price"));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void unindexedStringValuesAreCached() throws Exception {
+    final Document doc = parse(LISTING);
+    final XPathContext xctxt = newContext(false);
+    assertEquals("3", evaluate(xctxt, doc, "count(//td[contains(., 'Price')])"));
+    assertEquals(8, xctxt.getStringValueCache().getMissCount());
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void changedText() throws Exception {
+    final Document doc = parse(LISTING);
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    mgr.setTextIndexing(true);
+    final XPathContext xctxt = new XPathContext(mgr);
+    assertEquals("0", evaluate(xctxt, doc, "count(//td[contains(., 'Discount')])"));
+
+    final Text text = (Text) doc.getElementsByTagName("td").item(1).getFirstChild();
+    text.setData("Discount");
+    mgr.characterDataChanged(text);
+    assertEquals("1", evaluate(xctxt, doc, "count(//td[contains(., 'Discount')])"));
+
+    final Element td = (Element) doc.getElementsByTagName("td").item(7);
+    final Text added = doc.createTextNode(" Discount");
+    td.appendChild(added);
+    mgr.childInserted(added);
+    assertEquals("2", evaluate(xctxt, doc, "count(//td[contains(., 'Discount')])"));
+    assertEquals("1", evaluate(xctxt, doc, "count(//td[contains(., 'ab Dis')])"));
+
+    final DTM dtm = mgr.getDTM(mgr.getDTMHandleFromNode(doc));
+    assertTrue(dtm.containsText(mgr.getDTMHandleFromNode(td), "ab Discount"));
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath.xml.dtm.ref;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.htmlunit.xpath.XPath;
+import org.htmlunit.xpath.XPathContext;
+import org.htmlunit.xpath.xml.dtm.DTM;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/** Unit test for {@link ExpandedNameTable}. */
+public class ExpandedNameTableTest {
+
+  private static final int NAMES = 3000;
+
+  private static Document parse(final String xml) throws Exception {
+    return DocumentBuilderFactory.newInstance()
+        .newDocumentBuilder()
+        .parse(new InputSource(new StringReader(xml)));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void lookup() throws Exception {
+    final ExpandedNameTable table = new ExpandedNameTable();
+    final int div = table.getExpandedTypeID(null, "div", DTM.ELEMENT_NODE);
+    assertEquals(DTM.NTYPES, div);
+    assertEquals(div, table.getExpandedTypeID("", "div", DTM.ELEMENT_NODE));
+    assertEquals(div + 1, table.getExpandedTypeID(null, "div", DTM.ATTRIBUTE_NODE));
+    assertEquals(div + 2, table.getExpandedTypeID("urn:x", "div", DTM.ELEMENT_NODE));
+
+    assertEquals("div", table.getLocalName(div));
+    assertNull(table.getNamespace(div));
+    assertEquals("urn:x", table.getNamespace(div + 2));
+    assertEquals(DTM.ATTRIBUTE_NODE, table.getType(div + 1));
+    assertEquals(0, table.getNamespaceID(div));
+    assertEquals(div + 2, table.getNamespaceID(div + 2));
+    assertEquals(DTM.NTYPES + 3, table.getSize());
+
+    // the IDs stay the same while the table grows
+    for (int i = 0; i < NAMES; i++) {
+      table.getExpandedTypeID(null, "n" + i, DTM.ELEMENT_NODE);
+    }
+    assertEquals(div, table.getExpandedTypeID(null, "div", DTM.ELEMENT_NODE));
+    assertEquals("n0", table.getLocalName(div + 3));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void concurrentAdds() throws Exception {
+    final ExpandedNameTable table = new ExpandedNameTable();
+    final int threads = 8;
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      final List<Future<int[]>> results = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        final boolean reverse = t % 2 == 1;
+        results.add(executor.submit(() -> {
+          final int[] ids = new int[NAMES];
+          for (int i = 0; i < NAMES; i++) {
+            final int name = reverse ? NAMES - 1 - i : i;
+            ids[name] = table.getExpandedTypeID("urn:" + name % 7, "n" + name, DTM.ELEMENT_NODE);
+            assertEquals("n" + name, table.getLocalName(ids[name]));
+          }
+          return ids;
+        }));
+      }
+
+      final int[] ids = results.get(0).get();
+      for (final Future<int[]> result : results) {
+        assertArrayEquals(ids, result.get());
+      }
+      assertEquals(DTM.NTYPES + NAMES, table.getSize());
+    }
+    finally {
+      executor.shutdown();
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void sharedAcrossManagers() throws Exception {
+    final DTMManagerDefault first = new DTMManagerDefault();
+    first.setSharedNameTable(true);
+    final DTMManagerDefault second = new DTMManagerDefault();
+    second.setSharedNameTable(true);
+    final DTMManagerDefault own = new DTMManagerDefault();
+
+    final Document doc1 = parse("<html><body><p class='a'>1</p></body></html>");
+    final Document doc2 = parse("<html><head/><body><p class='b'>2</p><p>3</p></body></html>");
+    final DTM dtm1 = first.getDTM(first.getDTMHandleFromNode(doc1));
+    final DTM dtm2 = second.getDTM(second.getDTMHandleFromNode(doc2));
+    final DTM dtm3 = own.getDTM(own.getDTMHandleFromNode(doc2));
+
+    assertSame(ExpandedNameTable.getSharedInstance(), ((DTMDefaultBase) dtm1).getExpandedNameTable());
+    assertSame(ExpandedNameTable.getSharedInstance(), ((DTMDefaultBase) dtm2).getExpandedNameTable());
+    assertNotSame(ExpandedNameTable.getSharedInstance(), ((DTMDefaultBase) dtm3).getExpandedNameTable());
+
+    final int p1 = first.getDTMHandleFromNode(doc1.getElementsByTagName("p").item(0));
+    final int p2 = second.getDTMHandleFromNode(doc2.getElementsByTagName("p").item(0));
+    assertEquals(dtm1.getExpandedTypeID(p1), dtm2.getExpandedTypeID(p2));
+    assertEquals(
+        dtm1.getExpandedTypeID(p1), dtm2.getExpandedTypeID(null, "p", DTM.ELEMENT_NODE));
+
+    final XPathContext xctxt = new XPathContext(second);
+    assertEquals(
+        "3", new XPath("string(//p[not(@class)])", null, XPath.SELECT).execute(xctxt, doc2, null).str());
+    assertEquals(2.0, new XPath("count(//body/p)", null, XPath.SELECT).execute(xctxt, doc2, null).num());
+  }
+}
@@ -0,0 +1,469 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath.xml.dtm.ref.dom2dtm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.dom.DOMSource;
+import org.apache.commons.io.IOUtils;
+import org.htmlunit.xpath.XPath;
+import org.htmlunit.xpath.XPathContext;
+import org.htmlunit.xpath.xml.dtm.DTM;
+import org.htmlunit.xpath.xml.dtm.ref.DTMDefaultBase;
+import org.htmlunit.xpath.xml.dtm.ref.DTMManagerDefault;
+import org.htmlunit.xpath.xml.dtm.ref.DTMStripSpaceFilter;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/** Unit test for {@link DOM2DTM}. */
+public class DOM2DTMTest {
+
+  private static final String MUTATION_XML =
+      "<root a='1'><x>one<y/>two</x><z><w>deep</w></z>tail</root>";
+
+  private static Document parse(final String xml) throws Exception {
+    final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    return factory
+        .newDocumentBuilder()
+        .parse(IOUtils.toInputStream(xml, StandardCharsets.UTF_8));
+  }
+
+  private static Document largeDocument(final int rows) throws Exception {
+    final StringBuilder xml = new StringBuilder("<table>");
+    for (int i = 0; i < rows; i++) {
+      xml.append("<tr id='r").append(i).append("'><td>").append(i).append("</td></tr>");
+    }
+    xml.append("</table>");
+    return parse(xml.toString());
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void handleOfNodeRoundTrip() throws Exception {
+    final Document doc = largeDocument(20_000);
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+
+    // walk backwards to defeat the incremental build order
+    final NodeList cells = doc.getElementsByTagName("td");
+    for (int i = cells.getLength() - 1; i >= 0; i--) {
+      final Node cell = cells.item(i);
+      final int handle = mgr.getDTMHandleFromNode(cell);
+      final DTM dtm = mgr.getDTM(handle);
+
+      assertSame(cell, dtm.getNode(handle));
+      assertSame(cell.getFirstChild(), dtm.getNode(dtm.getFirstChild(handle)));
+    }
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void handleOfAttribute() throws Exception {
+    final Document doc = parse("<root><a x='1' y='2'/></root>");
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+
+    final Element a = (Element) doc.getElementsByTagName("a").item(0);
+    final int handle = mgr.getDTMHandleFromNode(a.getAttributeNode("y"));
+
+    assertEquals(DTM.ATTRIBUTE_NODE, mgr.getDTM(handle).getNodeType(handle));
+    assertEquals("2", mgr.getDTM(handle).getNodeValue(handle));
+  }
+
+  private static String dump(final Document doc, final boolean incremental) throws Exception {
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    return dump((DTMDefaultBase) mgr.getDTM(new DOMSource(doc), false, incremental, true));
+  }
+
+  private static String dump(final DTMDefaultBase dtm) throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    dtm.dumpDTM(out);
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void eagerBuildMatchesIncremental() throws Exception {
+    final Document doc =
+        parse(
+            "<?pi data?><root xmlns:p='urn:p' a='1'>"
+                + "<p:x p:b='2'>text<![CDATA[cdata]]>more</p:x><!-- comment -->"
+                + "<y/><z><z><z>deep</z></z></z>\n  </root>");
+
+    assertEquals(dump(doc, true), dump(doc, false));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void eagerBuildLargeDocument() throws Exception {
+    // more records than a single DTM ID can address
+    final Document doc = largeDocument(30_000);
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    mgr.setIncremental(false);
+
+    final Node last = doc.getElementsByTagName("td").item(29_999);
+    final int handle = mgr.getDTMHandleFromNode(last);
+    assertSame(last, mgr.getDTM(handle).getNode(handle));
+
+    final XPathContext xctxt = new XPathContext(mgr);
+    final XPath xpath = new XPath("count(//tr[@id]/td)", null, XPath.SELECT);
+    assertEquals(30_000, xpath.execute(xctxt, doc, null).num());
+  }
+
+  private static DOM2DTM build(final Document doc, final boolean incremental) throws Exception {
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    final DOM2DTM dtm = (DOM2DTM) mgr.getDTM(new DOMSource(doc), false, incremental, true);
+    // build the whole document
+    dump(dtm);
+    return dtm;
+  }
+
+  private static void assertRebuilt(final Document doc, final DOM2DTM dtm) throws Exception {
+    // expanded type ids depend on the order names were first seen in
+    final String typeIds = "Expanded Type ID: \\w+\\R";
+    assertEquals(dump(doc, true).replaceAll(typeIds, ""), dump(dtm).replaceAll(typeIds, ""));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void childInserted() throws Exception {
+    for (final boolean incremental : new boolean[] {true, false}) {
+      final Document doc = parse(MUTATION_XML);
+      final DOM2DTM dtm = build(doc, incremental);
+
+      final Element x = (Element) doc.getElementsByTagName("x").item(0);
+      final Element y = (Element) doc.getElementsByTagName("y").item(0);
+      final Element inserted = doc.createElement("new");
+      inserted.setAttribute("b", "2");
+      inserted.appendChild(doc.createTextNode("content"));
+      x.insertBefore(inserted, y);
+      dtm.childInserted(inserted);
+      assertRebuilt(doc, dtm);
+
+      final Node text = doc.createTextNode("more");
+      doc.getDocumentElement().appendChild(text);
+      dtm.childInserted(text);
+      assertRebuilt(doc, dtm);
+
+      final Node first = doc.createComment("first");
+      doc.getDocumentElement().insertBefore(first, x);
+      dtm.childInserted(first);
+      assertRebuilt(doc, dtm);
+    }
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void childRemoved() throws Exception {
+    for (final boolean incremental : new boolean[] {true, false}) {
+      final Document doc = parse(MUTATION_XML);
+      final DOM2DTM dtm = build(doc, incremental);
+
+      // the text nodes around y have to be merged afterwards
+      final Element y = (Element) doc.getElementsByTagName("y").item(0);
+      final Node parent = y.getParentNode();
+      parent.removeChild(y);
+      dtm.childRemoved(parent, y);
+      assertRebuilt(doc, dtm);
+
+      final Element z = (Element) doc.getElementsByTagName("z").item(0);
+      doc.getDocumentElement().removeChild(z);
+      dtm.childRemoved(doc.getDocumentElement(), z);
+      assertRebuilt(doc, dtm);
+    }
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void elementIndexAfterRemoval() throws Exception {
+    final Document doc = parse("<r><a/><b/><c/></r>");
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    final XPathContext xctxt = new XPathContext(mgr);
+    final XPath b = new XPath("count(//b)", null, XPath.SELECT);
+    final XPath c = new XPath("count(//c)", null, XPath.SELECT);
+    assertEquals(1.0, b.execute(xctxt, doc, null).num());
+
+    // the element indexes keep discarded identities in their free slots, c gets a new one
+    final Element removed = (Element) doc.getElementsByTagName("b").item(0);
+    doc.getDocumentElement().removeChild(removed);
+    mgr.childRemoved(doc.getDocumentElement(), removed);
+    assertEquals(1.0, c.execute(xctxt, doc, null).num());
+    assertEquals(0.0, b.execute(xctxt, doc, null).num());
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void attributesChanged() throws Exception {
+    for (final boolean incremental : new boolean[] {true, false}) {
+      final Document doc = parse(MUTATION_XML);
+      final DOM2DTM dtm = build(doc, incremental);
+
+      final Element root = doc.getDocumentElement();
+      root.setAttribute("c", "3");
+      dtm.attributesChanged(root);
+      assertRebuilt(doc, dtm);
+
+      final Element w = (Element) doc.getElementsByTagName("w").item(0);
+      w.setAttribute("d", "4");
+      dtm.attributesChanged(w);
+      assertRebuilt(doc, dtm);
+
+      root.removeAttribute("a");
+      dtm.attributesChanged(root);
+      assertRebuilt(doc, dtm);
+    }
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void mutationWhileBuilding() throws Exception {
+    final Document doc = largeDocument(100);
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    final XPathContext xctxt = new XPathContext(mgr);
+
+    // builds only the first part of the document
+    final Node first = doc.getElementsByTagName("td").item(0);
+    mgr.getDTMHandleFromNode(first);
+
+    final Element row = doc.createElement("tr");
+    row.setAttribute("id", "new");
+    doc.getDocumentElement().insertBefore(row, first.getParentNode());
+    mgr.childInserted(row);
+
+    final Node removed = doc.getElementsByTagName("tr").item(50);
+    doc.getDocumentElement().removeChild(removed);
+    mgr.childRemoved(doc.getDocumentElement(), removed);
+
+    final XPath xpath = new XPath("count(//tr[@id])", null, XPath.SELECT);
+    assertEquals(100, xpath.execute(xctxt, doc, null).num());
+    final XPath firstId = new XPath("string(//tr[1]/@id)", null, XPath.SELECT);
+    assertEquals("new", firstId.execute(xctxt, doc, null).str());
+  }
+
+  private static String select(
+      final Document doc, final String expression, final boolean incremental) throws Exception {
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    mgr.setIncremental(incremental);
+    final XPathContext xctxt = new XPathContext(mgr);
+    final NodeList nodes =
+        new XPath(expression, null, XPath.SELECT).execute(xctxt, doc, null).nodelist();
+
+    final StringBuilder result = new StringBuilder();
+    for (int i = 0; i < nodes.getLength(); i++) {
+      final Node node = nodes.item(i);
+      result.append(node.getNodeName()).append('=').append(node.getTextContent()).append(' ');
+    }
+    return result.toString().trim();
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void attributesBuiltOnDemand() throws Exception {
+    final Document doc = parse("<root xmlns:p='urn:p' a='1'><x b='2' c='3'/>text</root>");
+    final DOM2DTM dtm = build(doc, true);
+
+    final String built = dump(dtm);
+    assertFalse(built.contains("ATTRIBUTE_NODE"), built);
+    assertEquals(2, built.split("NAMESPACE_NODE", -1).length - 1, built);
+
+    final Element x = (Element) doc.getElementsByTagName("x").item(0);
+    final int handle = dtm.getHandleOfNode(x);
+    final int b = dtm.getFirstAttribute(handle);
+    assertSame(x.getAttributeNode("b"), dtm.getNode(b));
+    final int c = dtm.getNextAttribute(b);
+    assertEquals(c, dtm.getHandleOfNode(x.getAttributeNode("c")));
+    assertEquals(DTM.NULL, dtm.getNextAttribute(c));
+
+    x.removeAttribute("b");
+    x.setAttribute("d", "4");
+    dtm.attributesChanged(x);
+    final int d = dtm.getNextAttribute(dtm.getFirstAttribute(handle));
+    assertSame(x.getAttributeNode("d"), dtm.getNode(d));
+    assertEquals(DTM.NULL, dtm.getNextAttribute(d));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void attributeDocumentOrder() throws Exception {
+    final String xml = "<table><tr id='r0'><td>0</td></tr><tr id='r1'><td>1</td></tr></table>";
+    for (final boolean incremental : new boolean[] {true, false}) {
+      final Document doc = parse(xml);
+      assertEquals("id=r0 td=0 id=r1 td=1", select(doc, "//td | //tr/@id", incremental));
+      assertEquals(
+          "td=0 id=r1",
+          select(doc, "//tr[2]/@id/preceding::*[1] | //tr/@id[.='r1']", incremental));
+      assertEquals("td=0", select(doc, "//tr[2]/@id/preceding::td", incremental));
+      assertEquals("td=1", select(doc, "//tr[2]/@id/following::td", incremental));
+    }
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void stripWhitespace() throws Exception {
+    final Document doc =
+        parse(
+            "<html>\n  <body>\n    <p>a <b>b</b> </p>\n    <pre>\n <i>x</i> </pre>\n"
+                + "    <div xml:space='preserve'> <span> </span> </div>\n  </body>\n</html>");
+    final DTMStripSpaceFilter filter = new DTMStripSpaceFilter(true);
+    filter.addPreserveSpaceElement("pre");
+
+    for (final boolean incremental : new boolean[] {true, false}) {
+      final DTMManagerDefault mgr = new DTMManagerDefault();
+      mgr.setIncremental(incremental);
+      mgr.setWhitespaceFilter(filter);
+      final XPathContext xctxt = new XPathContext(mgr);
+
+      final XPath count = new XPath("count(//text())", null, XPath.SELECT);
+      assertEquals(8, count.execute(xctxt, doc, null).num());
+      final XPath body = new XPath("count(/html/body/node())", null, XPath.SELECT);
+      assertEquals(3, body.execute(xctxt, doc, null).num());
+      final XPath p = new XPath("string(//p)", null, XPath.SELECT);
+      assertEquals("a b", p.execute(xctxt, doc, null).str());
+      final XPath pre = new XPath("string(//pre)", null, XPath.SELECT);
+      assertEquals("\n x ", pre.execute(xctxt, doc, null).str());
+
+      final DOM2DTM dtm = (DOM2DTM) mgr.getDTM(mgr.getDTMHandleFromNode(doc));
+      assertEquals(DTM.NULL, dtm.getHandleOfNode(doc.getDocumentElement().getFirstChild()));
+    }
+
+    final XPathContext xctxt = new XPathContext(new DTMManagerDefault());
+    final XPath count = new XPath("count(//text())", null, XPath.SELECT);
+    assertEquals(15, count.execute(xctxt, doc, null).num());
+  }
+
+  private static void collect(final Node node, final List<Node> nodes) {
+    nodes.add(node);
+    for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+      collect(child, nodes);
+    }
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void structuralAxes() throws Exception {
+    final Document doc =
+        parse("<a><b>1<c/>2</b><!--x--><d><e><f>3</f></e><g/></d>4<h><i/></h></a>");
+    final List<Node> nodes = new ArrayList<>();
+    collect(doc.getDocumentElement(), nodes);
+
+    for (final boolean incremental : new boolean[] {true, false}) {
+      for (final Node context : nodes) {
+        int descendants = 0;
+        int following = 0;
+        int preceding = 0;
+        for (final Node node : nodes) {
+          final short position = context.compareDocumentPosition(node);
+          if (0 != (position & Node.DOCUMENT_POSITION_CONTAINED_BY)) {
+            descendants++;
+          }
+          else if (0 != (position & Node.DOCUMENT_POSITION_FOLLOWING)) {
+            following++;
+          }
+          else if (0 != (position & Node.DOCUMENT_POSITION_PRECEDING)
+              && 0 == (position & Node.DOCUMENT_POSITION_CONTAINS)) {
+            preceding++;
+          }
+        }
+
+        // a fresh manager each time, so that the DTM is only partially built
+        final DTMManagerDefault mgr = new DTMManagerDefault();
+        mgr.setIncremental(incremental);
+        final XPathContext xctxt = new XPathContext(mgr);
+        assertEquals(
+            descendants,
+            new XPath("count(descendant::node())", null, XPath.SELECT)
+                .execute(xctxt, context, null).num());
+        assertEquals(
+            following,
+            new XPath("count(following::node())", null, XPath.SELECT)
+                .execute(xctxt, context, null).num());
+        assertEquals(
+            preceding,
+            new XPath("count(preceding::node())", null, XPath.SELECT)
+                .execute(xctxt, context, null).num());
+      }
+    }
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void interleavedRecords() throws Exception {
+    // spans several blocks of records
+    final Document doc = largeDocument(2_000);
+    final String expected = dump(doc, true);
+
+    for (final boolean incremental : new boolean[] {true, false}) {
+      final DTMManagerDefault mgr = new DTMManagerDefault();
+      mgr.setInterleavedRecords(true);
+      final DTMDefaultBase dtm =
+          (DTMDefaultBase) mgr.getDTM(new DOMSource(doc), false, incremental, true);
+      assertEquals(expected, dump(dtm));
+
+      final XPathContext xctxt = new XPathContext(mgr);
+      final XPath xpath = new XPath("count(/table/tr[1]/td/following::td)", null, XPath.SELECT);
+      assertEquals(1_999, xpath.execute(xctxt, doc, null).num());
+    }
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void idAttribute() throws Exception {
+    final Document doc = largeDocument(5_000);
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    mgr.setIdAttributeName("id");
+    final XPathContext xctxt = new XPathContext(mgr);
+    final DOM2DTM dtm = (DOM2DTM) xctxt.getDTM(xctxt.getDTMHandleFromNode(doc));
+
+    // the DOM does not declare any IDs
+    final DTMManagerDefault declared = new DTMManagerDefault();
+    final DTM dtmOfDeclared = declared.getDTM(declared.getDTMHandleFromNode(doc));
+    assertEquals(DTM.NULL, dtmOfDeclared.getElementById("r7"));
+
+    final Element r7 = (Element) doc.getElementsByTagName("tr").item(7);
+    assertSame(r7, dtm.getNode(dtm.getElementById("r7")));
+    assertEquals(DTM.NULL, dtm.getElementById("missing"));
+    final XPath ids = new XPath("sum(id('r4999 missing r7')/td)", null, XPath.SELECT);
+    assertEquals(5_006, ids.execute(xctxt, doc, null).num());
+
+    // the first element in document order wins, also after changes
+    final Element r9 = (Element) doc.getElementsByTagName("tr").item(9);
+    r9.setAttribute("id", "r7");
+    dtm.attributesChanged(r9);
+    assertSame(r7, dtm.getNode(dtm.getElementById("r7")));
+    assertEquals(DTM.NULL, dtm.getElementById("r9"));
+    r7.setAttribute("id", "seven");
+    dtm.attributesChanged(r7);
+    assertSame(r9, dtm.getNode(dtm.getElementById("r7")));
+    assertSame(r7, dtm.getNode(dtm.getElementById("seven")));
+
+    final Element table = doc.getDocumentElement();
+    table.removeChild(r9);
+    dtm.childRemoved(table, r9);
+    assertEquals(DTM.NULL, dtm.getElementById("r7"));
+    assertSame(
+        doc.getElementsByTagName("tr").item(4_998), dtm.getNode(dtm.getElementById("r4999")));
+  }
+}
@@ -0,0 +1,276 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath.xml.dtm.ref.mapped;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamSource;
+import org.htmlunit.xpath.BenchmarkHelper;
+import org.htmlunit.xpath.XPath;
+import org.htmlunit.xpath.XPathContext;
+import org.htmlunit.xpath.objects.XObject;
+import org.htmlunit.xpath.xml.dtm.DTM;
+import org.htmlunit.xpath.xml.dtm.DTMIterator;
+import org.htmlunit.xpath.xml.dtm.DTMManager;
+import org.htmlunit.xpath.xml.dtm.ref.DTMDefaultBase;
+import org.htmlunit.xpath.xml.dtm.ref.DTMManagerDefault;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.xml.sax.InputSource;
+
+/** Unit test for {@link MappedDTM} and {@link MappedDTMWriter}. */
+public class MappedDTMTest {
+
+  private static final String XML =
+      "<?pi data?><root xmlns='urn:d' xmlns:p='urn:p' a='1'>"
+          + "<p:x p:b='2' c='3'>text<![CDATA[cdata]]>more</p:x><!-- comment -->"
+          + "<y xmlns:q='urn:q' q:key='k1'><q:w/></y><z><z><z>déep</z></z></z>\n  </root>";
+
+  private static final String[] EXPRESSIONS = {
+    "//node()",
+    "//@*",
+    "//namespace::*",
+    "//*[local-name()='y']/namespace::*",
+    "//*[local-name()='x']/@*",
+    "//*[local-name()='x']/@c",
+    "//*[namespace-uri()='urn:p']",
+    "//*[local-name()='z']",
+    "//text()",
+    "//comment()",
+    "//processing-instruction()",
+    "//*[local-name()='z']/ancestor::*",
+    "//*[local-name()='y']/following::node()",
+    "//*[local-name()='y']/preceding::node()",
+    "//*[local-name()='y']/preceding-sibling::*",
+    "//*[local-name()='y']/descendant-or-self::*",
+    "string(/)",
+    "count(//node())",
+    "name(/*/*[1])",
+  };
+
+  @TempDir
+  Path tempDir_;
+
+  private static String evaluate(final DTMManagerDefault mgr, final DTM dtm, final String expr)
+      throws Exception {
+    final XPathContext xctxt = new XPathContext(mgr);
+    final XObject result =
+        new XPath(expr, null, XPath.SELECT).execute(xctxt, dtm.getDocument(), null);
+    if (XObject.CLASS_NODESET != result.getType()) {
+      return result.str();
+    }
+
+    final StringBuilder buf = new StringBuilder();
+    final DTMIterator nodes = result.iter();
+    for (int node = nodes.nextNode(); DTM.NULL != node; node = nodes.nextNode()) {
+      final DTM owner = mgr.getDTM(node);
+      buf.append(owner.getNodeName(node))
+          .append('{')
+          .append(owner.getNamespaceURI(node))
+          .append("}=")
+          .append(owner.getStringValue(node))
+          .append(' ');
+    }
+    return buf.toString();
+  }
+
+  private static String evaluateAll(final DTMManagerDefault mgr, final DTM dtm) throws Exception {
+    final StringBuilder buf = new StringBuilder();
+    for (final String expr : EXPRESSIONS) {
+      buf.append(expr).append(": ").append(evaluate(mgr, dtm, expr)).append('\n');
+    }
+    return buf.toString();
+  }
+
+  private static DOMSource domSource(final String xml) throws Exception {
+    final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    return new DOMSource(
+        factory.newDocumentBuilder().parse(new InputSource(new StringReader(xml))));
+  }
+
+  private void assertSnapshotMatches(final Source source, final boolean doIndexing)
+      throws Exception {
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    final DTM dtm = mgr.getDTM(source, false, true, doIndexing);
+    final String expected = evaluateAll(mgr, dtm);
+
+    final Path file = tempDir_.resolve("snapshot.dtm");
+    MappedDTMWriter.write((DTMDefaultBase) dtm, file);
+
+    final DTMManagerDefault mappedMgr = new DTMManagerDefault();
+    assertEquals(expected, evaluateAll(mappedMgr, mappedMgr.getDTM(file)));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void domSnapshot() throws Exception {
+    assertSnapshotMatches(domSource(XML), true);
+    assertSnapshotMatches(domSource(XML), false);
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void streamSnapshot() throws Exception {
+    assertSnapshotMatches(new StreamSource(new StringReader(XML)), true);
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void largeSnapshot() throws Exception {
+    // more records than a single DTM ID can address
+    final StringBuilder xml = new StringBuilder("<table xmlns:t='urn:t'>");
+    for (int i = 0; i < 30_000; i++) {
+      xml.append("<tr id='r").append(i).append("'><td>").append(i).append("</td></tr>");
+    }
+    xml.append("<t:tfoot/></table>");
+
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    final DTM dtm =
+        mgr.getDTM(new StreamSource(new StringReader(xml.toString())), false, true, true);
+    final Path file = tempDir_.resolve("large.dtm");
+    MappedDTMWriter.write((DTMDefaultBase) dtm, file);
+
+    final DTMManagerDefault mappedMgr = new DTMManagerDefault();
+    final DTM mapped = mappedMgr.getDTM(file);
+    assertEquals("30000", evaluate(mappedMgr, mapped, "count(//td)"));
+    assertEquals("29999", evaluate(mappedMgr, mapped, "string(/table/tr[@id='r29999'])"));
+    assertEquals(
+        "r29998",
+        evaluate(mappedMgr, mapped, "string(/table/tr[30000]/preceding-sibling::tr[1]/@id)"));
+    assertEquals(
+        "urn:t", evaluate(mappedMgr, mapped, "namespace-uri(/table/*[local-name()='tfoot'])"));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void invalidSnapshot() throws Exception {
+    final Path file = tempDir_.resolve("invalid.dtm");
+    Files.write(file, "<root/>".getBytes(StandardCharsets.UTF_8));
+
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    assertThrows(RuntimeException.class, () -> mgr.getDTM(file));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void corruptSnapshot() throws Exception {
+    final StringBuilder xml = new StringBuilder("<table>");
+    for (int i = 0; i < 30_000; i++) {
+      xml.append("<tr><td>").append(i).append("</td></tr>");
+    }
+    xml.append("</table>");
+    final DTM dtm =
+        new DTMManagerDefault()
+            .getDTM(new StreamSource(new StringReader(xml.toString())), false, true, true);
+    final Path file = tempDir_.resolve("corrupt.dtm");
+    MappedDTMWriter.write((DTMDefaultBase) dtm, file);
+
+    // let the count of the first element index run past the end of the file
+    final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+    final int indexStart =
+        MappedDTM.HEADER_INTS
+            + 3 * (buffer.getInt(4 * 3) - DTM.NTYPES)
+            + MappedDTM.FIELDS * buffer.getInt(4 * 2);
+    buffer.putInt(4 * (indexStart + 2), buffer.capacity() / 4);
+    Files.write(file, buffer.array());
+
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    final int firstFree = mgr.getFirstFreeDTMID();
+    assertThrows(RuntimeException.class, () -> mgr.getDTM(file));
+
+    // neither the DTM nor its additional DTM IDs are left behind
+    assertEquals(0, mgr.getDTMCount());
+    assertEquals(firstFree, mgr.getFirstFreeDTMID());
+    assertNull(mgr.getDTM(firstFree << DTMManager.IDENT_DTM_NODE_BITS));
+  }
+
+  /**
+   * Times the traversal of a DTM with the default record layout before and after DTMs with
+   * interleaved and mapped records have been traversed as well, see {@link BenchmarkHelper}.
+   *
+   * @throws Exception in case of problems
+   */
+  @Test
+  public void columnLayoutBenchmark() throws Exception {
+    BenchmarkHelper.assumeEnabled();
+
+    final StringBuilder xml = new StringBuilder("<table>");
+    for (int i = 0; i < 20_000; i++) {
+      xml.append("<tr id='r").append(i).append("'><td>").append(i).append("</td><td/></tr>");
+    }
+    xml.append("</table>");
+
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    final DTM dtm =
+        mgr.getDTM(new StreamSource(new StringReader(xml.toString())), false, true, true);
+    final DTMManagerDefault interleavedMgr = new DTMManagerDefault();
+    interleavedMgr.setInterleavedRecords(true);
+    final DTM interleaved =
+        interleavedMgr.getDTM(
+            new StreamSource(new StringReader(xml.toString())), false, true, true);
+    final Path file = tempDir_.resolve("benchmark.dtm");
+    MappedDTMWriter.write((DTMDefaultBase) dtm, file);
+    final DTM mapped = new DTMManagerDefault().getDTM(file);
+
+    // the first run of the default layout only warms up
+    final DTM[] runs = {dtm, dtm, interleaved, mapped, dtm};
+    final double[] times = new double[runs.length];
+    for (int i = 0; i < runs.length; i++) {
+      final DTM run = runs[i];
+      assertEquals(80_001, walk(run));
+      times[i] = BenchmarkHelper.median(() -> walk(run));
+    }
+    System.out.printf(
+        "default %8.3f ms, interleaved %8.3f ms, mapped %8.3f ms, default again %8.3f ms%n",
+        times[1], times[2], times[3], times[4]);
+  }
+
+  /**
+   * @param dtm the DTM.
+   * @return the number of nodes below the document, visited in document order by their first
+   *     child, next sibling and parent.
+   */
+  private static int walk(final DTM dtm) {
+    final int root = dtm.getDocument();
+    int count = 0;
+    int node = dtm.getFirstChild(root);
+    while (DTM.NULL != node) {
+      count++;
+      int next = dtm.getFirstChild(node);
+      while (DTM.NULL == next && root != node) {
+        next = dtm.getNextSibling(node);
+        if (DTM.NULL == next) {
+          node = dtm.getParent(node);
+        }
+      }
+      node = next;
+    }
+    return count;
+  }
+}
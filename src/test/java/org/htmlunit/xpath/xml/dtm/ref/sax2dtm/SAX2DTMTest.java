@@ -0,0 +1,226 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.htmlunit.xpath.xml.dtm.ref.sax2dtm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stax.StAXSource;
+import javax.xml.transform.stream.StreamSource;
+import org.htmlunit.xpath.XPath;
+import org.htmlunit.xpath.XPathContext;
+import org.htmlunit.xpath.objects.XObject;
+import org.htmlunit.xpath.xml.dtm.DTM;
+import org.htmlunit.xpath.xml.dtm.DTMIterator;
+import org.htmlunit.xpath.xml.dtm.DTMManager;
+import org.htmlunit.xpath.xml.dtm.ref.DTMManagerDefault;
+import org.htmlunit.xpath.xml.dtm.ref.DTMStripSpaceFilter;
+import org.junit.jupiter.api.Test;
+import org.xml.sax.InputSource;
+
+/** Unit test for {@link SAX2DTM}. */
+public class SAX2DTMTest {
+
+  private static final String XML =
+      "<?xml version='1.0'?>\n"
+          + "<!DOCTYPE root [<!-- dtd comment --><!ATTLIST y key ID #IMPLIED>]>\n"
+          + "<?pi data?><root xmlns='urn:d' xmlns:p='urn:p' a='1'>"
+          + "<p:x p:b='2'>text<![CDATA[cdata]]>more</p:x><!-- comment -->"
+          + "<y key='k1'/><z><z><z>deep</z></z></z>\n  </root>";
+
+  private static final String[] EXPRESSIONS = {
+    "//node()",
+    "//@*",
+    "//namespace::*",
+    "//*[local-name()='x']/@*",
+    "//*[namespace-uri()='urn:p']",
+    "//text()",
+    "//comment()",
+    "//processing-instruction()",
+    "//*[local-name()='z']/ancestor::*",
+    "//*[local-name()='y']/following::node()",
+    "//*[local-name()='y']/preceding::node()",
+    "//*[local-name()='y']/preceding-sibling::*",
+    "string(/)",
+    "count(//node())",
+    "name(/*/*[1])",
+    "id('k1')",
+  };
+
+  private static DTM build(final DTMManagerDefault mgr, final Source source) {
+    return mgr.getDTM(source, false, true, true);
+  }
+
+  private static String evaluate(final DTMManagerDefault mgr, final DTM dtm, final String expr)
+      throws Exception {
+    final XPathContext xctxt = new XPathContext(mgr);
+    final XObject result =
+        new XPath(expr, null, XPath.SELECT).execute(xctxt, dtm.getDocument(), null);
+    if (XObject.CLASS_NODESET != result.getType()) {
+      return result.str();
+    }
+
+    final StringBuilder buf = new StringBuilder();
+    final DTMIterator nodes = result.iter();
+    for (int node = nodes.nextNode(); DTM.NULL != node; node = nodes.nextNode()) {
+      final DTM owner = mgr.getDTM(node);
+      buf.append(owner.getNodeName(node))
+          .append('{')
+          .append(owner.getNamespaceURI(node))
+          .append("}=")
+          .append(owner.getStringValue(node))
+          .append(' ');
+    }
+    return buf.toString();
+  }
+
+  private static String evaluateAll(final DTMManagerDefault mgr, final Source source)
+      throws Exception {
+    final DTM dtm = build(mgr, source);
+    final StringBuilder buf = new StringBuilder();
+    for (final String expr : EXPRESSIONS) {
+      buf.append(expr).append(": ").append(evaluate(mgr, dtm, expr)).append('\n');
+    }
+    return buf.toString();
+  }
+
+  private static DOMSource domSource(final String xml) throws Exception {
+    final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    return new DOMSource(
+        factory.newDocumentBuilder().parse(new InputSource(new StringReader(xml))));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void streamSourceMatchesDom() throws Exception {
+    final String expected = evaluateAll(new DTMManagerDefault(), domSource(XML));
+    final String actual =
+        evaluateAll(new DTMManagerDefault(), new StreamSource(new StringReader(XML)));
+
+    assertEquals(expected, actual);
+    assertTrue(actual.contains("id('k1'): y{urn:d}= \n"), actual);
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void saxAndStaxSources() throws Exception {
+    final String expected =
+        evaluateAll(new DTMManagerDefault(), new StreamSource(new StringReader(XML)));
+
+    final SAXParserFactory factory = SAXParserFactory.newInstance();
+    factory.setNamespaceAware(true);
+    final SAXSource sax =
+        new SAXSource(
+            factory.newSAXParser().getXMLReader(), new InputSource(new StringReader(XML)));
+    assertEquals(expected, evaluateAll(new DTMManagerDefault(), sax));
+
+    final StAXSource stax =
+        new StAXSource(
+            XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(XML)));
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    final DTM dtm = build(mgr, stax);
+    assertEquals("text" + "cdata" + "more" + "deep\n  ", evaluate(mgr, dtm, "string(/)"));
+    assertEquals("12", evaluate(mgr, dtm, "concat(//@a, //@*[local-name()='b'])"));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void stripWhitespace() throws Exception {
+    final String xml =
+        "<html>\n  <body>\n    <p>a <b>b</b> </p>\n    <pre>\n <i>x</i> </pre>\n"
+            + "    <div xml:space='preserve'> <span> </span> </div>\n  </body>\n</html>";
+    final DTMStripSpaceFilter filter = new DTMStripSpaceFilter(true);
+    filter.addPreserveSpaceElement("pre");
+
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    mgr.setWhitespaceFilter(filter);
+    final DTM dtm = build(mgr, new StreamSource(new StringReader(xml)));
+
+    assertEquals("8", evaluate(mgr, dtm, "count(//text())"));
+    assertEquals("3", evaluate(mgr, dtm, "count(/html/body/node())"));
+    assertEquals("a b", evaluate(mgr, dtm, "string(//p)"));
+    assertEquals("\n x ", evaluate(mgr, dtm, "string(//pre)"));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void largeDocument() throws Exception {
+    // more records than a single DTM ID can address
+    final StringBuilder xml = new StringBuilder("<table>");
+    for (int i = 0; i < 30_000; i++) {
+      xml.append("<tr id='r").append(i).append("'><td>").append(i).append("</td></tr>");
+    }
+    xml.append("</table>");
+
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    final DTM dtm = build(mgr, new StreamSource(new StringReader(xml.toString())));
+
+    assertEquals("30000", evaluate(mgr, dtm, "count(//td)"));
+    assertEquals("29999", evaluate(mgr, dtm, "string(/table/tr[@id='r29999'])"));
+    assertEquals("r29998", evaluate(mgr, dtm, "string(/table/tr[30000]/preceding-sibling::tr[1]/@id)"));
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void malformedSource() throws Exception {
+    final DTMManagerDefault mgr = new DTMManagerDefault();
+    final int firstFree = mgr.getFirstFreeDTMID();
+    for (int i = 0; i < 3; i++) {
+      final StreamSource source = new StreamSource(new StringReader("<root><a></root>"));
+      assertThrows(RuntimeException.class, () -> build(mgr, source));
+    }
+
+    // nothing of the failed builds is left behind
+    assertEquals(0, mgr.getDTMCount());
+    assertEquals(0, mgr.getNodeCount());
+    assertEquals(firstFree, mgr.getFirstFreeDTMID());
+    assertEquals(firstFree, build(mgr, new StreamSource(new StringReader(XML))).getDocument()
+        >>> DTMManager.IDENT_DTM_NODE_BITS);
+  }
+
+  /** @throws Exception in case of problems */
+  @Test
+  public void externalEntitiesAreNotResolved() throws Exception {
+    final Path secret = Files.createTempFile("secret", ".txt");
+    try {
+      Files.write(secret, "SECRET".getBytes(StandardCharsets.UTF_8));
+      final String xml =
+          "<!DOCTYPE root [<!ENTITY e SYSTEM '" + secret.toUri() + "'>]><root>&e;</root>";
+
+      final DTMManagerDefault mgr = new DTMManagerDefault();
+      final DTM dtm = build(mgr, new StreamSource(new StringReader(xml)));
+      assertFalse(evaluate(mgr, dtm, "string(/)").contains("SECRET"));
+    }
+    finally {
+      Files.delete(secret);
+    }
+  }
+}